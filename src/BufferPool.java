@@ -0,0 +1,67 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of direct byte buffers of one size.
+ *
+ * The packet path takes a buffer with {@link #acquire()} and returns it with
+ * {@link #release(ByteBuffer)}, so it does not allocate in the steady state.
+ * Direct buffers are handed to the socket without an extra copy into native
+ * memory. At most {@code maxPooled} free buffers are kept, further released
+ * buffers are left to the garbage collector.
+ */
+public class BufferPool {
+  private final int bufferSize;
+  private final ArrayBlockingQueue<ByteBuffer> free; // preallocated, offer/poll do not allocate
+  private final LongAdder allocated = new LongAdder();
+
+  /**
+   * @param bufferSize capacity of each buffer in bytes
+   * @param maxPooled maximal number of free buffers kept in the pool
+   */
+  public BufferPool(int bufferSize, int maxPooled) {
+    this.bufferSize = bufferSize;
+    free = new ArrayBlockingQueue<>(Math.max(1, maxPooled));
+  }
+
+  /**
+   * Takes a buffer from the pool or allocates a new one if the pool is empty.
+   *
+   * @return cleared buffer with a capacity of {@link #getBufferSize()}
+   */
+  public ByteBuffer acquire() {
+    ByteBuffer buffer = free.poll();
+    if (buffer == null) {
+      allocated.increment();
+      return ByteBuffer.allocateDirect(bufferSize);
+    }
+    return buffer.clear();
+  }
+
+  /**
+   * Returns a buffer to the pool. The buffer must not be used afterwards.
+   *
+   * @param buffer buffer taken from this pool, null is ignored
+   */
+  public void release(ByteBuffer buffer) {
+    if (buffer != null && buffer.isDirect() && buffer.capacity() == bufferSize) {
+      free.offer(buffer);
+    }
+  }
+
+  /** @return capacity of the buffers in bytes */
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /** @return number of free buffers in the pool */
+  public int getFreeCount() {
+    return free.size();
+  }
+
+  /** @return number of buffers allocated since the creation of the pool */
+  public long getAllocatedCount() {
+    return allocated.sum();
+  }
+}
@@ -5,6 +5,7 @@ usage: java Client [Server hostname] [Server RTSP listening port] [Video file re
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.text.DecimalFormat;
 import java.util.*;
 import java.util.logging.Level;
@@ -41,23 +42,36 @@ public class Client {
   JProgressBar progressBuffer = new JProgressBar(0, 100);
   JProgressBar progressPosition = new JProgressBar(0, videoLength);
   JCheckBox checkBoxFec = new JCheckBox("FEC");
+  JCheckBox checkBoxMulticast = new JCheckBox("Multicast");
+  JCheckBox checkBoxTcp = new JCheckBox("TCP"); // RTP over the RTSP connection
+  JCheckBox checkBoxRs = new JCheckBox("RS"); // request Reed-Solomon instead of XOR FEC
+  JCheckBox checkBox2d = new JCheckBox("2D"); // request row and column parity
+  JCheckBox checkBoxUlp = new JCheckBox("ULP"); // request stronger protection of the headers
   ButtonGroup encryptionButtons = null;
 
   int iteration = 0;
+  int positionOffset = 0; // frame index of the video minus playback index, changed by seeking
 
   // RTP variables:
   // ----------------
-  DatagramSocket RTPsocket; // socket to be used to send and receive UDP packets
+  RtpReceiver rtpReceiver; // receives the UDP packets on its own thread
+  RtspReader rtspReader; // reads the RTSP responses and the interleaved RTP packets
+  RtcpReporter rtcpReporter; // sends the receiver reports for UDP unicast
   //DatagramSocket FECsocket; // socket to be used to send and receive UDP packets for FEC
   private RtpHandler rtpHandler = null;
   static int RTP_RCV_PORT = 25000; // port where the client will receive the RTP packets
+  InetSocketAddress multicastGroup = null; // group and port from the SETUP response
+  int serverRtcpPort = 0; // second port of server_port in the SETUP response
   // static int FEC_RCV_PORT = 25002; // port where the client will receive the RTP packets
 
-  static final int MAX_FRAME_SIZE = 65536;
-  static final int RCV_RATE = 2; // interval for receiving loop
+  static final int RTP_BUFFER_SIZE = 9000; // jumbo frame MTU, larger datagrams are truncated
+  static final int RTP_BUFFERS = 2048; // free receive buffers kept in the pool
+  // receive buffers, owned by the jitter buffer until the packet is played
+  final BufferPool rtpBufferPool = new BufferPool(RTP_BUFFER_SIZE, RTP_BUFFERS);
+  static final int RCV_RATE = 2; // interval for passing the received packets to the jitter buffer
   int jitterBufferSize = 50; // size of the input buffer => start delay
 
-  Timer timer; // timer used to receive data from the UDP socket
+  Timer timer; // timer used to pass the received packets to the jitter buffer
   Timer timerPlay; // timer used to display the frames at correct frame rate
 
   // RTSP variables
@@ -68,8 +82,7 @@ public class Client {
   static final int PLAYING = 2;
   static int state; // RTSP state == INIT or READY or PLAYING
   Socket RTSPsocket; // socket used to send/receive RTSP messages
-  // input and output stream filters
-  static BufferedReader RTSPBufferedReader;
+  // output stream filter, the input is read by the RtspReader
   static BufferedWriter RTSPBufferedWriter;
   static String rtspServer;
   static int rtspPort;
@@ -115,6 +128,7 @@ public class Client {
     tearButton.addActionListener(new tearButtonListener());
     optionsButton.addActionListener(new optionsButtonListener());
     describeButton.addActionListener(new describeButtonListener());
+    progressPosition.addMouseListener(new positionListener());
 
     // Image display label
     iconLabel.setIcon(null);
@@ -125,7 +139,14 @@ public class Client {
     statsPanel.add(pufferLabel);
     statsPanel.add(statsLabel);
     statsPanel.add(fecLabel);
-    statsPanel.add(checkBoxFec);
+    JPanel checkBoxPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 0, 0));
+    checkBoxPanel.add(checkBoxFec);
+    checkBoxPanel.add(checkBoxMulticast);
+    checkBoxPanel.add(checkBoxTcp);
+    checkBoxPanel.add(checkBoxRs);
+    checkBoxPanel.add(checkBox2d);
+    checkBoxPanel.add(checkBoxUlp);
+    statsPanel.add(checkBoxPanel);
 
     inputPanel.setLayout(new BorderLayout());
     inputPanel.add(textField, BorderLayout.SOUTH);
@@ -196,9 +217,10 @@ public class Client {
     // ------------------
     theClient.RTSPsocket = new Socket(ServerIPAddr, RTSP_server_port);
 
-    // Set input and output stream filters:
-    RTSPBufferedReader =
-            new BufferedReader(new InputStreamReader(theClient.RTSPsocket.getInputStream()));
+    // Read responses and interleaved packets on their own thread, set output stream filter:
+    theClient.rtspReader =
+            new RtspReader(theClient.RTSPsocket.getInputStream(), theClient.rtpBufferPool);
+    theClient.rtspReader.start();
     RTSPBufferedWriter =
             new BufferedWriter(new OutputStreamWriter(theClient.RTSPsocket.getOutputStream()));
 
@@ -224,19 +246,20 @@ public class Client {
           }
         }
 
-        // Init non-blocking RTPsocket that will be used to receive data
+        // Init the receiver thread that will be used to receive data
         try {
-          // TASK construct a new DatagramSocket to receive server RTP packets on port RTP_RCV_PORT
-          RTPsocket = new DatagramSocket(RTP_RCV_PORT);
+          // TASK construct a new receiver for the server RTP packets on port RTP_RCV_PORT
+          // with multicast the group is known after the SETUP response,
+          // with TCP the packets arrive on the RTSP connection
+          if (!checkBoxMulticast.isSelected() && !checkBoxTcp.isSelected()) {
+            rtpReceiver = new RtpReceiver(RTP_RCV_PORT, rtpBufferPool);
+            rtpReceiver.start();
+            logger.log(Level.FINE, "Socket receive buffer: " + rtpReceiver.getSocketBufferSize());
+          }
 
           // for now FEC packets are received via RTP-Port, so keep comment below
           // FECsocket = new DatagramSocket(FEC_RCV_PORT);
 
-          // TASK set Timeout value of the socket to 1 ms
-          // ....
-          RTPsocket.setSoTimeout(1);
-          logger.log(Level.FINE, "Socket receive buffer: " + RTPsocket.getReceiveBufferSize());
-
           rtpHandler.setFecDecryptionEnabled(checkBoxFec.isSelected());
           // Init the play timer
           int timerDelay = FRAME_RATE; // use default delay
@@ -248,7 +271,7 @@ public class Client {
 
           // timerPlay.setInitialDelay(0);
 
-        } catch (SocketException se) {
+        } catch (IOException se) {
           logger.log(Level.SEVERE, "Socket exception: " + se);
           System.exit(0);
         }
@@ -260,9 +283,16 @@ public class Client {
 
         // Wait for the response
         logger.log(Level.INFO, "Wait for response...");
+        multicastGroup = null;
+        serverRtcpPort = 0;
         if (parse_server_response() != 200) {
           logger.log(Level.WARNING, "Invalid Server Response");
+        } else if (checkBoxMulticast.isSelected() && !joinMulticastGroup()) {
+          logger.log(Level.WARNING, "Multicast group not joined");
         } else {
+          if (rtpReceiver != null && multicastGroup == null) {
+            startRtcp();
+          }
           // TASK change RTSP state and print new state to console and statusLabel
           state = READY;
           statusLabel.setText("READY");
@@ -272,6 +302,44 @@ public class Client {
     }
   }
 
+  /** Starts the RTCP receiver reports to the server port of the SETUP response. */
+  private void startRtcp() {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    if (serverRtcpPort == 0) {
+      return;
+    }
+    try {
+      InetSocketAddress server = new InetSocketAddress(RTSPsocket.getInetAddress(), serverRtcpPort);
+      rtcpReporter = new RtcpReporter(RTP_RCV_PORT + 1, server, rtpReceiver.getSourceState());
+      rtcpReporter.start();
+      logger.log(Level.INFO, "RTCP receiver reports to " + server);
+    } catch (IOException ex) {
+      logger.log(Level.WARNING, "RTCP not started: " + ex);
+    }
+  }
+
+  /**
+   * Joins the multicast group of the SETUP response on the interface towards the server.
+   *
+   * @return false if the response has no group or the group can not be joined
+   */
+  private boolean joinMulticastGroup() {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    if (multicastGroup == null) {
+      return false;
+    }
+    try {
+      NetworkInterface networkInterface = NetworkInterface.getByInetAddress(RTSPsocket.getLocalAddress());
+      rtpReceiver = new RtpReceiver(multicastGroup, networkInterface, rtpBufferPool);
+      rtpReceiver.start();
+      logger.log(Level.INFO, "Joined multicast group " + multicastGroup + " on " + networkInterface);
+      return true;
+    } catch (IOException | RuntimeException ex) {
+      logger.log(Level.SEVERE, "Multicast exception: " + ex);
+      return false;
+    }
+  }
+
   /** Handler for Play button */
   class playButtonListener implements ActionListener {
     public void actionPerformed(ActionEvent e) {
@@ -361,7 +429,14 @@ public class Client {
         timer.stop();
         timerPlay.stop();
 
-        RTPsocket.close();
+        if (rtcpReporter != null) {
+          rtcpReporter.close();
+          rtcpReporter = null;
+        }
+        if (rtpReceiver != null) {
+          rtpReceiver.close();
+          rtpReceiver = null;
+        }
         // exit
         // System.exit(0);
       }
@@ -398,21 +473,51 @@ public class Client {
     }
   }
 
+  /** Handler for the position bar, seeks to the selected position */
+  class positionListener extends MouseAdapter {
+    public void mousePressed(MouseEvent e) {
+      Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+      if ((state != READY && state != PLAYING) || duration <= 0 || framerate == 0) {
+        return; // position unknown
+      }
+      double position = duration * e.getX() / progressPosition.getWidth();
+      position = Math.max(0.0, Math.min(position, duration));
+      logger.log(Level.INFO, "Seek to " + position + " s");
+
+      RTSPSeqNb++;
+      // Send PLAY message with the new position to the server
+      send_RTSP_request("PLAY", String.format(Locale.ROOT, "Range: npt=%.3f-", position) + CRLF);
+
+      // Wait for the response
+      if (parse_server_response() != 200) {
+        logger.log(Level.WARNING, "Invalid Server Response");
+      } else {
+        ReceptionStatistic rs = rtpHandler.getReceptionStatistic();
+        int played = rs.playbackIndex - rs.firstSequenceNumber + 1;
+        positionOffset = (int) Math.round(position * framerate) - played;
+        if (state == READY) {
+          state = PLAYING;
+          statusLabel.setText("PLAYING");
+          logger.log(Level.INFO, "New RTSP state: PLAYING\n");
+          timer.start();
+          timerPlay.start();
+        }
+      }
+    }
+  }
+
   /** Handler for the timer event fetches the RTP-packets and displays the images */
   class timerListener implements ActionListener {
-    byte[] buf = new byte[MAX_FRAME_SIZE]; // allocate memory to receive UDP data from server
-
     public void actionPerformed(ActionEvent e) {
-      Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
-      DatagramPacket rcvDp = new DatagramPacket(buf, buf.length); // RTP needs UDP socket
-      try {
-        RTPsocket.receive(rcvDp); // receive the DP from the socket:
-
-        rtpHandler.processRtpPacket(rcvDp.getData(), rcvDp.getLength());
-      } catch (InterruptedIOException iioe) {
-        // System.out.println("Nothing to read");
-      } catch (IOException ioe) {
-        logger.log(Level.SEVERE, "Exception caught: " + ioe);
+      // all packets received since the last event, the buffers are owned by the jitter buffer
+      if (rtpReceiver != null) {
+        for (ByteBuffer buffer = rtpReceiver.poll(); buffer != null; buffer = rtpReceiver.poll()) {
+          rtpHandler.processRtpPacket(buffer, rtpBufferPool);
+        }
+      }
+      for (ByteBuffer buffer = rtspReader.poll(); buffer != null; buffer = rtspReader.poll()) {
+        rtpHandler.processRtpPacket(buffer, rtpBufferPool);
       }
     }
   }
@@ -427,9 +532,10 @@ public class Client {
       byte[] payload;
 
       // check buffer size and start if filled
-      int puffer = rs.latestSequenceNumber - rs.playbackIndex;
+      // the sequence numbers wrap around, the playback index does not
+      int puffer = (short) (rs.latestSequenceNumber - rs.playbackIndex);
       progressBuffer.setValue(puffer);
-      progressPosition.setValue(rs.playbackIndex);
+      progressPosition.setValue(rs.playbackIndex - rs.firstSequenceNumber + 1 + positionOffset);
       if (iteration % 5 == 0) {
         setStatistics(rs);
         iteration = 0;
@@ -448,6 +554,10 @@ public class Client {
 
       logger.log(Level.FINE, "----------------- Play timer --------------------");
       payload = rtpHandler.nextPlaybackImage();
+      if (rtpReceiver != null) {
+        // lost packets up to here are no longer requested
+        rtpReceiver.getSourceState().setPlayoutSeq(rtpHandler.getReceptionStatistic().playbackIndex);
+      }
       if (payload == null) {
         return;
       }
@@ -470,23 +580,32 @@ public class Client {
     private void setStatistics(ReceptionStatistic rs) {
       DecimalFormat df = new DecimalFormat("###.###");
       float ratio=0;
+      int played = rs.playbackIndex - rs.firstSequenceNumber + 1;
 
-      if(rs.playbackIndex == 0)
+      if(played <= 0)
         ratio=0 ;
       else
-        ratio=((float)rs.packetsLost/(float)rs.playbackIndex)*100;
+        ratio=((float)rs.packetsLost/(float)played)*100;
 
       pufferLabel.setText(
               "Puffer: "
-                      + (rs.latestSequenceNumber - rs.playbackIndex)
+                      + (short) (rs.latestSequenceNumber - rs.playbackIndex)
                       + " Bytes //"  //
                       + " aktuelle Nr. / Summe empf.: "
                       + rs.latestSequenceNumber
                       + " / "
-                      + rs.receivedPackets);
+                      + rs.receivedPackets
+                      + " // Pufferüberläufe: "
+                      + (rtpReceiver == null || rtpReceiver.getOverflowCount() < 0
+                          ? "?" : rtpReceiver.getOverflowCount())
+                      + (rtpReceiver == null ? "" : String.format(Locale.ROOT, " // Jitter: %.1f ms",
+                          rtpReceiver.getSourceState().getJitterMillis()))
+                      + (rtcpReporter == null ? "" : " // NACK angefordert / erhalten: "
+                          + rtpReceiver.getSourceState().getRequestedPackets() + " / "
+                          + rtpReceiver.getSourceState().getRecoveredPackets()));
       statsLabel.setText(
               "<html>Abspielzähler / verlorene Medienpakete // Bilder / verloren: "
-                      + rs.playbackIndex + " / "
+                      + played + " / "
                       + rs.packetsLost + " // "
                       + rs.requestedFrames  + " / "
                       + rs.framesLost
@@ -498,13 +617,16 @@ public class Client {
       if((rs.packetsLost + rs.receivedPackets) == 0)
         ratio=0 ;
       else
-        ratio=((float)rs.notCorrectedPackets/(float)(rs.latestSequenceNumber))* 100;
+        ratio=((float)rs.notCorrectedPackets/(float)(rs.packetsLost + rs.receivedPackets))* 100;
 
       fecLabel.setText(
               "FEC: korrigiert / nicht korrigiert: "
                       + ""
                       + rs.correctedPackets + " / "
                       + rs.notCorrectedPackets
+                      + " // davon vor / beim Abspielen: "
+                      + rs.earlyCorrectedPackets + " / "
+                      + rs.lateCorrectedPackets
                       + ""
                       + "  Ratio: "
                       +ratio + "%");
@@ -523,12 +645,13 @@ public class Client {
 
     // logger.log(Level.INFO, "Waiting for Server response...");
     try {
-      // parse the whole reply
+      // parse the whole reply, interleaved packets were already taken out by the reader
+      BufferedReader responseReader = new BufferedReader(new StringReader(rtspReader.takeResponse()));
       ArrayList<String> respLines = new ArrayList<>();
 
       String line;
       do {
-        line = RTSPBufferedReader.readLine();
+        line = responseReader.readLine();
         logger.log(Level.CONFIG, line);
         if (!line.equals("")) respLines.add(line);
       } while (!line.equals(""));
@@ -567,7 +690,7 @@ public class Client {
             break;
 
           case "transport:":
-            logger.log(Level.INFO, "");
+            parseTransport(line.substring(line.indexOf(':') + 1).trim());
             break;
 
           default:
@@ -577,7 +700,7 @@ public class Client {
       logger.log(Level.INFO, "*** Response received ***\n----------------");
 
       // Describe will send content
-      if (cl > 0) parse_server_data(cl);
+      if (cl > 0) parse_server_data(responseReader, cl);
 
     } catch (Exception ex) {
       ex.printStackTrace();
@@ -587,11 +710,49 @@ public class Client {
     return (reply_code);
   }
 
-  private void parse_server_data(int cl) throws Exception {
+  /**
+   * Takes the multicast group and port or the interleaved channel from the
+   * Transport header of a SETUP response.
+   *
+   * @param transport value of the header, e.g. RTP/AVP;multicast;destination=239.255.42.42;port=5004-5005
+   * @throws UnknownHostException if the destination is not an address
+   */
+  private void parseTransport(String transport) throws UnknownHostException {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    String destination = null;
+    int port = 0;
+    RtpHandler.FecScheme fecScheme = RtpHandler.FecScheme.XOR;
+    for (String parameter : transport.split(";")) {
+      if (parameter.startsWith("destination=")) {
+        destination = parameter.substring("destination=".length());
+      } else if (parameter.startsWith("port=")) {
+        port = Integer.parseInt(parameter.substring("port=".length()).split("-")[0]);
+      } else if (parameter.startsWith("server_port=")) {
+        String[] ports = parameter.substring("server_port=".length()).split("-");
+        serverRtcpPort = ports.length > 1
+            ? Integer.parseInt(ports[1]) : Integer.parseInt(ports[0]) + 1;
+      } else if (parameter.startsWith("interleaved=")) {
+        int channel = Integer.parseInt(parameter.substring("interleaved=".length()).split("-")[0]);
+        rtspReader.setRtpChannel(channel);
+        logger.log(Level.INFO, "RTP over RTSP on channel " + channel);
+      } else if (parameter.startsWith("fec=")) {
+        fecScheme = RtpHandler.FecScheme.ofParameter(parameter.substring("fec=".length()));
+      }
+    }
+    // the server answers with the scheme it uses
+    rtpHandler.setFecScheme(fecScheme, 0);
+    logger.log(Level.INFO, "FEC scheme: " + fecScheme);
+    if (transport.contains(";multicast") && destination != null && port > 0) {
+      multicastGroup = new InetSocketAddress(InetAddress.getByName(destination), port);
+      logger.log(Level.INFO, "Multicast group: " + multicastGroup);
+    }
+  }
+
+  private void parse_server_data(BufferedReader responseReader, int cl) throws Exception {
     Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
     char[] cbuf = new char[cl];
     logger.log(Level.INFO, "*** Parsing Response Data...");
-    int data = RTSPBufferedReader.read(cbuf, 0, cl);
+    int data = responseReader.read(cbuf, 0, cl);
     logger.log(Level.INFO, "Data: " + data);
     logger.log(Level.INFO, new String(cbuf));
 
@@ -620,6 +781,16 @@ public class Client {
    * @param request_type the RTSP-Request, e.g. SETUP or PLAY
    */
   private void send_RTSP_request(String request_type) {
+    send_RTSP_request(request_type, "");
+  }
+
+  /**
+   * Send the RTSP Request with additional header lines
+   *
+   * @param request_type the RTSP-Request, e.g. SETUP or PLAY
+   * @param headers additional header lines, each terminated by CRLF
+   */
+  private void send_RTSP_request(String request_type, String headers) {
     Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
     try {
       // defines the URL
@@ -641,9 +812,25 @@ public class Client {
       if (request_type.equals("SETUP")) {
         //TASK Complete the Transport Attribute
         //rtspReq += "Transport:";
-        rtspReq += "Transport: RTP/AVP;unicast;client_port=" + RTP_RCV_PORT +"-"+ RTP_RCV_PORT+1 + CRLF;
+        String fec = "";
+        if (checkBoxRs.isSelected()) {
+          fec = ";fec=" + RtpHandler.FecScheme.REED_SOLOMON.getParameter();
+        } else if (checkBox2d.isSelected()) {
+          fec = ";fec=" + RtpHandler.FecScheme.PARITY_2D.getParameter();
+        } else if (checkBoxUlp.isSelected()) {
+          fec = ";fec=" + RtpHandler.FecScheme.ULP.getParameter();
+        }
+        if (checkBoxMulticast.isSelected()) {
+          rtspReq += "Transport: RTP/AVP;multicast" + fec + CRLF;
+        } else if (checkBoxTcp.isSelected()) {
+          rtspReq += "Transport: RTP/AVP/TCP;unicast;interleaved=0-1" + fec + CRLF;
+        } else {
+          rtspReq += "Transport: RTP/AVP;unicast;client_port=" + RTP_RCV_PORT + "-" + (RTP_RCV_PORT + 1) + fec + CRLF;
+        }
       }
 
+      rtspReq += headers;
+
       // SessionIS if available
       if (!RTSPid.equals("0")) {
         rtspReq += "Session: " + RTSPid + CRLF;
@@ -52,7 +52,12 @@
  * @version 1.0
  */
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -60,6 +65,17 @@ public class FECpacket extends RTPpacket {
   private static final int FEC_HEADER_SIZE = 10;
   private static final int ULP_HEADER_SIZE0 = 4;
   private static final int ULP_HEADER_SIZE1 = 8;
+  /** Bytes of a XOR parity packet in front of the protected payload, with a long mask */
+  static final int XOR_OVERHEAD = FEC_HEADER_SIZE + ULP_HEADER_SIZE1;
+  /** Bytes of a ULP packet besides the protected payload, two levels with long masks */
+  static final int ULP_OVERHEAD = FEC_HEADER_SIZE + 2 * ULP_HEADER_SIZE1;
+  // 8 bytes per step for the XOR, the byte order does not matter if both sides use the same
+  private static final VarHandle BIG_ENDIAN_LONGS =
+      MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+  private static final VarHandle LITTLE_ENDIAN_LONGS =
+      MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+  private static final VarHandle LONGS = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN
+      ? BIG_ENDIAN_LONGS : LITTLE_ENDIAN_LONGS;
   int headerAll;
   int payloadFec_size;
 
@@ -79,9 +95,15 @@ public class FECpacket extends RTPpacket {
 
   // *** ULP Level Header ********************
   byte[] ulpLevelHeader;
-  int protectionLength;
+  int protectionLength; // 0: level 0 protects the whole payload
   long mask;
 
+  // *** ULP Level 1, optional ***************
+  byte[] ulpLevel1Header; // null without level 1
+  long mask1;
+  byte[] level1Payload; // bytes from protectionLength on
+  int level1Size; // longest part protected by level 1
+
   // *** FEC Parameters **********************
   int fecGroupSize; // FEC-Gruppengröße
 
@@ -95,9 +117,13 @@ public class FECpacket extends RTPpacket {
    * @param Time   Time Stamp
    * @param maxGroupSize maximum supported group size
    * @param snBase base for sequence nr.
+   * @param accumulator zeroed array for the XOR of the payloads, grown if a payload is longer
    */
-  public FECpacket(int PType, int Framenb, int Time, int maxGroupSize, int snBase) {
+  public FECpacket(int PType, int Framenb, int Time, int maxGroupSize, int snBase,
+      byte[] accumulator) {
     super(PType, Framenb, Time, new byte[0], 0);
+    // accumulator for the payloads, payload_size is the longest one so far
+    payload = accumulator;
     setFecHeader(maxGroupSize, snBase);
     setUlpLevelHeader(0,0,maxGroupSize);
   }
@@ -121,6 +147,17 @@ public class FECpacket extends RTPpacket {
     System.arraycopy(payload,FEC_HEADER_SIZE+ulpLevelHeader.length,
         buf, 0, payload.length-FEC_HEADER_SIZE-ulpLevelHeader.length);
     payload = buf;
+    payload_size = buf.length;
+    // level 1 follows the level 0 payload of protectionLength bytes
+    int level1Start = protectionLength + ulpLevelHeader.length;
+    if (protectionLength > 0 && payload_size >= level1Start) {
+      ulpLevel1Header = Arrays.copyOfRange(payload, protectionLength, level1Start);
+      mask1 = parseMask(ulpLevel1Header);
+      level1Size = (0xFF & ulpLevel1Header[0]) * 256 + (0xFF & ulpLevel1Header[1]);
+      level1Payload = Arrays.copyOfRange(payload, level1Start, level1Start + level1Size);
+      payload = Arrays.copyOf(payload, protectionLength);
+      payload_size = protectionLength;
+    }
   }
 
   // ##############################################################################################
@@ -151,7 +188,7 @@ public class FECpacket extends RTPpacket {
   private void setFecHeader() {
     // FEC-Header
     // P,X,CC,M,PT, TS  is  XORed
-    fecHeader[0] = (byte) (E << 7 | L << 6);
+    fecHeader[0] = (byte) (E << 7 | L << 6 | P << 5 | X << 4 | CC);
     fecHeader[1] = (byte) (M<< 7 | ptRecovery);
     fecHeader[2] = (byte) (snBase >> 8);
     fecHeader[3] = (byte) (0xFF & snBase);
@@ -181,24 +218,104 @@ public class FECpacket extends RTPpacket {
     for (int i = 1; i < fecGroupSize; i++) {
       mask = 0x8000000000000000L | (mask >> 1);
     }
+    setUlpLevelHeader();
+  }
+
+  /**
+   * Sets the mask of the protected packets, e.g. every L-th packet for a column
+   * of a 2D parity matrix. The long mask is used if packets after SN base + 15
+   * are protected.
+   *
+   * @param mask MSB corresponds to SN base, at most 48 bits
+   */
+  public void setUlpMask(long mask) {
+    this.mask = mask;
+    setL();
+  }
+
+  /**
+   * Limits level 0 to the first bytes of the payloads, for the sender. The
+   * level 0 payload has exactly this length.
+   *
+   * @param protectionLength protected bytes of each payload, 0 for the whole payload
+   */
+  public void setProtectionLength(int protectionLength) {
+    this.protectionLength = protectionLength;
+    ensureCapacity(protectionLength);
+    payload_size = protectionLength;
+    setUlpLevelHeader();
+  }
+
+  /**
+   * Adds ULP level 1, which protects the payload bytes after the protection
+   * length of level 0, for the sender.
+   *
+   * @param mask1 mask of the packets protected by level 1, MSB corresponds to SN base
+   * @param accumulator zeroed array for the XOR of the level 1 payloads
+   */
+  public void setUlpLevel1(long mask1, byte[] accumulator) {
+    this.mask1 = mask1;
+    level1Payload = accumulator;
+    level1Size = 0;
+    setL();
+  }
+
+  /** @return true if the packet has ULP level 1 */
+  public boolean hasLevel1() {
+    return level1Payload != null;
+  }
+
+  /** @return mask of the packets protected by level 1, MSB corresponds to SN base */
+  public long getMask1() {
+    return mask1;
+  }
+
+  /** @return protected bytes of each payload by level 0, 0 for the whole payload */
+  public int getProtectionLength() {
+    return protectionLength;
+  }
+
+  private void setL() {
+    L = ((mask | mask1) & 0x0000FFFFFFFFFFFFL) != 0 ? 1 : 0;
+    setFecHeader();
+    setUlpLevelHeader();
+  }
+
+  private void setUlpLevelHeader() {
+    ulpLevelHeader = levelHeader(protectionLength, mask);
+    headerAll = HEADER_SIZE + FEC_HEADER_SIZE + ulpLevelHeader.length;
+    payloadFec_size = payload_size - FEC_HEADER_SIZE - ulpLevelHeader.length;
+  }
+
+  private byte[] levelHeader(int protectionLength, long mask) {
+    byte[] levelHeader;
     if (L == 0) {
-      ulpLevelHeader = new byte[ULP_HEADER_SIZE0];
+      levelHeader = new byte[ULP_HEADER_SIZE0];
     } else {
-      ulpLevelHeader = new byte[ULP_HEADER_SIZE1];
+      levelHeader = new byte[ULP_HEADER_SIZE1];
     }
     // FEC-Level-Header
-    ulpLevelHeader[0] = (byte) (protectionLength >> 8);
-    ulpLevelHeader[1] = (byte) (0xFF & protectionLength);
-    ulpLevelHeader[2] = (byte) (mask >> 56);
-    ulpLevelHeader[3] = (byte) (mask >> 48);
+    levelHeader[0] = (byte) (protectionLength >> 8);
+    levelHeader[1] = (byte) (0xFF & protectionLength);
+    levelHeader[2] = (byte) (mask >> 56);
+    levelHeader[3] = (byte) (mask >> 48);
     if (L == 1) {
-      ulpLevelHeader[4] = (byte) (mask >> 40);
-      ulpLevelHeader[5] = (byte) (mask >> 32);
-      ulpLevelHeader[6] = (byte) (mask >> 24);
-      ulpLevelHeader[7] = (byte) (mask >> 16);
+      levelHeader[4] = (byte) (mask >> 40);
+      levelHeader[5] = (byte) (mask >> 32);
+      levelHeader[6] = (byte) (mask >> 24);
+      levelHeader[7] = (byte) (mask >> 16);
     }
-    headerAll = HEADER_SIZE + FEC_HEADER_SIZE + ulpLevelHeader.length;
-    payloadFec_size = payload_size - FEC_HEADER_SIZE - ulpLevelHeader.length;
+    return levelHeader;
+  }
+
+  /** @return sequence number of the first protected packet */
+  public int getSnBase() {
+    return snBase;
+  }
+
+  /** @return mask of the protected packets, MSB corresponds to SN base */
+  public long getMask() {
+    return mask;
   }
 
   /**
@@ -210,11 +327,12 @@ public class FECpacket extends RTPpacket {
     ArrayList<Integer> list = new ArrayList<>();
     //System.out.println("FEC: base + mask " + snBase + " " + Long.toHexString(mask) );
     // generates involved packet numbers from mask
+    long bits = mask;
     for (int i = 0; i < 48; i++) {
-      if ( (mask & 0x8000000000000000L) != 0 ) {
-        list.add(snBase + i);
+      if ( (bits & 0x8000000000000000L) != 0 ) {
+        list.add((snBase + i) & 0xFFFF); // the sequence numbers wrap around
       }
-      mask = mask << 1;
+      bits = bits << 1;
     }
     return list;
   }
@@ -227,8 +345,14 @@ public class FECpacket extends RTPpacket {
   @Override
   public byte[] getpacket() {
     Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
-    logger.log(Level.FINER, "FEC packet: " + payload_size + " " + payload.length);
-    byte[] packet = new byte[payload_size + headerAll];
+    if (logger.isLoggable(Level.FINER)) {
+      logger.log(Level.FINER, "FEC packet: " + payload_size + " " + payload.length);
+    }
+    if (level1Payload != null) {
+      ulpLevel1Header = levelHeader(level1Size, mask1);
+    }
+    int level1Length = level1Payload != null ? ulpLevel1Header.length + level1Size : 0;
+    byte[] packet = new byte[payload_size + headerAll + level1Length];
     setRtpHeader(); // set RTP Header again because of changing time stamp
     // RTP Header from array
     System.arraycopy(header, 0, packet, 0, HEADER_SIZE);
@@ -240,6 +364,11 @@ public class FECpacket extends RTPpacket {
     // Payload starts from 0
     System.arraycopy(
         payload, 0, packet, headerAll, payload_size);
+    if (level1Payload != null) {
+      int level1Start = headerAll + payload_size;
+      System.arraycopy(ulpLevel1Header, 0, packet, level1Start, ulpLevel1Header.length);
+      System.arraycopy(level1Payload, 0, packet, level1Start + ulpLevel1Header.length, level1Size);
+    }
     return packet;
   }
 
@@ -259,15 +388,17 @@ public class FECpacket extends RTPpacket {
     // copy the FEC Header als part of the RTP payload
     System.arraycopy(payload, 0, fecHeader, 0, FEC_HEADER_SIZE);
     L = (fecHeader[0] & 0b01000000) >> 6;
-    // ignore P,X,CC,M yet
+    P = (fecHeader[0] >> 5) & 1;
+    X = (fecHeader[0] >> 4) & 1;
+    CC = fecHeader[0] & 0x0F;
+    M = (fecHeader[1] >> 7) & 1;
     ptRecovery = 0x7F & fecHeader[1];
     snBase = (0xFF & fecHeader[2]) * 256 + (0xFF & fecHeader[3]);
-    // TODO check if correct
     tsRecovery =
-        (0xFFFFFF & fecHeader[4]) * 0xFFFF
-            + (0xFF & fecHeader[5])
-            + (0xFF & fecHeader[6]) * 256
-            + (0xFF & fecHeader[7]);
+        (0xFF & fecHeader[4]) << 24
+            | (0xFF & fecHeader[5]) << 16
+            | (0xFF & fecHeader[6]) << 8
+            | (0xFF & fecHeader[7]);
     lengthRecovery = (0xFF & fecHeader[8]) * 256 + (0xFF & fecHeader[9]);
 
     // ULP Level Header
@@ -276,18 +407,25 @@ public class FECpacket extends RTPpacket {
     // copy the ULP header
     System.arraycopy(payload, FEC_HEADER_SIZE, ulpLevelHeader, 0, ulpLevelHeader.length);
     protectionLength = (0xFF & ulpLevelHeader[0]) * 256 + (0xFF & ulpLevelHeader[1]);
+    mask = parseMask(ulpLevelHeader);
+  }
+
+  /**
+   * @param levelHeader ULP level header
+   * @return mask, MSB corresponds to SN base
+   */
+  private long parseMask(byte[] levelHeader) {
     // Small mask
-    mask = ((0xFFL & ulpLevelHeader[2]) << 56) + ((0xFFL & ulpLevelHeader[3]) << 48);
-    // System.out.println("FEC mask: " + ulpLevelHeader[2] + " " + ulpLevelHeader[3] + " " +
-    // Long.toHexString(mask));
+    long mask = ((0xFFL & levelHeader[2]) << 56) + ((0xFFL & levelHeader[3]) << 48);
     // Large mask
     if (L == 1) {
       mask |=
-          ((0xFFL & ulpLevelHeader[4]) << 40)
-              + ((0xFFL & ulpLevelHeader[5]) << 32)
-              + ((0xFFL & ulpLevelHeader[6]) << 24)
-              + ((0xFFL & ulpLevelHeader[7]) << 16);
+          ((0xFFL & levelHeader[4]) << 40)
+              + ((0xFFL & levelHeader[5]) << 32)
+              + ((0xFFL & levelHeader[6]) << 24)
+              + ((0xFFL & levelHeader[7]) << 16);
     }
+    return mask;
   }
 
   // ###############################################################################################
@@ -300,27 +438,23 @@ public class FECpacket extends RTPpacket {
    * @param rtp RTP packet
    */
   public void addRtp(RTPpacket rtp) {
-    // sets the payload
-    byte[] data = rtp.getpayload();
+    if (rtp instanceof RtpPacketView) {
+      addRtp(((RtpPacketView) rtp).getBuffer()); // read in place from the receive buffer
+      return;
+    }
+    int length = rtp.payload_size;
 
     // XOR actual data size
-    lengthRecovery ^= data.length;
-
-    // init of buffer and length recovery
-    if (payload.length == 0) {
-      payload = data;
-    } else {
-      // switch array so that payload is longest of all packets
-      if (data.length > payload.length) {
-        byte[] buf = data;
-        data = payload;
-        payload = buf;
-      }
-      for (int i = 0; i < data.length; i++) {
-        payload[i] ^= data[i];
-      }
+    lengthRecovery ^= length;
+
+    // XOR in place from the payload array of the packet
+    int protectedLength = protectionLength > 0 ? Math.min(length, protectionLength) : length;
+    ensureCapacity(protectedLength);
+    xor(payload, 0, rtp.payload, 0, protectedLength);
+    payload_size = Math.max(payload_size, protectedLength);
+    if (level1Payload != null) {
+      addRtpLevel1(rtp);
     }
-    payload_size = payload.length;
 
     // Header XOR -> P, X, CC, M, PT, TS
     P ^= rtp.Padding;
@@ -334,23 +468,185 @@ public class FECpacket extends RTPpacket {
   }
 
 
+  /**
+   * Adds a serialized RTP packet to the header and payload, like {@link #addRtp(RTPpacket)}
+   * Used by the sender to read the packet directly from the send buffer
+   *
+   * @param packet RTP packet from position to limit, position and limit are not changed
+   */
+  public void addRtp(ByteBuffer packet) {
+    int start = packet.position();
+    int length = packet.remaining() - HEADER_SIZE;
+
+    // XOR actual data size
+    lengthRecovery ^= length;
+
+    int protectedLength = protectionLength > 0 ? Math.min(length, protectionLength) : length;
+    ensureCapacity(protectedLength);
+    xor(payload, 0, packet, start + HEADER_SIZE, protectedLength);
+    payload_size = Math.max(payload_size, protectedLength);
+    if (level1Payload != null) {
+      addRtpLevel1(packet);
+    }
+
+    // Header XOR -> P, X, CC, M, PT, TS
+    int b0 = packet.get(start);
+    int b1 = packet.get(start + 1);
+    P ^= (b0 >> 5) & 1;
+    X ^= (b0 >> 4) & 1;
+    CC ^= b0 & 0x0F;
+    M ^= (b1 >> 7) & 1;
+    ptRecovery ^= b1 & 0x7F;
+    tsRecovery ^= packet.getInt(start + 4);
+
+    setFecHeader();  // update Header with changed variables
+  }
+
+
+  /**
+   * Adds the payload bytes after the protection length of level 0 to level 1,
+   * alone for a packet which is only in the level 1 mask
+   *
+   * @param rtp RTP packet
+   */
+  public void addRtpLevel1(RTPpacket rtp) {
+    if (rtp instanceof RtpPacketView) {
+      addRtpLevel1(((RtpPacketView) rtp).getBuffer());
+      return;
+    }
+    int length = rtp.payload_size - protectionLength;
+    if (length > 0) {
+      ensureLevel1Capacity(length);
+      xor(level1Payload, 0, rtp.payload, protectionLength, length);
+      level1Size = Math.max(level1Size, length);
+    }
+  }
+
+  /**
+   * Adds the payload bytes after the protection length of level 0 to level 1,
+   * like {@link #addRtpLevel1(RTPpacket)}
+   *
+   * @param packet RTP packet from position to limit, position and limit are not changed
+   */
+  public void addRtpLevel1(ByteBuffer packet) {
+    int length = packet.remaining() - HEADER_SIZE - protectionLength;
+    if (length > 0) {
+      ensureLevel1Capacity(length);
+      xor(level1Payload, 0, packet, packet.position() + HEADER_SIZE + protectionLength, length);
+      level1Size = Math.max(level1Size, length);
+    }
+  }
+
+  private void ensureLevel1Capacity(int length) {
+    if (length > level1Payload.length) {
+      level1Payload = Arrays.copyOf(level1Payload, length);
+    }
+  }
+
+  /**
+   * Extends the accumulator for a longer packet, missing bytes count as zero
+   *
+   * @param length payload length of the packet
+   */
+  private void ensureCapacity(int length) {
+    if (length > payload.length) {
+      payload = Arrays.copyOf(payload, length);
+    }
+  }
+
+  /**
+   * XORs a block into another, 8 bytes per step
+   *
+   * @param dst block to XOR into
+   * @param dstOffset start in dst
+   * @param src block to add
+   * @param srcOffset start in src
+   * @param length number of bytes
+   */
+  static void xor(byte[] dst, int dstOffset, byte[] src, int srcOffset, int length) {
+    int i = 0;
+    for (; i <= length - Long.BYTES; i += Long.BYTES) {
+      long word = (long) LONGS.get(dst, dstOffset + i) ^ (long) LONGS.get(src, srcOffset + i);
+      LONGS.set(dst, dstOffset + i, word);
+    }
+    for (; i < length; i++) {
+      dst[dstOffset + i] ^= src[srcOffset + i];
+    }
+  }
+
+  /**
+   * XORs a block of a buffer into an array, 8 bytes per step
+   *
+   * @param dst block to XOR into
+   * @param dstOffset start in dst
+   * @param src buffer, heap or direct; position and limit are not used
+   * @param srcIndex start in src
+   * @param length number of bytes
+   */
+  static void xor(byte[] dst, int dstOffset, ByteBuffer src, int srcIndex, int length) {
+    // getLong of the buffer is much faster than a buffer view VarHandle for direct buffers
+    VarHandle longs = src.order() == ByteOrder.BIG_ENDIAN ? BIG_ENDIAN_LONGS : LITTLE_ENDIAN_LONGS;
+    int i = 0;
+    for (; i <= length - Long.BYTES; i += Long.BYTES) {
+      long word = (long) longs.get(dst, dstOffset + i) ^ src.getLong(srcIndex + i);
+      longs.set(dst, dstOffset + i, word);
+    }
+    for (; i < length; i++) {
+      dst[dstOffset + i] ^= src.get(srcIndex + i);
+    }
+  }
+
   /**
    * Generates the lost RTP packet from the XORed values
    * @return rtp
    */
   public RTPpacket getLostRtp(int snr) {
-    // TODO get the correct SNr
-    return new RTPpacket(ptRecovery, snr  ,tsRecovery, payload, lengthRecovery);
+    return getLostRtp(snr, null);
+  }
+
+  /**
+   * Generates the lost RTP packet from the XORed values of level 0 and level 1.
+   * Without level 1 only the bytes protected by level 0 are recovered.
+   *
+   * @param snr Sequence Nr.
+   * @param level1 FEC packet with the XORed level 1, e.g. this, null if it is not recoverable
+   * @return rtp, shorter than the lost packet if the rest of the payload is not recovered
+   */
+  public RTPpacket getLostRtp(int snr, FECpacket level1) {
+    int length = lengthRecovery;
+    if (protectionLength > 0 && length > protectionLength) {
+      byte[] data = Arrays.copyOf(payload, protectionLength);
+      if (level1 != null) {
+        data = Arrays.copyOf(data, length);
+        System.arraycopy(level1.level1Payload, 0, data, protectionLength,
+            Math.min(length - protectionLength, level1.level1Payload.length));
+      }
+      return getLostRtp(snr, data, data.length);
+    }
+    return getLostRtp(snr, payload, length);
+  }
+
+  private RTPpacket getLostRtp(int snr, byte[] data, int length) {
+    RTPpacket rtp = new RTPpacket(ptRecovery, snr, tsRecovery, data, length);
+    // the recovered header may protect further packets, e.g. in a 2D parity matrix
+    rtp.Padding = P;
+    rtp.Extension = X;
+    rtp.CC = CC;
+    rtp.setMarker(M);
+    return rtp;
   }
 
 
   // *************** Debugging *******************************************************************
 
   /**
-   * Prints the FEC- and ULP-Header fields
+   * Prints the FEC- and ULP-Header fields, the dump is only built if FINER is logged
    */
   public void printHeaders() {
     Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    if (!logger.isLoggable(Level.FINER)) {
+      return; // called for every FEC packet
+    }
     logger.log(Level.FINER, "FEC-Header");
     printheader(FEC_HEADER_SIZE, fecHeader);
     logger.log(Level.FINER, "FEC-Level-Header");
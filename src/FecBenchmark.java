@@ -0,0 +1,331 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares the XOR parity FEC with the ULP, Reed-Solomon and 2D parity FEC:
+ * encoding and decoding throughput and the residual loss after the recovery
+ * with random and with burst loss. The codes are compared at about the same
+ * overhead, e.g. XOR with k = 8 against Reed-Solomon with k = 16, m = 2 and
+ * k = 32, m = 4. A packet of which ULP recovers only the prefix counts as
+ * lost. The word-wide XOR of {@link FECpacket} is compared with a byte loop,
+ * from an array and from a direct buffer as received; both must give the
+ * same result. Every measurement follows a warm-up run of the same code.
+ *
+ * Usage: java FecBenchmark [loss rate] [groups]
+ */
+public class FecBenchmark {
+  static final int PAYLOAD_SIZE = 1400; // largest payload, as from the packetizer
+  static final int MEAN_BURST = 3; // mean burst length of the burst loss
+  static final int PACKETS = 20_000; // for the throughput
+  static final int XOR_ROUNDS = 5; // of PACKETS for the XOR kernels
+  static final int XOR_SOURCES = 7; // payloads XORed in turn, so the result does not cancel out
+
+  private final Random random = new Random(1);
+
+  /** Result of an XOR kernel: throughput and hash of the accumulated payload. */
+  record XorResult(double megabytesPerSecond, int checksum) {}
+
+  /** Code to compare: group size k, m repair packets for Reed-Solomon. */
+  record Code(RtpHandler.FecScheme scheme, int k, int m) {
+    /** @return media packets of a group, L * L for the 2D parity */
+    int groupPackets() {
+      return scheme == RtpHandler.FecScheme.PARITY_2D ? k * k : k;
+    }
+
+    /** @return longest recoverable burst of lost media packets */
+    int burst() {
+      switch (scheme) {
+        case REED_SOLOMON:
+          return m;
+        case PARITY_2D:
+          return k;
+        default:
+          return 1;
+      }
+    }
+
+    FecHandler sender() {
+      switch (scheme) {
+        case REED_SOLOMON:
+          return new RsFecHandler(k, m);
+        case PARITY_2D:
+          return new MatrixFecHandler(k);
+        case ULP:
+          return new UlpFecHandler(k, UlpFecHandler.DEFAULT_PROTECTION_LENGTH);
+        default:
+          return new FecHandler(k);
+      }
+    }
+
+    FecHandler receiver() {
+      switch (scheme) {
+        case REED_SOLOMON:
+          return new RsFecHandler(true);
+        case PARITY_2D:
+          return new MatrixFecHandler(true);
+        case ULP:
+          return new UlpFecHandler(true);
+        default:
+          return new FecHandler(true);
+      }
+    }
+
+    @Override
+    public String toString() {
+      String name;
+      switch (scheme) {
+        case REED_SOLOMON:
+          name = String.format(Locale.ROOT, "RS   k=%2d m=%d", k, m);
+          break;
+        case PARITY_2D:
+          name = String.format(Locale.ROOT, "2D   L=%2d D=%d", k, k);
+          break;
+        case ULP:
+          name = String.format(Locale.ROOT, "ULP  k=%2d    ", k);
+          break;
+        default:
+          name = String.format(Locale.ROOT, "XOR  k=%2d    ", k);
+      }
+      return String.format(Locale.ROOT, "%s (%4.1f %%)", name, 100.0 * sender().getOverhead());
+    }
+  }
+
+  public static void main(String[] args) {
+    double loss = args.length > 0 ? Double.parseDouble(args[0]) : 0.05;
+    int groups = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+    RtpHandler.FecScheme xor = RtpHandler.FecScheme.XOR;
+    RtpHandler.FecScheme rs = RtpHandler.FecScheme.REED_SOLOMON;
+    RtpHandler.FecScheme parity2d = RtpHandler.FecScheme.PARITY_2D;
+    RtpHandler.FecScheme ulp = RtpHandler.FecScheme.ULP;
+    Code[] codes = {
+        new Code(xor, 8, 0), new Code(ulp, 8, 0), new Code(rs, 16, 2), new Code(rs, 32, 4),
+        new Code(xor, 4, 0), new Code(ulp, 4, 0), new Code(rs, 16, 4), new Code(rs, 32, 8),
+        new Code(parity2d, 7, 0), new Code(rs, 24, 7), new Code(parity2d, 4, 0)};
+    FecBenchmark benchmark = new FecBenchmark();
+
+    System.out.println("XOR of " + PAYLOAD_SIZE + " byte payloads");
+    for (boolean direct : new boolean[] {false, true}) {
+      XorResult bytes = benchmark.xor(false, direct);
+      XorResult words = benchmark.xor(true, direct);
+      if (bytes.checksum() != words.checksum()) {
+        throw new IllegalStateException("XOR results differ");
+      }
+      System.out.printf(Locale.ROOT,
+          "  %-13s byte loop %7.1f MB/s  8 bytes %7.1f MB/s  checksum %08x%n",
+          direct ? "direct buffer" : "array", bytes.megabytesPerSecond(),
+          words.megabytesPerSecond(), words.checksum());
+    }
+
+    System.out.println("Throughput, " + PAYLOAD_SIZE + " byte payloads");
+    for (Code code : codes) {
+      benchmark.encode(code); // warm-up
+      double encode = benchmark.encode(code);
+      benchmark.decode(code);
+      double decode = benchmark.decode(code);
+      System.out.printf(Locale.ROOT, "  %s  encode %7.1f MB/s  decode %7.1f MB/s%n",
+          code, encode, decode);
+    }
+
+    System.out.printf(Locale.ROOT, "Residual loss of %d groups, packet loss %.1f %%%n",
+        groups, loss * 100);
+    for (Code code : codes) {
+      double random = benchmark.recover(code, loss, 1, groups);
+      double burst = benchmark.recover(code, loss, MEAN_BURST, groups);
+      System.out.printf(Locale.ROOT, "  %s  random %6.3f %%  bursts of %d %6.3f %%%n",
+          code, random * 100, MEAN_BURST, burst * 100);
+    }
+  }
+
+  /**
+   * XORs the same payloads for every kernel, after a warm-up run. The
+   * checksum of the result is returned, so the work cannot be left out.
+   *
+   * @param wordWide XOR of {@link FECpacket}, else byte by byte
+   * @param direct source is a direct buffer, else an array
+   * @return XORed bytes per second in MB/s and the checksum of the result
+   */
+  XorResult xor(boolean wordWide, boolean direct) {
+    Random sourceRandom = new Random(2);
+    byte[][] arrays = new byte[XOR_SOURCES][PAYLOAD_SIZE];
+    ByteBuffer[] buffers = new ByteBuffer[XOR_SOURCES];
+    for (int i = 0; i < XOR_SOURCES; i++) {
+      sourceRandom.nextBytes(arrays[i]);
+      buffers[i] = ByteBuffer.allocateDirect(PAYLOAD_SIZE).put(arrays[i]).flip();
+    }
+    byte[] accumulator = new byte[PAYLOAD_SIZE];
+    xorRounds(accumulator, arrays, buffers, wordWide, direct, PACKETS); // warm-up
+    Arrays.fill(accumulator, (byte) 0);
+    long start = System.nanoTime();
+    xorRounds(accumulator, arrays, buffers, wordWide, direct, XOR_ROUNDS * PACKETS);
+    long nanos = System.nanoTime() - start;
+    return new XorResult((double) XOR_ROUNDS * PACKETS * PAYLOAD_SIZE * 1000 / nanos,
+        Arrays.hashCode(accumulator));
+  }
+
+  private static void xorRounds(byte[] accumulator, byte[][] arrays, ByteBuffer[] buffers,
+      boolean wordWide, boolean direct, int packets) {
+    for (int n = 0; n < packets; n++) {
+      int i = n % XOR_SOURCES;
+      if (wordWide && direct) {
+        FECpacket.xor(accumulator, 0, buffers[i], 0, PAYLOAD_SIZE);
+      } else if (wordWide) {
+        FECpacket.xor(accumulator, 0, arrays[i], 0, PAYLOAD_SIZE);
+      } else if (direct) {
+        byteXor(accumulator, buffers[i], PAYLOAD_SIZE);
+      } else {
+        byteXor(accumulator, arrays[i], PAYLOAD_SIZE);
+      }
+    }
+  }
+
+  /** XOR as before, one byte per step. */
+  private static void byteXor(byte[] dst, byte[] src, int length) {
+    for (int i = 0; i < length; i++) {
+      dst[i] ^= src[i];
+    }
+  }
+
+  private static void byteXor(byte[] dst, ByteBuffer src, int length) {
+    for (int i = 0; i < length; i++) {
+      dst[i] ^= src.get(i);
+    }
+  }
+
+  /**
+   * @param code FEC code
+   * @return media bytes per second in MB/s
+   */
+  double encode(Code code) {
+    FecHandler sender = code.sender();
+    ByteBuffer packet = ByteBuffer.wrap(mediaPacket(0, PAYLOAD_SIZE).getpacket());
+    long start = System.nanoTime();
+    for (int n = 0; n < PACKETS; n++) {
+      packet.putShort(2, (short) n);
+      sender.setRtp(packet);
+      while (sender.isReady()) {
+        sender.getPacket();
+      }
+    }
+    return (double) PACKETS * PAYLOAD_SIZE * 1000 / (System.nanoTime() - start);
+  }
+
+  /**
+   * Decodes groups with the longest recoverable burst of lost media packets.
+   *
+   * @param code FEC code
+   * @return recovered bytes per second in MB/s
+   */
+  double decode(Code code) {
+    int groups = PACKETS / code.groupPackets();
+    long nanos = 0;
+    long bytes = 0;
+    int[] nrs = new int[FecHandler.GROUP_CAPACITY]; // protected packets, not used
+    for (int g = 0; g < groups; g++) {
+      Group group = new Group(code.sender(), code, g * code.groupPackets(), false);
+      FecHandler receiver = code.receiver();
+      HashMap<Integer, RTPpacket> mediaPackets = new HashMap<>();
+      for (int j = code.burst(); j < code.groupPackets(); j++) {
+        mediaPackets.put(group.media.get(j).getsequencenumber(), group.media.get(j));
+      }
+      long start = System.nanoTime();
+      for (byte[] repair : group.repairs) {
+        receiver.rcvFecPacket(new RTPpacket(repair, repair.length), nrs);
+      }
+      for (int j = 0; j < code.burst(); j++) {
+        int seqNr = group.media.get(j).getsequencenumber();
+        if (receiver.checkCorrection(seqNr, mediaPackets)) {
+          bytes += receiver.correctRtp(seqNr, mediaPackets).getpayload_length();
+        }
+      }
+      nanos += System.nanoTime() - start;
+    }
+    return bytes * 1000.0 / nanos;
+  }
+
+  /**
+   * Sends groups over a lossy channel and recovers the lost media packets.
+   *
+   * @param code FEC code
+   * @param loss mean packet loss rate
+   * @param meanBurst mean burst length, 1 for random loss
+   * @param groups number of groups
+   * @return fraction of the media packets which are not recovered
+   */
+  double recover(Code code, double loss, int meanBurst, int groups) {
+    // Gilbert model: bad -> good with 1 / meanBurst, good -> bad so that the mean loss fits
+    double badToGood = 1.0 / meanBurst;
+    double goodToBad = meanBurst == 1 ? loss : loss * badToGood / (1 - loss);
+    boolean bad = false;
+    long media = 0;
+    long residual = 0;
+    FecHandler sender = code.sender();
+    FecHandler receiver = code.receiver();
+    int[] nrs = new int[FecHandler.GROUP_CAPACITY]; // protected packets, not used
+    for (int g = 0; g < groups; g++) {
+      Group group = new Group(sender, code, g * code.groupPackets(), true);
+      int packets = group.media.size() + group.repairs.size();
+      boolean[] lost = new boolean[packets];
+      for (int n = 0; n < packets; n++) {
+        bad = meanBurst == 1
+            ? random.nextDouble() < loss
+            : random.nextDouble() < (bad ? 1 - badToGood : goodToBad);
+        lost[n] = bad;
+      }
+      HashMap<Integer, RTPpacket> mediaPackets = new HashMap<>();
+      for (int j = 0; j < group.media.size(); j++) {
+        if (!lost[j]) {
+          mediaPackets.put(group.media.get(j).getsequencenumber(), group.media.get(j));
+        }
+      }
+      for (int i = 0; i < group.repairs.size(); i++) {
+        if (!lost[group.media.size() + i]) {
+          byte[] repair = group.repairs.get(i);
+          receiver.rcvFecPacket(new RTPpacket(repair, repair.length), nrs);
+        }
+      }
+      for (int j = 0; j < group.media.size(); j++) {
+        media++;
+        RTPpacket original = group.media.get(j);
+        int seqNr = original.getsequencenumber();
+        if (!lost[j]) {
+          continue;
+        }
+        RTPpacket packet = receiver.checkCorrection(seqNr, mediaPackets)
+            ? receiver.correctRtp(seqNr, mediaPackets) : null;
+        if (packet == null || !Arrays.equals(packet.getpayload(), original.getpayload())) {
+          residual++;
+        }
+      }
+    }
+    return (double) residual / media;
+  }
+
+  /** Media and repair packets of one group. */
+  private class Group {
+    final List<RTPpacket> media = new ArrayList<>();
+    final List<byte[]> repairs = new ArrayList<>();
+
+    Group(FecHandler sender, Code code, int snBase, boolean randomLength) {
+      for (int j = 0; j < code.groupPackets(); j++) {
+        int length = randomLength ? 1 + random.nextInt(PAYLOAD_SIZE) : PAYLOAD_SIZE;
+        RTPpacket packet = mediaPacket((snBase + j) & 0xFFFF, length);
+        media.add(packet);
+        sender.setRtp(ByteBuffer.wrap(packet.getpacket()));
+        while (sender.isReady()) {
+          repairs.add(sender.getPacket());
+        }
+      }
+    }
+  }
+
+  private RTPpacket mediaPacket(int seqNr, int length) {
+    byte[] payload = new byte[length];
+    random.nextBytes(payload);
+    return new RTPpacket(RtpHandler.RTP_PAYLOAD_JPEG, seqNr, seqNr * 3600, payload, length);
+  }
+}
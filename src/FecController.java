@@ -0,0 +1,132 @@
+/**
+ * Chooses the FEC group size of a session from the loss reported by its client.
+ *
+ * The packet loss rate p is smoothed over the RTCP receiver reports. With a
+ * group of k media packets and m repair packets, a lost media packet is not
+ * recovered if at least m other packets of its group are lost too, so the
+ * residual loss is r(k) = p P(X >= m) with X binomial over the k + m - 1
+ * other packets; for one XOR parity packet r(k) = p (1 - (1 - p)^k). A frame
+ * of n packets is lost if one of them is not recovered:
+ * f(k) = 1 - (1 - r(k))^n. The controller takes the
+ * largest k, i.e. the least overhead, with f(k) not above the target frame
+ * loss rate. A smaller k is used at once, a larger one only after some
+ * reports in a row, so a short interval without loss does not remove the
+ * protection.
+ */
+public class FecController {
+  static final int MIN_GROUP_SIZE = 2;
+  static final int MAX_GROUP_SIZE = FecHandler.maxGroupSize;
+  static final double DEFAULT_TARGET = 0.01; // frame loss rate
+  static final double SMOOTHING = 0.3; // weight of a new report
+  static final int INCREASE_REPORTS = 3; // reports in a row before the group size is increased
+
+  private int groupSize;
+  private double lossEstimate = -1.0; // smoothed packet loss rate, -1 before the first report
+  private double predictedFrameLoss = 0.0; // for the current group size
+  private int increaseReports = 0;
+  private int changes = 0;
+
+  /** @param groupSize current FEC group size of the session */
+  public FecController(int groupSize) {
+    this.groupSize = groupSize;
+  }
+
+  /**
+   * Takes the group size set by hand, the control continues from it.
+   *
+   * @param k group size
+   */
+  public synchronized void reset(int k) {
+    groupSize = k;
+    increaseReports = 0;
+  }
+
+  /**
+   * Updates the loss estimate with a receiver report and chooses the group size.
+   *
+   * @param fractionLost packet loss rate of the report, 0 to 1
+   * @param packetsPerFrame mean number of media packets per frame
+   * @param repairPackets FEC packets per group
+   * @param targetFrameLoss highest acceptable frame loss rate
+   * @return group size to use
+   */
+  public synchronized int update(double fractionLost, double packetsPerFrame, int repairPackets,
+      double targetFrameLoss) {
+    lossEstimate = lossEstimate < 0
+        ? fractionLost : SMOOTHING * fractionLost + (1 - SMOOTHING) * lossEstimate;
+    int k = chooseGroupSize(lossEstimate, packetsPerFrame, repairPackets, targetFrameLoss);
+    if (k < groupSize) {
+      setGroupSize(k);
+    } else if (k > groupSize && ++increaseReports >= INCREASE_REPORTS) {
+      setGroupSize(k);
+    } else if (k == groupSize) {
+      increaseReports = 0;
+    }
+    predictedFrameLoss = frameLoss(lossEstimate, groupSize, repairPackets, packetsPerFrame);
+    return groupSize;
+  }
+
+  private void setGroupSize(int k) {
+    groupSize = k;
+    increaseReports = 0;
+    changes++;
+  }
+
+  /**
+   * @param p packet loss rate
+   * @param packetsPerFrame mean number of media packets per frame
+   * @param repairPackets FEC packets per group
+   * @param targetFrameLoss highest acceptable frame loss rate
+   * @return largest group size which meets the target, the smallest if none does
+   */
+  static int chooseGroupSize(double p, double packetsPerFrame, int repairPackets,
+      double targetFrameLoss) {
+    // f(k) grows with k
+    for (int k = MAX_GROUP_SIZE; k > MIN_GROUP_SIZE; k--) {
+      if (frameLoss(p, k, repairPackets, packetsPerFrame) <= targetFrameLoss) {
+        return k;
+      }
+    }
+    return MIN_GROUP_SIZE;
+  }
+
+  /**
+   * @param p packet loss rate
+   * @param k group size
+   * @param m FEC packets per group
+   * @param packetsPerFrame mean number of media packets per frame
+   * @return expected frame loss rate after the FEC recovery
+   */
+  static double frameLoss(double p, int k, int m, double packetsPerFrame) {
+    // probability of fewer than m losses among the other k + m - 1 packets
+    int others = k + m - 1;
+    double term = Math.pow(1 - p, others); // i = 0
+    double recoverable = 0.0;
+    for (int i = 0; i < m; i++) {
+      recoverable += term;
+      term *= p / (1 - p) * (others - i) / (i + 1);
+    }
+    double residual = p * Math.max(0.0, 1 - recoverable);
+    return 1 - Math.pow(1 - residual, Math.max(1.0, packetsPerFrame));
+  }
+
+  /** @return the chosen group size */
+  public synchronized int getGroupSize() {
+    return groupSize;
+  }
+
+  /** @return smoothed packet loss rate, -1 before the first report */
+  public synchronized double getLossEstimate() {
+    return lossEstimate;
+  }
+
+  /** @return expected frame loss rate with the chosen group size */
+  public synchronized double getPredictedFrameLoss() {
+    return predictedFrameLoss;
+  }
+
+  /** @return number of changes of the group size */
+  public synchronized int getChanges() {
+    return changes;
+  }
+}
@@ -1,6 +1,7 @@
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -19,9 +20,12 @@ public class FecHandler {
   FECpacket fec;
 
   // Receiver
-  HashMap<Integer, FECpacket> fecStack = new HashMap<>(); // list of fec packets
-  HashMap<Integer, Integer> fecNr = new HashMap<>(); // Snr of corresponding fec packet
-  HashMap<Integer, List<Integer>> fecList = new HashMap<>(); // list of involved media packets
+  // media sequence numbers, a power of 2 dividing 65536, larger than the jitter buffer
+  static final int WINDOW = 4096;
+  private FECpacket[] fecOfPacket; // by Snr modulo WINDOW
+  private int[] protectedNr; // Snr of the slot, -1 if empty
+  // length of the arrays for the Sequence Nrs. of a group, the packets of two masks
+  static final int GROUP_CAPACITY = 2 * 64;
 
   int playCounter = 0; // SNr of RTP-packet to play next, initialized with first received packet
 
@@ -33,8 +37,13 @@ public class FecHandler {
 
   // *** FEC Parameters -> Sender ************
   static final int maxGroupSize = 48;
-  int fecGroupSize; // FEC group size
+  // FEC group size, set by the RTCP feedback on the I/O thread and read by the pacer thread
+  volatile int fecGroupSize;
+  int sendGroupSize; // size of the current group, a new size is used from the next group on
   int fecGroupCounter;
+  private int mtu = RtpHandler.DEFAULT_MTU; // of the media packets, sizes the accumulators
+  // zeroed accumulators of the FEC payloads, reused by the packets of the following groups
+  private final ArrayDeque<byte[]> accumulators = new ArrayDeque<>();
 
   // -> Receiver
   boolean useFec;
@@ -62,6 +71,9 @@ public class FecHandler {
    */
   public FecHandler(boolean useFec) {
     this.useFec = useFec;
+    fecOfPacket = new FECpacket[WINDOW];
+    protectedNr = new int[WINDOW];
+    Arrays.fill(protectedNr, -1);
   }
 
   // *************** Sender SET *******************************************************************
@@ -74,10 +86,12 @@ public class FecHandler {
   public void setRtp(RTPpacket rtp) {
     // init new FEC packet if necessary
     if (fec == null) {
+      sendGroupSize = fecGroupSize; // read once, it may change during the group
       fec =
               new FECpacket(
-                      FEC_PT, fecSeqNr, rtp.gettimestamp(), fecGroupSize, rtp.getsequencenumber());
-      fec.setUlpLevelHeader(0, 0, fecGroupSize);
+                      FEC_PT, fecSeqNr, rtp.gettimestamp(), sendGroupSize, rtp.getsequencenumber(),
+                      takeAccumulator());
+      fec.setUlpLevelHeader(0, 0, sendGroupSize);
     }
 
     fecGroupCounter++; // count the packets in the group
@@ -85,9 +99,29 @@ public class FecHandler {
     fec.addRtp(rtp);
   }
 
+  /**
+   * *** Sender *** Adds a serialized RTP packet to the FEC packet without copying it
+   *
+   * @param packet RTP packet from position to limit, position and limit are not changed
+   */
+  public void setRtp(ByteBuffer packet) {
+    int start = packet.position();
+    int timestamp = packet.getInt(start + 4);
+    if (fec == null) {
+      sendGroupSize = fecGroupSize; // read once, it may change during the group
+      fec = new FECpacket(FEC_PT, fecSeqNr, timestamp, sendGroupSize,
+          packet.getShort(start + 2) & 0xFFFF, takeAccumulator());
+      fec.setUlpLevelHeader(0, 0, sendGroupSize);
+    }
+
+    fecGroupCounter++; // count the packets in the group
+    fec.TimeStamp = timestamp; // adjust the time stamp to the last packet in the group
+    fec.addRtp(packet);
+  }
+
   /** @return True, if all RTP-packets of the group are handled */
   public boolean isReady() {
-    return (fecGroupCounter == fecGroupSize);
+    return fec != null && fecGroupCounter == sendGroupSize;
   }
 
   /**
@@ -99,15 +133,56 @@ public class FecHandler {
     fec.printHeaders();
     // Adjust and reset all involved variables
     fecSeqNr++;
-    fecGroupCounter = 0;
     byte[] buf = fec.getpacket();
-    fec = null; // reset fec
+    clearSendGroup();
     return buf;
   }
 
-  /** Reset of fec group and variables */
+  /** Reset of fec group and variables, the accumulator is reused by the next group */
   private void clearSendGroup() {
-    // TODO
+    fecGroupCounter = 0;
+    releaseAccumulators(fec);
+    fec = null;
+  }
+
+  /**
+   * *** Sender *** Sets the MTU of the media packets, which limits the FEC payload
+   *
+   * @param mtu MTU in bytes, including IP and UDP header
+   */
+  public void setMtu(int mtu) {
+    this.mtu = mtu;
+    accumulators.clear();
+  }
+
+  /** @return zeroed accumulator for the longest payload at the MTU */
+  byte[] takeAccumulator() {
+    byte[] accumulator = accumulators.poll();
+    return accumulator != null ? accumulator : new byte[maxPayloadSize()];
+  }
+
+  /**
+   * Clears the accumulators of a built FEC packet and keeps them for the next
+   * groups. Accumulators of an earlier, smaller MTU are dropped.
+   *
+   * @param fec the FEC packet, not used afterwards
+   */
+  void releaseAccumulators(FECpacket fec) {
+    releaseAccumulator(fec.payload, fec.payload_size);
+    if (fec.hasLevel1()) {
+      releaseAccumulator(fec.level1Payload, fec.level1Size);
+    }
+  }
+
+  private void releaseAccumulator(byte[] accumulator, int used) {
+    if (accumulator.length >= maxPayloadSize()) {
+      Arrays.fill(accumulator, 0, used, (byte) 0); // only the used part is not zero
+      accumulators.add(accumulator);
+    }
+  }
+
+  private int maxPayloadSize() {
+    return mtu - RtpHandler.IP_UDP_HEADER_SIZE - RTPpacket.HEADER_SIZE;
   }
 
   /**
@@ -119,136 +194,181 @@ public class FecHandler {
     fecGroupSize = size;
   }
 
+  /** @return the FEC group size of the sender */
+  public int getFecGroupSize() {
+    return fecGroupSize;
+  }
+
+  /** @return number of FEC packets per group */
+  public int getRepairPackets() {
+    return 1;
+  }
+
+  /** @return bytes of a FEC packet besides the RTP header and the longest payload of its group */
+  public int getPacketOverhead() {
+    return FECpacket.XOR_OVERHEAD;
+  }
+
+  /** @return FEC packets per media packet */
+  public double getOverhead() {
+    int size = fecGroupSize;
+    return size > 0 ? (double) getRepairPackets() / size : 0.0;
+  }
+
   // *************** Receiver PUT *****************************************************************
 
   /**
    * Handles and store a recieved FEC packet
    *
+   * The FEC packet is stored in the slots of the media packets it protects.
+   * The slots are indexed by the sequence number modulo {@link #WINDOW}, so a
+   * slot is reused after the window and the state does not grow.
+   *
    * @param rtp the received FEC-RTP
+   * @param nrs array of {@link #GROUP_CAPACITY} for the Sequence Nrs. of the protected packets
+   * @return number of the protected media packets, 0 if the packet is ignored
    */
-  public void rcvFecPacket(RTPpacket rtp) {
+  public int rcvFecPacket(RTPpacket rtp, int[] nrs) {
     Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    if (rtp.getpayloadtype() != FEC_PT) {
+      return 0; // other FEC scheme
+    }
     // build fec from rtp
-    fec = new FECpacket(rtp.getpacket(), rtp.getpacket().length);
+    byte[] packet = rtp.getpacket();
+    fec = new FECpacket(packet, packet.length);
     // TASK remove comment for debugging
-
-    //OKay drann dneken wieder ein zu machen !!
     fec.printHeaders();
 
-    // stores fec
-    int seqNrFec = fec.getsequencenumber();
-    fecSeqNr = seqNrFec; // for deletion of fec storage
-    fecStack.put(seqNrFec, fec);
-
-    // get RTP List
-    ArrayList<Integer> list = fec.getRtpList();
-    logger.log(Level.FINER, "FEC: set list: " + seqNrFec + " " + list.toString());
+    fecSeqNr = fec.getsequencenumber();
+    int snBase = fec.getSnBase();
+    long mask = fec.getMask();
+    if (logger.isLoggable(Level.FINER)) {
+      logger.log(Level.FINER,
+          "FEC: set mask: " + fecSeqNr + " " + snBase + " " + Long.toHexString(mask));
+    }
 
-    // set list to get fec packet nr
-    list.forEach((E) -> fecNr.put(E, seqNrFec)); // FEC-packet
-    list.forEach((E) -> fecList.put(E, list));  // list of corresponding RTP packets
+    // MSB of the mask corresponds to SN base
+    for (int i = 0; mask != 0; i++, mask <<= 1) {
+      if (mask < 0) {
+        int nr = (snBase + i) & 0xFFFF;
+        fecOfPacket[nr & (WINDOW - 1)] = fec;
+        protectedNr[nr & (WINDOW - 1)] = nr;
+      }
+    }
+    return protectedPackets(fec.getSnBase(), fec.getMask(), nrs, 0);
   }
 
   // *************** Receiver GET *****************************************************************
 
   /**
-   * Checks if the RTP packet is reparable
+   * @param nr Sequence Nr. of a media packet
+   * @return the FEC packet protecting it, null if there is none
+   */
+  private FECpacket getFec(int nr) {
+    int slot = nr & (WINDOW - 1);
+    return protectedNr[slot] == nr ? fecOfPacket[slot] : null;
+  }
+
+  /**
+   * Appends the Sequence Nrs. of a mask which are not yet in the array.
+   *
+   * @param snBase Sequence Nr. of the first protected packet
+   * @param mask ULP mask, MSB corresponds to SN base
+   * @param nrs array for the Sequence Nrs., further ones are dropped if it is full
+   * @param count number of Sequence Nrs. already in the array
+   * @return number of Sequence Nrs. in the array
+   */
+  static int protectedPackets(int snBase, long mask, int[] nrs, int count) {
+    int before = count;
+    for (int i = 0; mask != 0 && count < nrs.length; i++, mask <<= 1) {
+      if (mask < 0) {
+        int nr = (snBase + i) & 0xFFFF;
+        int j = 0;
+        while (j < before && nrs[j] != nr) {
+          j++;
+        }
+        if (j == before) {
+          nrs[count++] = nr;
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Media packets protected together with a packet, a received packet may
+   * make the lost ones of them recoverable.
+   *
+   * @param nr Sequence Nr. of a media packet
+   * @param nrs array of {@link #GROUP_CAPACITY} for the Sequence Nrs. of its groups
+   * @return number of the media packets of its groups, 0 if it is not protected
+   */
+  public int getGroup(int nr, int[] nrs) {
+    FECpacket fec = getFec(nr);
+    return fec == null ? 0 : protectedPackets(fec.getSnBase(), fec.getMask(), nrs, 0);
+  }
+
+  /**
+   * Checks if the RTP packet is reparable: its FEC packet is received and all
+   * other packets of the group are received.
    *
    * @param nr Sequence Nr.
+   * @param mediaPackets received media packets
    * @return true if possible
    */
   public boolean checkCorrection(int nr, HashMap<Integer, RTPpacket> mediaPackets) {
-    //TASK complete this method!
-
-
-    // wenn nur ein Paket der Gruppe fehlt -> korrigierbar
-    //  FEC-Pakete verloren?
-    /*
-     Index-Nummer nr des verlorenen Pakets -> RTP- suchen Indizes der zugehörigen Pakete
-     -> steht in fecListe
-     Indizes die nicht in mediaPackets sind -> zählen
-     */
-
-    /*
-     * wichtige parameter
-     *
-     * HashMap<Integer, FECpacket> fecStack = new HashMap<>(); // list of fec packets
-     * HashMap<Integer, Integer> fecNr = new HashMap<>(); // Snr of corresponding fec packet
-     * HashMap<Integer, List<Integer>> fecList = new HashMap<>(); // list of involved media packets
-     * */
-
-
-    // FEC-Paket weg
-    if(fecList.get(nr)==null){
-      return false;
+    FECpacket fec = getFec(nr);
+    if (fec == null) {
+      return false; // FEC packet lost
     }
-    //okay haben FEC PAcket -> schauene was noch so fehlt
-    //https://stackoverflow.com/questions/29625529/hashmap-with-streams-in-java-8-streams-to-collect-value-of-map
-    int counter=0;
-    List<Integer> l= fecList.get(nr);
-    for(Integer i : l){
-      if(mediaPackets.get(i)!=null){
-        counter++;
+    int snBase = fec.getSnBase();
+    long mask = fec.getMask();
+    for (int i = 0; mask != 0; i++, mask <<= 1) {
+      int other = (snBase + i) & 0xFFFF;
+      if (mask < 0 && other != nr && mediaPackets.get(other) == null) {
+        return false;
       }
     }
-
-
-    return (counter>= l.size()-1 );
+    return true;
   }
 
   /**
    * Build a RTP packet from FEC and group
    *
    * @param nr Sequence Nr.
+   * @param mediaPackets received media packets
    * @return RTP packet
    */
   public RTPpacket correctRtp(int nr, HashMap<Integer, RTPpacket> mediaPackets) {
-
-    //nr ist nur für das zu kortrigierende Packet ?
-
+    fec = getFec(nr);
+    int snBase = fec.getSnBase();
+    long mask = fec.getMask();
     // XOR der dazugehörigen mit FEC
-    // fec.getRtpList - involvierten Media-RTPs -> benötigen die fecNr
-    // getPacket() - komplettes FEC-Paket -<y Bytearray
-    // addRtp() macht meine berechnungen
-    // getLostRtp() generiert mir dann mein verlorenes
-
-    /*
-     * wichtige parameter
-     *
-     * HashMap<Integer, FECpacket> fecStack = new HashMap<>(); // list of fec packets
-     * HashMap<Integer, Integer> fecNr = new HashMap<>(); // Snr of corresponding fec packet
-     * HashMap<Integer, List<Integer>> fecList = new HashMap<>(); // list of involved media packets
-     * */
-
-
-    //involvierten Media-RTPs
-
-    List<Integer>InvoPackete = fecList.get(nr);
-
-    int fnr = fecNr.get(nr);
-    fec = fecStack.get(fnr);
-
-    for(int x : InvoPackete) {
-      if(x!=nr){
-        rtp= mediaPackets.get(x);
-        fec.addRtp(rtp);
+    for (int i = 0; mask != 0; i++, mask <<= 1) {
+      int other = (snBase + i) & 0xFFFF;
+      if (mask < 0) {
+        if (other != nr) {
+          fec.addRtp(mediaPackets.get(other));
+        }
+        clearStack(other); // the FEC packet is used up
       }
     }
-
     return fec.getLostRtp(nr);
   }
 
   /**
-   * It is necessary to clear all data structures
+   * Removes the FEC packet of a media packet from the window, e.g. after its
+   * playout
    *
    * @param nr Media Sequence Nr.
    */
-  private void clearStack(int nr) {
-    //TASK complete this method!
-
-    //kommt nicht vor
+  public void clearStack(int nr) {
+    int slot = nr & (WINDOW - 1);
+    if (protectedNr[slot] == nr) {
+      fecOfPacket[slot] = null;
+      protectedNr[slot] = -1;
+    }
   }
-
   // *************** Receiver Statistics ***********************************************************
 
   /**
@@ -0,0 +1,146 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache of RFC 2435 payloads shared by all sessions.
+ *
+ * The payloads are keyed by video file and frame index, so a frame is parsed
+ * once and then served from memory to every client of the same video. The
+ * memory is limited to a byte budget; entries are evicted with the CLOCK
+ * (second chance) algorithm: a hit sets the reference bit, the eviction hand
+ * clears it once before it removes the entry.
+ */
+public class FrameCache {
+  /** Default memory budget of the cache in bytes */
+  public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+
+  /** Identifies a video file; a changed file gets a new key. */
+  public record VideoKey(String path, long size, long lastModified) {
+    /**
+     * @param filename name of the video file
+     * @return key of the current version of the file
+     * @throws IOException if the path can not be resolved
+     */
+    public static VideoKey of(String filename) throws IOException {
+      File file = new File(filename);
+      return new VideoKey(file.getCanonicalPath(), file.length(), file.lastModified());
+    }
+  }
+
+  private record FrameKey(VideoKey video, int index) {}
+
+  private static class Entry {
+    final FrameKey key;
+    final byte[] payload;
+    volatile boolean referenced = false;
+
+    Entry(FrameKey key, byte[] payload) {
+      this.key = key;
+      this.payload = payload;
+    }
+  }
+
+  private final long budget;
+  private final Map<FrameKey, Entry> entries = new ConcurrentHashMap<>();
+  private final ArrayDeque<Entry> clock = new ArrayDeque<>(); // guarded by this
+  private long usedBytes = 0; // guarded by this
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * @param budget maximal size of all cached payloads in bytes, 0 disables the cache
+   */
+  public FrameCache(long budget) {
+    this.budget = Math.max(0, budget);
+  }
+
+  /**
+   * Looks up a payload.
+   *
+   * @param video video file
+   * @param index frame index, starting with 0
+   * @return the RFC 2435 payload or null if not cached
+   */
+  public byte[] get(VideoKey video, int index) {
+    Entry entry = entries.get(new FrameKey(video, index));
+    if (entry == null) {
+      misses.increment();
+      return null;
+    }
+    entry.referenced = true;
+    hits.increment();
+    return entry.payload;
+  }
+
+  /**
+   * Adds a payload, evicts other entries if the budget is exceeded.
+   * The payload must not be changed afterwards.
+   *
+   * @param video video file
+   * @param index frame index, starting with 0
+   * @param payload RFC 2435 payload of the frame
+   */
+  public void put(VideoKey video, int index, byte[] payload) {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    if (payload.length > budget) {
+      return;
+    }
+    FrameKey key = new FrameKey(video, index);
+    synchronized (this) {
+      if (entries.containsKey(key)) {
+        return; // added by another session in the meantime
+      }
+      while (usedBytes + payload.length > budget) {
+        Entry victim = clock.poll();
+        if (victim.referenced) {
+          victim.referenced = false; // second chance
+          clock.add(victim);
+        } else {
+          entries.remove(victim.key);
+          usedBytes -= victim.payload.length;
+          evictions.increment();
+        }
+      }
+      Entry entry = new Entry(key, payload);
+      clock.add(entry);
+      entries.put(key, entry);
+      usedBytes += payload.length;
+    }
+    logger.log(Level.FINEST, "Frame cached: " + video.path() + " #" + index);
+  }
+
+  /** @return memory budget in bytes */
+  public long getBudget() {
+    return budget;
+  }
+
+  /** @return size of all cached payloads in bytes */
+  public synchronized long getUsedBytes() {
+    return usedBytes;
+  }
+
+  /** @return number of cached frames */
+  public int getEntryCount() {
+    return entries.size();
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+}
@@ -0,0 +1,308 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Scheduler for sending the frames of many sessions at their frame rate.
+ *
+ * Deadlines are absolute values of {@link System#nanoTime()}: frame n of a
+ * stream is due at start + n * 1 s / framerate, so rounding errors and late
+ * wake-ups do not add up over time. The tasks are kept in hashed timing wheels
+ * with a resolution of {@link #TICK_NANOS}; within a tick the pacer thread parks
+ * until the exact deadline of each due task.
+ *
+ * A task may request additional runs between two frames with
+ * {@link PacedTask#runAgainAt(long)}, e.g. to spread the packets of a frame
+ * over the frame interval. The tasks are executed on the pacer threads and
+ * must not block.
+ */
+public class FramePacer {
+  /** Resolution of the timing wheel */
+  static final long TICK_NANOS = 1_000_000L;
+  /** Number of buckets per wheel, one round covers 512 ms */
+  static final int WHEEL_SIZE = 512;
+  /** A stream which is behind its schedule by more frames is restarted at the current time */
+  static final int MAX_BEHIND_FRAMES = 5;
+
+  /** Pacing of the packets within a frame */
+  public enum PacketPacing {
+    OFF, // all packets of a frame back-to-back
+    SPREAD, // packets spread over the frame interval
+    BITRATE // packets limited to a fixed bitrate
+  }
+
+  private final Wheel[] wheels;
+  private int nextWheel = 0;
+
+  /**
+   * Creates the pacer and starts its threads.
+   *
+   * @param threads number of wheels and threads, sessions are distributed round robin
+   */
+  public FramePacer(int threads) {
+    wheels = new Wheel[Math.max(1, threads)];
+    for (int i = 0; i < wheels.length; i++) {
+      wheels[i] = new Wheel();
+      Thread t = new Thread(wheels[i], "frame-pacer-" + i);
+      t.setDaemon(true);
+      t.setPriority(Thread.MAX_PRIORITY);
+      t.start();
+    }
+  }
+
+  /**
+   * Starts a periodic task. The first run is due immediately.
+   *
+   * @param task action for every frame
+   * @param framerate frames per second
+   * @return handle of the scheduled task
+   */
+  public PacedTask schedule(Runnable task, int framerate) {
+    return schedule(pacedTask -> task.run(), framerate);
+  }
+
+  /**
+   * Starts a periodic task which gets its handle at every run. The first run is due immediately.
+   *
+   * @param task action for every frame and every requested intermediate run
+   * @param framerate frames per second
+   * @return handle of the scheduled task
+   */
+  public PacedTask schedule(Consumer<PacedTask> task, int framerate) {
+    return schedule(task, framerate, null);
+  }
+
+  /**
+   * Restarts a periodic task on the thread of a previous task, e.g. after a
+   * seek. A cancelled task completes its running execution, on the same thread
+   * the new task cannot run before and both may share state without locking.
+   *
+   * @param task action for every frame and every requested intermediate run
+   * @param framerate frames per second
+   * @param previous earlier task of the same stream, null for the next thread round robin
+   * @return handle of the scheduled task
+   */
+  public PacedTask schedule(Consumer<PacedTask> task, int framerate, PacedTask previous) {
+    PacedTask pacedTask = new PacedTask(task, framerate, System.nanoTime());
+    if (previous != null) {
+      pacedTask.wheel = previous.wheel;
+    } else {
+      synchronized (this) {
+        pacedTask.wheel = wheels[nextWheel];
+        nextWheel = (nextWheel + 1) % wheels.length;
+      }
+    }
+    pacedTask.wheel.add(pacedTask);
+    return pacedTask;
+  }
+
+  /** Handle of a periodic task, also holds its pacing statistic. */
+  public static class PacedTask {
+    private final Consumer<PacedTask> task;
+    private final int framerate;
+    private final PacingStatistic statistic = new PacingStatistic();
+    private long startNanos;
+    private long frame = 0; // number of the next frame since start
+    private long frameDeadline; // absolute deadline of the next frame
+    private long deadline; // absolute deadline of the next run
+    private boolean frameRun = true; // the next run sends a new frame
+    private long runAgainAt; // requested intermediate run
+    private boolean runAgain = false;
+    private long rounds; // remaining wheel rounds until due
+    private volatile boolean cancelled = false;
+    private Wheel wheel; // thread which runs the task
+
+    PacedTask(Consumer<PacedTask> task, int framerate, long startNanos) {
+      this.task = task;
+      this.framerate = framerate;
+      this.startNanos = startNanos;
+      this.frameDeadline = startNanos;
+      this.deadline = startNanos;
+    }
+
+    /** @return true if the current run is due to a new frame, false for an intermediate run */
+    public boolean isFrameRun() {
+      return frameRun;
+    }
+
+    /**
+     * Requests an intermediate run before the next frame. Only valid during a run;
+     * a time after the deadline of the next frame is ignored.
+     *
+     * @param nanos absolute time of {@link System#nanoTime()}
+     */
+    public void runAgainAt(long nanos) {
+      runAgainAt = nanos;
+      runAgain = true;
+    }
+
+    /** @return frames per second of the task */
+    public int getFramerate() {
+      return framerate;
+    }
+
+    /** Stops the task; a running execution is completed. */
+    public void cancel() {
+      cancelled = true;
+    }
+
+    /**
+     * Stops the task and waits until a running execution is completed, e.g.
+     * before the state used by the task is changed on another thread.
+     */
+    public void cancelAndWait() {
+      synchronized (this) {
+        cancelled = true;
+      }
+    }
+
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    /** @return the pacing statistic of the task */
+    public PacingStatistic getStatistic() {
+      return statistic;
+    }
+
+    /** Calculates the deadline of the next frame from the start time. */
+    private void advance(long now) {
+      frame++;
+      frameDeadline = startNanos + frame * 1_000_000_000L / framerate;
+      if (now - frameDeadline > MAX_BEHIND_FRAMES * 1_000_000_000L / framerate) {
+        // e.g. after a long GC pause: do not send a burst of frames
+        startNanos = now;
+        frame = 0;
+        frameDeadline = now;
+        statistic.recordResync();
+      }
+    }
+
+    /** Sets the deadline of the next run after a run which started at now. */
+    private void next(long now) {
+      if (frameRun) {
+        advance(now);
+      }
+      frameRun = !runAgain || runAgainAt - frameDeadline >= 0;
+      deadline = frameRun ? frameDeadline : runAgainAt;
+      runAgain = false;
+    }
+  }
+
+  /** Hashed timing wheel served by one thread. */
+  private static class Wheel implements Runnable {
+    private final List<ArrayDeque<PacedTask>> buckets = new ArrayList<>(WHEEL_SIZE);
+    private final ConcurrentLinkedQueue<PacedTask> added = new ConcurrentLinkedQueue<>();
+    private final List<PacedTask> due = new ArrayList<>();
+    private final long startNanos = System.nanoTime();
+    private long tick = 0; // next tick to process
+    private int size = 0; // tasks in the buckets
+    private volatile Thread thread;
+
+    Wheel() {
+      for (int i = 0; i < WHEEL_SIZE; i++) {
+        buckets.add(new ArrayDeque<>());
+      }
+    }
+
+    void add(PacedTask task) {
+      added.add(task);
+      Thread t = thread;
+      if (t != null) {
+        LockSupport.unpark(t);
+      }
+    }
+
+    /** Puts a task into the bucket of its deadline. */
+    private void insert(PacedTask task) {
+      long taskTick = Math.max(tick, (task.deadline - startNanos) / TICK_NANOS);
+      task.rounds = (taskTick - tick) / WHEEL_SIZE;
+      buckets.get((int) (taskTick % WHEEL_SIZE)).add(task);
+      size++;
+    }
+
+    @Override
+    public void run() {
+      Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+      thread = Thread.currentThread();
+      while (true) {
+        if (size == 0 && added.isEmpty()) {
+          // nothing to do, sleep until a task is added
+          LockSupport.park();
+          tick = Math.max(tick, (System.nanoTime() - startNanos) / TICK_NANOS);
+          continue;
+        }
+
+        // wait for the begin of the tick
+        long tickStart = startNanos + tick * TICK_NANOS;
+        long wait;
+        while ((wait = tickStart - System.nanoTime()) > 0) {
+          LockSupport.parkNanos(wait);
+          if (!added.isEmpty()) {
+            break;
+          }
+        }
+
+        PacedTask task;
+        while ((task = added.poll()) != null) {
+          insert(task);
+        }
+        if (tickStart - System.nanoTime() > 0) {
+          continue; // woken up for a new task, the tick is not yet reached
+        }
+
+        // collect due tasks of the current tick
+        ArrayDeque<PacedTask> bucket = buckets.get((int) (tick % WHEEL_SIZE));
+        for (int i = bucket.size(); i > 0; i--) {
+          task = bucket.poll();
+          if (task.cancelled) {
+            size--;
+            continue;
+          }
+          if (task.rounds > 0) {
+            task.rounds--;
+            bucket.add(task);
+          } else {
+            due.add(task);
+            size--;
+          }
+        }
+        tick++;
+
+        // run the tasks at their exact deadline
+        due.sort(Comparator.comparingLong(t -> t.deadline));
+        for (PacedTask dueTask : due) {
+          while ((wait = dueTask.deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+          }
+          long now = System.nanoTime();
+          if (dueTask.frameRun) {
+            dueTask.statistic.record(now - dueTask.deadline);
+          }
+          synchronized (dueTask) { // uncontended unless cancelAndWait()
+            if (dueTask.cancelled) {
+              continue;
+            }
+            try {
+              dueTask.task.accept(dueTask);
+            } catch (RuntimeException ex) {
+              logger.log(Level.SEVERE, "Paced task failed: " + ex);
+              dueTask.cancel();
+            }
+          }
+          if (!dueTask.cancelled) {
+            dueTask.next(now);
+            insert(dueTask);
+          }
+        }
+        due.clear();
+      }
+    }
+  }
+}
@@ -219,7 +219,7 @@ public class JpegFrame {
       for (int i = 0; i < jpegFrame.nbQTables; i++) {
         System.arraycopy(quantizationTableData, 64 * i, jpegFrame.qTables, 65 * i, 64);
         if (i > 0) {
-          jpegFrame.qTables[65 * i + 64] = 0x00;
+          jpegFrame.qTables[65 * i - 1] = (byte) i; // Pq/Tq vor jeder weiteren Tabelle
         }
       }
     }
@@ -508,6 +508,7 @@ public class JpegFrame {
    *
    * @param type Type
    */
+  @SuppressWarnings("fallthrough") // DRI types fall through to their sampling factor
   private void setSamplingFactorAndDriFromType(final int type) {
     switch (type) {
       case 64: // yuvj420p
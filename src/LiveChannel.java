@@ -0,0 +1,68 @@
+import java.io.IOException;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Live channel: a video which is read, packetized and protected with FEC once
+ * and sent to every playing session by unicast.
+ *
+ * Each session is a {@link RtpSender.Viewer} with its own destination,
+ * sequence numbers and SSRC. The packets are rewritten in place for each
+ * viewer, so the cost of an additional viewer is one send call per packet.
+ * SRTP is not possible because the packets would have to be encrypted per
+ * viewer.
+ */
+public class LiveChannel extends SharedStream {
+  private final Map<RtspSession, RtpSender.Viewer> viewers = new HashMap<>(); // guarded by this
+
+  /**
+   * Opens the video of the channel; the channel is started by {@link #play}.
+   *
+   * @param manager the session manager which owns the channel
+   * @param name name of the channel in the RTSP URL
+   * @param videoFileName path of the video
+   * @throws IOException if the video or the channel can not be opened
+   */
+  LiveChannel(SessionManager manager, String name, String videoFileName) throws IOException {
+    super(manager, "Channel " + name, videoFileName, DatagramChannel.open().bind(null));
+    sender.setDestination(null, null, manager.getSendBufferPool());
+  }
+
+  /**
+   * Sets the destination of a session after its SETUP.
+   *
+   * @param session the session
+   * @param viewer destination, sequence numbers and SSRC of the session
+   */
+  synchronized void addViewer(RtspSession session, RtpSender.Viewer viewer) {
+    viewers.put(session, viewer);
+    addMember(session);
+  }
+
+  @Override
+  synchronized boolean removeMember(RtspSession session) {
+    boolean last = super.removeMember(session);
+    viewers.remove(session);
+    return last;
+  }
+
+  @Override
+  protected void playerAdded(RtspSession session) {
+    sender.addViewer(viewers.get(session));
+  }
+
+  @Override
+  protected void playerRemoved(RtspSession session) {
+    sender.removeViewer(viewers.get(session));
+  }
+
+  /**
+   * @param session a session of the channel
+   * @return number of media packets dropped by the simulated channel errors for the session
+   */
+  synchronized int getDropCounter(RtspSession session) {
+    RtpSender.Viewer viewer = viewers.get(session);
+    return viewer != null ? viewer.getDropCounter() : 0;
+  }
+}
@@ -0,0 +1,380 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/*
+    2D parity matrix of L columns and L rows, SMPTE 2022-1 style
+
+    SN base ->  0      1      2    ...  L-1    -> row FEC 0
+                L     L+1    L+2   ... 2L-1    -> row FEC 1
+                ...
+             (L-1)L                ... L*L-1   -> row FEC L-1
+                |      |      |          |
+             col FEC col FEC col FEC  col FEC
+                0      1      2        L-1
+
+   Row and column FEC packets are XOR parity packets of RFC 5109 (payload
+   type 127); the ULP mask of a column packet has every L-th bit set.
+*/
+
+/**
+ * FEC with row and column parity over a matrix of media packets.
+ *
+ * The rows are the XOR groups of {@link FecHandler} with the group size as
+ * row length L. The column packets protect the packets at a distance of L,
+ * so a burst of up to L lost packets loses at most one packet per column and
+ * is recovered. The matrix is square, the column depth equals L and the
+ * overhead 2/L falls with the group size. A column spans (L - 1) L + 1
+ * packets of the 48-bit ULP mask, so L is at most {@link #MAX_COLUMNS}. A row
+ * packet is sent after its row, a column packet after the last packet of its
+ * column, i.e. the column packets are spread over the last row.
+ *
+ * The receiver recovers a packet directly from a row or column packet, or
+ * after packets crossing its row or column were recovered first.
+ */
+public class MatrixFecHandler extends FecHandler {
+  static final int MAX_COLUMNS = 7; // largest L of a square matrix within the ULP mask
+
+  // Sender
+  private int columns; // L
+  private int rows; // L as well
+  private int position = 0; // of the next packet in the matrix
+  private FECpacket rowFec;
+  private FECpacket[] columnFecs = new FECpacket[0];
+  private final ArrayDeque<FECpacket> readyFecs = new ArrayDeque<>();
+
+  // Receiver, by media Snr modulo WINDOW like the XOR parity
+  private FECpacket[] rowOfPacket;
+  private FECpacket[] columnOfPacket;
+  private RTPpacket[] recovered; // recovered, but not played
+  // FEC packets and lost packets connected to a lost packet, reused by checkCorrection
+  private final FECpacket[] candidates = new FECpacket[2 * MAX_COLUMNS];
+  private int candidateCount;
+  private final int[] lost = new int[MAX_COLUMNS * MAX_COLUMNS];
+  private int lostCount;
+
+  /**
+   * Constructor for the sender.
+   *
+   * @param size row length L
+   */
+  public MatrixFecHandler(int size) {
+    super(size);
+  }
+
+  /**
+   * Constructor for the receiver.
+   *
+   * @param useFec choose of using FEC
+   */
+  public MatrixFecHandler(boolean useFec) {
+    super(useFec);
+    rowOfPacket = new FECpacket[WINDOW];
+    columnOfPacket = new FECpacket[WINDOW];
+    recovered = new RTPpacket[WINDOW];
+  }
+
+  /**
+   * @param size FEC group size
+   * @return row length L used for the group size
+   */
+  static int columns(int size) {
+    return Math.max(2, Math.min(size, MAX_COLUMNS));
+  }
+
+  @Override
+  public double getOverhead() {
+    return 2.0 / columns(fecGroupSize);
+  }
+
+  // *************** Sender ***********************************************************************
+
+  @Override
+  public void setRtp(RTPpacket rtp) {
+    setRtp(ByteBuffer.wrap(rtp.getpacket()));
+  }
+
+  /**
+   * *** Sender *** Adds a serialized RTP packet to its row and column packets.
+   *
+   * @param packet RTP packet from position to limit, position and limit are not changed
+   */
+  @Override
+  public void setRtp(ByteBuffer packet) {
+    int start = packet.position();
+    int seqNr = packet.getShort(start + 2) & 0xFFFF;
+    int timestamp = packet.getInt(start + 4);
+    if (position == 0) {
+      // a new group size is used from the next matrix on
+      columns = columns(fecGroupSize);
+      rows = columns;
+      sendGroupSize = columns;
+      if (columnFecs.length != columns) {
+        columnFecs = new FECpacket[columns];
+      }
+    }
+    int row = position / columns;
+    int column = position % columns;
+
+    if (column == 0) {
+      rowFec = new FECpacket(FEC_PT, 0, timestamp, columns, seqNr, takeAccumulator());
+    }
+    if (row == 0) {
+      long mask = 0;
+      for (int i = 0; i < rows; i++) {
+        mask |= 0x8000000000000000L >>> (i * columns);
+      }
+      columnFecs[column] =
+          new FECpacket(FEC_PT, 0, timestamp, maxGroupSize, seqNr, takeAccumulator());
+      columnFecs[column].setUlpMask(mask);
+    }
+    rowFec.TimeStamp = timestamp; // time stamp of the last packet
+    rowFec.addRtp(packet);
+    columnFecs[column].TimeStamp = timestamp;
+    columnFecs[column].addRtp(packet);
+
+    if (row == rows - 1) {
+      readyFecs.add(columnFecs[column]);
+      columnFecs[column] = null;
+    }
+    if (column == columns - 1) {
+      readyFecs.add(rowFec);
+      rowFec = null;
+    }
+    position = (position + 1) % (columns * rows);
+  }
+
+  /** @return True, if a row or column packet is complete */
+  @Override
+  public boolean isReady() {
+    return !readyFecs.isEmpty();
+  }
+
+  /**
+   * *** Sender *** Builds the next complete row or column packet.
+   *
+   * @return Bitstream of FEC-Packet including RTP-Header
+   */
+  @Override
+  public byte[] getPacket() {
+    FECpacket fec = readyFecs.poll();
+    fec.SequenceNumber = fecSeqNr++;
+    fec.printHeaders();
+    byte[] packet = fec.getpacket();
+    releaseAccumulators(fec);
+    return packet;
+  }
+
+  // *************** Receiver *********************************************************************
+
+  /**
+   * Stores a received row or column packet in the slots of its packets,
+   * Reed-Solomon packets are ignored. The bits of a row are adjacent in the
+   * mask, those of a column are L apart.
+   *
+   * @param rtp the received FEC-RTP
+   * @param nrs array of {@link #GROUP_CAPACITY} for the Sequence Nrs. of the protected packets
+   * @return number of the protected media packets, 0 if the packet is ignored
+   */
+  @Override
+  public int rcvFecPacket(RTPpacket rtp, int[] nrs) {
+    if (rtp.getpayloadtype() != FEC_PT) {
+      return 0;
+    }
+    byte[] packet = rtp.getpacket();
+    FECpacket fec = new FECpacket(packet, packet.length);
+    int snBase = fec.getSnBase();
+    long mask = fec.getMask();
+    FECpacket[] fecs = (mask & (mask << 1)) != 0 ? rowOfPacket : columnOfPacket;
+    for (int i = 0; mask != 0; i++, mask <<= 1) {
+      if (mask < 0) {
+        fecs[(snBase + i) & (WINDOW - 1)] = fec;
+      }
+    }
+    return protectedPackets(snBase, fec.getMask(), nrs, 0);
+  }
+
+  /** @return the row or column packet of a media packet, null if there is none */
+  private static FECpacket getFec(FECpacket[] fecs, int nr) {
+    FECpacket fec = fecs[nr & (WINDOW - 1)];
+    if (fec == null) {
+      return null;
+    }
+    int offset = (nr - fec.getSnBase()) & 0xFFFF;
+    return offset < 64 && (fec.getMask() << offset) < 0 ? fec : null;
+  }
+
+  /** @return the recovered media packet, null if it is not recovered */
+  private RTPpacket getRecovered(int nr) {
+    RTPpacket packet = recovered[nr & (WINDOW - 1)];
+    return packet != null && packet.getsequencenumber() == nr ? packet : null;
+  }
+
+  /**
+   * @param nr Sequence Nr. of a media packet
+   * @param nrs array of {@link #GROUP_CAPACITY} for the Sequence Nrs. of its row and column
+   * @return number of the media packets of its row and column
+   */
+  @Override
+  public int getGroup(int nr, int[] nrs) {
+    int count = 0;
+    FECpacket row = getFec(rowOfPacket, nr);
+    if (row != null) {
+      count = protectedPackets(row.getSnBase(), row.getMask(), nrs, count);
+    }
+    FECpacket column = getFec(columnOfPacket, nr);
+    if (column != null) {
+      count = protectedPackets(column.getSnBase(), column.getMask(), nrs, count);
+    }
+    return count;
+  }
+
+  /**
+   * Recovers a lost media packet if possible. Every row or column packet
+   * missing only one packet recovers it; this is repeated for the packets
+   * connected to the lost one over rows and columns until nothing changes.
+   * The other recovered packets are kept until they are requested.
+   *
+   * @param nr Sequence Nr.
+   * @param mediaPackets received media packets
+   * @return true if the packet is recovered
+   */
+  @Override
+  public boolean checkCorrection(int nr, HashMap<Integer, RTPpacket> mediaPackets) {
+    if (getRecovered(nr) != null) {
+      return true;
+    }
+    // FEC packets reachable from the lost packet over other lost packets, all of its matrix
+    lostCount = 0;
+    candidateCount = 0;
+    lost[lostCount++] = nr;
+    for (int i = 0; i < lostCount; i++) {
+      addCandidate(getFec(rowOfPacket, lost[i]), mediaPackets);
+      addCandidate(getFec(columnOfPacket, lost[i]), mediaPackets);
+    }
+
+    boolean progress = true;
+    while (progress) {
+      progress = false;
+      for (int c = 0; c < candidateCount; c++) {
+        FECpacket fec = candidates[c];
+        if (fec == null) {
+          continue;
+        }
+        int missing = -1;
+        int count = 0;
+        long mask = fec.getMask();
+        for (int i = 0; mask != 0; i++, mask <<= 1) {
+          int other = (fec.getSnBase() + i) & 0xFFFF;
+          if (mask < 0 && isMissing(other, mediaPackets)) {
+            missing = other;
+            count++;
+          }
+        }
+        if (count == 1) {
+          recover(fec, missing, mediaPackets);
+          progress = true;
+        }
+        if (count <= 1) {
+          candidates[c] = null; // nothing left to recover
+        }
+      }
+    }
+    Arrays.fill(candidates, 0, candidateCount, null);
+    return getRecovered(nr) != null;
+  }
+
+  /** Adds a FEC packet to the candidates and its missing packets to the lost packets. */
+  private void addCandidate(FECpacket fec, HashMap<Integer, RTPpacket> mediaPackets) {
+    if (fec == null || candidateCount == candidates.length) {
+      return;
+    }
+    for (int c = 0; c < candidateCount; c++) {
+      if (candidates[c] == fec) {
+        return;
+      }
+    }
+    candidates[candidateCount++] = fec;
+    long mask = fec.getMask();
+    for (int i = 0; mask != 0 && lostCount < lost.length; i++, mask <<= 1) {
+      int other = (fec.getSnBase() + i) & 0xFFFF;
+      if (mask < 0 && isMissing(other, mediaPackets)) {
+        int j = 0;
+        while (j < lostCount && lost[j] != other) {
+          j++;
+        }
+        if (j == lostCount) {
+          lost[lostCount++] = other;
+        }
+      }
+    }
+  }
+
+  private boolean isMissing(int nr, HashMap<Integer, RTPpacket> mediaPackets) {
+    return mediaPackets.get(nr) == null && getRecovered(nr) == null;
+  }
+
+  /** Recovers the only missing packet of a row or column, the FEC packet is used up. */
+  private void recover(FECpacket fec, int nr, HashMap<Integer, RTPpacket> mediaPackets) {
+    long mask = fec.getMask();
+    for (int i = 0; mask != 0; i++, mask <<= 1) {
+      int other = (fec.getSnBase() + i) & 0xFFFF;
+      if (mask >= 0) {
+        continue;
+      }
+      if (other != nr) {
+        RTPpacket packet = mediaPackets.get(other);
+        fec.addRtp(packet != null ? packet : getRecovered(other));
+      }
+      int slot = other & (WINDOW - 1);
+      if (rowOfPacket[slot] == fec) {
+        rowOfPacket[slot] = null;
+      }
+      if (columnOfPacket[slot] == fec) {
+        columnOfPacket[slot] = null;
+      }
+    }
+    recovered[nr & (WINDOW - 1)] = fec.getLostRtp(nr);
+  }
+
+  /**
+   * Removes the row and column packets and the recovered packet of a media
+   * packet from the window after its playout.
+   *
+   * @param nr Media Sequence Nr.
+   */
+  @Override
+  public void clearStack(int nr) {
+    super.clearStack(nr);
+    int slot = nr & (WINDOW - 1);
+    if (getFec(rowOfPacket, nr) != null) {
+      rowOfPacket[slot] = null;
+    }
+    if (getFec(columnOfPacket, nr) != null) {
+      columnOfPacket[slot] = null;
+    }
+    if (getRecovered(nr) != null) {
+      recovered[slot] = null;
+    }
+  }
+
+  /**
+   * Returns a recovered media packet.
+   *
+   * @param nr Sequence Nr.
+   * @param mediaPackets received media packets
+   * @return RTP packet, null if it is not recoverable
+   */
+  @Override
+  public RTPpacket correctRtp(int nr, HashMap<Integer, RTPpacket> mediaPackets) {
+    if (getRecovered(nr) == null) {
+      checkCorrection(nr, mediaPackets);
+    }
+    RTPpacket packet = getRecovered(nr);
+    if (packet != null) {
+      recovered[nr & (WINDOW - 1)] = null;
+    }
+    return packet;
+  }
+}
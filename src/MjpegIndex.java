@@ -0,0 +1,277 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Positions of the JPEG images in an MJPEG file.
+ *
+ * Created by the {@link VideoReader}; frame i starts at {@link #getOffset(int)}
+ * and includes the SOI and EOI markers. The index is stored in a sidecar file
+ * next to the video ({@link #SUFFIX}) and memory-mapped on the next SETUP, so
+ * the video does not have to be scanned again. The sidecar is only used if
+ * size and modification time of the video are unchanged.
+ *
+ * File format (big endian): a header of {@link #HEADER_SIZE} bytes
+ * (magic, version, video size, video mtime in ms, frame count, frame rate)
+ * followed by one record of {@link #RECORD_SIZE} bytes per frame
+ * (offset, length, RTP timestamp at 90 kHz, header fingerprint).
+ */
+public class MjpegIndex {
+  static final String SUFFIX = ".idx";
+  static final int MAGIC = 0x4D4A4958; // "MJIX"
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 32;
+  static final int RECORD_SIZE = 24;
+  static final int RTP_CLOCK_RATE = 90000; // RFC 2435, 3.
+
+  private final ByteBuffer data;
+  private final long videoSize;
+  private final long videoModified;
+  private final int frameCount;
+  private final int framerate;
+
+  private MjpegIndex(ByteBuffer data) {
+    this.data = data;
+    videoSize = data.getLong(8);
+    videoModified = data.getLong(16);
+    frameCount = data.getInt(24);
+    framerate = data.getInt(28);
+  }
+
+  /** @return number of frames */
+  public int getFrameCount() {
+    return frameCount;
+  }
+
+  /** @return frame rate of the video */
+  public int getFramerate() {
+    return framerate;
+  }
+
+  /**
+   * @param frame index of the frame, starting with 0
+   * @return position of the SOI marker in the file
+   */
+  public long getOffset(int frame) {
+    return data.getLong(record(frame));
+  }
+
+  /**
+   * @param frame index of the frame, starting with 0
+   * @return length of the JPEG image in bytes
+   */
+  public int getLength(int frame) {
+    return data.getInt(record(frame) + 8);
+  }
+
+  /**
+   * @param frame index of the frame, starting with 0
+   * @return RTP timestamp of the frame at 90 kHz, relative to the first frame
+   */
+  public int getTimestamp(int frame) {
+    return data.getInt(record(frame) + 12);
+  }
+
+  /**
+   * Frames with the same fingerprint have identical JPEG headers (tables, size).
+   *
+   * @param frame index of the frame, starting with 0
+   * @return hash of the JPEG header up to the SOS marker
+   */
+  public long getFingerprint(int frame) {
+    return data.getLong(record(frame) + 16);
+  }
+
+  /** @return metadata of the video derived from the index */
+  public VideoMetadata getMetadata() {
+    return new VideoMetadata(framerate, (double) frameCount / framerate, frameCount);
+  }
+
+  private int record(int frame) {
+    if (frame < 0 || frame >= frameCount) {
+      throw new IndexOutOfBoundsException("Frame " + frame + " of " + frameCount);
+    }
+    return HEADER_SIZE + frame * RECORD_SIZE;
+  }
+
+  /**
+   * @param videoFilePath path of the video
+   * @return path of the sidecar file
+   */
+  static Path sidecarPath(String videoFilePath) {
+    return Path.of(videoFilePath + SUFFIX);
+  }
+
+  /**
+   * Maps the sidecar file of a video.
+   *
+   * @param videoFilePath path of the video
+   * @return the index or null if there is no valid sidecar for the current video
+   */
+  public static MjpegIndex load(String videoFilePath) {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    Path sidecar = sidecarPath(videoFilePath);
+    File video = new File(videoFilePath);
+    if (!Files.isRegularFile(sidecar) || !video.isFile()) {
+      return null;
+    }
+    try (FileChannel channel = FileChannel.open(sidecar, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < HEADER_SIZE) {
+        return null;
+      }
+      ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+        logger.log(Level.INFO, "Unknown index format: " + sidecar);
+        return null;
+      }
+      MjpegIndex index = new MjpegIndex(data);
+      if (index.videoSize != video.length() || index.videoModified != video.lastModified()) {
+        logger.log(Level.INFO, "Index outdated: " + sidecar);
+        return null;
+      }
+      if (index.framerate <= 0
+          || size != HEADER_SIZE + (long) index.frameCount * RECORD_SIZE) {
+        logger.log(Level.WARNING, "Index corrupt: " + sidecar);
+        return null;
+      }
+      return index;
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Index can not be read: " + sidecar + ": " + e);
+      return null;
+    }
+  }
+
+  /**
+   * Writes the sidecar file of a video. Errors are only logged, e.g. for read-only directories.
+   *
+   * @param videoFilePath path of the video
+   */
+  public void save(String videoFilePath) {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    Path sidecar = sidecarPath(videoFilePath);
+    Path tmp = null;
+    try {
+      // unique name, sessions may index the same video at the same time
+      Path dir = sidecar.toAbsolutePath().getParent();
+      tmp = Files.createTempFile(dir, sidecar.getFileName().toString(), ".tmp");
+      try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+        ByteBuffer buffer = data.duplicate().clear();
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      }
+      // readers never see a partially written index
+      Files.move(tmp, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      logger.log(Level.FINE, "Index saved: " + sidecar);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Index can not be saved: " + sidecar + ": " + e);
+      try {
+        if (tmp != null) {
+          Files.deleteIfExists(tmp);
+        }
+      } catch (IOException ignored) {
+        // nothing left to do
+      }
+    }
+  }
+
+  /**
+   * Calculates the fingerprint of the JPEG header (FNV-1a over all bytes before the SOS marker).
+   *
+   * @param jpeg JPEG image, position and limit are not changed
+   * @return 64 bit hash
+   */
+  static long fingerprint(ByteBuffer jpeg) {
+    int start = jpeg.position();
+    int limit = jpeg.limit();
+    // walk the segments to the start of scan
+    int end = start + 2;
+    while (end + 4 <= limit && jpeg.get(end) == JpegFrame.MARKER_TAG_START
+        && jpeg.get(end + 1) != JpegFrame.SOS_MARKER[1]) {
+      end += 2 + (((jpeg.get(end + 2) & 0xFF) << 8) | (jpeg.get(end + 3) & 0xFF));
+    }
+    end = Math.min(end, limit);
+
+    long hash = 0xcbf29ce484222325L;
+    for (int i = start; i < end; i++) {
+      hash ^= jpeg.get(i) & 0xFF;
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  /** Collects the frames in file order. */
+  static class Builder {
+    private final long videoSize;
+    private final long videoModified;
+    private final int framerate;
+    private long[] offsets = new long[1024];
+    private int[] lengths = new int[1024];
+    private long[] fingerprints = null;
+    private int count = 0;
+
+    /**
+     * @param videoSize size of the video file
+     * @param videoModified modification time of the video file in ms
+     * @param framerate frame rate of the video
+     */
+    Builder(long videoSize, long videoModified, int framerate) {
+      this.videoSize = videoSize;
+      this.videoModified = videoModified;
+      this.framerate = framerate;
+    }
+
+    void add(long offset, int length) {
+      if (count == offsets.length) {
+        offsets = Arrays.copyOf(offsets, count * 2);
+        lengths = Arrays.copyOf(lengths, count * 2);
+      }
+      offsets[count] = offset;
+      lengths[count] = length;
+      count++;
+    }
+
+    int getCount() {
+      return count;
+    }
+
+    long getOffset(int frame) {
+      return offsets[frame];
+    }
+
+    int getLength(int frame) {
+      return lengths[frame];
+    }
+
+    /** May be called concurrently for different frames after all frames were added. */
+    void setFingerprint(int frame, long fingerprint) {
+      fingerprints[frame] = fingerprint;
+    }
+
+    /** Ends adding frames, fingerprints may be set afterwards. */
+    void complete() {
+      fingerprints = new long[count];
+    }
+
+    MjpegIndex build() {
+      ByteBuffer data = ByteBuffer.allocate(HEADER_SIZE + count * RECORD_SIZE);
+      data.putInt(MAGIC).putInt(VERSION).putLong(videoSize).putLong(videoModified)
+          .putInt(count).putInt(framerate);
+      for (int i = 0; i < count; i++) {
+        data.putLong(offsets[i]).putInt(lengths[i])
+            .putInt((int) ((long) i * RTP_CLOCK_RATE / framerate))
+            .putLong(fingerprints == null ? 0 : fingerprints[i]);
+      }
+      return new MjpegIndex(data.flip());
+    }
+  }
+}
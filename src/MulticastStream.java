@@ -0,0 +1,68 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * RTP stream of one video sent once to a multicast group.
+ *
+ * The frames are packetized and protected with FEC only once, no matter how
+ * many clients have joined the group. The stream is created by the
+ * {@link SessionManager} at the first multicast SETUP of the video.
+ */
+public class MulticastStream extends SharedStream {
+  private final InetSocketAddress group;
+  private final int ttl;
+
+  /**
+   * Opens the video and the channel to the group; the stream is started by {@link #play}.
+   *
+   * @param manager the session manager which owns the stream
+   * @param videoFileName path of the video
+   * @param group multicast group and port of the RTP packets
+   * @param networkInterface interface for sending, null for the default
+   * @param ttl time to live of the packets
+   * @throws IOException if the video or the channel can not be opened
+   */
+  MulticastStream(SessionManager manager, String videoFileName, InetSocketAddress group,
+      NetworkInterface networkInterface, int ttl) throws IOException {
+    super(manager, "Multicast " + group, videoFileName, openChannel(networkInterface, ttl));
+    this.group = group;
+    this.ttl = ttl;
+    sender.setDestination(group, group, manager.getSendBufferPool());
+  }
+
+  private static DatagramChannel openChannel(NetworkInterface networkInterface, int ttl)
+      throws IOException {
+    DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+    try {
+      channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+      channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true); // clients on the server host
+      if (networkInterface != null) {
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+      }
+      channel.bind(null);
+    } catch (IOException ex) {
+      channel.close();
+      throw ex;
+    }
+    return channel;
+  }
+
+  /** @return multicast group and port of the RTP and FEC packets */
+  public InetSocketAddress getGroup() {
+    return group;
+  }
+
+  /** @return time to live of the packets */
+  public int getTtl() {
+    return ttl;
+  }
+
+  /** @return number of media packets dropped by the simulated channel errors */
+  public int getDropCounter() {
+    return sender.getDropCounter();
+  }
+}
@@ -0,0 +1,120 @@
+/**
+ * Statistic values of the frame pacing of one session.
+ *
+ * The pacing error is the difference between the scheduled (absolute) deadline
+ * of a frame and the time the frame was actually sent. The burstiness is
+ * measured in packets: a burst is a series of packets which are sent less
+ * than {@link #BURST_GAP_NANOS} after each other.
+ */
+public class PacingStatistic {
+  /** Packets with a smaller gap belong to the same burst */
+  static final long BURST_GAP_NANOS = 100_000L;
+
+  private long frames = 0;
+  private long lastErrorNanos = 0;
+  private long maxErrorNanos = 0;
+  private long sumErrorNanos = 0;
+  private long resyncs = 0;
+  private long skippedFrames = 0;
+  private long packets = 0;
+  private long bursts = 0;
+  private long burstLength = 0; // packets of the current burst
+  private long maxBurstLength = 0;
+  private long lastPacketNanos = 0;
+
+  /**
+   * Records the pacing error of a sent frame.
+   *
+   * @param errorNanos actual send time minus scheduled time in ns
+   */
+  synchronized void record(long errorNanos) {
+    frames++;
+    lastErrorNanos = errorNanos;
+    sumErrorNanos += Math.abs(errorNanos);
+    maxErrorNanos = Math.max(maxErrorNanos, Math.abs(errorNanos));
+  }
+
+  /** Records that the schedule was moved because the sender fell too far behind. */
+  synchronized void recordResync() {
+    resyncs++;
+  }
+
+  /** Records a frame which was not sent because the previous frame was not yet completely sent. */
+  synchronized void recordSkippedFrame() {
+    skippedFrames++;
+  }
+
+  /**
+   * Records a sent packet (media or FEC).
+   *
+   * @param nanos send time of {@link System#nanoTime()}
+   */
+  synchronized void recordPacket(long nanos) {
+    if (packets == 0 || nanos - lastPacketNanos >= BURST_GAP_NANOS) {
+      bursts++;
+      burstLength = 0;
+    }
+    packets++;
+    burstLength++;
+    maxBurstLength = Math.max(maxBurstLength, burstLength);
+    lastPacketNanos = nanos;
+  }
+
+  /** @return number of paced frames */
+  public synchronized long getFrames() {
+    return frames;
+  }
+
+  /** @return pacing error of the last frame in µs */
+  public synchronized double getLastErrorMicros() {
+    return lastErrorNanos / 1000.0;
+  }
+
+  /** @return mean absolute pacing error in µs */
+  public synchronized double getMeanErrorMicros() {
+    return frames == 0 ? 0.0 : sumErrorNanos / 1000.0 / frames;
+  }
+
+  /** @return maximal absolute pacing error in µs */
+  public synchronized double getMaxErrorMicros() {
+    return maxErrorNanos / 1000.0;
+  }
+
+  /** @return number of times the schedule was restarted because of a large delay */
+  public synchronized long getResyncs() {
+    return resyncs;
+  }
+
+  /** @return number of frames not sent to keep the pacing rate */
+  public synchronized long getSkippedFrames() {
+    return skippedFrames;
+  }
+
+  /** @return number of sent packets */
+  public synchronized long getPackets() {
+    return packets;
+  }
+
+  /** @return number of packet bursts */
+  public synchronized long getBursts() {
+    return bursts;
+  }
+
+  /** @return mean number of packets per burst */
+  public synchronized double getMeanBurstLength() {
+    return bursts == 0 ? 0.0 : (double) packets / bursts;
+  }
+
+  /** @return maximal number of packets in a burst */
+  public synchronized long getMaxBurstLength() {
+    return maxBurstLength;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("frames: %d, pacing error last/mean/max: %.0f/%.0f/%.0f us, resyncs: %d"
+        + ", skipped: %d, packets/burst mean/max: %.1f/%d",
+        frames, getLastErrorMicros(), getMeanErrorMicros(), getMaxErrorMicros(), resyncs,
+        skippedFrames, getMeanBurstLength(), maxBurstLength);
+  }
+}
@@ -0,0 +1,141 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Ring buffer of the recently sent media packets of a session, from which
+ * the packets requested by generic NACKs (RFC 4585) are sent again.
+ *
+ * The slot of a packet follows from its sequence number, so a request is
+ * answered without searching, and a new packet replaces the one sent
+ * {@link #SIZE} packets before. Retransmissions are limited by a token
+ * bucket to a share of the media rate of the session. A packet is not sent
+ * again if it would arrive after its playout at the client, i.e. if its age
+ * plus half the round trip time exceeds the assumed playout delay.
+ *
+ * Packets are stored by the pacer thread and requested by the I/O thread of
+ * the RTSP connection.
+ */
+public class PacketHistory {
+  static final int SIZE = 256; // packets, a power of 2; some frames at 25 fps
+  static final double RATE_SHARE = 0.25; // of the media rate for retransmissions
+  static final long BURST_MILLIS = 40; // depth of the token bucket, one frame interval at 25 fps
+  static final long MAX_AGE_MILLIS = 200; // assumed playout delay of the clients
+
+  private final int slotSize;
+  private byte[] data = null; // with the first packet, sessions of shared streams send none
+  private final int[] seqNrs = new int[SIZE];
+  private final int[] lengths = new int[SIZE];
+  private final long[] sentNanos = new long[SIZE];
+  private final TokenBucket tokenBucket = new TokenBucket();
+  private long storedBytes = 0; // in the buffer, for the media rate
+  private int newest = -1; // slot of the last stored packet
+
+  private long requested = 0;
+  private long retransmitted = 0;
+  private long tooLate = 0; // not in the buffer or too old
+  private long rateLimited = 0;
+
+  /** @param slotSize maximal packet size */
+  public PacketHistory(int slotSize) {
+    this.slotSize = slotSize;
+    for (int i = 0; i < SIZE; i++) {
+      seqNrs[i] = -1;
+    }
+  }
+
+  /** @return maximal packet size */
+  public int getSlotSize() {
+    return slotSize;
+  }
+
+  /**
+   * Stores a sent packet.
+   *
+   * @param packet RTP packet from position to limit, not changed
+   * @param nowNanos send time of {@link System#nanoTime()}
+   */
+  public synchronized void store(ByteBuffer packet, long nowNanos) {
+    int start = packet.position();
+    int seqNr = packet.getShort(start + 2) & 0xFFFF;
+    int slot = seqNr & (SIZE - 1);
+    int length = Math.min(packet.remaining(), slotSize);
+    if (data == null) {
+      data = new byte[SIZE * slotSize];
+    }
+    packet.get(data, slot * slotSize, length).position(start);
+    if (seqNrs[slot] >= 0) {
+      storedBytes -= lengths[slot];
+    }
+    storedBytes += length;
+    seqNrs[slot] = seqNr;
+    lengths[slot] = length;
+    sentNanos[slot] = nowNanos;
+    newest = slot;
+  }
+
+  /**
+   * Copies a requested packet for its retransmission.
+   *
+   * @param seqNr sequence number of the packet
+   * @param roundTripMillis round trip time to the client, negative if unknown
+   * @param nowNanos current time of {@link System#nanoTime()}
+   * @param dst receives the packet (flipped)
+   * @return true if the packet is to be sent again
+   */
+  public synchronized boolean retransmit(int seqNr, double roundTripMillis, long nowNanos,
+      ByteBuffer dst) {
+    requested++;
+    int slot = seqNr & (SIZE - 1);
+    long ageNanos = nowNanos - sentNanos[slot] + (long) (Math.max(0.0, roundTripMillis) * 500_000);
+    if (seqNrs[slot] != seqNr || ageNanos > MAX_AGE_MILLIS * 1_000_000) {
+      tooLate++;
+      return false;
+    }
+    updateRate(nowNanos);
+    if (tokenBucket.delay(nowNanos) > 0) {
+      rateLimited++;
+      return false;
+    }
+    tokenBucket.consume(lengths[slot], nowNanos);
+    dst.clear();
+    dst.put(data, slot * slotSize, lengths[slot]).flip();
+    retransmitted++;
+    return true;
+  }
+
+  /** Sets the rate of the token bucket from the media rate over the buffered packets. */
+  private void updateRate(long nowNanos) {
+    if (newest < 0) {
+      return; // nothing stored, e.g. a session of a shared stream
+    }
+    int oldest = (newest + 1) & (SIZE - 1);
+    while (seqNrs[oldest] < 0) {
+      oldest = (oldest + 1) & (SIZE - 1); // buffer not yet full
+    }
+    long span = sentNanos[newest] - sentNanos[oldest];
+    // a single frame is sent in a burst, at least one frame interval is assumed
+    double bytesPerSecond =
+        RATE_SHARE * storedBytes * 1e9 / Math.max(span, BURST_MILLIS * 1_000_000);
+    double depth = Math.max(slotSize, bytesPerSecond * BURST_MILLIS / 1000);
+    tokenBucket.setRate(bytesPerSecond, depth, nowNanos);
+  }
+
+  /** @return number of requested packets */
+  public synchronized long getRequested() {
+    return requested;
+  }
+
+  /** @return number of sent retransmissions */
+  public synchronized long getRetransmitted() {
+    return retransmitted;
+  }
+
+  /** @return number of requests for packets which are gone or would arrive too late */
+  public synchronized long getTooLate() {
+    return tooLate;
+  }
+
+  /** @return number of requests refused by the rate limit */
+  public synchronized long getRateLimited() {
+    return rateLimited;
+  }
+}
@@ -40,6 +40,13 @@ public class RTPpacket {
   // Bitstream of the RTP payload
   public byte[] payload;
 
+  /**
+   * Constructor for subclasses which do not use the header and payload arrays,
+   * e.g. {@link RtpPacketView}
+   */
+  protected RTPpacket() {
+  }
+
   // --------------------------
   // Constructor of an RTPpacket object from header fields and payload bitstream
   // --------------------------
@@ -75,21 +82,38 @@ public class RTPpacket {
 
 
   public void setRtpHeader() {
-    //TASK fill the header array of byte with RTP header fields
-    /*
-    header[0] =
-    header[1] =
-    header[2] =
-    header[3] =
-    header[4] =
-    header[5] =
-    header[6] =
-    header[7] =
-    header[8] =
-    header[8] =
-    header[10] =
-    header[11] =
-     */
+    header[0] = (byte) (Version << 6 | Padding << 5 | Extension << 4 | CC);
+    header[1] = (byte) (Marker << 7 | PayloadType & 0x7F);
+    header[2] = (byte) (SequenceNumber >> 8);
+    header[3] = (byte) (SequenceNumber);
+    header[4] = (byte) (TimeStamp >> 24);
+    header[5] = (byte) (TimeStamp >> 16);
+    header[6] = (byte) (TimeStamp >> 8);
+    header[7] = (byte) (TimeStamp);
+    header[8] = (byte) (Ssrc >> 24);
+    header[9] = (byte) (Ssrc >> 16);
+    header[10] = (byte) (Ssrc >> 8);
+    header[11] = (byte) (Ssrc);
+  }
+
+  /**
+   * Sets the marker bit, e.g. for the last packet of a frame (RFC 2435, 3.)
+   *
+   * @param marker 1 for set, 0 for not set
+   */
+  public void setMarker(int marker) {
+    Marker = marker;
+    setRtpHeader();
+  }
+
+  /**
+   * Sets the synchronization source of the packet
+   *
+   * @param ssrc SSRC identifier
+   */
+  public void setSsrc(int ssrc) {
+    Ssrc = ssrc;
+    setRtpHeader();
   }
 
 
@@ -117,6 +141,7 @@ public class RTPpacket {
       System.arraycopy(packet, HEADER_SIZE, payload, 0, packet_size - HEADER_SIZE);
 
       // interpret the changing fields of the header:
+      Marker = (header[1] >> 7) & 1;
       PayloadType = header[1] & 127;
       SequenceNumber = unsigned_int(header[3]) + 256 * unsigned_int(header[2]);
       TimeStamp =
@@ -124,6 +149,11 @@ public class RTPpacket {
               + 256 * unsigned_int(header[6])
               + 65536 * unsigned_int(header[5])
               + 16777216 * unsigned_int(header[4]);
+      Ssrc =
+          unsigned_int(header[11])
+              + 256 * unsigned_int(header[10])
+              + 65536 * unsigned_int(header[9])
+              + 16777216 * unsigned_int(header[8]);
     }
   }
 
@@ -203,6 +233,20 @@ public class RTPpacket {
     return (PayloadType);
   }
 
+  // --------------------------
+  // getmarker
+  // --------------------------
+  public int getmarker() {
+    return (Marker);
+  }
+
+  // --------------------------
+  // getssrc
+  // --------------------------
+  public int getssrc() {
+    return (Ssrc);
+  }
+
 
   /**
    * Print RTP header without SSRC
@@ -5,6 +5,8 @@
  */
 public class ReceptionStatistic {
     public int correctedPackets = 0;
+    public int earlyCorrectedPackets = 0; // on arrival of the missing group packets
+    public int lateCorrectedPackets = 0; // at playout
     public int framesLost = 0;
     public int notCorrectedPackets = 0;
     public int packetsLost = 0;
@@ -12,5 +14,6 @@ public class ReceptionStatistic {
     public int receivedPackets = 0;
     public int requestedFrames = 0;
     public int latestSequenceNumber = -1;
+    public int firstSequenceNumber = -1; // random at the server, the playback counts from it
 }
 
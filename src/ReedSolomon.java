@@ -0,0 +1,138 @@
+/**
+ * Systematic Reed-Solomon erasure code over GF(256) with a Cauchy matrix.
+ *
+ * The m repair symbols of k media symbols are r_i = sum_j c(i, j) * d_j with
+ * c(i, j) = 1 / (x_i + y_j), x_i = i and y_j = m + j. Every square submatrix
+ * of a Cauchy matrix is invertible, so any m erased media symbols of a group
+ * can be recovered from any m received repair symbols. The symbols are the
+ * bytes of the packets; a repair packet is the byte-wise sum of the scaled
+ * media packets, so it is built packet by packet like the XOR parity.
+ *
+ * Multiplication is table driven: {@link #MUL} holds the products with each
+ * coefficient, so scaling a packet is one table lookup per byte.
+ */
+public class ReedSolomon {
+  static final int POLYNOMIAL = 0x11D; // x^8 + x^4 + x^3 + x^2 + 1
+  static final int MAX_SYMBOLS = 256; // k + m
+
+  private static final int[] EXP = new int[2 * 255];
+  private static final int[] LOG = new int[256];
+  static final byte[][] MUL = new byte[256][256]; // MUL[a][b] = a * b
+
+  static {
+    int x = 1;
+    for (int i = 0; i < 255; i++) {
+      EXP[i] = x;
+      EXP[i + 255] = x;
+      LOG[x] = i;
+      x <<= 1;
+      if (x >= 256) {
+        x ^= POLYNOMIAL;
+      }
+    }
+    for (int a = 1; a < 256; a++) {
+      for (int b = 1; b < 256; b++) {
+        MUL[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+      }
+    }
+  }
+
+  private ReedSolomon() {}
+
+  /**
+   * @param a factor
+   * @param b factor
+   * @return product in GF(256)
+   */
+  static int mul(int a, int b) {
+    return MUL[a][b] & 0xFF;
+  }
+
+  /**
+   * @param a element other than 0
+   * @return multiplicative inverse in GF(256)
+   */
+  static int inverse(int a) {
+    return EXP[255 - LOG[a]];
+  }
+
+  /**
+   * @param i index of the repair packet, 0 to m - 1
+   * @param j index of the media packet in the group, 0 to k - 1
+   * @param m number of repair packets of the group
+   * @return coefficient of the media packet in the repair packet
+   */
+  static int coefficient(int i, int j, int m) {
+    return inverse(i ^ (m + j)); // addition in GF(256) is XOR
+  }
+
+  /**
+   * Adds a scaled symbol block: dst[dstOffset + n] += c * src[srcOffset + n].
+   *
+   * @param dst block to add to
+   * @param dstOffset start in dst
+   * @param src block to be scaled
+   * @param srcOffset start in src
+   * @param length number of bytes
+   * @param c coefficient
+   */
+  static void mulAdd(byte[] dst, int dstOffset, byte[] src, int srcOffset, int length, int c) {
+    if (c == 0) {
+      return;
+    }
+    if (c == 1) {
+      FECpacket.xor(dst, dstOffset, src, srcOffset, length);
+      return;
+    }
+    byte[] row = MUL[c];
+    for (int n = 0; n < length; n++) {
+      dst[dstOffset + n] ^= row[src[srcOffset + n] & 0xFF];
+    }
+  }
+
+  /**
+   * Inverts a square matrix with Gauss-Jordan elimination.
+   *
+   * @param matrix the matrix, overwritten
+   * @return the inverse
+   * @throws IllegalArgumentException if the matrix is singular
+   */
+  static int[][] invert(int[][] matrix) {
+    int n = matrix.length;
+    int[][] inverse = new int[n][n];
+    for (int i = 0; i < n; i++) {
+      inverse[i][i] = 1;
+    }
+    for (int col = 0; col < n; col++) {
+      int pivot = col;
+      while (pivot < n && matrix[pivot][col] == 0) {
+        pivot++;
+      }
+      if (pivot == n) {
+        throw new IllegalArgumentException("Singular matrix");
+      }
+      int[] swap = matrix[col];
+      matrix[col] = matrix[pivot];
+      matrix[pivot] = swap;
+      swap = inverse[col];
+      inverse[col] = inverse[pivot];
+      inverse[pivot] = swap;
+
+      int scale = inverse(matrix[col][col]);
+      for (int c = 0; c < n; c++) {
+        matrix[col][c] = mul(matrix[col][c], scale);
+        inverse[col][c] = mul(inverse[col][c], scale);
+      }
+      for (int row = 0; row < n; row++) {
+        int factor = matrix[row][col];
+        if (row != col && factor != 0) {
+          for (int c = 0; c < n; c++) {
+            matrix[row][c] ^= mul(factor, matrix[col][c]);
+            inverse[row][c] ^= mul(factor, inverse[col][c]);
+          }
+        }
+      }
+    }
+    return inverse;
+  }
+}
@@ -0,0 +1,437 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+    Reed-Solomon repair packet, RTP payload type 126
+
+    0                   1                   2                   3
+    0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+   +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+   |       k       |       m       |            SN base            |
+   +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+   |     index     |   reserved    |       protection length       |
+   +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+   |       coded header: P, X, CC, M, PT, TS, length (8 octets)    |
+   |                                                               |
+   +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+   |                 coded payload (protection length)             |
+   +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+
+   The SN base is at the same position as in the FEC header of RFC 5109.
+*/
+
+/**
+ * FEC with m Reed-Solomon repair packets per group of k media packets.
+ *
+ * Like the XOR parity of RFC 5109 the repair packets protect the header
+ * fields P, X, CC, M, PT and TS, the length and the payload of the media
+ * packets; the code is {@link ReedSolomon}. Any m lost media packets of a
+ * group are recovered if all m repair packets arrive, in general as many
+ * lost packets as repair packets of the group arrived. The receiver decodes
+ * all lost packets of a group at once and keeps the recovered ones until
+ * they are played.
+ */
+public class RsFecHandler extends FecHandler {
+  static final int RS_HEADER_SIZE = 8;
+  static final int PROTECTED_HEADER_SIZE = 8;
+  static final int MAX_REPAIR_PACKETS = 8;
+
+  // Sender
+  private final int repairPackets; // m
+  private byte[][] repair = new byte[0][]; // coded header and payload of the group
+  private int protectionLength; // longest payload of the group
+  private int snBase;
+  private int timestamp;
+  private int sentRepairs;
+  private boolean groupOpen = false;
+  private byte[] packetBytes = new byte[RtpHandler.DEFAULT_MTU];
+  private byte[] protection = new byte[RtpHandler.DEFAULT_MTU];
+
+  // Receiver, by media Snr modulo WINDOW like the XOR parity
+  private Group[] groupOfPacket;
+  private RTPpacket[] recovered; // recovered, but not played
+
+  /** Repair packets of one group at the receiver. */
+  private static class Group {
+    int snBase;
+    int k;
+    int m;
+    int protectionLength;
+    int ssrc;
+    byte[][] repairs; // by index, null if not received
+    int received;
+  }
+
+  /**
+   * Constructor for the sender.
+   *
+   * @param size FEC group size k
+   * @param repairPackets number of repair packets m per group
+   */
+  public RsFecHandler(int size, int repairPackets) {
+    super(size);
+    this.repairPackets = repairPackets;
+    FEC_PT = RtpHandler.RTP_PAYLOAD_RS;
+  }
+
+  /**
+   * Constructor for the receiver.
+   *
+   * @param useFec choose of using FEC
+   */
+  public RsFecHandler(boolean useFec) {
+    super(useFec);
+    repairPackets = 0;
+    FEC_PT = RtpHandler.RTP_PAYLOAD_RS;
+    groupOfPacket = new Group[WINDOW];
+    recovered = new RTPpacket[WINDOW];
+  }
+
+  @Override
+  public int getRepairPackets() {
+    return repairPackets;
+  }
+
+  /** @return bytes of the RS header and of the coded RTP header fields */
+  @Override
+  public int getPacketOverhead() {
+    return RS_HEADER_SIZE + PROTECTED_HEADER_SIZE;
+  }
+
+  // *************** Sender ***********************************************************************
+
+  @Override
+  public void setRtp(RTPpacket rtp) {
+    setRtp(ByteBuffer.wrap(rtp.getpacket()));
+  }
+
+  /**
+   * *** Sender *** Adds a serialized RTP packet to the repair packets of the group.
+   *
+   * @param packet RTP packet from position to limit, position and limit are not changed
+   */
+  @Override
+  public void setRtp(ByteBuffer packet) {
+    int length = packet.remaining();
+    if (packetBytes.length < length) {
+      packetBytes = new byte[length];
+    }
+    packet.get(packet.position(), packetBytes, 0, length);
+    if (!groupOpen) {
+      groupOpen = true;
+      sendGroupSize = Math.min(fecGroupSize, ReedSolomon.MAX_SYMBOLS - repairPackets);
+      snBase = packet.getShort(packet.position() + 2) & 0xFFFF;
+      protectionLength = 0;
+      sentRepairs = 0;
+      if (repair.length != repairPackets) {
+        repair = new byte[repairPackets][0];
+      }
+      for (byte[] coded : repair) {
+        Arrays.fill(coded, (byte) 0);
+      }
+    }
+    timestamp = packet.getInt(packet.position() + 4);
+
+    int protectedLength = protect(packetBytes, length);
+    int payloadLength = protectedLength - PROTECTED_HEADER_SIZE;
+    if (payloadLength > protectionLength) {
+      protectionLength = payloadLength;
+      for (int i = 0; i < repairPackets; i++) {
+        if (repair[i].length < protectedLength) {
+          repair[i] = Arrays.copyOf(repair[i], protectedLength);
+        }
+      }
+    }
+    for (int i = 0; i < repairPackets; i++) {
+      int c = ReedSolomon.coefficient(i, fecGroupCounter, repairPackets);
+      ReedSolomon.mulAdd(repair[i], 0, protection, 0, protectedLength, c);
+    }
+    fecGroupCounter++;
+  }
+
+  /** @return True, if all media packets of the group are added and repair packets are left */
+  @Override
+  public boolean isReady() {
+    return groupOpen && fecGroupCounter == sendGroupSize;
+  }
+
+  /**
+   * *** Sender *** Builds the next repair packet of the group, the group is
+   * reset after the last one.
+   *
+   * @return Bitstream of the repair packet including RTP header
+   */
+  @Override
+  public byte[] getPacket() {
+    int codedLength = PROTECTED_HEADER_SIZE + protectionLength;
+    byte[] payload = new byte[RS_HEADER_SIZE + codedLength];
+    payload[0] = (byte) sendGroupSize;
+    payload[1] = (byte) repairPackets;
+    payload[2] = (byte) (snBase >> 8);
+    payload[3] = (byte) snBase;
+    payload[4] = (byte) sentRepairs;
+    payload[6] = (byte) (protectionLength >> 8);
+    payload[7] = (byte) protectionLength;
+    System.arraycopy(repair[sentRepairs], 0, payload, RS_HEADER_SIZE, codedLength);
+    byte[] packet = new RTPpacket(FEC_PT, fecSeqNr, timestamp, payload, payload.length).getpacket();
+    fecSeqNr++;
+    sentRepairs++;
+    if (sentRepairs == repairPackets) {
+      groupOpen = false;
+      fecGroupCounter = 0;
+    }
+    return packet;
+  }
+
+  /**
+   * Writes the protected fields of a packet: P, X, CC, M, PT, TS, length and payload.
+   *
+   * @param packet RTP packet
+   * @param length length of the packet
+   * @return number of protected bytes in {@link #protection}
+   */
+  private int protect(byte[] packet, int length) {
+    int payloadLength = Math.max(0, length - RTPpacket.HEADER_SIZE);
+    int protectedLength = PROTECTED_HEADER_SIZE + payloadLength;
+    if (protection.length < protectedLength) {
+      protection = new byte[protectedLength];
+    }
+    protection[0] = (byte) (packet[0] & 0x3F); // without the version
+    protection[1] = packet[1];
+    System.arraycopy(packet, 4, protection, 2, 4); // TS
+    protection[6] = (byte) (payloadLength >> 8);
+    protection[7] = (byte) payloadLength;
+    System.arraycopy(packet, RTPpacket.HEADER_SIZE, protection, PROTECTED_HEADER_SIZE, payloadLength);
+    return protectedLength;
+  }
+
+  // *************** Receiver *********************************************************************
+
+  /**
+   * Stores a received repair packet, XOR FEC packets are ignored.
+   *
+   * @param rtp the received repair packet
+   * @param nrs array of {@link #GROUP_CAPACITY} for the Sequence Nrs. of the group
+   * @return number of the media packets of its group, 0 if the packet is ignored
+   */
+  @Override
+  public int rcvFecPacket(RTPpacket rtp, int[] nrs) {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    if (rtp.getpayloadtype() != FEC_PT) {
+      return 0;
+    }
+    byte[] payload = rtp.getpayload();
+    if (payload.length < RS_HEADER_SIZE + PROTECTED_HEADER_SIZE) {
+      return 0;
+    }
+    int k = payload[0] & 0xFF;
+    int m = payload[1] & 0xFF;
+    int base = (payload[2] & 0xFF) << 8 | (payload[3] & 0xFF);
+    int index = payload[4] & 0xFF;
+    int length = (payload[6] & 0xFF) << 8 | (payload[7] & 0xFF);
+    int codedLength = PROTECTED_HEADER_SIZE + length;
+    if (k == 0 || index >= m || k + m > ReedSolomon.MAX_SYMBOLS
+        || payload.length < RS_HEADER_SIZE + codedLength) {
+      logger.log(Level.FINE, "RS: invalid repair packet " + rtp.getsequencenumber());
+      return 0;
+    }
+
+    Group group = groupOf((base + k - 1) & 0xFFFF); // the slots of played packets are cleared
+    if (group == null || group.snBase != base || group.k != k || group.m != m) {
+      group = new Group();
+      group.snBase = base;
+      group.k = k;
+      group.m = m;
+      group.protectionLength = length;
+      group.ssrc = rtp.getssrc();
+      group.repairs = new byte[m][];
+      for (int j = 0; j < k; j++) {
+        // the slots of older groups are reused
+        groupOfPacket[(base + j) & (WINDOW - 1)] = group;
+        recovered[(base + j) & (WINDOW - 1)] = null;
+      }
+    }
+    if (group.repairs[index] == null && length == group.protectionLength) {
+      group.repairs[index] = Arrays.copyOfRange(payload, RS_HEADER_SIZE, RS_HEADER_SIZE + codedLength);
+      group.received++;
+    }
+    if (logger.isLoggable(Level.FINER)) {
+      logger.log(Level.FINER, "RS: repair " + index + " of group " + base + " (" + k + "+" + m + ")");
+    }
+    return members(group, nrs);
+  }
+
+  private static int members(Group group, int[] nrs) {
+    int count = Math.min(group.k, nrs.length);
+    for (int j = 0; j < count; j++) {
+      nrs[j] = (group.snBase + j) & 0xFFFF;
+    }
+    return count;
+  }
+
+  @Override
+  public int getGroup(int nr, int[] nrs) {
+    Group group = groupOf(nr);
+    return group == null ? 0 : members(group, nrs);
+  }
+
+  /** @return the group of a media packet, null if no repair packet of it is received */
+  private Group groupOf(int nr) {
+    Group group = groupOfPacket[nr & (WINDOW - 1)];
+    return group != null && ((nr - group.snBase) & 0xFFFF) < group.k ? group : null;
+  }
+
+  /** @return the recovered media packet, null if it is not recovered */
+  private RTPpacket getRecovered(int nr) {
+    RTPpacket packet = recovered[nr & (WINDOW - 1)];
+    return packet != null && packet.getsequencenumber() == nr ? packet : null;
+  }
+
+  private boolean isMissing(int nr, HashMap<Integer, RTPpacket> mediaPackets) {
+    return mediaPackets.get(nr) == null && getRecovered(nr) == null;
+  }
+
+  /**
+   * Checks if a lost media packet can be recovered: its group has at most as
+   * many lost packets as received repair packets.
+   *
+   * @param nr Sequence Nr.
+   * @param mediaPackets received media packets
+   * @return true if possible
+   */
+  @Override
+  public boolean checkCorrection(int nr, HashMap<Integer, RTPpacket> mediaPackets) {
+    if (getRecovered(nr) != null) {
+      return true;
+    }
+    Group group = groupOf(nr);
+    if (group == null) {
+      return false;
+    }
+    int lost = 0;
+    for (int j = 0; j < group.k; j++) {
+      int seqNr = (group.snBase + j) & 0xFFFF;
+      if (isMissing(seqNr, mediaPackets)) {
+        lost++;
+      }
+    }
+    return lost <= group.received;
+  }
+
+  /**
+   * Recovers the lost packets of the group of a packet.
+   *
+   * @param nr Sequence Nr.
+   * @param mediaPackets received media packets
+   * @return RTP packet, null if it is not recoverable
+   */
+  @Override
+  public RTPpacket correctRtp(int nr, HashMap<Integer, RTPpacket> mediaPackets) {
+    if (getRecovered(nr) == null) {
+      Group group = groupOf(nr);
+      if (group != null) {
+        decode(group, mediaPackets);
+      }
+    }
+    RTPpacket packet = getRecovered(nr);
+    if (packet != null) {
+      recovered[nr & (WINDOW - 1)] = null;
+    }
+    return packet;
+  }
+
+  /**
+   * Removes the group and the recovered packet of a media packet from the window after its playout.
+   *
+   * @param nr Media Sequence Nr.
+   */
+  @Override
+  public void clearStack(int nr) {
+    int slot = nr & (WINDOW - 1);
+    if (groupOf(nr) != null) {
+      groupOfPacket[slot] = null;
+    }
+    if (getRecovered(nr) != null) {
+      recovered[slot] = null;
+    }
+  }
+
+  private void decode(Group group, HashMap<Integer, RTPpacket> mediaPackets) {
+    int[] erased = new int[group.k];
+    int lost = 0;
+    for (int j = 0; j < group.k; j++) {
+      int seqNr = (group.snBase + j) & 0xFFFF;
+      if (isMissing(seqNr, mediaPackets)) {
+        erased[lost++] = j;
+      }
+    }
+    if (lost == 0 || lost > group.received) {
+      return;
+    }
+    int[] rows = new int[lost];
+    for (int i = 0, n = 0; n < lost; i++) {
+      if (group.repairs[i] != null) {
+        rows[n++] = i;
+      }
+    }
+
+    // syndromes: the repair packets without the received media packets
+    int codedLength = PROTECTED_HEADER_SIZE + group.protectionLength;
+    byte[][] syndromes = new byte[lost][];
+    for (int a = 0; a < lost; a++) {
+      syndromes[a] = group.repairs[rows[a]].clone();
+    }
+    for (int j = 0, e = 0; j < group.k; j++) {
+      if (e < lost && erased[e] == j) {
+        e++;
+        continue;
+      }
+      RTPpacket media = mediaPackets.get((group.snBase + j) & 0xFFFF);
+      if (media == null) {
+        media = getRecovered((group.snBase + j) & 0xFFFF);
+      }
+      int length = media.getlength();
+      if (packetBytes.length < length) {
+        packetBytes = new byte[length];
+      }
+      media.getpacket(packetBytes);
+      int protectedLength = Math.min(protect(packetBytes, length), codedLength);
+      for (int a = 0; a < lost; a++) {
+        ReedSolomon.mulAdd(syndromes[a], 0, protection, 0, protectedLength,
+            ReedSolomon.coefficient(rows[a], j, group.m));
+      }
+    }
+
+    int[][] matrix = new int[lost][lost];
+    for (int a = 0; a < lost; a++) {
+      for (int b = 0; b < lost; b++) {
+        matrix[a][b] = ReedSolomon.coefficient(rows[a], erased[b], group.m);
+      }
+    }
+    int[][] inverse = ReedSolomon.invert(matrix);
+    for (int b = 0; b < lost; b++) {
+      byte[] data = new byte[codedLength];
+      for (int a = 0; a < lost; a++) {
+        ReedSolomon.mulAdd(data, 0, syndromes[a], 0, codedLength, inverse[b][a]);
+      }
+      int length = (data[6] & 0xFF) << 8 | (data[7] & 0xFF);
+      if (length > group.protectionLength) {
+        continue; // inconsistent group, e.g. after a wrong repair packet
+      }
+      int seqNr = (group.snBase + erased[b]) & 0xFFFF;
+      int ts = (data[2] & 0xFF) << 24 | (data[3] & 0xFF) << 16 | (data[4] & 0xFF) << 8
+          | (data[5] & 0xFF);
+      RTPpacket packet = new RTPpacket(data[1] & 0x7F, seqNr, ts,
+          Arrays.copyOfRange(data, PROTECTED_HEADER_SIZE, PROTECTED_HEADER_SIZE + length), length);
+      packet.Padding = (data[0] >> 5) & 1;
+      packet.Extension = (data[0] >> 4) & 1;
+      packet.CC = data[0] & 0x0F;
+      packet.Ssrc = group.ssrc;
+      packet.setMarker((data[1] >> 7) & 1);
+      recovered[seqNr & (WINDOW - 1)] = packet;
+    }
+  }
+}
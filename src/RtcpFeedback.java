@@ -0,0 +1,84 @@
+import java.util.Locale;
+
+/**
+ * Reception quality of one client, taken from its RTCP receiver reports.
+ *
+ * The state is updated by the I/O thread when a report arrives and can be
+ * queried by any component, e.g. for adapting the FEC group size or for
+ * displaying. All values refer to the last report.
+ */
+public class RtcpFeedback {
+  private int reports = 0;
+  private long lastReportNanos = 0;
+  private double fractionLost = 0.0;
+  private int cumulativeLost = 0;
+  private int extendedHighestSeq = 0;
+  private double jitterMillis = 0.0;
+  private double roundTripMillis = -1.0;
+
+  /**
+   * Takes the values of a report block about the stream of the session.
+   *
+   * @param block report block of the client
+   * @param arrivalNtp NTP time of the arrival of the report
+   * @param arrivalNanos arrival time of {@link System#nanoTime()}
+   */
+  synchronized void update(RtcpPacket.ReportBlock block, long arrivalNtp, long arrivalNanos) {
+    reports++;
+    lastReportNanos = arrivalNanos;
+    fractionLost = block.fractionLost() / 256.0;
+    cumulativeLost = block.cumulativeLost();
+    extendedHighestSeq = block.extendedHighestSeq();
+    jitterMillis = (block.jitter() & 0xFFFFFFFFL) * 1000.0 / MjpegIndex.RTP_CLOCK_RATE;
+    if (block.lastSr() != 0) {
+      // RFC 3550, 6.4.1: A - LSR - DLSR in 1/65536 s
+      int rtt = RtcpPacket.middle32(arrivalNtp) - block.lastSr() - block.delaySinceLastSr();
+      roundTripMillis = Math.max(0, rtt) * 1000.0 / 65536;
+    }
+  }
+
+  /** @return number of received reports */
+  public synchronized int getReports() {
+    return reports;
+  }
+
+  /**
+   * @param nowNanos current time of {@link System#nanoTime()}
+   * @return age of the last report in ms, -1 if there is none
+   */
+  public synchronized long getReportAgeMillis(long nowNanos) {
+    return reports == 0 ? -1 : (nowNanos - lastReportNanos) / 1_000_000;
+  }
+
+  /** @return fraction of the media packets lost since the previous report, 0 to 1 */
+  public synchronized double getFractionLost() {
+    return fractionLost;
+  }
+
+  /** @return media packets lost since the start of the stream */
+  public synchronized int getCumulativeLost() {
+    return cumulativeLost;
+  }
+
+  /** @return extended highest sequence number received */
+  public synchronized int getExtendedHighestSeq() {
+    return extendedHighestSeq;
+  }
+
+  /** @return interarrival jitter in ms */
+  public synchronized double getJitterMillis() {
+    return jitterMillis;
+  }
+
+  /** @return round trip time in ms, -1 if not yet known */
+  public synchronized double getRoundTripMillis() {
+    return roundTripMillis;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format(Locale.ROOT,
+        "RTCP reports: %d, lost: %.1f %% (total %d), jitter: %.2f ms, RTT: %.1f ms",
+        reports, fractionLost * 100, cumulativeLost, jitterMillis, roundTripMillis);
+  }
+}
@@ -0,0 +1,264 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes and parses RTCP sender and receiver reports (RFC 3550, 6.4) and
+ * generic NACKs (RFC 4585, 6.2.1).
+ *
+ * Every report is sent as a compound packet together with an SDES packet
+ * carrying the CNAME (RFC 3550, 6.1); a NACK is appended to such a compound
+ * packet. Parsing walks through a compound packet and passes the reports and
+ * the requested sequence numbers to a {@link Listener}; other packet types
+ * are skipped.
+ */
+public class RtcpPacket {
+  static final int VERSION = 2;
+  static final int PT_SR = 200;
+  static final int PT_RR = 201;
+  static final int PT_SDES = 202;
+  static final int PT_RTPFB = 205; // transport layer feedback (RFC 4585, 6.1)
+  static final int FMT_NACK = 1; // generic NACK
+  static final int MAX_NACK_ITEMS = 16; // PID/BLP entries per NACK, up to 272 packets
+  static final int SDES_CNAME = 1;
+  static final int REPORT_BLOCK_SIZE = 24;
+  // one SR or RR with one report block and a short CNAME, or an RR with a NACK
+  static final int MAX_SIZE = 256;
+  // reduced minimum interval of RFC 3550, 6.2, for a session bandwidth of some Mbit/s
+  static final int REPORT_INTERVAL_MS = 1000;
+  static final long NTP_OFFSET_SECONDS = 2208988800L; // 1900-01-01 to 1970-01-01
+
+  /** Reception report of one source (RFC 3550, 6.4.1). */
+  public record ReportBlock(
+      int ssrc,
+      int fractionLost, // lost since the last report, in 1/256
+      int cumulativeLost, // 24 bit, signed
+      int extendedHighestSeq,
+      int jitter, // in timestamp units
+      int lastSr, // middle 32 bits of the NTP timestamp of the last SR, 0 if none
+      int delaySinceLastSr) {} // in 1/65536 s
+
+  /** Receives the reports of a compound packet. */
+  public interface Listener {
+    /**
+     * Called for a sender report.
+     *
+     * @param ssrc sender of the report
+     * @param ntpTime NTP timestamp of the report
+     * @param rtpTimestamp RTP timestamp of the same instant
+     * @param packetCount sent RTP packets
+     * @param octetCount sent payload octets
+     */
+    default void senderReport(int ssrc, long ntpTime, int rtpTimestamp, int packetCount,
+        int octetCount) {}
+
+    /**
+     * Called for each report block of a sender or receiver report.
+     *
+     * @param reporterSsrc sender of the report
+     * @param block the report block
+     */
+    default void reportBlock(int reporterSsrc, ReportBlock block) {}
+
+    /**
+     * Called for each sequence number requested by a generic NACK.
+     *
+     * @param senderSsrc sender of the NACK
+     * @param mediaSsrc source of the lost packet
+     * @param seqNr sequence number of the lost packet
+     */
+    default void nack(int senderSsrc, int mediaSsrc, int seqNr) {}
+  }
+
+  private RtcpPacket() {}
+
+  /**
+   * @param millis wall clock time, e.g. of {@link System#currentTimeMillis()}
+   * @return 64 bit NTP timestamp (RFC 3550, 4.)
+   */
+  public static long ntpTime(long millis) {
+    long seconds = millis / 1000 + NTP_OFFSET_SECONDS;
+    long fraction = ((millis % 1000) << 32) / 1000;
+    return (seconds << 32) | fraction;
+  }
+
+  /**
+   * @param ntpTime 64 bit NTP timestamp
+   * @return middle 32 bits, as used for LSR and the round trip time
+   */
+  public static int middle32(long ntpTime) {
+    return (int) (ntpTime >>> 16);
+  }
+
+  /**
+   * Writes a compound packet with a sender report without report blocks.
+   *
+   * @param dst buffer, the packet is appended at the position
+   * @param ssrc synchronization source of the sender
+   * @param ntpTime NTP timestamp of the report
+   * @param rtpTimestamp RTP timestamp of the same instant
+   * @param packetCount sent RTP packets
+   * @param octetCount sent payload octets
+   * @param cname canonical name of the sender
+   */
+  public static void writeSenderReport(ByteBuffer dst, int ssrc, long ntpTime, int rtpTimestamp,
+      int packetCount, int octetCount, String cname) {
+    writeHeader(dst, 0, PT_SR, 6);
+    dst.putInt(ssrc);
+    dst.putLong(ntpTime);
+    dst.putInt(rtpTimestamp);
+    dst.putInt(packetCount);
+    dst.putInt(octetCount);
+    writeSdes(dst, ssrc, cname);
+  }
+
+  /**
+   * Writes a compound packet with a receiver report.
+   *
+   * @param dst buffer, the packet is appended at the position
+   * @param ssrc synchronization source of the receiver
+   * @param block report about the sender, null if nothing was received yet
+   * @param cname canonical name of the receiver
+   */
+  public static void writeReceiverReport(ByteBuffer dst, int ssrc, ReportBlock block,
+      String cname) {
+    int count = block != null ? 1 : 0;
+    writeHeader(dst, count, PT_RR, 1 + count * REPORT_BLOCK_SIZE / 4);
+    dst.putInt(ssrc);
+    if (block != null) {
+      dst.putInt(block.ssrc());
+      dst.putInt((block.fractionLost() << 24) | (block.cumulativeLost() & 0xFFFFFF));
+      dst.putInt(block.extendedHighestSeq());
+      dst.putInt(block.jitter());
+      dst.putInt(block.lastSr());
+      dst.putInt(block.delaySinceLastSr());
+    }
+    writeSdes(dst, ssrc, cname);
+  }
+
+  /**
+   * Appends a generic NACK to a compound packet, e.g. after a receiver report.
+   *
+   * Following sequence numbers are combined into one PID/BLP entry; no more
+   * than {@link #MAX_NACK_ITEMS} entries are written.
+   *
+   * @param dst buffer, the packet is appended at the position
+   * @param ssrc synchronization source of the receiver
+   * @param mediaSsrc source of the lost packets
+   * @param seqNrs sequence numbers of the lost packets, ascending
+   * @param from index of the first sequence number
+   * @param to index after the last sequence number
+   * @return index after the last sequence number written
+   */
+  public static int writeNack(ByteBuffer dst, int ssrc, int mediaSsrc, int[] seqNrs, int from,
+      int to) {
+    int start = dst.position();
+    dst.position(start + 12);
+    int items = 0;
+    int i = from;
+    while (i < to && items < MAX_NACK_ITEMS) {
+      int pid = seqNrs[i++] & 0xFFFF;
+      int blp = 0;
+      for (; i < to; i++) {
+        int distance = (seqNrs[i] - pid) & 0xFFFF;
+        if (distance < 1 || distance > 16) {
+          break;
+        }
+        blp |= 1 << (distance - 1);
+      }
+      dst.putShort((short) pid).putShort((short) blp);
+      items++;
+    }
+    int end = dst.position();
+    dst.position(start);
+    writeHeader(dst, FMT_NACK, PT_RTPFB, 2 + items);
+    dst.putInt(ssrc);
+    dst.putInt(mediaSsrc);
+    dst.position(end);
+    return i;
+  }
+
+  private static void writeHeader(ByteBuffer dst, int count, int packetType, int lengthWords) {
+    // count is the format (FMT) for feedback packets
+    dst.put((byte) ((VERSION << 6) | count));
+    dst.put((byte) packetType);
+    dst.putShort((short) lengthWords); // 32 bit words minus one
+  }
+
+  private static void writeSdes(ByteBuffer dst, int ssrc, String cname) {
+    byte[] name = cname.getBytes(StandardCharsets.UTF_8);
+    int length = Math.min(name.length, 255);
+    // SSRC, CNAME item and at least one null octet, padded to 32 bits
+    int words = (4 + 2 + length + 1 + 3) / 4;
+    writeHeader(dst, 1, PT_SDES, words);
+    int start = dst.position();
+    dst.putInt(ssrc);
+    dst.put((byte) SDES_CNAME).put((byte) length).put(name, 0, length);
+    while (dst.position() < start + 4 * words) {
+      dst.put((byte) 0);
+    }
+  }
+
+  /**
+   * Parses a compound packet.
+   *
+   * @param packet received packet from position to limit, the position is not changed
+   * @param listener receives the reports
+   * @return false if the packet is not a valid RTCP packet
+   */
+  public static boolean parse(ByteBuffer packet, Listener listener) {
+    int pos = packet.position();
+    int end = packet.limit();
+    if (end - pos < 8 || (packet.get(pos) & 0xC0) >> 6 != VERSION) {
+      return false;
+    }
+    int type = packet.get(pos + 1) & 0xFF;
+    if (type != PT_SR && type != PT_RR) {
+      return false; // a compound packet starts with a report (RFC 3550, 6.1)
+    }
+    while (end - pos >= 4) {
+      int count = packet.get(pos) & 0x1F;
+      type = packet.get(pos + 1) & 0xFF;
+      int next = pos + 4 * ((packet.getShort(pos + 2) & 0xFFFF) + 1);
+      if (next > end) {
+        return false;
+      }
+      int blocks = pos + 8;
+      if (type == PT_SR) {
+        int ssrc = packet.getInt(pos + 4);
+        listener.senderReport(ssrc, packet.getLong(pos + 8), packet.getInt(pos + 16),
+            packet.getInt(pos + 20), packet.getInt(pos + 24));
+        blocks = pos + 28;
+      }
+      if (type == PT_SR || type == PT_RR) {
+        int reporter = packet.getInt(pos + 4);
+        for (int i = 0; i < count && blocks + REPORT_BLOCK_SIZE <= next; i++) {
+          int lost = packet.getInt(blocks + 4);
+          listener.reportBlock(reporter, new ReportBlock(
+              packet.getInt(blocks),
+              lost >>> 24,
+              (lost << 8) >> 8, // sign extension of the 24 bits
+              packet.getInt(blocks + 8),
+              packet.getInt(blocks + 12),
+              packet.getInt(blocks + 16),
+              packet.getInt(blocks + 20)));
+          blocks += REPORT_BLOCK_SIZE;
+        }
+      } else if (type == PT_RTPFB && count == FMT_NACK && next - pos >= 12) {
+        int sender = packet.getInt(pos + 4);
+        int media = packet.getInt(pos + 8);
+        for (int fci = pos + 12; fci + 4 <= next; fci += 4) {
+          int pid = packet.getShort(fci) & 0xFFFF;
+          int blp = packet.getShort(fci + 2) & 0xFFFF;
+          listener.nack(sender, media, pid);
+          for (int bit = 0; bit < 16; bit++) {
+            if ((blp & (1 << bit)) != 0) {
+              listener.nack(sender, media, (pid + bit + 1) & 0xFFFF);
+            }
+          }
+        }
+      }
+      pos = next;
+    }
+    return true;
+  }
+}
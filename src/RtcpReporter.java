@@ -0,0 +1,173 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * RTCP of the client on the RTP port + 1.
+ *
+ * A thread sends a receiver report about the media stream to the server at
+ * randomized intervals (RFC 3550, 6.3.1) and receives the sender reports of
+ * the server, which are needed for the round trip time in the next receiver
+ * report. A gap in the received sequence numbers wakes the thread, which
+ * requests the lost packets at once with a generic NACK (RFC 4585, 6.2.1)
+ * after an empty receiver report, so the interval of the loss statistics is
+ * not cut short.
+ */
+public class RtcpReporter implements Runnable {
+  private final DatagramChannel channel;
+  private final Selector selector;
+  private final RtpSourceState source;
+  private final InetSocketAddress server;
+  private final int ssrc = ThreadLocalRandom.current().nextInt();
+  private final String cname;
+  private final ByteBuffer sendBuffer = ByteBuffer.allocate(RtcpPacket.MAX_SIZE);
+  private final ByteBuffer receiveBuffer = ByteBuffer.allocate(1500);
+  private final int[] nackSeqNrs = new int[RtcpPacket.MAX_NACK_ITEMS * 17];
+  private volatile int sentNacks = 0;
+  private volatile int sentReports = 0;
+  private volatile int receivedSenderReports = 0;
+  private volatile boolean running = false;
+  private Thread thread = null;
+
+  /**
+   * Opens the RTCP port.
+   *
+   * @param port local RTCP port, RTP port + 1
+   * @param server RTCP address of the server from the SETUP response
+   * @param source reception state of the media stream
+   * @throws IOException if the port can not be opened
+   */
+  public RtcpReporter(int port, InetSocketAddress server, RtpSourceState source)
+      throws IOException {
+    this.server = server;
+    this.source = source;
+    cname = System.getProperty("user.name", "client") + "@" + server.getAddress().getHostAddress();
+    channel = DatagramChannel.open();
+    try {
+      channel.bind(new InetSocketAddress(port));
+      channel.configureBlocking(false);
+      selector = Selector.open();
+      channel.register(selector, SelectionKey.OP_READ);
+    } catch (IOException ex) {
+      channel.close();
+      throw ex;
+    }
+    source.setGapListener(selector::wakeup);
+  }
+
+  /** Starts the report thread. */
+  public synchronized void start() {
+    if (thread == null) {
+      running = true;
+      thread = new Thread(this, "rtcp-reporter");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  /** Stops the report thread and closes the port. */
+  public synchronized void close() {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    running = false;
+    source.setGapListener(null);
+    selector.wakeup();
+    try {
+      if (thread != null) {
+        thread.join(1000);
+      }
+      selector.close();
+      channel.close();
+    } catch (IOException | InterruptedException ex) {
+      logger.log(Level.WARNING, "RTCP reporter not closed: " + ex);
+    }
+  }
+
+  /** Report loop, receives sender reports and sends NACKs while waiting for the next report. */
+  @Override
+  public void run() {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    long nextReport = System.nanoTime() + nextInterval();
+    try {
+      while (running) {
+        long wait = (nextReport - System.nanoTime()) / 1_000_000;
+        if (wait > 0) {
+          // lost packets are requested again after the retry interval
+          selector.select(Math.min(wait, RtpSourceState.NACK_RETRY_NANOS / 1_000_000));
+          selector.selectedKeys().clear();
+          receive();
+          sendNacks();
+        } else {
+          sendReport();
+          nextReport += nextInterval();
+        }
+      }
+    } catch (ClosedChannelException ex) {
+      // closed
+    } catch (IOException ex) {
+      logger.log(Level.SEVERE, "RTCP reporter stopped: " + ex);
+    }
+  }
+
+  /** @return randomized report interval in ns, 0.5 to 1.5 times the interval (RFC 3550, 6.3.1) */
+  private long nextInterval() {
+    double factor = 0.5 + ThreadLocalRandom.current().nextDouble();
+    return (long) (factor * RtcpPacket.REPORT_INTERVAL_MS * 1_000_000L);
+  }
+
+  private void receive() throws IOException {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    while (channel.receive(receiveBuffer.clear()) != null) {
+      long now = System.nanoTime();
+      boolean valid = RtcpPacket.parse(receiveBuffer.flip(), new RtcpPacket.Listener() {
+        @Override
+        public void senderReport(int ssrc, long ntpTime, int rtpTimestamp, int packetCount,
+            int octetCount) {
+          source.senderReportReceived(ntpTime, now);
+          receivedSenderReports++;
+        }
+      });
+      if (!valid) {
+        logger.log(Level.FINE, "Invalid RTCP packet from the server");
+      }
+    }
+  }
+
+  private void sendReport() throws IOException {
+    RtcpPacket.ReportBlock block = source.createReportBlock(System.nanoTime());
+    RtcpPacket.writeReceiverReport(sendBuffer.clear(), ssrc, block, cname);
+    channel.send(sendBuffer.flip(), server);
+    sentReports++;
+  }
+
+  private void sendNacks() throws IOException {
+    int count = source.collectNacks(System.nanoTime(), nackSeqNrs);
+    int mediaSsrc = source.getSsrc();
+    for (int written = 0; written < count; sentNacks++) {
+      RtcpPacket.writeReceiverReport(sendBuffer.clear(), ssrc, null, cname);
+      written = RtcpPacket.writeNack(sendBuffer, ssrc, mediaSsrc, nackSeqNrs, written, count);
+      channel.send(sendBuffer.flip(), server);
+    }
+  }
+
+  /** @return number of sent receiver reports */
+  public int getSentReports() {
+    return sentReports;
+  }
+
+  /** @return number of sent NACK packets */
+  public int getSentNacks() {
+    return sentNacks;
+  }
+
+  /** @return number of received sender reports */
+  public int getReceivedSenderReports() {
+    return receivedSenderReports;
+  }
+}
@@ -1,8 +1,11 @@
+import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -21,8 +24,46 @@ public class RtpHandler {
         JPEG_ATTACK
     }
 
+    public enum FecScheme {
+        XOR(""), // RFC 5109, one parity packet per group
+        REED_SOLOMON("rs"), // m repair packets per group, see RsFecHandler
+        PARITY_2D("2d"), // row and column parity, see MatrixFecHandler
+        ULP("ulp"); // stronger protection of the payload prefix, see UlpFecHandler
+
+        private final String parameter;
+
+        FecScheme(String parameter) {
+            this.parameter = parameter;
+        }
+
+        /** @return value of the fec parameter in the RTSP Transport header, empty for XOR */
+        public String getParameter() {
+            return parameter;
+        }
+
+        /**
+         * @param parameter value of the fec parameter in the RTSP Transport header
+         * @return the scheme, XOR if the value is unknown
+         */
+        public static FecScheme ofParameter(String parameter) {
+            for (FecScheme scheme : values()) {
+                if (scheme.parameter.equals(parameter)) {
+                    return scheme;
+                }
+            }
+            return XOR;
+        }
+    }
+
     public static final int RTP_PAYLOAD_FEC = 127; // assumed as in RFC 5109, 10.1
+    public static final int RTP_PAYLOAD_RS = 126; // Reed-Solomon repair packets
     public static final int RTP_PAYLOAD_JPEG = 26;
+    public static final int DEFAULT_MTU = 1500; // Ethernet
+    // IPv4 datagram every host accepts, leaves room for the RFC 2435 tables after all headers
+    public static final int MIN_MTU = 576;
+    public static final int MAX_MTU = 65535; // largest IPv4 packet
+    static final int IP_UDP_HEADER_SIZE = 28; // IPv4 without options
+    static final int SRTP_OVERHEAD = 14; // MKI and authentication tag
     private static byte[] defaultKey = new byte[]{
         (byte)0xE1, (byte)0xF9, (byte)0x7A, (byte)0x0D, (byte)0x3E, (byte)0x01, (byte)0x8B, (byte)0xE0,
         (byte)0xD6, (byte)0x4F, (byte)0xA3, (byte)0x2C, (byte)0x06, (byte)0xDE, (byte)0x41, (byte)0x39};
@@ -31,18 +72,28 @@ public class RtpHandler {
         (byte)0xEB, (byte)0xB6, (byte)0x96, (byte)0x0B, (byte)0x3A, (byte)0xAB, (byte)0xE6};
 
     private EncryptionMode encryptionMode;
+    private FecScheme fecScheme = FecScheme.XOR;
     private FecHandler fecHandler = null;
+    private int ulpProtectionLength = UlpFecHandler.DEFAULT_PROTECTION_LENGTH; // server side
     private JpegEncryptionHandler jpegEncryptionHandler = null;
     private SrtpHandler srtpHandler = null;
 
     // server side
-    private int currentSeqNb = 0; // sequence number of current frame
+    private int currentSeqNb; // sequence number of current packet, random at the start
+    private int ssrc; // synchronization source of the sent packets, random and not 0
+    private boolean started = false; // a packet was sent or received
+    private int frameTimestamp = 0; // timestamp of the current frame
+    private final RtpPacketWriter packetWriter = new RtpPacketWriter();
+    private int mtu = DEFAULT_MTU; // maximal size of the IP packets
     private boolean fecEncodingEnabled = false; // server side
 
     // client side
     private boolean fecDecodingEnabled = false; // client side
     private HashMap<Integer, RTPpacket> mediaPackets = null;
+    private int[] receivedGroup = null; // sequence numbers of the group of a received packet
     private int playbackIndex = -1;
+    private boolean playbackStarted = false; // playbackIndex was set from the first media packet
+    private int releasedIndex = -1; // packets up to this index are removed from the jitter buffer
     private HashMap<Integer, List<Integer>> sameTimestamps = null;
     private ReceptionStatistic statistics = null;
 
@@ -52,6 +103,12 @@ public class RtpHandler {
      * @param fecGroupSize Group size for FEC packets. If the value is 0, FEC will be disabled.
      */
     public RtpHandler(int fecGroupSize) {
+        // RFC 3550, 5.1 and 8.1: random SSRC and initial sequence number
+        // (0 means no source in RtpSourceState)
+        do {
+            ssrc = ThreadLocalRandom.current().nextInt();
+        } while (ssrc == 0);
+        currentSeqNb = ThreadLocalRandom.current().nextInt(1 << 16);
         if (fecGroupSize > 0) {
             fecEncodingEnabled = true;
             fecHandler = new FecHandler(fecGroupSize);
@@ -67,6 +124,7 @@ public class RtpHandler {
         fecDecodingEnabled = useFec;
         fecHandler = new FecHandler(useFec);
         mediaPackets = new HashMap<>();
+        receivedGroup = new int[FecHandler.GROUP_CAPACITY];
         sameTimestamps = new HashMap<>();
         statistics = new ReceptionStatistic();
     }
@@ -100,6 +158,15 @@ public class RtpHandler {
         return fecPacket;
     }
 
+    /**
+     * Get the synchronization source of the sent packets.
+     *
+     * @return SSRC of the server side
+     */
+    public int getSsrc() {
+        return ssrc;
+    }
+
     /**
      * Get statistic values of the reception of the packets.
      *
@@ -112,6 +179,22 @@ public class RtpHandler {
         return statistics;
     }
 
+    /**
+     * Set the maximum transmission unit of the path to the client.
+     *
+     * @param mtu MTU in bytes, including IP and UDP header
+     */
+    public void setMtu(int mtu) {
+        this.mtu = mtu;
+        if (fecEncodingEnabled) {
+            fecHandler.setMtu(mtu);
+        }
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
     /**
      * Check for the availability of an FEC packet.
      *
@@ -126,16 +209,14 @@ public class RtpHandler {
     }
 
     /**
-     * Transform a JPEG image to an RTP packet.
+     * Transform a JPEG image to an RFC 2435 payload.
      *
-     * Takes care of all steps inbetween.
+     * With JPEG encryption the image is encrypted before.
      *
      * @param jpegImage JPEG image as byte array
-     * @return RTP packet as byte array
+     * @return RFC 2435 payload
      */
-    public byte[] jpegToRtpPacket(final byte[] jpegImage, int framerate) {
-        Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
-
+    public byte[] jpegToPayload(final byte[] jpegImage) {
         byte[] image = null;
         switch (encryptionMode) {
         case JPEG:
@@ -148,38 +229,103 @@ public class RtpHandler {
             break;
         }
 
-        byte[] payload;
         JpegFrame frame = JpegFrame.getFromJpegBytes(image);
-        payload = frame.getAsRfc2435Bytes();
+        return frame.getAsRfc2435Bytes();
+    }
+
+    /**
+     * Check if the payload of an image is the same for all sessions.
+     *
+     * This is not the case for JPEG encryption.
+     *
+     * @return true if payloads may be shared
+     */
+    public boolean isPayloadShareable() {
+        return encryptionMode != EncryptionMode.JPEG;
+    }
+
+    /**
+     * Start sending a frame; its packets are written by {@link #writeNextPacket(ByteBuffer)}.
+     *
+     * The frame is split into fragments which fit into the MTU. All packets of
+     * the frame share the timestamp.
+     *
+     * @param payload RFC 2435 payload of the frame, is not changed
+     * @param timestamp RTP timestamp of the frame at 90 kHz
+     */
+    public void startFrame(final byte[] payload, int timestamp) {
+        int maxSize = mtu - IP_UDP_HEADER_SIZE - RTPpacket.HEADER_SIZE;
+        if (encryptionMode == EncryptionMode.SRTP) {
+            maxSize -= SRTP_OVERHEAD;
+        }
+        if (fecEncodingEnabled) {
+            // FEC packets carry the longest payload of the group
+            maxSize -= fecHandler.getPacketOverhead();
+        }
+        packetWriter.setFrame(payload, maxSize);
+        frameTimestamp = timestamp;
+    }
+
+    /**
+     * Check if packets of the current frame are left.
+     *
+     * @return true if {@link #writeNextPacket(ByteBuffer)} has to be called again
+     */
+    public boolean hasNextPacket() {
+        return packetWriter.hasNext();
+    }
 
-        currentSeqNb++;
+    /**
+     * Estimate the bytes still to be sent for the current frame, e.g. for pacing.
+     *
+     * The value includes the RTP headers, the SRTP overhead and the share of
+     * the FEC packets.
+     *
+     * @return size of the remaining packets in bytes
+     */
+    public int getRemainingFrameBytes() {
+        int overhead = RTPpacket.HEADER_SIZE;
+        if (encryptionMode == EncryptionMode.SRTP) {
+            overhead += SRTP_OVERHEAD;
+        }
+        int bytes = packetWriter.getRemainingBytes(overhead);
+        if (fecEncodingEnabled && fecHandler.getFecGroupSize() > 0) {
+            // FEC packets of about the mean packet size per group
+            bytes += (int) (bytes * fecHandler.getOverhead());
+        }
+        return bytes;
+    }
 
-        // Build an RTPpacket object containing the image
-        // time has to be in scale with 90000 Hz (RFC 2435, 3.)
-        RTPpacket packet = new RTPpacket(
-                RTP_PAYLOAD_JPEG, currentSeqNb,
-                currentSeqNb * (90000 / framerate),
-                payload, payload.length);
+    /**
+     * Write the next RTP packet of the current frame into a send buffer.
+     *
+     * Without SRTP no memory is allocated, the packet is serialized directly
+     * from the payload into the buffer.
+     *
+     * @param dst buffer of at least MTU size, contains the packet afterwards (flipped)
+     */
+    public void writeNextPacket(ByteBuffer dst) {
+        currentSeqNb = (currentSeqNb + 1) & 0xFFFF;
+        started = true;
+        packetWriter.writeNext(dst, RTP_PAYLOAD_JPEG, currentSeqNb, frameTimestamp, ssrc);
 
         if (fecEncodingEnabled) {
-            fecHandler.setRtp(packet);
+            fecHandler.setRtp(dst);
         }
 
-        byte[] packetData = null;
         switch (encryptionMode) {
         case SRTP:
-            packetData = srtpHandler.transformToSrtp(packet);
+            byte[] plain = new byte[dst.remaining()];
+            dst.get(plain);
+            byte[] encrypted = srtpHandler.transformToSrtp(new RTPpacket(plain, plain.length));
+            dst.clear();
+            dst.put(encrypted != null ? encrypted : plain).flip();
             break;
         case JPEG:
         case JPEG_ATTACK:
         default:
             break;
         }
-
-        if (packetData == null) {
-            packetData = packet.getpacket();
-        }
-        return packetData;
     }
 
     /**
@@ -192,6 +338,7 @@ public class RtpHandler {
      */
     public byte[] nextPlaybackImage() {
         Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+        releasePlayedPackets();
         statistics.requestedFrames++;
         playbackIndex++;
 
@@ -230,20 +377,35 @@ public class RtpHandler {
     /**
      * Process and store a received RTP packet.
      *
-     * @param packetData the received RTP packet as byte array
+     * @param packetData the received RTP packet as byte array, is copied
+     * @param packetLength length of the packet
      */
     public void processRtpPacket(byte[] packetData, int packetLength) {
+        processRtpPacket(ByteBuffer.wrap(Arrays.copyOf(packetData, packetLength)), null);
+    }
+
+    /**
+     * Process and store a received RTP packet without copying it.
+     *
+     * The buffer is kept in the jitter buffer and returned to the pool after
+     * the packet was played and can no longer be needed for FEC.
+     *
+     * @param packetBuffer the received RTP packet from position 0 to limit
+     * @param pool pool of the buffer, null if it is not pooled
+     */
+    public void processRtpPacket(ByteBuffer packetBuffer, BufferPool pool) {
         Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
-        RTPpacket packet = new RTPpacket(packetData, packetLength);
+        RtpPacketView packet = new RtpPacketView(packetBuffer, pool);
+        if (packetBuffer.limit() < RTPpacket.HEADER_SIZE) {
+            packet.release();
+            return;
+        }
         int seqNr = packet.getsequencenumber();
+        started = true;
 
-        RTPpacket decryptedPacket = null;
         switch (encryptionMode) {
         case SRTP:
-            decryptedPacket = srtpHandler.retrieveFromSrtp(packet.getpacket());
-            if (decryptedPacket != null) {
-                packet = decryptedPacket;
-            }
+            srtpHandler.retrieveFromSrtp(packetBuffer); // in place
             break;
         case JPEG:
         case JPEG_ATTACK:
@@ -251,46 +413,148 @@ public class RtpHandler {
             break;
         }
 
+        int pt = packet.getpayloadtype();
+
         // set the correct index for beginning the playback
-        if (playbackIndex == -1) {
+        // a client joining a shared stream may receive a FEC packet first
+        if (!playbackStarted && pt == RTP_PAYLOAD_JPEG) {
+            playbackStarted = true;
             playbackIndex = seqNr - 1;
+            releasedIndex = playbackIndex;
+            statistics.firstSequenceNumber = seqNr;
         }
 
-        int pt = packet.getpayloadtype();
+        if (pt == RTP_PAYLOAD_JPEG && ((seqNr - releasedIndex - 1) & 0xFFFF) >= 0x8000) {
+            // played and released already, e.g. a late retransmission
+            logger.log(Level.FINE, "Late packet: " + seqNr);
+            packet.release();
+            return;
+        }
 
         if (pt == RTP_PAYLOAD_JPEG) {
             statistics.receivedPackets++;
-            statistics.latestSequenceNumber = seqNr;
-            mediaPackets.put(seqNr, packet);
-
-            int ts = packet.gettimestamp();
-            List<Integer> tmpTimestamps = sameTimestamps.get(ts);
-            if (tmpTimestamps == null) {
-                tmpTimestamps = new ArrayList<>();
+            // a retransmitted packet does not move the latest number back
+            if (statistics.latestSequenceNumber < 0
+                    || ((seqNr - statistics.latestSequenceNumber) & 0xFFFF) < 0x8000) {
+                statistics.latestSequenceNumber = seqNr;
             }
-            tmpTimestamps.add(seqNr);
-            sameTimestamps.put(ts, tmpTimestamps);
-            logger.log(Level.FINER, "FEC: set media nr: " + seqNr);
-            logger.log(Level.FINER, "FEC: set sameTimestamps: " + (0xFFFFFFFFL & ts)
-                    + " " + tmpTimestamps.toString());
-        } else if (pt == RTP_PAYLOAD_FEC) {
-            fecHandler.rcvFecPacket(packet);
+            storeMediaPacket(seqNr, packet);
+            recoverEarly(receivedGroup, fecHandler.getGroup(seqNr, receivedGroup));
+        } else if (pt == RTP_PAYLOAD_FEC || pt == RTP_PAYLOAD_RS) {
+            // copied, ignored if not of the negotiated scheme
+            recoverEarly(receivedGroup, fecHandler.rcvFecPacket(packet, receivedGroup));
         }
         // else: ignore packet
 
-        logger.log(Level.FINER,
-                "---------------- Receiver -----------------------"
-                + "\r\n"
-                + "Got RTP packet with SeqNum # "
-                + packet.getsequencenumber()
-                + " TimeStamp: "
-                + (0xFFFFFFFFL & packet.gettimestamp()) // cast to long
-                + " ms, of type "
-                + pt
-                + " Size: " + packet.getlength());
+        if (logger.isLoggable(Level.FINER)) {
+            logger.log(Level.FINER,
+                    "---------------- Receiver -----------------------"
+                    + "\r\n"
+                    + "Got RTP packet with SeqNum # "
+                    + packet.getsequencenumber()
+                    + " TimeStamp: "
+                    + (0xFFFFFFFFL & packet.gettimestamp()) // cast to long
+                    + " ms, of type "
+                    + pt
+                    + " Size: " + packet.getlength());
+        }
 
         // TASK remove comment for debugging
         // packet.printheader(); // print rtp header bitstream for debugging
+
+        if (pt != RTP_PAYLOAD_JPEG) {
+            packet.release();
+        }
+    }
+
+    /**
+     * Store a received or recovered media packet in the jitter buffer.
+     *
+     * @param seqNr sequence number of the packet
+     * @param packet the packet
+     */
+    private void storeMediaPacket(int seqNr, RTPpacket packet) {
+        Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+        RTPpacket duplicate = mediaPackets.put(seqNr, packet);
+        if (duplicate instanceof RtpPacketView) {
+            ((RtpPacketView) duplicate).release();
+        }
+
+        int ts = packet.gettimestamp();
+        List<Integer> tmpTimestamps = sameTimestamps.get(ts);
+        if (tmpTimestamps == null) {
+            tmpTimestamps = new ArrayList<>();
+        }
+        tmpTimestamps.add(seqNr);
+        sameTimestamps.put(ts, tmpTimestamps);
+        if (logger.isLoggable(Level.FINER)) {
+            logger.log(Level.FINER, "FEC: set media nr: " + seqNr);
+            logger.log(Level.FINER, "FEC: set sameTimestamps: " + (0xFFFFFFFFL & ts)
+                    + " " + tmpTimestamps.toString());
+        }
+    }
+
+    /**
+     * Recover the lost packets of a group as soon as the group is decodable.
+     *
+     * This is called for the group of every received media or FEC packet,
+     * so a packet is repaired when the last packet it needs arrives and not
+     * at its playout. The recovered packets are stored in the jitter buffer
+     * and may make further packets of their other groups recoverable, e.g.
+     * the last packet of a group before the next media packet arrives. Played
+     * packets are too late.
+     *
+     * @param group sequence numbers of the media packets of the group
+     * @param count number of the sequence numbers in the array
+     */
+    private void recoverEarly(int[] group, int count) {
+        Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+        if (!fecDecodingEnabled || !playbackStarted) {
+            return;
+        }
+        int[] recoveredGroup = null;
+        for (int i = 0; i < count; i++) {
+            int nr = group[i];
+            boolean played = ((nr - playbackIndex - 1) & 0xFFFF) >= 0x8000;
+            if (played || mediaPackets.get(nr) != null
+                    || !fecHandler.checkCorrection(nr, mediaPackets)) {
+                continue;
+            }
+            RTPpacket packet = fecHandler.correctRtp(nr, mediaPackets);
+            if (packet == null) {
+                continue;
+            }
+            statistics.packetsLost++;
+            statistics.correctedPackets++;
+            statistics.earlyCorrectedPackets++;
+            logger.log(Level.INFO, "---> FEC: corrected before playout: " + nr);
+            storeMediaPacket(nr, packet);
+            if (recoveredGroup == null) {
+                recoveredGroup = new int[FecHandler.GROUP_CAPACITY]; // only after a recovery
+            }
+            recoverEarly(recoveredGroup, fecHandler.getGroup(nr, recoveredGroup));
+        }
+    }
+
+    /**
+     * Remove played packets from the jitter buffer and return their buffers.
+     *
+     * The packets of the last {@link FecHandler#maxGroupSize} sequence numbers
+     * are kept, because a lost packet of a FEC group may be corrected from them.
+     * Their FEC packets are removed too.
+     */
+    private void releasePlayedPackets() {
+        int last = playbackIndex - FecHandler.maxGroupSize;
+        for (; releasedIndex < last; releasedIndex++) {
+            RTPpacket packet = mediaPackets.remove((releasedIndex + 1) % 0x10000);
+            fecHandler.clearStack((releasedIndex + 1) % 0x10000);
+            if (packet != null) {
+                sameTimestamps.remove(packet.gettimestamp());
+            }
+            if (packet instanceof RtpPacketView) {
+                ((RtpPacketView) packet).release();
+            }
+        }
     }
 
     /**
@@ -300,7 +564,7 @@ public class RtpHandler {
      * @return true if successful, false otherwise
      */
     public boolean setEncryption(EncryptionMode mode) {
-        if (currentSeqNb > 0 || (statistics != null && statistics.latestSequenceNumber > 0)) {
+        if (started) {
             // Do not change encryption when already started.
             return false;
         }
@@ -350,6 +614,74 @@ public class RtpHandler {
         fecDecodingEnabled = enabled;
     }
 
+    /**
+     * Set the FEC scheme, before the first packet is sent or received.
+     *
+     * @param scheme XOR parity, Reed-Solomon, 2D parity or ULP
+     * @param repairPackets repair packets per group for Reed-Solomon on the server side
+     */
+    public void setFecScheme(FecScheme scheme, int repairPackets) {
+        boolean rs = scheme == FecScheme.REED_SOLOMON;
+        if (mediaPackets != null) {
+            // client side
+            if (scheme != fecScheme) {
+                if (rs) {
+                    fecHandler = new RsFecHandler(fecDecodingEnabled);
+                } else if (scheme == FecScheme.PARITY_2D) {
+                    fecHandler = new MatrixFecHandler(fecDecodingEnabled);
+                } else if (scheme == FecScheme.ULP) {
+                    fecHandler = new UlpFecHandler(fecDecodingEnabled);
+                } else {
+                    fecHandler = new FecHandler(fecDecodingEnabled);
+                }
+            }
+        } else if (fecEncodingEnabled
+                && (scheme != fecScheme || rs && fecHandler.getRepairPackets() != repairPackets)) {
+            int k = fecHandler.getFecGroupSize();
+            if (rs) {
+                fecHandler = new RsFecHandler(k, repairPackets);
+            } else if (scheme == FecScheme.PARITY_2D) {
+                fecHandler = new MatrixFecHandler(k);
+            } else if (scheme == FecScheme.ULP) {
+                fecHandler = new UlpFecHandler(k, ulpProtectionLength);
+            } else {
+                fecHandler = new FecHandler(k);
+            }
+            fecHandler.setMtu(mtu);
+        }
+        fecScheme = scheme;
+    }
+
+    /**
+     * Get the FEC scheme.
+     *
+     * @return XOR parity, Reed-Solomon, 2D parity or ULP
+     */
+    public FecScheme getFecScheme() {
+        return fecScheme;
+    }
+
+    /**
+     * Set the payload bytes which are protected more strongly with ULP on the server side.
+     *
+     * @param length protection length of ULP level 0 in bytes
+     */
+    public void setUlpProtectionLength(int length) {
+        ulpProtectionLength = length;
+        if (fecHandler instanceof UlpFecHandler) {
+            ((UlpFecHandler) fecHandler).setProtectionLength(length);
+        }
+    }
+
+    /**
+     * Get the number of FEC packets per group of the server side.
+     *
+     * @return 0 without FEC, 1 for XOR parity
+     */
+    public int getFecRepairPackets() {
+        return fecEncodingEnabled ? fecHandler.getRepairPackets() : 0;
+    }
+
     /**
      * Set a new group size for the FEC error handling.
      *
@@ -381,7 +713,10 @@ public class RtpHandler {
             boolean fecCorrectable = fecHandler.checkCorrection(index, mediaPackets);
             if (fecDecodingEnabled && fecCorrectable) {
                 packet = fecHandler.correctRtp(index, mediaPackets);
+            }
+            if (packet != null) {
                 statistics.correctedPackets++;
+                statistics.lateCorrectedPackets++;
                 logger.log(Level.INFO, "---> FEC: correctable: " + index);
             } else {
                 statistics.notCorrectedPackets++;
@@ -403,28 +738,96 @@ public class RtpHandler {
         ArrayList<RTPpacket> packetList = new ArrayList<>();
         RTPpacket packet = obtainMediaPacket(playbackIndex);
         if (packet == null) {
+            // a following fragment of the same frame tells that the lost packet started it
+            RTPpacket next = nextReceivedPacket();
+            if (next != null && fragmentOffset(next) != 0) {
+                playbackIndex = lastIndexOfFrame(next.gettimestamp());
+            }
             statistics.framesLost++;
             return null;
         }
 
-        packetList.add(packet);
         int timestamp = packet.gettimestamp();
-        List<Integer> timestamps = sameTimestamps.get(timestamp);
-        if (timestamps == null) {
-            return packetList;
-        }
+        int lastIndex = lastIndexOfFrame(timestamp);
 
-        // TODO lost RTPs are not in the list but could perhaps be corrected -> check for snr
-        for (int i = 1; i < timestamps.size(); i++) {
-            packetList.add(obtainMediaPacket(timestamps.get(i)));
+        if (fragmentOffset(packet) != 0) {
+            // the start of the frame with the tables is lost, skip the rest of it
+            playbackIndex = lastIndex;
+            statistics.framesLost++;
+            return null;
         }
 
-        playbackIndex += timestamps.size() - 1;
+        // lost packets within the frame are corrected with FEC if possible
+        packetList.add(packet);
+        for (int nr = playbackIndex + 1; nr <= lastIndex; nr++) {
+            RTPpacket fragment = obtainMediaPacket(nr);
+            if (fragment != null) {
+                packetList.add(fragment); // RFC 2435 offsets leave a gap for lost fragments
+            }
+        }
+        playbackIndex = lastIndex;
         // TODO if list is fragmented return null or implement JPEG error concealment
 
         logger.log(Level.FINER, "-> Get list of " + packetList.size()
                 + " RTPs with TS: " + (0xFFFFFFFFL & timestamp));
         return packetList;
     }
+
+    /**
+     * Get the last received packet of a frame from the playback index on.
+     *
+     * @param timestamp RTP timestamp of the frame
+     * @return sequence number of the packet, the playback index if there is none after it
+     */
+    private int lastIndexOfFrame(int timestamp) {
+        List<Integer> timestamps = sameTimestamps.get(timestamp);
+        // the sequence numbers may wrap around
+        int lastIndex = playbackIndex;
+        if (timestamps != null) {
+            for (int nr : timestamps) {
+                int distance = (nr - playbackIndex) & 0xFFFF;
+                if (distance < 0x8000) {
+                    lastIndex = Math.max(lastIndex, playbackIndex + distance);
+                }
+            }
+        }
+        return lastIndex;
+    }
+
+    /**
+     * Get the first received packet after the playback index.
+     *
+     * @return RTP packet, null if none was received after it
+     */
+    private RTPpacket nextReceivedPacket() {
+        int received = (statistics.latestSequenceNumber - playbackIndex) & 0xFFFF;
+        if (received >= 0x8000) {
+            return null;
+        }
+        for (int distance = 1; distance <= received; distance++) {
+            RTPpacket packet = mediaPackets.get((playbackIndex + distance) & 0xFFFF);
+            if (packet != null) {
+                return packet;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the fragment offset of the RFC 2435 header of a packet.
+     *
+     * @param packet RTP packet with JPEG payload
+     * @return offset of the fragment within the frame, 0 for the first fragment
+     */
+    private static int fragmentOffset(RTPpacket packet) {
+        if (packet.getpayload_length() < 4) {
+            return 0;
+        }
+        if (packet instanceof RtpPacketView) {
+            return ((RtpPacketView) packet).getBuffer().getInt(RTPpacket.HEADER_SIZE) & 0xFFFFFF;
+        }
+        return (packet.payload[1] & 0xFF) << 16 | (packet.payload[2] & 0xFF) << 8
+                | (packet.payload[3] & 0xFF);
+    }
 }
 
@@ -0,0 +1,112 @@
+import java.nio.ByteBuffer;
+
+/**
+ * RTP packet which reads its fields in place from a receive buffer.
+ *
+ * The client stores these views in the jitter buffer instead of copying
+ * header and payload into new arrays. The public fields of {@link RTPpacket}
+ * are not set, all getters read the buffer. The buffer belongs to the view
+ * until {@link #release()} returns it to its pool; afterwards the view must
+ * not be used anymore.
+ */
+public class RtpPacketView extends RTPpacket {
+  private ByteBuffer buffer; // packet from position 0 to limit
+  private final BufferPool pool;
+
+  /**
+   * @param buffer received packet from position 0 to limit, at least the RTP header
+   * @param pool pool the buffer is returned to, null if it is not pooled
+   */
+  public RtpPacketView(ByteBuffer buffer, BufferPool pool) {
+    this.buffer = buffer;
+    this.pool = pool;
+  }
+
+  /** Returns the buffer to its pool. */
+  public void release() {
+    if (pool != null) {
+      pool.release(buffer);
+    }
+    buffer = null;
+  }
+
+  /**
+   * @return the whole packet, from position 0 to limit; the buffer must not be changed
+   */
+  public ByteBuffer getBuffer() {
+    return buffer.duplicate();
+  }
+
+  @Override
+  public int getpayload(byte[] data) {
+    buffer.get(HEADER_SIZE, data, 0, getpayload_length());
+    return getpayload_length();
+  }
+
+  @Override
+  public byte[] getpayload() {
+    byte[] data = new byte[getpayload_length()];
+    getpayload(data);
+    return data;
+  }
+
+  @Override
+  public int getpayload_length() {
+    return buffer.limit() - HEADER_SIZE;
+  }
+
+  @Override
+  public int getlength() {
+    return buffer.limit();
+  }
+
+  @Override
+  public int getpacket(byte[] packet) {
+    buffer.get(0, packet, 0, buffer.limit());
+    return buffer.limit();
+  }
+
+  @Override
+  public byte[] getpacket() {
+    byte[] packet = new byte[buffer.limit()];
+    getpacket(packet);
+    return packet;
+  }
+
+  @Override
+  public int gettimestamp() {
+    return buffer.getInt(4);
+  }
+
+  @Override
+  public int getsequencenumber() {
+    return buffer.getShort(2) & 0xFFFF;
+  }
+
+  @Override
+  public int getpayloadtype() {
+    return buffer.get(1) & 0x7F;
+  }
+
+  @Override
+  public int getmarker() {
+    return (buffer.get(1) >> 7) & 1;
+  }
+
+  @Override
+  public int getssrc() {
+    return buffer.getInt(8);
+  }
+
+  @Override
+  public void printheader() {
+    byte[] header = new byte[HEADER_SIZE];
+    buffer.get(0, header);
+    printheader(HEADER_SIZE - 4, header);
+  }
+
+  @Override
+  public void printpayload(int n) {
+    printheader(n, getpayload());
+  }
+}
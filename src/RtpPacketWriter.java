@@ -0,0 +1,128 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Serializes the RTP packets of one frame into byte buffers.
+ *
+ * The RTP header, the RFC 2435 headers and a slice of the JPEG data are
+ * written straight from the (cached) RFC 2435 payload of the frame into the
+ * send buffer; no intermediate packet or fragment arrays are created. The
+ * frame is split into fragments with increasing fragment offset, the
+ * quantization tables are only sent in the first fragment and the marker bit
+ * is set on the last one (RFC 2435, 3.).
+ */
+public class RtpPacketWriter {
+  private byte[] payload = null; // RFC 2435 payload of the current frame
+  private int mainHeaderLength; // main and restart header
+  private int firstHeaderLength; // including the quantization table header and tables
+  private int dataLength; // JPEG data after the headers
+  private int maxFragmentSize;
+  private int offset; // fragment offset of the next packet
+
+  /**
+   * Starts a new frame.
+   *
+   * @param rfcPayload RFC 2435 payload of the frame with offset 0, is not changed
+   * @param maxFragmentSize maximal RTP payload size of a packet in bytes
+   * @throws IllegalArgumentException if the headers do not fit into one packet
+   */
+  public void setFrame(byte[] rfcPayload, int maxFragmentSize) {
+    int type = rfcPayload[4] & 0xFF;
+    int q = rfcPayload[5] & 0xFF;
+    // restart header for the types 64-127
+    mainHeaderLength = 8 + (type >= 64 && type < 128 ? 4 : 0);
+    firstHeaderLength = mainHeaderLength;
+    if (q >= 128) {
+      firstHeaderLength += 4 + (((rfcPayload[mainHeaderLength + 2] & 0xFF) << 8)
+          | (rfcPayload[mainHeaderLength + 3] & 0xFF));
+    }
+    if (firstHeaderLength >= maxFragmentSize) {
+      throw new IllegalArgumentException("Fragment size too small: " + maxFragmentSize);
+    }
+    this.payload = rfcPayload;
+    this.maxFragmentSize = maxFragmentSize;
+    dataLength = rfcPayload.length - firstHeaderLength;
+    offset = 0;
+  }
+
+  /** @return true if packets of the current frame are left */
+  public boolean hasNext() {
+    return payload != null && (offset < dataLength || (offset == 0 && dataLength == 0));
+  }
+
+  /**
+   * Calculates the size of all packets of the current frame.
+   *
+   * @param packetOverhead bytes added to each RTP payload, e.g. the RTP header
+   * @return size of the packets still to be written in bytes
+   */
+  public int getRemainingBytes(int packetOverhead) {
+    if (!hasNext()) {
+      return 0;
+    }
+    int bytes = dataLength - offset;
+    int packets = 0;
+    int data = dataLength - offset;
+    if (offset == 0) {
+      // the first packet carries the tables
+      bytes += firstHeaderLength;
+      data -= Math.min(data, maxFragmentSize - firstHeaderLength);
+      packets++;
+    }
+    int dataPerPacket = maxFragmentSize - mainHeaderLength;
+    packets += (data + dataPerPacket - 1) / dataPerPacket;
+    bytes += (packets - (offset == 0 ? 1 : 0)) * mainHeaderLength;
+    return bytes + packets * packetOverhead;
+  }
+
+  /**
+   * Writes the next packet of the frame.
+   *
+   * @param dst buffer for the packet, cleared before and flipped after writing
+   * @param payloadType RTP payload type
+   * @param seqNb RTP sequence number
+   * @param timestamp RTP timestamp of the frame
+   * @param ssrc synchronization source
+   * @return true if this was the last packet of the frame
+   */
+  public boolean writeNext(ByteBuffer dst, int payloadType, int seqNb, int timestamp, int ssrc) {
+    int headerLength = offset == 0 ? firstHeaderLength : mainHeaderLength;
+    int length = Math.min(dataLength - offset, maxFragmentSize - headerLength);
+    boolean last = offset + length >= dataLength;
+
+    dst.clear();
+    writeRtpHeader(dst, last ? 1 : 0, payloadType, seqNb, timestamp, ssrc);
+    // main JPEG header with the fragment offset
+    dst.put(payload[0]);
+    dst.put((byte) (offset >> 16));
+    dst.put((byte) (offset >> 8));
+    dst.put((byte) offset);
+    dst.put(payload, 4, headerLength - 4);
+    dst.put(payload, firstHeaderLength + offset, length);
+    dst.flip();
+
+    offset += length;
+    if (last) {
+      payload = null; // no reference to the cached payload after the frame
+    }
+    return last;
+  }
+
+  /**
+   * Writes a fixed RTP header (RFC 3550, 5.1) without CSRC.
+   *
+   * @param dst buffer, the header is written at the current position
+   * @param marker marker bit, 0 or 1
+   * @param payloadType RTP payload type
+   * @param seqNb sequence number
+   * @param timestamp timestamp
+   * @param ssrc synchronization source
+   */
+  static void writeRtpHeader(
+      ByteBuffer dst, int marker, int payloadType, int seqNb, int timestamp, int ssrc) {
+    dst.put((byte) 0x80); // V=2, P=0, X=0, CC=0
+    dst.put((byte) (marker << 7 | payloadType & 0x7F));
+    dst.putShort((short) seqNb);
+    dst.putInt(timestamp);
+    dst.putInt(ssrc);
+  }
+}
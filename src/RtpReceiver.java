@@ -0,0 +1,240 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Receives the RTP packets of the client on its own thread.
+ *
+ * Every wakeup drains all datagrams pending in the socket buffer into pooled
+ * buffers and queues them without locks for the jitter buffer, which takes
+ * them with {@link #poll()} on the GUI thread. Reception therefore does not
+ * depend on the Swing timer. The datagrams dropped by the kernel because the
+ * socket buffer was full are read from {@code /proc/net/udp} (Linux only).
+ * For multicast delivery the receiver joins the group of the server. The
+ * arrival of each packet updates the {@link RtpSourceState} for RTCP.
+ */
+public class RtpReceiver implements Runnable {
+  static final int SOCKET_BUFFER_SIZE = 4 << 20; // requested SO_RCVBUF in bytes
+  static final long OVERFLOW_UPDATE_MS = 1000; // interval for reading the kernel counter
+
+  private final DatagramChannel channel;
+  private final Selector selector;
+  private final BufferPool pool;
+  private final ConcurrentLinkedQueue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+  private final LongAdder received = new LongAdder();
+  private final LongAdder wakeups = new LongAdder();
+  private final RtpSourceState sourceState = new RtpSourceState();
+  private volatile long overflows = -1; // -1 if the kernel counter is not available
+  private volatile boolean running = false;
+  private Thread thread = null;
+
+  /**
+   * Opens the RTP port.
+   *
+   * @param port local RTP port
+   * @param pool pool of the receive buffers
+   * @throws IOException if the port can not be opened
+   */
+  public RtpReceiver(int port, BufferPool pool) throws IOException {
+    this(port, null, null, pool);
+  }
+
+  /**
+   * Opens the port of a multicast group and joins the group.
+   *
+   * @param group multicast group and port of the RTP packets
+   * @param networkInterface interface for receiving, e.g. the one towards the server
+   * @param pool pool of the receive buffers
+   * @throws IOException if the port can not be opened or the group not be joined
+   */
+  public RtpReceiver(InetSocketAddress group, NetworkInterface networkInterface, BufferPool pool)
+      throws IOException {
+    this(group.getPort(), group, networkInterface, pool);
+  }
+
+  private RtpReceiver(
+      int port, InetSocketAddress group, NetworkInterface networkInterface, BufferPool pool)
+      throws IOException {
+    this.pool = pool;
+    channel = group == null ? DatagramChannel.open() : DatagramChannel.open(StandardProtocolFamily.INET);
+    try {
+      channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+      if (group != null) {
+        // several clients on one host receive the same group
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+      }
+      channel.bind(new InetSocketAddress(port));
+      if (group != null) {
+        channel.join(group.getAddress(), networkInterface);
+      }
+      channel.configureBlocking(false);
+      selector = Selector.open();
+      channel.register(selector, SelectionKey.OP_READ);
+    } catch (IOException ex) {
+      channel.close();
+      throw ex;
+    }
+  }
+
+  /** Starts the receive thread. */
+  public synchronized void start() {
+    if (thread == null) {
+      running = true;
+      thread = new Thread(this, "rtp-receiver");
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MAX_PRIORITY);
+      thread.start();
+    }
+  }
+
+  /** Stops the receive thread and closes the port. Queued packets are dropped. */
+  public synchronized void close() {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    running = false;
+    selector.wakeup();
+    try {
+      if (thread != null) {
+        thread.join(1000);
+      }
+      selector.close();
+      channel.close();
+    } catch (IOException | InterruptedException ex) {
+      logger.log(Level.WARNING, "RTP receiver not closed: " + ex);
+    }
+    for (ByteBuffer buffer = queue.poll(); buffer != null; buffer = queue.poll()) {
+      pool.release(buffer);
+    }
+  }
+
+  /**
+   * Takes the next received packet. The caller owns the buffer afterwards.
+   *
+   * @return packet from position 0 to limit, null if no packet is queued
+   */
+  public ByteBuffer poll() {
+    return queue.poll();
+  }
+
+  /** Receive loop, drains the socket at every wakeup. */
+  @Override
+  public void run() {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    long nextOverflowUpdate = 0;
+    try {
+      while (running) {
+        selector.select(OVERFLOW_UPDATE_MS);
+        selector.selectedKeys().clear();
+        wakeups.increment();
+        drain();
+
+        long now = System.currentTimeMillis();
+        if (now >= nextOverflowUpdate) {
+          overflows = readKernelDrops();
+          nextOverflowUpdate = now + OVERFLOW_UPDATE_MS;
+        }
+      }
+    } catch (ClosedChannelException ex) {
+      // closed
+    } catch (IOException ex) {
+      logger.log(Level.SEVERE, "RTP receiver stopped: " + ex);
+    }
+  }
+
+  /**
+   * Receives all pending datagrams.
+   *
+   * @throws IOException if the channel fails
+   */
+  private void drain() throws IOException {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    while (true) {
+      ByteBuffer buffer = pool.acquire();
+      if (channel.receive(buffer) == null) {
+        pool.release(buffer); // socket buffer empty
+        return;
+      }
+      if (!buffer.hasRemaining()) {
+        logger.log(Level.WARNING, "RTP packet truncated to " + buffer.capacity() + " bytes");
+      }
+      sourceState.update(buffer.flip(), System.nanoTime());
+      queue.offer(buffer);
+      received.increment();
+    }
+  }
+
+  /**
+   * Reads the number of datagrams dropped by the kernel for the local port.
+   *
+   * @return dropped datagrams, -1 if not available
+   */
+  private long readKernelDrops() {
+    int port;
+    try {
+      port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    } catch (IOException ex) {
+      return -1;
+    }
+    String localPort = String.format(":%04X", port);
+    long drops = -1;
+    for (String table : new String[] {"/proc/net/udp", "/proc/net/udp6"}) {
+      try {
+        List<String> lines = Files.readAllLines(Path.of(table));
+        for (String line : lines.subList(Math.min(1, lines.size()), lines.size())) {
+          String[] fields = line.trim().split("\\s+");
+          // sl local_address rem_address st ... drops
+          if (fields.length > 12 && fields[1].endsWith(localPort)) {
+            drops = Math.max(drops, 0) + Long.parseLong(fields[fields.length - 1]);
+          }
+        }
+      } catch (IOException | RuntimeException ex) {
+        // not Linux or no access
+      }
+    }
+    return drops;
+  }
+
+  /** @return reception state of the media stream for the RTCP receiver reports */
+  public RtpSourceState getSourceState() {
+    return sourceState;
+  }
+
+  /** @return number of received datagrams */
+  public long getReceivedCount() {
+    return received.sum();
+  }
+
+  /** @return number of wakeups of the receive thread */
+  public long getWakeupCount() {
+    return wakeups.sum();
+  }
+
+  /**
+   * @return datagrams dropped because the socket buffer was full, -1 if unknown
+   */
+  public long getOverflowCount() {
+    return overflows;
+  }
+
+  /** @return size of the socket receive buffer in bytes */
+  public int getSocketBufferSize() {
+    try {
+      return channel.getOption(StandardSocketOptions.SO_RCVBUF);
+    } catch (IOException ex) {
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,511 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Send path of one RTP stream: packetizes the frames, adds the FEC packets,
+ * paces the packets with a token bucket and simulates the channel errors.
+ *
+ * Used by a unicast {@link RtspSession} and by a {@link SharedStream}. All
+ * methods except the getters are called by the pacer thread of the stream.
+ * With packet pacing the packets of a frame are sent as the token bucket
+ * allows; the remaining packets are sent in intermediate runs of the pacer.
+ *
+ * A live channel sends each packet to all its {@link Viewer}s. The sequence
+ * number and SSRC of the packet are rewritten in place for each viewer, so
+ * the frame is packetized and protected with FEC only once.
+ *
+ * With RTP over RTSP the packets are framed with '$', channel and length
+ * (RFC 2326, 10.12) and collected into batches which are written to the RTSP
+ * connection with one gathering write. No packet loss is simulated for TCP.
+ *
+ * A unicast session also sends RTCP sender reports (RFC 3550, 6.4.1) at the
+ * start of a frame once the report interval has passed. Its sent media
+ * packets are kept in a {@link PacketHistory}, from which the packets
+ * requested by NACKs are sent again by the I/O thread.
+ */
+public class RtpSender {
+  static final double SPREAD_FRACTION = 0.8; // part of the frame interval used for the packets
+  static final int INTERLEAVED_HEADER_SIZE = 4; // '$', channel, length
+  static final int MAX_BATCH = 16; // interleaved packets per gathering write
+
+  private final SessionManager manager;
+  private final RtpHandler rtpHandler;
+  private final DatagramChannel channel;
+  private BufferPool sendBufferPool; // direct buffers for the packets, taken at SETUP
+  private InetSocketAddress rtpDestination; // created at SETUP, not per packet
+  private InetSocketAddress fecDestination;
+
+  // RTP over RTSP, set at SETUP
+  private RtspConnection interleavedConnection = null;
+  private int interleavedChannel;
+  private BufferPool interleavedPool; // buffers of the packet size plus the framing
+  private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+  private int batchSize = 0;
+
+  // RTCP sender reports, set at SETUP
+  private DatagramChannel rtcpChannel = null;
+  private InetSocketAddress rtcpDestination;
+  private String cname;
+  private final ByteBuffer reportBuffer = ByteBuffer.allocate(RtcpPacket.MAX_SIZE);
+  private long nextReportNanos = 0;
+  private volatile int packetCount = 0; // sent media packets, wraps like the SR field
+  private int octetCount = 0; // sent media payload octets
+  private volatile PacketHistory history = null; // unicast over UDP with RTCP
+  private ByteBuffer retransmitBuffer = null; // used by the I/O thread
+
+  private final TokenBucket tokenBucket = new TokenBucket();
+  private byte[] pendingFec = null; // FEC packet waiting for tokens
+  private FramePacer.PacedTask frameTask = null; // task which started the current frame
+  private volatile int frameNb = 0; // number of started frames
+
+  // Channel errors
+  private final Random random = new Random(123456); // fixed seed for debugging
+  private volatile int dropCounter; // Nr. of dropped media packets
+  private final List<Viewer> viewers = new CopyOnWriteArrayList<>();
+
+  /** Unicast receiver of a shared stream with its own sequence numbers and SSRC. */
+  public static class Viewer {
+    private final InetSocketAddress rtpDestination;
+    private final InetSocketAddress fecDestination;
+    private final int ssrc;
+    private final int seqOffset; // added to the sequence numbers of the stream
+    private volatile int dropCounter;
+
+    /**
+     * Creates a viewer with a random SSRC and random sequence numbers (RFC 3550, 5.1).
+     *
+     * @param rtpDestination address for the RTP packets
+     * @param fecDestination address for the FEC packets
+     */
+    public Viewer(InetSocketAddress rtpDestination, InetSocketAddress fecDestination) {
+      this.rtpDestination = rtpDestination;
+      this.fecDestination = fecDestination;
+      ssrc = ThreadLocalRandom.current().nextInt();
+      seqOffset = ThreadLocalRandom.current().nextInt(1 << 16);
+    }
+
+    /** @return SSRC of the packets sent to the viewer */
+    public int getSsrc() {
+      return ssrc;
+    }
+
+    /** @return number of media packets dropped by the simulated channel errors */
+    public int getDropCounter() {
+      return dropCounter;
+    }
+  }
+
+  /**
+   * @param manager source of the settings and the frame cache
+   * @param rtpHandler packetizer of the stream
+   * @param channel channel for sending the packets
+   */
+  public RtpSender(SessionManager manager, RtpHandler rtpHandler, DatagramChannel channel) {
+    this.manager = manager;
+    this.rtpHandler = rtpHandler;
+    this.channel = channel;
+  }
+
+  /**
+   * Sets the destination and the send buffers, the MTU follows from the buffers.
+   *
+   * @param rtpDestination address for the RTP packets, null to send to the viewers only
+   * @param fecDestination address for the FEC packets, null to send to the viewers only
+   * @param sendBufferPool buffers of the MTU size
+   */
+  public void setDestination(
+      InetSocketAddress rtpDestination, InetSocketAddress fecDestination, BufferPool sendBufferPool) {
+    this.rtpDestination = rtpDestination;
+    this.fecDestination = fecDestination;
+    this.sendBufferPool = sendBufferPool;
+    interleavedConnection = null;
+    rtpHandler.setMtu(sendBufferPool.getBufferSize() + RtpHandler.IP_UDP_HEADER_SIZE);
+  }
+
+  /**
+   * Sends the RTP and FEC packets over the RTSP connection instead of UDP.
+   * The packets keep the size of the UDP packets.
+   *
+   * @param connection RTSP connection of the client
+   * @param channel interleaved channel of the RTP packets
+   * @param sendBufferPool buffers of the MTU size
+   */
+  public void setInterleaved(RtspConnection connection, int channel, BufferPool sendBufferPool) {
+    setDestination(null, null, sendBufferPool);
+    int size = sendBufferPool.getBufferSize() + INTERLEAVED_HEADER_SIZE;
+    if (interleavedPool == null || interleavedPool.getBufferSize() != size) {
+      interleavedPool = new BufferPool(size, 4 * MAX_BATCH);
+    }
+    interleavedConnection = connection;
+    interleavedChannel = channel;
+  }
+
+  /**
+   * Sets the destination of the RTCP sender reports.
+   *
+   * @param channel channel for sending, null for no reports
+   * @param destination RTCP address of the client
+   * @param cname canonical name of the server (RFC 3550, 6.5.1)
+   */
+  public void setRtcp(DatagramChannel channel, InetSocketAddress destination, String cname) {
+    rtcpChannel = channel;
+    rtcpDestination = destination;
+    this.cname = cname;
+    PacketHistory current = history;
+    if (channel == null || rtpDestination == null) {
+      history = null;
+    } else if (current == null || current.getSlotSize() != sendBufferPool.getBufferSize()) {
+      history = new PacketHistory(sendBufferPool.getBufferSize());
+    }
+  }
+
+  /** @return history of the sent packets for retransmissions, null if there is none */
+  public PacketHistory getHistory() {
+    return history;
+  }
+
+  /**
+   * Sends a media packet again which was requested by a NACK of the client.
+   * Called by the I/O thread of the RTSP connection.
+   *
+   * @param seqNr sequence number of the packet
+   * @param roundTripMillis round trip time to the client, negative if unknown
+   * @return true if the packet was sent again
+   */
+  public boolean retransmit(int seqNr, double roundTripMillis) {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    PacketHistory packets = history;
+    if (packets == null) {
+      return false;
+    }
+    if (retransmitBuffer == null || retransmitBuffer.capacity() < packets.getSlotSize()) {
+      retransmitBuffer = ByteBuffer.allocate(packets.getSlotSize());
+    }
+    if (!packets.retransmit(seqNr, roundTripMillis, System.nanoTime(), retransmitBuffer)) {
+      return false;
+    }
+    try {
+      // the simulated channel errors apply to retransmissions as well
+      if (random.nextDouble() > manager.getLossRate()) {
+        channel.send(retransmitBuffer, rtpDestination);
+      }
+    } catch (IOException ex) {
+      logger.log(Level.FINE, "Retransmission not sent: " + ex);
+      return false;
+    }
+    return true;
+  }
+
+  /** @return number of media packets dropped by the simulated channel errors */
+  public int getDropCounter() {
+    return dropCounter;
+  }
+
+  /** @return mean number of media packets per frame, 1 before the first frame */
+  public double getMeanPacketsPerFrame() {
+    int frames = frameNb;
+    return frames == 0 ? 1.0 : (double) packetCount / frames;
+  }
+
+  /**
+   * Adds a viewer; it gets the packets from the next packet on.
+   *
+   * @param viewer the viewer
+   */
+  public void addViewer(Viewer viewer) {
+    viewers.add(viewer);
+  }
+
+  /**
+   * Removes a viewer.
+   *
+   * @param viewer the viewer
+   */
+  public void removeViewer(Viewer viewer) {
+    viewers.remove(viewer);
+  }
+
+  /**
+   * Checks whether a new frame can be started at a frame run of the pacer.
+   *
+   * If the previous frame is still being sent, the rest is sent at once if
+   * the packets are spread over the frame interval; with a fixed bitrate the
+   * new frame has to be skipped instead.
+   *
+   * @param task the pacer task of the stream
+   * @return false if the new frame has to be skipped
+   * @throws IOException if a packet can not be sent
+   */
+  public boolean prepareFrame(FramePacer.PacedTask task) throws IOException {
+    if (isFramePending(task) && manager.getPacketPacing() != FramePacer.PacketPacing.BITRATE) {
+      // the frame has to be sent within its interval
+      tokenBucket.setRate(0.0, 0.0, System.nanoTime());
+      sendPackets(task);
+    }
+    return !isFramePending(task);
+  }
+
+  /**
+   * @param task the pacer task of the stream
+   * @return true if packets of a frame started by this task are left
+   */
+  public boolean isFramePending(FramePacer.PacedTask task) {
+    // the rest of a frame of a previous PLAY is not sent
+    return frameTask == task && (rtpHandler.hasNextPacket() || pendingFec != null);
+  }
+
+  /**
+   * Starts a frame, its packets are sent by {@link #sendPackets(FramePacer.PacedTask)}.
+   *
+   * @param task the pacer task of the stream
+   * @param payload RFC 2435 payload of the frame
+   * @param timestamp RTP timestamp of the frame at 90 kHz
+   */
+  public void startFrame(FramePacer.PacedTask task, byte[] payload, int timestamp) {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    if (logger.isLoggable(Level.FINE)) {
+      logger.log(Level.FINE, "Payload size: " + payload.length);
+    }
+    rtpHandler.startFrame(payload, timestamp);
+    frameTask = task;
+    frameNb++;
+    long now = System.nanoTime();
+    setPacingRate(task.getFramerate(), now);
+    if (rtcpChannel != null && now - nextReportNanos >= 0) {
+      sendSenderReport(timestamp);
+      // randomized interval, 0.5 to 1.5 times the report interval (RFC 3550, 6.3.1)
+      double factor = 0.5 + ThreadLocalRandom.current().nextDouble();
+      nextReportNanos = now + (long) (factor * RtcpPacket.REPORT_INTERVAL_MS * 1_000_000L);
+    }
+  }
+
+  /**
+   * Sends a sender report, the RTP timestamp is the one of the frame which starts now.
+   *
+   * @param timestamp RTP timestamp of the current frame
+   */
+  private void sendSenderReport(int timestamp) {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    long ntpTime = RtcpPacket.ntpTime(System.currentTimeMillis());
+    RtcpPacket.writeSenderReport(reportBuffer.clear(), rtpHandler.getSsrc(), ntpTime, timestamp,
+        packetCount, octetCount, cname);
+    try {
+      rtcpChannel.send(reportBuffer.flip(), rtcpDestination);
+    } catch (IOException ex) {
+      logger.log(Level.FINE, "Sender report not sent: " + ex);
+    }
+  }
+
+  /**
+   * Sends the packets of the current frame until the token bucket is empty.
+   *
+   * @param task the pacer task, gets the time of the next run if packets are left
+   * @throws IOException if a packet can not be sent
+   */
+  public void sendPackets(FramePacer.PacedTask task) throws IOException {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    if (!isFramePending(task)) {
+      return;
+    }
+    // one buffer for all packets of the run, each is sent before the next is written
+    ByteBuffer buffer = sendBufferPool.acquire();
+    try {
+      long now = System.nanoTime();
+      while (rtpHandler.hasNextPacket() || pendingFec != null) {
+        long delay = tokenBucket.delay(now);
+        if (delay > 0) {
+          task.runAgainAt(now + delay);
+          return;
+        }
+        if (pendingFec != null) {
+          // send to the FEC dest_port
+          buffer.clear();
+          buffer.put(pendingFec).flip();
+          pendingFec = rtpHandler.createFecPacket(); // further repair packets of the group
+          tokenBucket.consume(buffer.remaining(), now);
+          sendPacket(buffer, true);
+        } else {
+          rtpHandler.writeNextPacket(buffer);
+          if (history != null) {
+            history.store(buffer, now);
+          }
+          packetCount++;
+          octetCount += buffer.remaining() - RTPpacket.HEADER_SIZE;
+          tokenBucket.consume(buffer.remaining(), now);
+          sendPacket(buffer, false);
+
+          if (rtpHandler.isFecPacketAvailable()) {
+            logger.log(Level.FINE, "FEC-Encoder ready...");
+            pendingFec = rtpHandler.createFecPacket();
+          }
+        }
+        task.getStatistic().recordPacket(now);
+        now = System.nanoTime();
+      }
+    } finally {
+      sendBufferPool.release(buffer);
+      flushBatch();
+    }
+  }
+
+  /**
+   * Sets the token bucket for a new frame from the pacing settings.
+   *
+   * @param framerate frames per second
+   * @param now current time of {@link System#nanoTime()}
+   */
+  private void setPacingRate(int framerate, long now) {
+    double bytesPerSecond;
+    switch (manager.getPacketPacing()) {
+      case SPREAD:
+        bytesPerSecond = rtpHandler.getRemainingFrameBytes() * framerate / SPREAD_FRACTION;
+        break;
+      case BITRATE:
+        bytesPerSecond = manager.getPacingBitrate() / 8.0;
+        break;
+      default:
+        bytesPerSecond = 0.0; // no limit
+        break;
+    }
+    // the pacer runs the stream at most once per tick, a late run may catch up one tick
+    double depth = Math.max(sendBufferPool.getBufferSize(),
+        2 * bytesPerSecond * FramePacer.TICK_NANOS / 1e9);
+    tokenBucket.setRate(bytesPerSecond, depth, now);
+  }
+
+  /**
+   * Gets the RFC 2435 payload of a frame, from the shared cache if possible.
+   *
+   * @param video reader of the video
+   * @param videoKey identifies the video in the shared frame cache
+   * @param index frame index, starting with 0
+   * @return the payload or null at the end of the video
+   * @throws IOException if the video can not be read
+   */
+  public byte[] readPayload(VideoReader video, FrameCache.VideoKey videoKey, int index)
+      throws IOException {
+    FrameCache cache = manager.getFrameCache();
+    boolean shareable = rtpHandler.isPayloadShareable();
+    if (shareable) {
+      byte[] payload = cache.get(videoKey, index);
+      if (payload != null) {
+        return payload;
+      }
+    }
+
+    // the reader lags behind after cache hits
+    if (video.getNextImageIndex() != index && !video.seek(index)) {
+      return null;
+    }
+    byte[] frame = video.readNextImage();
+    if (frame == null) {
+      return null;
+    }
+    byte[] payload = rtpHandler.jpegToPayload(frame);
+    if (shareable) {
+      cache.put(videoKey, index, payload);
+    }
+    return payload;
+  }
+
+  /**
+   * Sends a packet to the destination and to all viewers.
+   *
+   * @param packet packet to send, from position to limit; rewritten for the viewers
+   * @param fec true for FEC packets
+   * @throws IOException if the packet can not be sent
+   */
+  private void sendPacket(ByteBuffer packet, boolean fec) throws IOException {
+    if (interleavedConnection != null) {
+      addToBatch(packet); // the FEC packets are sent on the RTP channel like with UDP
+      return;
+    }
+    if (rtpDestination != null) {
+      sendPacketWithError(packet, fec ? fecDestination : rtpDestination, fec); // Send with packet loss
+    }
+    if (viewers.isEmpty()) {
+      return;
+    }
+    int start = packet.position();
+    int seqNb = packet.getShort(start + 2);
+    // the SN base of the FEC header refers to the sequence numbers of the media packets
+    int snBase = fec ? packet.getShort(start + RTPpacket.HEADER_SIZE + 2) : 0;
+    for (Viewer viewer : viewers) {
+      packet.putShort(start + 2, (short) (seqNb + viewer.seqOffset));
+      packet.putInt(start + 8, viewer.ssrc);
+      if (fec) {
+        packet.putShort(start + RTPpacket.HEADER_SIZE + 2, (short) (snBase + viewer.seqOffset));
+      }
+      if (random.nextDouble() > manager.getLossRate()) {
+        channel.send(packet, fec ? viewer.fecDestination : viewer.rtpDestination);
+        packet.position(start);
+      } else if (!fec) {
+        viewer.dropCounter++;
+      }
+    }
+  }
+
+  /**
+   * Copies a packet with the interleaved framing into the batch.
+   *
+   * @param packet packet to send, from position to limit
+   */
+  private void addToBatch(ByteBuffer packet) {
+    int start = packet.position();
+    ByteBuffer framed = interleavedPool.acquire();
+    framed.put((byte) '$').put((byte) interleavedChannel).putShort((short) packet.remaining());
+    framed.put(packet).flip();
+    packet.position(start);
+    batch[batchSize++] = framed;
+    if (batchSize == batch.length) {
+      flushBatch();
+    }
+  }
+
+  /** Writes the collected interleaved packets to the RTSP connection. */
+  private void flushBatch() {
+    if (batchSize == 0) {
+      return;
+    }
+    if (!interleavedConnection.sendInterleaved(batch, batchSize, interleavedPool)) {
+      dropCounter += batchSize; // client too slow, counted like lost packets
+    }
+    Arrays.fill(batch, 0, batchSize, null);
+    batchSize = 0;
+  }
+
+  /**
+   * @param packet packet to send, from position to limit
+   * @param destination address of the client or group
+   * @param fec true for FEC packets
+   * @throws IOException if the packet can not be sent
+   */
+  private void sendPacketWithError(ByteBuffer packet, InetSocketAddress destination, boolean fec)
+      throws IOException {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    String label;
+    if (fec) label = " fec ";
+    else label = " media ";
+    // TASK correct the if-instruction to work properly
+    if (random.nextDouble() > manager.getLossRate()) {
+      if (logger.isLoggable(Level.FINE)) {
+        logger.log(Level.FINE, "Send frame: " + frameNb + label);
+      }
+      channel.send(packet, destination);
+    } else {
+      if (logger.isLoggable(Level.FINE)) {
+        logger.log(Level.FINE, "Dropped frame: " + frameNb + label);
+      }
+      if (!fec) dropCounter++;
+    }
+  }
+}
@@ -0,0 +1,263 @@
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reception state of the media stream of the server on the client, as
+ * needed for the RTCP receiver reports.
+ *
+ * Sequence number tracking, loss and interarrival jitter follow RFC 3550,
+ * A.1, A.3 and A.8. The state is updated by the receive thread with the
+ * arrival time of each packet, so the jitter does not include the delay of
+ * the GUI timer. Only JPEG packets are counted, the FEC packets have their
+ * own sequence numbers.
+ *
+ * A gap in the sequence numbers is noted at once for a generic NACK
+ * (RFC 4585). A lost packet is requested again after a retry interval, at
+ * most {@link #MAX_NACKS} times, and no longer once the playout has passed
+ * it, because a retransmission would come too late.
+ */
+public class RtpSourceState {
+  static final int MAX_DROPOUT = 3000;
+  static final int MAX_MISORDER = 100;
+  static final int SEQ_MOD = 1 << 16;
+  static final int MAX_MISSING = 512; // tracked lost packets
+  static final int MAX_NACKS = 3; // requests per lost packet
+  static final long NACK_RETRY_NANOS = 40_000_000L; // a round trip and the reaction of the server
+
+  private boolean initialized = false;
+  private int ssrc;
+  private int maxSeq; // highest sequence number seen
+  private int cycles; // shifted count of sequence number cycles
+  private int baseSeq;
+  private int badSeq = SEQ_MOD + 1; // last 'bad' sequence number + 1
+  private long received = 0;
+  private long expectedPrior = 0; // at the last report
+  private long receivedPrior = 0;
+  private long lastTransit;
+  private double jitter = 0.0; // in timestamp units
+  private int lastSr = 0; // middle 32 bits of the NTP time of the last SR
+  private long lastSrArrivalNanos;
+
+  // lost packets for NACKs, in the order of their sequence numbers
+  private final Map<Integer, Nack> missing = new LinkedHashMap<>();
+  private volatile int playoutSeq = -1; // last played sequence number, -1 before the playout
+  private Runnable gapListener = null;
+  private long requestedPackets = 0;
+  private long recoveredPackets = 0;
+
+  /** Request state of a lost packet. */
+  private static class Nack {
+    int requests = 0;
+    long nextNanos; // time of the next request
+  }
+
+  /**
+   * Counts a received packet.
+   *
+   * @param packet received RTP packet from position 0, not changed
+   * @param arrivalNanos arrival time of {@link System#nanoTime()}
+   */
+  public synchronized void update(ByteBuffer packet, long arrivalNanos) {
+    if (packet.limit() < RTPpacket.HEADER_SIZE
+        || (packet.get(1) & 0x7F) != RtpHandler.RTP_PAYLOAD_JPEG) {
+      return;
+    }
+    int seq = packet.getShort(2) & 0xFFFF;
+    int timestamp = packet.getInt(4);
+    if (!initialized) {
+      initialized = true;
+      ssrc = packet.getInt(8);
+      init(seq);
+      maxSeq = seq - 1;
+    }
+    Nack nack = missing.remove(seq);
+    if (nack != null && nack.requests > 0) {
+      // a retransmission may be older than MAX_MISORDER, it must not restart the sequence
+      received++;
+      recoveredPackets++;
+      return; // nor does it tell anything about the jitter
+    }
+    int previousMax = maxSeq;
+    if (!updateSeq(seq)) {
+      return;
+    }
+    received++;
+
+    int gap = (seq - previousMax - 1) & 0xFFFF;
+    if (seq == maxSeq && gap > 0 && gap < MAX_DROPOUT) {
+      int count = Math.min(gap, MAX_MISSING); // the latest are the most useful
+      noteMissing(seq - count, count, arrivalNanos);
+    }
+
+    // interarrival jitter in timestamp units (A.8)
+    long arrival = arrivalNanos * MjpegIndex.RTP_CLOCK_RATE / 1_000_000_000L;
+    long transit = arrival - (timestamp & 0xFFFFFFFFL);
+    if (received > 1) {
+      long d = Math.abs(transit - lastTransit);
+      jitter += (d - jitter) / 16.0;
+    }
+    lastTransit = transit;
+  }
+
+  private void noteMissing(int firstSeq, int count, long nowNanos) {
+    for (int i = 0; i < count; i++) {
+      Nack nack = new Nack();
+      nack.nextNanos = nowNanos;
+      missing.put((firstSeq + i) & 0xFFFF, nack);
+    }
+    // the oldest entries are the first to be removed
+    Iterator<Integer> it = missing.keySet().iterator();
+    while (missing.size() > MAX_MISSING) {
+      it.next();
+      it.remove();
+    }
+    if (gapListener != null) {
+      gapListener.run();
+    }
+  }
+
+  /**
+   * Collects the lost packets to be requested now and schedules their next
+   * request. Packets which were requested often enough or whose playout has
+   * passed are no longer tracked.
+   *
+   * @param nowNanos current time of {@link System#nanoTime()}
+   * @param seqNrs receives the sequence numbers, ascending
+   * @return number of sequence numbers
+   */
+  public synchronized int collectNacks(long nowNanos, int[] seqNrs) {
+    int count = 0;
+    int playout = playoutSeq;
+    Iterator<Map.Entry<Integer, Nack>> it = missing.entrySet().iterator();
+    while (it.hasNext() && count < seqNrs.length) {
+      Map.Entry<Integer, Nack> entry = it.next();
+      Nack nack = entry.getValue();
+      int ahead = (entry.getKey() - playout) & 0xFFFF;
+      if (nack.requests >= MAX_NACKS || (playout >= 0 && (ahead == 0 || ahead >= SEQ_MOD / 2))) {
+        it.remove();
+      } else if (nowNanos - nack.nextNanos >= 0) {
+        seqNrs[count++] = entry.getKey();
+        nack.requests++;
+        nack.nextNanos = nowNanos + NACK_RETRY_NANOS;
+        requestedPackets++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Sets the playout position, lost packets up to it are no longer requested.
+   *
+   * @param seq sequence number of the last played packet
+   */
+  public void setPlayoutSeq(int seq) {
+    playoutSeq = seq & 0xFFFF;
+  }
+
+  /**
+   * Sets the action for a new gap in the sequence numbers, e.g. waking up
+   * the thread which sends the NACKs. It is called by the receive thread.
+   *
+   * @param listener the action, null for none
+   */
+  public synchronized void setGapListener(Runnable listener) {
+    gapListener = listener;
+  }
+
+  private void init(int seq) {
+    baseSeq = seq;
+    maxSeq = seq;
+    badSeq = SEQ_MOD + 1;
+    cycles = 0;
+    received = 0;
+    receivedPrior = 0;
+    expectedPrior = 0;
+    missing.clear();
+  }
+
+  /** @return false if the packet is not counted (A.1 without probation) */
+  private boolean updateSeq(int seq) {
+    int delta = (seq - maxSeq) & 0xFFFF;
+    if (delta < MAX_DROPOUT) {
+      // in order, with permissible gap
+      if (seq < maxSeq) {
+        cycles += SEQ_MOD; // wrapped
+      }
+      maxSeq = seq;
+    } else if (delta <= SEQ_MOD - MAX_MISORDER) {
+      // large jump: accepted after two sequential packets, e.g. after a restart of the sender
+      if (seq == badSeq) {
+        init(seq);
+      } else {
+        badSeq = (seq + 1) & 0xFFFF;
+        return false;
+      }
+    }
+    // else duplicate or reordered packet
+    return true;
+  }
+
+  /**
+   * Notes the arrival of a sender report for the LSR and DLSR fields.
+   *
+   * @param ntpTime NTP timestamp of the report
+   * @param arrivalNanos arrival time of {@link System#nanoTime()}
+   */
+  public synchronized void senderReportReceived(long ntpTime, long arrivalNanos) {
+    lastSr = RtcpPacket.middle32(ntpTime);
+    lastSrArrivalNanos = arrivalNanos;
+  }
+
+  /**
+   * Creates the report block for the next receiver report and starts a new
+   * interval for the fraction lost.
+   *
+   * @param nowNanos current time of {@link System#nanoTime()}
+   * @return the report block, null if no packet was received yet
+   */
+  public synchronized RtcpPacket.ReportBlock createReportBlock(long nowNanos) {
+    if (!initialized) {
+      return null;
+    }
+    long extendedMax = (long) cycles + maxSeq;
+    long expected = extendedMax - baseSeq + 1;
+    long lost = expected - received;
+    // clamped to the 24 bit field
+    int cumulativeLost = (int) Math.max(-0x800000, Math.min(0x7FFFFF, lost));
+
+    long expectedInterval = expected - expectedPrior;
+    long receivedInterval = received - receivedPrior;
+    expectedPrior = expected;
+    receivedPrior = received;
+    long lostInterval = expectedInterval - receivedInterval;
+    int fraction = expectedInterval == 0 || lostInterval <= 0
+        ? 0 : (int) ((lostInterval << 8) / expectedInterval);
+
+    int delaySinceLastSr = lastSr == 0
+        ? 0 : (int) ((nowNanos - lastSrArrivalNanos) * 65536 / 1_000_000_000L);
+    return new RtcpPacket.ReportBlock(ssrc, Math.min(fraction, 255), cumulativeLost,
+        (int) extendedMax, (int) jitter, lastSr, delaySinceLastSr);
+  }
+
+  /** @return SSRC of the media stream, 0 before the first packet */
+  public synchronized int getSsrc() {
+    return ssrc;
+  }
+
+  /** @return number of NACK requests for lost packets, repetitions included */
+  public synchronized long getRequestedPackets() {
+    return requestedPackets;
+  }
+
+  /** @return number of requested packets which arrived afterwards */
+  public synchronized long getRecoveredPackets() {
+    return recoveredPackets;
+  }
+
+  /** @return interarrival jitter in ms */
+  public synchronized double getJitterMillis() {
+    return jitter * 1000.0 / MjpegIndex.RTP_CLOCK_RATE;
+  }
+}
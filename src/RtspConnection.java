@@ -0,0 +1,292 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking RTSP connection of one client.
+ *
+ * Reading and parsing is done by the I/O thread of the {@link RtspServer}.
+ * Complete requests are passed to the {@link RtspSession}. Responses may be
+ * sent from any thread; data which can not be written immediately is queued
+ * and written by the I/O thread as soon as the socket is writable.
+ *
+ * With RTP over RTSP (RFC 2326, 10.12) the interleaved packets are sent as
+ * batches: all buffers of a batch and of the queue are passed to one gathering
+ * write. If the client does not read fast enough, whole batches are dropped
+ * instead of queuing without limit.
+ */
+public class RtspConnection {
+  static final int MAX_QUEUED_BYTES = 1 << 20; // interleaved data is dropped above this backlog
+  static final int MAX_GATHER = 64; // buffers per gathering write
+
+  private final SocketChannel channel;
+  private final RtspServer.IoLoop loop;
+  private final RtspRequestParser parser = new RtspRequestParser();
+  private final ArrayDeque<Chunk> writeQueue = new ArrayDeque<>();
+  private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER]; // guarded by writeQueue
+  private int queuedBytes = 0; // guarded by writeQueue
+  private SelectionKey key;
+  private RtspSession session;
+  private volatile boolean closed = false;
+  private boolean closeAfterWrite = false;
+  private volatile boolean readShutdown = false; // no more requests after a protocol error
+
+  /** Queued data, returned to its pool when written. */
+  private record Chunk(ByteBuffer data, int size, BufferPool pool) {}
+
+  RtspConnection(SocketChannel channel, RtspServer.IoLoop loop) {
+    this.channel = channel;
+    this.loop = loop;
+  }
+
+  void register(SelectionKey key, RtspSession session) {
+    this.key = key;
+    this.session = session;
+  }
+
+  /** @return IP address of the client */
+  public InetAddress getRemoteAddress() {
+    try {
+      return ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+    } catch (IOException ex) {
+      return null;
+    }
+  }
+
+  /** @return local IP address of the server on this connection */
+  public InetAddress getLocalAddress() {
+    try {
+      return ((InetSocketAddress) channel.getLocalAddress()).getAddress();
+    } catch (IOException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * Lets the I/O thread of the connection receive the datagrams of a channel,
+   * e.g. the RTCP channel of the session.
+   *
+   * @param datagramChannel the channel, is switched to non-blocking mode
+   * @param handler receiver of the datagrams
+   */
+  public void register(DatagramChannel datagramChannel, RtspServer.IoLoop.DatagramHandler handler) {
+    loop.register(datagramChannel, handler);
+  }
+
+  /** @return true if the connection was closed */
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Reads the available data and passes complete requests to the session.
+   * Called by the I/O thread only.
+   */
+  void read(ByteBuffer readBuffer) {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    if (readShutdown) {
+      return;
+    }
+    List<RtspRequest> requests = new ArrayList<>(1);
+    try {
+      int n;
+      while ((n = channel.read(readBuffer.clear())) > 0) {
+        try {
+          parser.parse(readBuffer.flip(), requests);
+        } catch (ProtocolException ex) {
+          // the session answers the valid requests before, then the connection is closed
+          requests.add(RtspRequest.invalid(ex.getMessage()));
+          synchronized (writeQueue) {
+            readShutdown = true;
+            key.interestOps(writeQueue.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+          }
+          break;
+        }
+        if (n < readBuffer.capacity()) {
+          break; // nothing more available
+        }
+      }
+      for (RtspRequest request : requests) {
+        session.submit(request);
+      }
+      if (n < 0) {
+        close(); // closed by client
+      }
+    } catch (IOException ex) {
+      logger.log(Level.FINE, "Session " + session.getSessionId() + ": " + ex);
+      close();
+    }
+  }
+
+  /**
+   * Sends a text message, e.g. an RTSP response.
+   *
+   * @param message the message including all line breaks
+   */
+  public void send(String message) {
+    send(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  /**
+   * Sends data over the connection. Can be called from any thread.
+   *
+   * @param data data to send, must not be changed afterwards
+   */
+  public void send(ByteBuffer data) {
+    synchronized (writeQueue) {
+      if (closed) {
+        return;
+      }
+      try {
+        if (writeQueue.isEmpty()) {
+          channel.write(data);
+        }
+        if (data.hasRemaining()) {
+          enqueue(data, null);
+        }
+      } catch (IOException ex) {
+        closeLater();
+      }
+    }
+  }
+
+  /**
+   * Sends a batch of interleaved packets with one gathering write. Can be
+   * called from any thread. The buffers belong to the connection afterwards
+   * and are returned to the pool when written or dropped.
+   *
+   * @param packets framed packets, each from position to limit
+   * @param count number of packets in the array
+   * @param pool pool of the buffers
+   * @return false if the batch was dropped because the connection is closed or congested
+   */
+  public boolean sendInterleaved(ByteBuffer[] packets, int count, BufferPool pool) {
+    synchronized (writeQueue) {
+      int first = 0;
+      try {
+        if (closed || queuedBytes > MAX_QUEUED_BYTES) {
+          return false; // a whole batch keeps the framing intact
+        }
+        if (writeQueue.isEmpty()) {
+          channel.write(packets, 0, count);
+          while (first < count && !packets[first].hasRemaining()) {
+            pool.release(packets[first++]);
+          }
+        }
+        for (int i = first; i < count; i++) {
+          enqueue(packets[i], pool);
+        }
+        first = count;
+        return true;
+      } catch (IOException ex) {
+        closeLater();
+        return false;
+      } finally {
+        for (int i = first; i < count; i++) {
+          pool.release(packets[i]);
+        }
+      }
+    }
+  }
+
+  private void enqueue(ByteBuffer data, BufferPool pool) {
+    writeQueue.add(new Chunk(data, data.remaining(), pool));
+    queuedBytes += data.remaining();
+    loop.setInterest(key, readInterest() | SelectionKey.OP_WRITE);
+  }
+
+  /** @return OP_READ unless reading was stopped after a protocol error */
+  private int readInterest() {
+    return readShutdown ? 0 : SelectionKey.OP_READ;
+  }
+
+  /** Writes queued data. Called by the I/O thread only. */
+  void write() {
+    synchronized (writeQueue) {
+      try {
+        while (!writeQueue.isEmpty()) {
+          int n = 0;
+          for (Chunk chunk : writeQueue) {
+            gather[n++] = chunk.data();
+            if (n == gather.length) {
+              break;
+            }
+          }
+          channel.write(gather, 0, n);
+          int written = 0;
+          while (written < n && !writeQueue.peek().data().hasRemaining()) {
+            release(writeQueue.poll());
+            written++;
+          }
+          if (written < n) {
+            return; // socket buffer full
+          }
+        }
+        if (closeAfterWrite) {
+          close();
+          return;
+        }
+        key.interestOps(readInterest());
+      } catch (IOException ex) {
+        close();
+      }
+    }
+  }
+
+  private void release(Chunk chunk) {
+    queuedBytes -= chunk.size();
+    if (chunk.pool() != null) {
+      chunk.pool().release(chunk.data());
+    }
+  }
+
+  /** Closes the connection after all queued data was written. */
+  public void shutdown() {
+    synchronized (writeQueue) {
+      if (writeQueue.isEmpty()) {
+        closeLater();
+      } else {
+        closeAfterWrite = true;
+      }
+    }
+  }
+
+  private void closeLater() {
+    loop.execute(this::close);
+  }
+
+  /** Closes the connection and the session. */
+  public void close() {
+    synchronized (writeQueue) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      while (!writeQueue.isEmpty()) {
+        release(writeQueue.poll());
+      }
+    }
+    if (key != null) {
+      key.cancel();
+    }
+    try {
+      channel.close();
+    } catch (IOException ignored) {
+      // nothing left to do
+    }
+    if (session != null) {
+      session.close();
+    }
+  }
+}
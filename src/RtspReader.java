@@ -0,0 +1,179 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads the RTSP connection of the client on its own thread.
+ *
+ * With RTP over RTSP (RFC 2326, 10.12) the server sends the RTP packets on
+ * the RTSP connection, framed with '$', channel and length. The reader
+ * separates them from the RTSP responses: packets of the RTP channel are
+ * queued in pooled buffers like those of the {@link RtpReceiver}, responses
+ * are queued as text for {@link #takeResponse()}. The connection is read
+ * continuously, so the server is not blocked while the GUI waits for the
+ * next timer event.
+ */
+public class RtspReader implements Runnable {
+  private static final String CLOSED = ""; // queued when the connection is closed
+
+  private final DataInputStream in;
+  private final BufferPool pool;
+  private final BlockingQueue<String> responses = new LinkedBlockingQueue<>();
+  private final ConcurrentLinkedQueue<ByteBuffer> packets = new ConcurrentLinkedQueue<>();
+  private final LongAdder received = new LongAdder();
+  private byte[] scratch = new byte[0]; // packet data before it is copied into a pooled buffer
+  private volatile int rtpChannel = 0;
+  private Thread thread = null;
+
+  /**
+   * @param in input stream of the RTSP socket
+   * @param pool pool of the buffers for the interleaved packets
+   */
+  public RtspReader(InputStream in, BufferPool pool) {
+    this.in = new DataInputStream(new BufferedInputStream(in));
+    this.pool = pool;
+  }
+
+  /** Starts the reader thread. */
+  public synchronized void start() {
+    if (thread == null) {
+      thread = new Thread(this, "rtsp-reader");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  /**
+   * Sets the interleaved channel of the RTP packets from the SETUP response.
+   *
+   * @param channel channel number, packets of other channels are discarded
+   */
+  public void setRtpChannel(int channel) {
+    rtpChannel = channel;
+  }
+
+  /**
+   * Waits for the next RTSP response.
+   *
+   * @return header and body of the response
+   * @throws IOException if the connection was closed
+   * @throws InterruptedException if the thread was interrupted while waiting
+   */
+  public String takeResponse() throws IOException, InterruptedException {
+    String response = responses.take();
+    if (response == CLOSED) {
+      responses.add(CLOSED); // for further calls
+      throw new EOFException("RTSP connection closed");
+    }
+    return response;
+  }
+
+  /**
+   * Takes the next interleaved RTP packet. The caller owns the buffer afterwards.
+   *
+   * @return packet from position 0 to limit, null if no packet is queued
+   */
+  public ByteBuffer poll() {
+    return packets.poll();
+  }
+
+  /** @return number of received interleaved packets */
+  public long getReceivedCount() {
+    return received.sum();
+  }
+
+  /** Read loop, runs until the connection is closed. */
+  @Override
+  public void run() {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    try {
+      while (true) {
+        int first = in.read();
+        if (first < 0) {
+          break;
+        }
+        if (first == '$') {
+          readPacket();
+        } else {
+          responses.add(readResponse(first));
+        }
+      }
+    } catch (IOException ex) {
+      logger.log(Level.FINE, "RTSP reader stopped: " + ex);
+    } finally {
+      responses.add(CLOSED);
+    }
+  }
+
+  /** Reads an interleaved packet after its '$'. */
+  private void readPacket() throws IOException {
+    int channel = in.readUnsignedByte();
+    int length = in.readUnsignedShort();
+    if (scratch.length < length) {
+      scratch = new byte[length];
+    }
+    in.readFully(scratch, 0, length);
+    if (channel != rtpChannel) {
+      return; // e.g. RTCP
+    }
+    ByteBuffer buffer = pool.acquire();
+    if (length > buffer.capacity()) {
+      pool.release(buffer);
+      Logger.getLogger(Logger.GLOBAL_LOGGER_NAME)
+          .log(Level.WARNING, "Interleaved packet of " + length + " bytes discarded");
+      return;
+    }
+    packets.offer(buffer.put(scratch, 0, length).flip());
+    received.increment();
+  }
+
+  /**
+   * Reads the header lines of a response and its body.
+   *
+   * @param first first byte of the response
+   * @return the response as text
+   */
+  private String readResponse(int first) throws IOException {
+    ByteArrayOutputStream response = new ByteArrayOutputStream();
+    int contentLength = 0;
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b = first;
+    while (true) {
+      if (b < 0) {
+        throw new EOFException("RTSP response incomplete");
+      }
+      response.write(b);
+      if (b != '\n') {
+        if (b != '\r') {
+          line.write(b);
+        }
+        b = in.read();
+        continue;
+      }
+      String text = line.toString(StandardCharsets.UTF_8);
+      if (text.isEmpty()) {
+        break; // end of the header
+      }
+      if (text.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+        contentLength = Integer.parseInt(text.substring(15).trim());
+      }
+      line.reset();
+      b = in.read();
+    }
+    byte[] body = new byte[contentLength];
+    in.readFully(body);
+    response.write(body);
+    return response.toString(StandardCharsets.UTF_8);
+  }
+}
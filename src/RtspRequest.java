@@ -0,0 +1,99 @@
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A complete RTSP request as delivered by the {@link RtspRequestParser}.
+ *
+ * Header names are case insensitive (RFC 2326, 4.2).
+ */
+public class RtspRequest {
+  private final String method;
+  private final String uri;
+  private final String version;
+  private final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+  private byte[] body = new byte[0];
+  private String error = null; // reason if the request could not be parsed
+
+  /**
+   * @param method RTSP method, e.g. SETUP
+   * @param uri request URI
+   * @param version protocol version, e.g. RTSP/1.0
+   */
+  public RtspRequest(String method, String uri, String version) {
+    this.method = method;
+    this.uri = uri;
+    this.version = version;
+  }
+
+  /**
+   * Creates a placeholder for data which could not be parsed.
+   *
+   * @param reason description of the error
+   * @return invalid request
+   */
+  static RtspRequest invalid(String reason) {
+    RtspRequest request = new RtspRequest("", "", "");
+    request.error = reason;
+    return request;
+  }
+
+  /** @return false if the data of the request could not be parsed */
+  public boolean isValid() {
+    return error == null;
+  }
+
+  /** @return reason why the request is invalid, null if valid */
+  public String getError() {
+    return error;
+  }
+
+  void setHeader(String name, String value) {
+    headers.put(name, value);
+  }
+
+  void setBody(byte[] body) {
+    this.body = body;
+  }
+
+  public String getMethod() {
+    return method;
+  }
+
+  public String getUri() {
+    return uri;
+  }
+
+  public String getVersion() {
+    return version;
+  }
+
+  /**
+   * @param name header name, case insensitive
+   * @return value of the header or null if not present
+   */
+  public String getHeader(String name) {
+    return headers.get(name);
+  }
+
+  public Map<String, String> getHeaders() {
+    return headers;
+  }
+
+  public byte[] getBody() {
+    return body;
+  }
+
+  /** @return value of the CSeq header, 0 if not present */
+  public int getCSeq() {
+    String cseq = headers.get("CSeq");
+    if (cseq == null) {
+      return 0;
+    }
+    return Integer.parseInt(cseq.trim());
+  }
+
+  @Override
+  public String toString() {
+    return method + " " + uri + " " + version;
+  }
+}
@@ -0,0 +1,182 @@
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Incremental parser for RTSP requests of one connection.
+ *
+ * The bytes of a connection are passed in as they arrive. Requests may be split
+ * over several reads and several (pipelined) requests may arrive within one read.
+ * The parser remembers how far the data was already scanned, so every byte is
+ * looked at only once. Interleaved binary data of the client (RFC 2326, 10.12)
+ * between the requests is skipped.
+ */
+public class RtspRequestParser {
+  /** Upper limit for request line, header and body of one request */
+  static final int MAX_REQUEST_SIZE = 16384;
+
+  private byte[] buf = new byte[1024];
+  private int length = 0; // valid bytes in buf
+  private int consumed = 0; // start of the request which is parsed next
+  private int scanPos = 0; // next byte to check for the end of the header
+  private RtspRequest pending = null; // header parsed, waiting for the body
+  private int bodyStart;
+  private int contentLength;
+  private int skip = 0; // bytes of an interleaved packet still to skip
+
+  /**
+   * Consumes all remaining bytes of the buffer.
+   *
+   * @param in received data
+   * @param requests list for all requests which were completed by the data. Requests
+   *     before an invalid one are added even if an exception is thrown.
+   * @throws ProtocolException if the data is not a valid RTSP request
+   */
+  public void parse(ByteBuffer in, List<RtspRequest> requests) throws ProtocolException {
+    append(in);
+    RtspRequest request;
+    while ((request = next()) != null) {
+      requests.add(request);
+    }
+  }
+
+  private void append(ByteBuffer in) throws ProtocolException {
+    int n = in.remaining();
+    if (length + n > buf.length) {
+      compact();
+      if (length + n > buf.length) {
+        if (length + n > 2 * MAX_REQUEST_SIZE) {
+          throw new ProtocolException("RTSP request too large");
+        }
+        byte[] larger = new byte[Math.max(buf.length * 2, length + n)];
+        System.arraycopy(buf, 0, larger, 0, length);
+        buf = larger;
+      }
+    }
+    in.get(buf, length, n);
+    length += n;
+  }
+
+  /** Removes the already parsed requests from the buffer. */
+  private void compact() {
+    if (consumed > 0) {
+      System.arraycopy(buf, consumed, buf, 0, length - consumed);
+      length -= consumed;
+      scanPos -= consumed;
+      bodyStart -= consumed;
+      consumed = 0;
+    }
+  }
+
+  /** @return next complete request or null if more data is needed */
+  private RtspRequest next() throws ProtocolException {
+    if (pending == null) {
+      // skip empty lines and interleaved packets between pipelined requests
+      while (consumed < length) {
+        if (skip > 0) {
+          int n = Math.min(skip, length - consumed);
+          consumed += n;
+          skip -= n;
+        } else if (buf[consumed] == '\r' || buf[consumed] == '\n') {
+          consumed++;
+        } else if (buf[consumed] == '$') {
+          if (length - consumed < 4) {
+            return null; // header of the packet not complete
+          }
+          skip = 4 + (((buf[consumed + 2] & 0xff) << 8) | (buf[consumed + 3] & 0xff));
+        } else {
+          break;
+        }
+      }
+      if (scanPos < consumed) {
+        scanPos = consumed;
+      }
+
+      int headerEnd = findHeaderEnd();
+      if (headerEnd < 0) {
+        if (length - consumed > MAX_REQUEST_SIZE) {
+          throw new ProtocolException("RTSP header too large");
+        }
+        if (consumed == length) {
+          consumed = length = scanPos = 0;
+        }
+        return null;
+      }
+      pending = parseHeader(consumed, headerEnd);
+      bodyStart = headerEnd;
+      String cl = pending.getHeader("Content-Length");
+      try {
+        contentLength = cl == null ? 0 : Integer.parseInt(cl.trim());
+      } catch (NumberFormatException ex) {
+        throw new ProtocolException("Invalid Content-Length: " + cl);
+      }
+      if (contentLength < 0 || contentLength > MAX_REQUEST_SIZE) {
+        throw new ProtocolException("Invalid Content-Length: " + cl);
+      }
+    }
+
+    if (length - bodyStart < contentLength) {
+      return null; // body not complete
+    }
+    byte[] body = new byte[contentLength];
+    System.arraycopy(buf, bodyStart, body, 0, contentLength);
+    RtspRequest request = pending;
+    request.setBody(body);
+    pending = null;
+    consumed = bodyStart + contentLength;
+    scanPos = consumed;
+    if (consumed == length) {
+      consumed = length = scanPos = 0;
+    }
+    return request;
+  }
+
+  /**
+   * Searches for the empty line at the end of the header.
+   *
+   * @return index of the first byte after the header or -1 if not yet received
+   */
+  private int findHeaderEnd() {
+    for (int i = scanPos; i < length; i++) {
+      if (buf[i] == '\n') {
+        // LF LF or LF CR LF terminates the header
+        if (i + 1 < length && buf[i + 1] == '\n') {
+          return i + 2;
+        }
+        if (i + 2 < length && buf[i + 1] == '\r' && buf[i + 2] == '\n') {
+          return i + 3;
+        }
+        if (i + 2 >= length) {
+          scanPos = i; // check again when more data is available
+          return -1;
+        }
+      }
+    }
+    scanPos = length;
+    return -1;
+  }
+
+  private RtspRequest parseHeader(int start, int end) throws ProtocolException {
+    String text = new String(buf, start, end - start, StandardCharsets.UTF_8);
+    String[] lines = text.split("\r?\n");
+
+    String[] requestLine = lines[0].trim().split(" +");
+    if (requestLine.length != 3 || !requestLine[2].startsWith("RTSP/")) {
+      throw new ProtocolException("Invalid request line: " + lines[0]);
+    }
+    RtspRequest request = new RtspRequest(requestLine[0], requestLine[1], requestLine[2]);
+
+    for (int i = 1; i < lines.length; i++) {
+      if (lines[i].isEmpty()) {
+        continue;
+      }
+      int colon = lines[i].indexOf(':');
+      if (colon <= 0) {
+        throw new ProtocolException("Invalid header line: " + lines[i]);
+      }
+      request.setHeader(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+    }
+    return request;
+  }
+}
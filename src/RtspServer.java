@@ -0,0 +1,232 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking RTSP front end of the server.
+ *
+ * A small number of I/O threads serve all RTSP connections with a {@link Selector}
+ * each. The first thread also accepts new connections and distributes them
+ * round robin. Idle keep-alive connections only cost a registered channel and a
+ * parked session thread. The RTCP channels of the sessions are served by the
+ * I/O thread of their RTSP connection.
+ */
+public class RtspServer {
+  static final int DEFAULT_IO_THREADS = 2;
+
+  private final SessionManager sessionManager;
+  private final ServerSocketChannel serverChannel;
+  private final IoLoop[] loops;
+  private int nextLoop = 0;
+
+  /**
+   * Opens the listening socket.
+   *
+   * @param port RTSP port
+   * @param sessionManager manager which creates the sessions
+   * @param ioThreads number of I/O threads
+   * @throws IOException if the port can not be opened
+   */
+  public RtspServer(int port, SessionManager sessionManager, int ioThreads) throws IOException {
+    this.sessionManager = sessionManager;
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.bind(new InetSocketAddress(port), 256);
+    serverChannel.configureBlocking(false);
+
+    loops = new IoLoop[Math.max(1, ioThreads)];
+    for (int i = 0; i < loops.length; i++) {
+      loops[i] = new IoLoop(i);
+    }
+    loops[0].execute(() -> serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT));
+  }
+
+  /** Starts the I/O threads. */
+  public void start() {
+    for (IoLoop loop : loops) {
+      Thread t = new Thread(loop, "rtsp-io-" + loop.index);
+      t.setDaemon(false);
+      t.start();
+    }
+  }
+
+  /** @return the local RTSP port */
+  public int getPort() {
+    return serverChannel.socket().getLocalPort();
+  }
+
+  /** Stops accepting connections and closes all I/O threads. */
+  public void stop() {
+    for (IoLoop loop : loops) {
+      loop.running = false;
+      loop.selector.wakeup();
+    }
+    try {
+      serverChannel.close();
+    } catch (IOException ignored) {
+      // already closed
+    }
+  }
+
+  private void accept() {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    SocketChannel channel;
+    try {
+      while ((channel = serverChannel.accept()) != null) {
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        IoLoop loop = loops[nextLoop];
+        nextLoop = (nextLoop + 1) % loops.length;
+        SocketChannel accepted = channel;
+        loop.execute(() -> loop.register(accepted));
+      }
+    } catch (IOException ex) {
+      logger.log(Level.WARNING, "Accept failed: " + ex);
+    }
+  }
+
+  /** Selector loop of one I/O thread. */
+  class IoLoop implements Runnable {
+    /** Task which is executed by the I/O thread */
+    interface Task {
+      void run() throws IOException;
+    }
+
+    /** Receiver of the datagrams of a channel which is served by the I/O thread */
+    interface DatagramHandler {
+      /**
+       * @param packet received datagram from position to limit, only valid during the call
+       */
+      void receive(ByteBuffer packet);
+    }
+
+    final int index;
+    final Selector selector;
+    private final ConcurrentLinkedQueue<Task> tasks = new ConcurrentLinkedQueue<>();
+    // shared by all connections of the loop, only used by the I/O thread
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(8192);
+    volatile boolean running = true;
+
+    IoLoop(int index) throws IOException {
+      this.index = index;
+      selector = Selector.open();
+    }
+
+    /**
+     * Runs a task on the I/O thread.
+     *
+     * @param task task to run
+     */
+    void execute(Task task) {
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+    /**
+     * Changes the interest set of a key from any thread.
+     *
+     * @param key selection key of a connection
+     * @param ops new interest set
+     */
+    void setInterest(SelectionKey key, int ops) {
+      if (key.isValid()) {
+        key.interestOps(ops);
+        selector.wakeup();
+      }
+    }
+
+    /**
+     * Registers a datagram channel from any thread, it is closed by its owner.
+     *
+     * @param channel channel, is switched to non-blocking mode
+     * @param handler receiver of the datagrams
+     */
+    void register(DatagramChannel channel, DatagramHandler handler) {
+      execute(() -> {
+        if (channel.isOpen()) {
+          channel.configureBlocking(false);
+          channel.register(selector, SelectionKey.OP_READ, handler);
+        }
+      });
+    }
+
+    private void receive(DatagramChannel channel, DatagramHandler handler) throws IOException {
+      while (channel.receive(readBuffer.clear()) != null) {
+        handler.receive(readBuffer.flip());
+      }
+    }
+
+    private void register(SocketChannel channel) throws IOException {
+      Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+      RtspConnection connection = new RtspConnection(channel, this);
+      SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+      try {
+        connection.register(key, sessionManager.open(connection));
+      } catch (IOException ex) {
+        logger.log(Level.SEVERE, "Session could not be created: " + ex);
+        key.cancel();
+        channel.close();
+      }
+    }
+
+    @Override
+    public void run() {
+      Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+      while (running) {
+        try {
+          selector.select();
+
+          Task task;
+          while ((task = tasks.poll()) != null) {
+            task.run();
+          }
+
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            if (!key.isValid()) {
+              continue;
+            }
+            if (key.isAcceptable()) {
+              accept();
+              continue;
+            }
+            if (key.attachment() instanceof DatagramHandler) {
+              receive((DatagramChannel) key.channel(), (DatagramHandler) key.attachment());
+              continue;
+            }
+            RtspConnection connection = (RtspConnection) key.attachment();
+            if (key.isReadable()) {
+              connection.read(readBuffer);
+            }
+            if (key.isValid() && key.isWritable()) {
+              connection.write();
+            }
+          }
+        } catch (IOException | RuntimeException ex) {
+          // must not stop the loop, the other connections are still served
+          logger.log(Level.SEVERE, "RTSP I/O loop " + index + ": " + ex);
+        }
+      }
+      try {
+        for (SelectionKey key : selector.keys()) {
+          if (key.attachment() instanceof RtspConnection) {
+            ((RtspConnection) key.attachment()).close();
+          }
+        }
+        selector.close();
+      } catch (IOException ignored) {
+        // shutting down anyway
+      }
+    }
+  }
+}
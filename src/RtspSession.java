@@ -0,0 +1,991 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * RTSP session of one client connection.
+ *
+ * Each session has its own RTSP state machine, RTP socket, {@link RtpHandler} and
+ * {@link VideoReader}. With multicast delivery or for a live channel the
+ * packets are sent by a {@link SharedStream} instead. The session is started
+ * by the {@link SessionManager} and handles the RTSP requests of its
+ * connection until the client closes it.
+ * The requests are parsed by the {@link RtspServer} and processed one after
+ * another on the virtual thread of the session. The RTCP receiver reports of a
+ * unicast client arrive on the RTP port + 1 and are kept as {@link RtcpFeedback}.
+ */
+public class RtspSession implements Runnable {
+
+  // RTP variables:
+  // ----------------
+  static final int MAX_PORT_ATTEMPTS = 20; // for finding a free RTP/RTCP port pair
+  DatagramChannel rtpChannel; // channel to be used to send and receive UDP packets
+  DatagramChannel rtcpChannel; // RTCP on the RTP port + 1
+  private final RtcpFeedback feedback = new RtcpFeedback(); // receiver reports of the client
+  private final FecController fecController; // FEC group size from the receiver reports
+  InetAddress ClientIPAddr; // Client IP address
+  int RTP_dest_port = 0; // destination port for RTP packets  (given by the RTSP Client)
+  int FEC_dest_port = 0; // destination port for RTP-FEC packets  (RTP or RTP+2)
+  int RTCP_dest_port = 0; // destination port for RTCP packets (RTP+1)
+  boolean multicastRequested = false; // multicast in the Transport header of the SETUP
+  RtpHandler.FecScheme fecRequested = RtpHandler.FecScheme.XOR; // fec= in the Transport header
+  int interleavedChannel = -1; // RTP over RTSP (RTP/AVP/TCP) on this channel, -1 for UDP
+  SharedStream sharedStream = null; // multicast stream or live channel after SETUP
+  String channelName = null; // live channel requested in the URL
+  RtpHandler rtpHandler = null;
+  RtpSender rtpSender; // packetizes, paces and sends the unicast stream
+
+  // Video variables:
+  // ----------------
+  int imagenb = 0; // image nb of the image currently transmitted
+  VideoReader video; // VideoStream object used to access video frames
+  FrameCache.VideoKey videoKey; // identifies the video in the shared frame cache
+  static int MJPEG_TYPE = 26; // RTP payload type for MJPEG video
+  static int DEFAULT_FRAME_PERIOD = 40; // Frame period of the video to stream, in ms
+  VideoMetadata videoMeta = null;
+
+  // playback position, guarded by playLock
+  private final Object playLock = new Object();
+  double framePosition = 0; // index of the next frame, fractional for Scale
+  double scale = 1.0; // frames to advance per sent frame, negative for reverse
+  int endFrame; // forward: first frame not sent, reverse: last frame sent
+  double playStart = 0; // npt of the current PLAY request in s
+  double playEnd = Double.NaN; // end of the PLAY range in s, NaN if open
+  int playStartFrame = 0; // first frame of the current PLAY request
+  int timestampBase = 0; // RTP timestamp of the first frame of the current PLAY request
+  int nextTimestamp = 0; // RTP timestamp following the last sent frame
+
+  volatile FramePacer.PacedTask pacerTask; // sends the images at the video frame rate
+  private final PacingStatistic noPacing = new PacingStatistic();
+
+  // RTSP variables
+  // ----------------
+  // rtsp states
+  static final int INIT = 0;
+  static final int READY = 1;
+  static final int PLAYING = 2;
+  // rtsp message types
+  static final int SETUP = 3;
+  static final int PLAY = 4;
+  static final int PAUSE = 5;
+  static final int TEARDOWN = 6;
+  static final int OPTIONS = 7;
+  static final int DESCRIBE = 8;
+
+  volatile int state; // RTSP Server state == INIT or READY or PLAY
+  RtspConnection connection; // connection used to send/receive RTSP messages
+  // received requests, processed by the session thread
+  private final BlockingQueue<RtspRequest> requests = new LinkedBlockingQueue<>();
+  private Thread thread;
+  private volatile boolean closed = false;
+  String VideoFileName = ""; // video file requested from the client
+  static String VideoDir = "videos/";
+  final int RTSP_ID; // ID of the RTSP session
+  int RTSPSeqNb = 0; // Sequence number of RTSP messages within the session
+  String sdpTransportLine = "";
+  String rangeHeader = null; // Range of the current PLAY request
+  String scaleHeader = null; // Scale of the current PLAY request
+
+  static final String CRLF = "\r\n";
+
+  private final SessionManager manager;
+
+  /**
+   * Creates a session for an accepted RTSP connection.
+   *
+   * @param manager the session manager which owns the session
+   * @param sessionId unique RTSP session ID
+   * @param connection RTSP connection of the client
+   * @throws IOException if the RTP socket can not be created
+   */
+  public RtspSession(SessionManager manager, int sessionId, RtspConnection connection)
+      throws IOException {
+    this.manager = manager;
+    RTSP_ID = sessionId;
+    this.connection = connection;
+    ClientIPAddr = connection.getRemoteAddress();
+
+    // init RTP socket and FEC
+    rtpHandler = new RtpHandler(manager.getFecGroupSize());
+    rtpHandler.setEncryption(manager.getEncryptionMode());
+    fecController = new FecController(manager.getFecGroupSize());
+    openChannels();
+    rtpSender = new RtpSender(manager, rtpHandler, rtpChannel);
+    connection.register(rtcpChannel, this::receiveRtcp);
+
+    // Initiate RTSPstate
+    state = INIT;
+  }
+
+  /** @return the RTSP session ID */
+  public int getSessionId() {
+    return RTSP_ID;
+  }
+
+  /** @return RTSP state (INIT, READY or PLAYING) */
+  public int getState() {
+    return state;
+  }
+
+  /** @return the RTSP state as text */
+  public String getStateName() {
+    switch (state) {
+      case READY:
+        return "READY";
+      case PLAYING:
+        return "PLAY";
+      default:
+        return "INIT";
+    }
+  }
+
+  /** @return number of the last sent image */
+  public int getImageNb() {
+    return imagenb;
+  }
+
+  /** @return number of media packets dropped by the simulated channel errors */
+  public int getDropCounter() {
+    SharedStream stream = sharedStream;
+    if (stream instanceof LiveChannel) {
+      return ((LiveChannel) stream).getDropCounter(this);
+    }
+    return rtpSender.getDropCounter();
+  }
+
+  /** @return history of the sent packets for NACKs, null without RTCP over UDP */
+  public PacketHistory getPacketHistory() {
+    return rtpSender.getHistory();
+  }
+
+  /** @return reception quality reported by the client with RTCP */
+  public RtcpFeedback getFeedback() {
+    return feedback;
+  }
+
+  /** @return automatic control of the FEC group size */
+  public FecController getFecController() {
+    return fecController;
+  }
+
+  /** @return pacing statistic of the current or last PLAY */
+  public PacingStatistic getPacingStatistic() {
+    FramePacer.PacedTask task = pacerTask;
+    return task != null ? task.getStatistic() : noPacing;
+  }
+
+  /** @return address of the client */
+  public InetAddress getClientAddress() {
+    return ClientIPAddr;
+  }
+
+  /** @return the requested video file, empty if not yet known */
+  public String getVideoFileName() {
+    return VideoFileName;
+  }
+
+  void setFecGroupSize(int k) {
+    rtpHandler.setFecGroupSize(k);
+    fecController.reset(k);
+  }
+
+  void setEncryption(RtpHandler.EncryptionMode mode) {
+    rtpHandler.setEncryption(mode);
+  }
+
+  /**
+   * Queues a received request for the session thread. Called by the I/O thread.
+   *
+   * @param request complete RTSP request
+   */
+  void submit(RtspRequest request) {
+    requests.add(request);
+  }
+
+  /** Loop to handle the RTSP requests of the connection until it is closed. */
+  @Override
+  public void run() {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    thread = Thread.currentThread();
+    try {
+      while (!closed) {
+        RtspRequest request = requests.take(); // blocking
+        if (!request.isValid()) {
+          // only this connection is affected
+          logger.log(Level.WARNING, "Session " + RTSP_ID + ": " + request.getError());
+          send_RTSP_error("400 Bad Request");
+          connection.shutdown();
+          break;
+        }
+        try {
+          int request_type = parse_RTSP_request(request);
+          handle_RTSP_request(request_type);
+        } catch (IOException ex) {
+          // only this connection is affected
+          logger.log(Level.WARNING, "Session " + RTSP_ID + ": " + ex.getMessage());
+          send_RTSP_error("400 Bad Request");
+          connection.shutdown();
+          break;
+        }
+      }
+    } catch (InterruptedException ex) {
+      // session closed
+    } finally {
+      close();
+    }
+  }
+
+  /**
+   * Process one RTSP request and change the RTSP state.
+   *
+   * @param request_type RTSP-Request Type (SETUP, PLAY, etc.)
+   * @throws IOException if the video can not be opened
+   */
+  private void handle_RTSP_request(int request_type) throws IOException {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    switch (request_type) {
+      case SETUP:
+        if (state == PLAYING) {
+          // the pacer thread is sending with the video, FEC handler and destination of the
+          // stream, a new transport is only accepted after PAUSE
+          send_RTSP_error("455 Method Not Valid in This State");
+          break;
+        }
+        if (channelName != null && !multicastRequested
+            && manager.getEncryptionMode() == RtpHandler.EncryptionMode.SRTP) {
+          // the packets of a channel are shared, SRTP would have to encrypt them per session
+          logger.log(Level.WARNING, "SRTP is not supported for channel " + channelName);
+          send_RTSP_error("461 Unsupported Transport");
+          break;
+        }
+        if (interleavedChannel >= 0 && (multicastRequested || channelName != null)) {
+          // shared streams are sent once for all sessions, not per RTSP connection
+          logger.log(Level.WARNING, "RTP/AVP/TCP is not supported for shared streams");
+          send_RTSP_error("461 Unsupported Transport");
+          break;
+        }
+        // init the VideoStream object:
+        VideoReader newVideo;
+        try {
+          newVideo = new VideoReader(VideoFileName, () -> parseVideoMetadata(VideoFileName));
+        } catch (FileNotFoundException ex) {
+          logger.log(Level.WARNING, "Video not found: " + VideoFileName);
+          send_RTSP_error("404 Not Found");
+          break;
+        }
+        // a task of an earlier PLAY must have finished before the stream is reconfigured
+        stopPacing();
+        if (pacerTask != null) {
+          pacerTask.cancelAndWait();
+        }
+        if (video != null) {
+          video.close();
+        }
+        video = newVideo;
+        videoKey = FrameCache.VideoKey.of(VideoFileName);
+        imagenb = 0;
+
+        // Wait for the SETUP message from the client
+        state = READY;
+        logger.log(Level.INFO, "New RTSP state: READY");
+
+        videoMeta = video.getMetadata();
+        // other schemes only for unicast, the shared streams keep the XOR parity
+        boolean unicast = !multicastRequested && channelName == null;
+        rtpHandler.setUlpProtectionLength(manager.getUlpProtectionLength());
+        rtpHandler.setFecScheme(unicast ? fecRequested : RtpHandler.FecScheme.XOR,
+            manager.getFecRepairPackets());
+        // the MTU follows from the buffers, both stay consistent if it is changed meanwhile
+        if (interleavedChannel >= 0) {
+          rtpSender.setInterleaved(connection, interleavedChannel, manager.getSendBufferPool());
+          rtpSender.setRtcp(null, null, null);
+        } else {
+          rtpSender.setDestination(new InetSocketAddress(ClientIPAddr, RTP_dest_port),
+              new InetSocketAddress(ClientIPAddr, FEC_dest_port), manager.getSendBufferPool());
+          rtpSender.setRtcp(rtcpChannel, new InetSocketAddress(ClientIPAddr, RTCP_dest_port),
+              "server@" + connection.getLocalAddress().getHostAddress());
+        }
+        leaveSharedStream();
+        if (multicastRequested) {
+          sharedStream = manager.joinMulticast(VideoFileName, this, connection.getLocalAddress());
+        } else if (channelName != null) {
+          RtpSender.Viewer viewer = new RtpSender.Viewer(
+              new InetSocketAddress(ClientIPAddr, RTP_dest_port),
+              new InetSocketAddress(ClientIPAddr, FEC_dest_port));
+          sharedStream = manager.joinChannel(channelName, VideoFileName, this, viewer);
+        }
+        synchronized (playLock) {
+          framePosition = 0;
+          scale = 1.0;
+          endFrame = video.getFrameCount();
+        }
+
+        // Send response
+        send_RTSP_response(SETUP);
+        manager.fireSessionChanged(this);
+        break;
+
+      case PLAY:
+        if ((state == READY || state == PLAYING) && sharedStream != null) {
+          // the shared stream is neither positioned nor scaled
+          send_RTSP_response(PLAY);
+          sharedStream.play(this);
+          state = PLAYING;
+          logger.log(Level.INFO, "New RTSP state: PLAYING (" + sharedStream + ")");
+          manager.fireSessionChanged(this);
+        } else if (state == READY || state == PLAYING) {
+          // a PLAY while playing repositions the stream
+          if (!preparePlay()) {
+            break;
+          }
+          stopPacing();
+          // send back response
+          send_RTSP_response(PLAY);
+          // start sending at the frame rate, on the thread of the cancelled task which may
+          // still be sending
+          pacerTask = manager.getFramePacer()
+              .schedule(this::sendNextFrame, videoMeta.getFramerate(), pacerTask);
+          // update state
+          state = PLAYING;
+          logger.log(Level.INFO, "New RTSP state: PLAYING");
+          manager.fireSessionChanged(this);
+        } else {
+          send_RTSP_error("455 Method Not Valid in This State");
+        }
+        break;
+
+      case PAUSE:
+        if (state == PLAYING) {
+          // send back response
+          send_RTSP_response(PAUSE);
+          // stop sending
+          stopPacing();
+          if (sharedStream != null) {
+            sharedStream.pause(this);
+          }
+          // update state
+          state = READY;
+          logger.log(Level.INFO, "New RTSP state: READY");
+          manager.fireSessionChanged(this);
+        } else {
+          send_RTSP_error("455 Method Not Valid in This State");
+        }
+        break;
+
+      case TEARDOWN:
+        state = INIT;
+        // send back response
+        send_RTSP_response(TEARDOWN);
+        // stop sending
+        stopPacing();
+        leaveSharedStream();
+        videoMeta = null;
+        manager.fireSessionChanged(this);
+        break;
+
+      case OPTIONS:
+        logger.log(Level.INFO, "Options request");
+        send_RTSP_response(OPTIONS);
+        break;
+
+      case DESCRIBE:
+        logger.log(Level.INFO, "DESCRIBE Request");
+        send_RTSP_response(DESCRIBE);
+        break;
+
+      default:
+        logger.log(Level.WARNING, "Wrong request");
+        send_RTSP_error("501 Not Implemented");
+    }
+  }
+
+  /** Stops the streaming, releases all resources and removes the session from the manager. */
+  public void close() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+    }
+    state = INIT;
+    stopPacing();
+    leaveSharedStream();
+    if (video != null) {
+      video.close();
+    }
+    try {
+      rtpChannel.close();
+      rtcpChannel.close();
+    } catch (IOException ex) {
+      // nothing left to do
+    }
+    connection.close();
+    if (thread != null && thread != Thread.currentThread()) {
+      thread.interrupt();
+    }
+    manager.remove(this);
+  }
+
+  /**
+   * Opens the RTP channel and the RTCP channel on the next port.
+   *
+   * @throws IOException if no free port pair was found
+   */
+  private void openChannels() throws IOException {
+    for (int attempt = 1; ; attempt++) {
+      DatagramChannel rtp = DatagramChannel.open();
+      DatagramChannel rtcp = DatagramChannel.open();
+      try {
+        rtp.bind(null);
+        rtcp.bind(new InetSocketAddress(rtp.socket().getLocalPort() + 1));
+        rtpChannel = rtp;
+        rtcpChannel = rtcp;
+        return;
+      } catch (IOException ex) {
+        rtp.close();
+        rtcp.close();
+        if (attempt == MAX_PORT_ATTEMPTS) {
+          throw ex;
+        }
+      }
+    }
+  }
+
+  /**
+   * Takes the receiver reports of an RTCP packet. Called by the I/O thread.
+   *
+   * @param packet received RTCP packet
+   */
+  private void receiveRtcp(ByteBuffer packet) {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    long arrivalNanos = System.nanoTime();
+    long arrivalNtp = RtcpPacket.ntpTime(System.currentTimeMillis());
+    int reports = feedback.getReports();
+    boolean valid = RtcpPacket.parse(packet, new RtcpPacket.Listener() {
+      @Override
+      public void reportBlock(int reporterSsrc, RtcpPacket.ReportBlock block) {
+        if (block.ssrc() == rtpHandler.getSsrc()) {
+          feedback.update(block, arrivalNtp, arrivalNanos);
+        }
+      }
+
+      @Override
+      public void nack(int senderSsrc, int mediaSsrc, int seqNr) {
+        if (mediaSsrc == rtpHandler.getSsrc()) {
+          rtpSender.retransmit(seqNr, feedback.getRoundTripMillis());
+        }
+      }
+    });
+    if (!valid) {
+      logger.log(Level.FINE, "Session " + RTSP_ID + ": invalid RTCP packet");
+      return;
+    }
+    if (logger.isLoggable(Level.FINE)) {
+      logger.log(Level.FINE, "Session " + RTSP_ID + " " + feedback);
+    }
+    double target = manager.getFecTargetFrameLoss();
+    if (target > 0 && feedback.getReports() != reports) {
+      int k = fecController.getGroupSize();
+      int newK = fecController.update(feedback.getFractionLost(), rtpSender.getMeanPacketsPerFrame(),
+          rtpHandler.getFecRepairPackets(), target);
+      if (newK != k) {
+        rtpHandler.setFecGroupSize(newK);
+        logger.log(Level.INFO, String.format(Locale.ROOT,
+            "Session %d: FEC group size %d -> %d, loss %.1f %%, expected frame loss %.2f %%",
+            RTSP_ID, k, newK, 100 * fecController.getLossEstimate(),
+            100 * fecController.getPredictedFrameLoss()));
+      }
+    }
+  }
+
+  private void leaveSharedStream() {
+    if (sharedStream != null) {
+      manager.leave(sharedStream, this);
+      sharedStream = null;
+    }
+  }
+
+  private void stopPacing() {
+    stopPacing(pacerTask);
+  }
+
+  /**
+   * Cancels a paced task. The sending task cancels itself, not the current pacerTask,
+   * which may already be the task of a following PLAY.
+   *
+   * @param task the task to cancel, may be null
+   */
+  private void stopPacing(FramePacer.PacedTask task) {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    if (task != null && !task.isCancelled()) {
+      task.cancel();
+      logger.log(Level.INFO, "Session " + RTSP_ID + " " + task.getStatistic());
+    }
+  }
+
+  /**
+   * Sets the playback position from the Range and Scale headers of a PLAY request.
+   * Sends an error response if a header is not valid.
+   *
+   * @return false if the request is rejected
+   */
+  private boolean preparePlay() {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    int framerate = videoMeta.getFramerate();
+    int frameCount = video.getFrameCount();
+
+    double newScale = 1.0;
+    if (scaleHeader != null) {
+      try {
+        newScale = Double.parseDouble(scaleHeader.trim());
+      } catch (NumberFormatException ex) {
+        newScale = 0.0;
+      }
+      if (newScale == 0.0 || Double.isNaN(newScale) || Double.isInfinite(newScale)) {
+        logger.log(Level.WARNING, "Invalid Scale: " + scaleHeader);
+        send_RTSP_error("456 Header Field Not Valid for Resource");
+        return false;
+      }
+    }
+
+    synchronized (playLock) {
+      double start = framePosition / framerate;
+      double end = Double.NaN;
+      if (rangeHeader != null) {
+        double[] range;
+        try {
+          range = parseNptRange(rangeHeader);
+        } catch (IllegalArgumentException ex) {
+          range = null;
+        }
+        if (range == null || range[0] > (double) frameCount / framerate) {
+          logger.log(Level.WARNING, "Invalid Range: " + rangeHeader);
+          send_RTSP_error("457 Invalid Range");
+          return false;
+        }
+        if (!Double.isNaN(range[0])) {
+          start = range[0];
+        }
+        end = range[1];
+      }
+
+      framePosition = Math.min(Math.round(start * framerate), frameCount);
+      if (newScale > 0) {
+        endFrame = Double.isNaN(end) ? frameCount : (int) Math.min(Math.ceil(end * framerate), frameCount);
+      } else {
+        endFrame = Double.isNaN(end) ? 0 : (int) Math.floor(end * framerate);
+        framePosition = Math.min(framePosition, frameCount - 1);
+      }
+      scale = newScale;
+      // timestamps continue after a repositioning
+      playStartFrame = (int) framePosition;
+      timestampBase = nextTimestamp;
+      playStart = framePosition / framerate;
+      playEnd = end;
+    }
+    logger.log(Level.INFO, "Play from frame " + (int) framePosition + " with scale " + newScale);
+    return true;
+  }
+
+  /**
+   * Parses a Range header with normal play time (RFC 2326, 3.6), e.g. npt=10.5- or npt=0:01:00-0:02:00.
+   *
+   * @param range value of the Range header
+   * @return start and end in s, NaN for now or an open end
+   * @throws IllegalArgumentException if the range is not valid or not npt
+   */
+  static double[] parseNptRange(String range) {
+    String value = range.split(";")[0].trim();
+    if (!value.regionMatches(true, 0, "npt=", 0, 4)) {
+      throw new IllegalArgumentException("Unsupported range unit: " + range);
+    }
+    value = value.substring(4);
+    int dash = value.indexOf('-');
+    if (dash < 0) {
+      throw new IllegalArgumentException("Missing '-' in range: " + range);
+    }
+    double start = parseNptTime(value.substring(0, dash).trim());
+    String end = value.substring(dash + 1).trim();
+    return new double[] {start, end.isEmpty() ? Double.NaN : parseNptTime(end)};
+  }
+
+  /**
+   * @param npt npt-time: now, seconds or h:mm:ss with optional fraction
+   * @return time in s, NaN for now
+   * @throws IllegalArgumentException if the time is not valid
+   */
+  static double parseNptTime(String npt) {
+    if (npt.isEmpty() || npt.equals("now")) {
+      return Double.NaN;
+    }
+    String[] parts = npt.split(":", -1);
+    if (parts.length != 1 && parts.length != 3) {
+      throw new IllegalArgumentException("Invalid npt: " + npt);
+    }
+    double seconds = 0;
+    for (int i = 0; i < parts.length; i++) {
+      // only digits, a fraction in the seconds (RFC 2326, 3.6), no NaN or exponent
+      if (!parts[i].matches(i == parts.length - 1 ? "[0-9]+(\\.[0-9]*)?" : "[0-9]+")) {
+        throw new IllegalArgumentException("Invalid npt: " + npt);
+      }
+      seconds = seconds * 60 + Double.parseDouble(parts[i]);
+    }
+    return seconds;
+  }
+
+  /**
+   * The RTCP channel follows the RTP channel and both must fit in the one byte channel
+   * of the '$' framing (RFC 2326, 10.12).
+   *
+   * @param channels interleaved channel or range, e.g. 0-1
+   * @return RTP channel from 0 to 254
+   * @throws IllegalArgumentException if the channel is not valid
+   */
+  static int parseInterleavedChannel(String channels) {
+    if (!channels.matches("[0-9]{1,3}(-[0-9]{1,3})?")) {
+      throw new IllegalArgumentException("Invalid interleaved channel: " + channels);
+    }
+    int dash = channels.indexOf('-');
+    int channel = Integer.parseInt(dash < 0 ? channels : channels.substring(0, dash));
+    if (channel > 254) {
+      throw new IllegalArgumentException("Invalid interleaved channel: " + channels);
+    }
+    return channel;
+  }
+
+  /**
+   * Sends the next frame, called by the {@link FramePacer} at the frame rate
+   * and for the intermediate runs of the packet pacing.
+   *
+   * @param task the pacer task of the session
+   */
+  private void sendNextFrame(FramePacer.PacedTask task) {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    try {
+      if (task.isFrameRun()) {
+        boolean ready = rtpSender.prepareFrame(task);
+        byte[] payload = null;
+        int timestamp = 0;
+        boolean end;
+        synchronized (playLock) {
+          // frames skipped because of Scale are neither read nor sent
+          int index = (int) Math.floor(framePosition);
+          end = scale > 0 ? index >= endFrame : index < Math.max(endFrame, 0);
+          if (!end && !ready) {
+            // the previous frame is late, keep the rate instead of sending a burst
+            framePosition += scale;
+            task.getStatistic().recordSkippedFrame();
+          } else if (!end) {
+            payload = rtpSender.readPayload(video, videoKey, index); // get next frame
+            end = payload == null;
+          }
+          if (payload != null) {
+            // media time of the frame relative to the start of the PLAY, at 90 kHz
+            MjpegIndex frameIndex = video.getIndex();
+            timestamp = timestampBase
+                + Math.abs(frameIndex.getTimestamp(index) - frameIndex.getTimestamp(playStartFrame));
+            nextTimestamp = timestamp + MjpegIndex.RTP_CLOCK_RATE / videoMeta.getFramerate();
+            framePosition += scale;
+            imagenb++; // image counter
+          }
+        }
+        if (payload != null) {
+          rtpSender.startFrame(task, payload, timestamp);
+        } else if (end && !rtpSender.isFramePending(task)) {
+          stopPacing(task);
+        }
+      }
+      rtpSender.sendPackets(task);
+    } catch (Exception ex) {
+      // only this session is affected
+      logger.log(Level.SEVERE, "Session " + RTSP_ID + ": Exception caught: " + ex);
+      stopPacing(task);
+    }
+  }
+
+  /**
+   * Parse RTSP-Request
+   *
+   * @param request the received request
+   * @return RTSP-Request Type (SETUP, PLAY, etc.), -1 if unknown
+   * @throws IOException if the request is malformed
+   */
+  private int parse_RTSP_request(RtspRequest request) throws IOException {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    int request_type = -1;
+    logger.log(Level.CONFIG, request.toString());
+
+    // convert to request_type structure:
+    switch (request.getMethod()) {
+      case "SETUP":
+        request_type = SETUP;
+        break;
+      case "PLAY":
+        request_type = PLAY;
+        break;
+      case "PAUSE":
+        request_type = PAUSE;
+        break;
+      case "TEARDOWN":
+        request_type = TEARDOWN;
+        break;
+      case "OPTIONS":
+        request_type = OPTIONS;
+        break;
+      case "DESCRIBE":
+        request_type = DESCRIBE;
+        break;
+    }
+
+    try {
+      RTSPSeqNb = request.getCSeq();
+
+      if (request_type == PLAY) {
+        rangeHeader = request.getHeader("Range");
+        scaleHeader = request.getHeader("Scale");
+      }
+
+      if (request_type == SETUP && state == PLAYING) {
+        // rejected by handle_RTSP_request, the running stream keeps its video and transport
+        return request_type;
+      }
+
+      if (request_type == SETUP
+              || request_type == DESCRIBE) {
+        // extract VideoFileName from the first path segment of the URI
+        String path = URI.create(request.getUri()).getPath();
+        String[] tok = path.split("/");
+        if (tok.length < 2 || tok[1].isEmpty() || tok[1].equals("..")) {
+          throw new IOException("No video file in URI: " + request.getUri());
+        }
+        String channelVideo = manager.getChannelVideo(tok[1]);
+        channelName = channelVideo != null ? tok[1] : null;
+        VideoFileName = VideoDir + (channelVideo != null ? channelVideo : tok[1]);
+        logger.log(Level.CONFIG, "File: " + VideoFileName);
+      }
+
+      String transport = request.getHeader("Transport");
+      if (transport != null) {
+        // the FEC scheme is answered by the server
+        sdpTransportLine = "Transport: " + transport.replaceAll(";\\s*fec=[^;]*", "");
+        multicastRequested = false;
+        fecRequested = RtpHandler.FecScheme.XOR;
+        interleavedChannel = -1;
+        for (String untrimmed : transport.split(";")) {
+          String parameter = untrimmed.trim();
+          if (parameter.equals("multicast")) {
+            multicastRequested = true;
+          }
+          if (parameter.startsWith("fec=")) {
+            fecRequested = RtpHandler.FecScheme.ofParameter(parameter.substring(4));
+          }
+          if (parameter.equals("RTP/AVP/TCP")) {
+            interleavedChannel = Math.max(interleavedChannel, 0); // default 0-1
+          }
+          if (parameter.startsWith("interleaved=")) {
+            interleavedChannel =
+                parseInterleavedChannel(parameter.substring("interleaved=".length()));
+          }
+          if (parameter.startsWith("client_port=")) {
+            String ports = parameter.substring("client_port=".length());
+            int dash = ports.indexOf('-');
+            RTP_dest_port = Integer.parseInt(dash < 0 ? ports : ports.substring(0, dash));
+            RTCP_dest_port = dash < 0 ? RTP_dest_port + 1 : Integer.parseInt(ports.substring(dash + 1));
+            if (RTP_dest_port > 0xFFFF || RTCP_dest_port > 0xFFFF) {
+              throw new IllegalArgumentException("Invalid client_port: " + ports);
+            }
+          }
+        }
+        FEC_dest_port = RTP_dest_port + 0;
+        logger.log(Level.FINE, "Client-Port: " + RTP_dest_port);
+      }
+      // else is any other field, not checking for now
+    } catch (IllegalArgumentException ex) {
+      throw new IOException("Malformed RTSP request: " + request, ex);
+    }
+
+    logger.log(Level.INFO, "*** Request received ***\n");
+    return (request_type);
+  }
+
+  /**
+   * Send RTSP Response
+   *
+   * @param method RTSP-Method
+   */
+  private void send_RTSP_response(int method) {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    logger.log(Level.INFO, "*** send RTSP-Response ***");
+    StringBuilder response = new StringBuilder();
+    response.append("RTSP/1.0 200 OK" + CRLF);
+    response.append("CSeq: " + RTSPSeqNb + CRLF);
+
+    // 3th line depends on Request
+    switch (method) {
+      case OPTIONS:
+        response.append(options() );
+        break;
+      case DESCRIBE:
+        response.append(describe() );
+        break;
+      case SETUP:
+        if (sharedStream instanceof MulticastStream) {
+          // RFC 2326, 12.39: the client joins the group given by the server
+          MulticastStream multicastStream = (MulticastStream) sharedStream;
+          InetSocketAddress group = multicastStream.getGroup();
+          response.append("Transport: RTP/AVP;multicast;destination="
+              + group.getAddress().getHostAddress() + ";port=" + group.getPort() + "-"
+              + (group.getPort() + 1) + ";ttl=" + multicastStream.getTtl() + CRLF);
+          response.append("Session: " + RTSP_ID + ";timeout=30000" + CRLF);
+          break;
+        }
+        if (interleavedChannel >= 0) {
+          response.append("Transport: RTP/AVP/TCP;unicast;interleaved=" + interleavedChannel + "-"
+              + (interleavedChannel + 1) + fecTransportParameter() + CRLF);
+          response.append("Session: " + RTSP_ID + ";timeout=30000" + CRLF);
+          break;
+        }
+        // a live channel sends from its own port
+        int serverPort = sharedStream != null
+            ? sharedStream.getLocalPort() : rtpChannel.socket().getLocalPort();
+        int rtcpPort = sharedStream != null ? serverPort + 1 : rtcpChannel.socket().getLocalPort();
+        response.append(sdpTransportLine + fecTransportParameter() + ";server_port=");
+        response.append(serverPort + "-");
+        response.append(rtcpPort + "" + CRLF);
+        // response.append(";ssrc=0;mode=play" + CRLF);
+        response.append("Session: " + RTSP_ID + ";timeout=30000" + CRLF);
+        break;
+      default:
+        if (method == PLAY && sharedStream != null) {
+          response.append("Range: npt=now-" + CRLF);
+        } else if (method == PLAY) {
+          response.append(String.format(Locale.ROOT, "Range: npt=%.3f-", playStart));
+          if (!Double.isNaN(playEnd)) {
+            response.append(String.format(Locale.ROOT, "%.3f", playEnd));
+          }
+          response.append(CRLF);
+          if (scaleHeader != null) {
+            response.append("Scale: " + scale + CRLF);
+          }
+        }
+        response.append("Session: " + RTSP_ID + ";timeout=30000" + CRLF);
+        break;
+    }
+
+    // Send end of response
+    if (method != DESCRIBE) response.append(CRLF);
+    connection.send(response.toString());
+    logger.log(Level.FINE, "*** RTSP-Server - Sent response to Client ***");
+  }
+
+  /** @return Transport parameter of the FEC scheme of the session, empty for the XOR parity */
+  private String fecTransportParameter() {
+    RtpHandler.FecScheme scheme = rtpHandler.getFecScheme();
+    return scheme != RtpHandler.FecScheme.XOR && rtpHandler.getFecRepairPackets() > 0
+        ? ";fec=" + scheme.getParameter() : "";
+  }
+
+  /**
+   * Send RTSP error response
+   *
+   * @param status status code and reason phrase, e.g. 400 Bad Request
+   */
+  private void send_RTSP_error(String status) {
+    connection.send("RTSP/1.0 " + status + CRLF
+        + "CSeq: " + RTSPSeqNb + CRLF
+        + "Session: " + RTSP_ID + CRLF + CRLF);
+  }
+
+  /** Creates a OPTIONS response string
+   * @return  Options string, starting with: Public: ...
+   */
+  //TASK Complete the OPTIONS response
+  private String options() {
+    return "Public: DESCRIBE,SETUP,TEARDOWN,PLAY,PAUSE" + CRLF;
+  }
+
+
+  /** Creates a DESCRIBE response string in SDP format for current media */
+  //TASK Complete the DESCRIBE response
+  private String describe() {
+    StringWriter rtspHeader = new StringWriter();
+    StringWriter rtspBody = new StringWriter();
+    VideoMetadata meta = getVideoMetadata(VideoFileName);
+
+    // Write the body first so we can get the size later
+    rtspBody.write("v=0" + CRLF);
+    rtspBody.write("o=Me 2808844564 2808844564 IN IP4 localhost"+ CRLF);
+    rtspBody.write("s=" + CRLF);
+    rtspBody.write("c=IN IP4 localhost" + CRLF);
+    rtspBody.write("m=video 0 RTP/AVP " + MJPEG_TYPE + CRLF);
+    rtspBody.write("a=framerate:" + meta.getFramerate() + CRLF);
+    if (meta.getDuration() > 0) {
+      rtspBody.write(String.format(Locale.ROOT, "a=range:npt=0-%.3f", meta.getDuration()) + CRLF);
+    }
+
+    rtspHeader.write("Content-Base: " + "rtsp://localhost:3333/htw.mjpeg"+ CRLF);
+    rtspHeader.write("Content-Type: " + "application/sdp" + CRLF);
+    rtspHeader.write("Content-Length: " + rtspBody.toString().getBytes().length + CRLF);
+    rtspHeader.write(CRLF);
+
+    return rtspHeader.toString() + rtspBody.toString();
+  }
+
+  /** Get the metadata from a video file.
+   *
+   *  Uses the stored frame index of the video if it is up to date,
+   *  otherwise the metadata is parsed from the file.
+   *
+   *  @param filename Name of the video file
+   *  @return metadata structure containing the extracted information
+   */
+  static VideoMetadata getVideoMetadata(String filename) {
+    MjpegIndex index = MjpegIndex.load(filename);
+    if (index != null) {
+      return index.getMetadata();
+    }
+    return parseVideoMetadata(filename);
+  }
+
+  /** Parse the metadata from a video file.
+   *
+   *  If no metadata is available, all fields are zero-initialized with
+   *  exception of the framerate. Because the framerate is strongly required,
+   *  it is set to a default value.
+   *
+   *  @param filename Name of the video file
+   *  @return metadata structure containing the extracted information
+   */
+  static VideoMetadata parseVideoMetadata(String filename) {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    VideoMetadata meta = null;
+
+    String splittedFilename[] = filename.split("\\.");
+    switch (splittedFilename[splittedFilename.length-1]) {
+      case "avi":
+        meta = AviMetadataParser.parse(filename);
+        break;
+      case "mov":
+        meta = QuickTimeMetadataParser.parse(filename);
+        break;
+      case "mjpg":
+      case "mjpeg":
+        meta = new VideoMetadata(1000 / DEFAULT_FRAME_PERIOD);
+        break;
+      default:
+        logger.log(Level.WARNING, "File extension not recognized: " + filename);
+        meta = new VideoMetadata(1000 / DEFAULT_FRAME_PERIOD);
+        break;
+    }
+
+    assert meta != null : "VideoMetadata of file " + filename + " was not initialized correctly";
+    return meta;
+  }
+}
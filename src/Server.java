@@ -1,6 +1,10 @@
 /* ------------------
 Server
-usage: java Server [RTSP listening port]
+usage: java Server [RTSP listening port] [option=value ...]
+options: cache=<frame cache size in MB> mtu=<MTU> pacing=<off|spread|kbit/s>
+         channels=<channel=video,...> fec-target=<auto|target frame loss in %>
+         rs-repair=<Reed-Solomon repair packets> ulp-length=<ULP protection length in bytes>
+runs without GUI if started with -Djava.awt.headless=true
 ---------------------- */
 
 import java.io.*;
@@ -15,88 +19,47 @@ import javax.swing.Timer;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
-public class Server extends JFrame implements ActionListener, ChangeListener {
+/**
+ * Optional GUI of the server.
+ *
+ * The window only observes the {@link StreamingEngine}: it samples the state at
+ * a low rate and passes the settings of the sliders and buttons to the engine.
+ */
+public class Server extends JFrame implements ChangeListener, ActionListener {
 
-  // RTP variables:
-  // ----------------
-  DatagramSocket RTPsocket; // socket to be used to send and receive UDP packets
-  DatagramPacket senddp; // UDP packet containing the video frames
-  InetAddress ClientIPAddr; // Client IP address
-  int RTP_dest_port = 0; // destination port for RTP packets  (given by the RTSP Client)
-  int FEC_dest_port = 0; // destination port for RTP-FEC packets  (RTP or RTP+2)
+  private static final long serialVersionUID = 1L;
   final static int startGroupSize = 2;
-  RtpHandler rtpHandler = null;
-  // Channel errors
-  private double lossRate = 0.0;
-  Random random = new Random(123456); // fixed seed for debugging
-  int dropCounter; // Nr. of dropped media packets
+  static final int GUI_UPDATE_PERIOD = 250; // interval for sampling the engine state, in ms
+  static final String[] OPTIONS = {
+      "cache", "mtu", "pacing", "channels", "fec-target", "rs-repair", "ulp-length"};
+  transient StreamingEngine engine; // the streaming server, not part of the window state
 
   // GUI:
   // ----------------
   JLabel label;
-  static JLabel stateLabel;
+  JLabel stateLabel;
   private ButtonGroup encryptionButtons = null;
-
-  // Video variables:
-  // ----------------
-  static int imagenb = 0; // image nb of the image currently transmitted
-  VideoReader video; // VideoStream object used to access video frames
-  static int MJPEG_TYPE = 26; // RTP payload type for MJPEG video
-  static int DEFAULT_FRAME_PERIOD = 40; // Frame period of the video to stream, in ms
-  public VideoMetadata videoMeta = null;
-
-  Timer timer; // timer used to send the images at the video frame rate
-  // byte[] buf; // buffer used to store the images to send to the client
-
-  // RTSP variables
-  // ----------------
-  // rtsp states
-  static final int INIT = 0;
-  static final int READY = 1;
-  static final int PLAYING = 2;
-  // rtsp message types
-  static final int SETUP = 3;
-  static final int PLAY = 4;
-  static final int PAUSE = 5;
-  static final int TEARDOWN = 6;
-  static final int OPTIONS = 7;
-  static final int DESCRIBE = 8;
-
-  static int state; // RTSP Server state == INIT or READY or PLAY
-  Socket RTSPsocket; // socket used to send/receive RTSP messages
-  // input and output stream filters
-  static BufferedReader RTSPBufferedReader;
-  static BufferedWriter RTSPBufferedWriter;
-  static String VideoFileName = ""; // video file requested from the client
-  static String VideoDir = "videos/";
-  static int RTSP_ID = 123456; // ID of the RTSP session
-  int RTSPSeqNb = 0; // Sequence number of RTSP messages within the session
-  String sdpTransportLine = "";
-
-  static final String CRLF = "\r\n";
+  Timer timer; // timer used to update the labels
 
 
 
-  public Server() {
+  public Server(StreamingEngine engine) {
     super("Server"); // init Frame
-    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
-
-    // init RTP socket and FEC
-    // theServer.RTPsocket = new DatagramSocket();
-    rtpHandler = new RtpHandler(startGroupSize);
+    this.engine = engine;
 
     // Handler to close the main window
     addWindowListener(
         new WindowAdapter() {
           public void windowClosing(WindowEvent e) {
-            // stop the timer and exit
+            // stop the timer, the sessions and exit
             timer.stop();
+            engine.stop();
             System.exit(0);
           }
         });
 
     // GUI:
-    label = new JLabel("Send frame #        ", JLabel.CENTER);
+    label = new JLabel("Sessions: 0", JLabel.CENTER);
     stateLabel = new JLabel("State:         ",JLabel.CENTER);
     getContentPane().add(label, BorderLayout.NORTH);
     getContentPane().add(stateLabel, BorderLayout.SOUTH);
@@ -125,6 +88,18 @@ public class Server extends JFrame implements ActionListener, ChangeListener {
     gbc.weighty = 1;
     gbc.fill = GridBagConstraints.BOTH;
     mainPanel.add(groupSize, gbc);
+    // the group size of each session follows its RTCP feedback, the slider applies when switched off
+    JCheckBox fecAuto = new JCheckBox("Auto");
+    fecAuto.setSelected(engine.getSessionManager().getFecTargetFrameLoss() > 0);
+    fecAuto.addActionListener(e -> {
+      engine.setFecTargetFrameLoss(fecAuto.isSelected() ? FecController.DEFAULT_TARGET : 0.0);
+      groupSize.setEnabled(!fecAuto.isSelected());
+    });
+    groupSize.setEnabled(!fecAuto.isSelected());
+    gbc = new GridBagConstraints();
+    gbc.gridx = 4;
+    gbc.gridy = 0;
+    mainPanel.add(fecAuto, gbc);
     gbc = new GridBagConstraints();
     gbc.gridx = 0;
     gbc.gridy = 1;
@@ -137,11 +112,35 @@ public class Server extends JFrame implements ActionListener, ChangeListener {
 
     getContentPane().add(mainPanel, BorderLayout.CENTER);
 
-    try {
-      RTPsocket = new DatagramSocket();
-    } catch (Exception e) {
-      logger.log(Level.SEVERE, "Exception caught: " + e);
-    }
+    // init Timer
+    timer = new Timer(GUI_UPDATE_PERIOD, this);
+    timer.setCoalesce(true);
+    timer.start();
+  }
+
+  /**
+   * Hander for timer, samples the state of the engine
+   *
+   * @param e ActionEvent
+   */
+  public void actionPerformed(ActionEvent e) {
+    ServerStatistic st = engine.getStatistic();
+    label.setText("Sessions: " + st.sessions
+        + "  Send frames: " + st.sentFrames
+        + "  Dropped: " + st.droppedPackets
+        + "  Cache hits/misses: " + st.cacheHits + "/" + st.cacheMisses
+        + (st.reportingSessions == 0 ? "" : String.format(Locale.ROOT,
+            "  RTCP loss/jitter: %.1f %%/%.1f ms", st.reportedLossPercent, st.reportedJitterMillis))
+        + (!st.fecAuto ? "" : String.format(Locale.ROOT,
+            "  FEC k mean: %.1f changes: %d", st.meanFecGroupSize, st.fecChanges))
+        + (st.nackRequests == 0 ? "" : "  NACK/retransmitted: "
+            + st.nackRequests + "/" + st.retransmittedPackets));
+    stateLabel.setText(String.format(
+        "INIT/READY/PLAY: %d/%d/%d  Pacing error mean/max: %.0f/%.0f us"
+        + "  Burst mean/max: %.1f/%d  Skipped: %d",
+        st.initSessions, st.readySessions, st.playingSessions,
+        st.meanPacingErrorMicros, st.maxPacingErrorMicros,
+        st.meanBurstPackets, st.maxBurstPackets, st.skippedFrames));
   }
 
   /**
@@ -155,11 +154,12 @@ public class Server extends JFrame implements ActionListener, ChangeListener {
     if (!source.getValueIsAdjusting()) {
       if (source.getName().equals("k")) {
         int k = source.getValue();
-        rtpHandler.setFecGroupSize(k);
+        engine.setFecGroupSize(k);
         logger.log(Level.INFO, "New Group size: " + k);
       } else {
-        lossRate = source.getValue();
+        double lossRate = source.getValue();
         lossRate = lossRate / 100;
+        engine.setLossRate(lossRate);
         logger.log(Level.INFO, "New packet error rate: " + lossRate);
       }
     }
@@ -190,7 +190,7 @@ public class Server extends JFrame implements ActionListener, ChangeListener {
         break;
       }
 
-      boolean encryptionSet = rtpHandler.setEncryption(mode);
+      boolean encryptionSet = engine.setEncryption(mode);
       if (!encryptionSet) {
         Enumeration<AbstractButton> buttons = encryptionButtons.getElements();
         while (buttons.hasMoreElements()) {
@@ -215,331 +215,90 @@ public class Server extends JFrame implements ActionListener, ChangeListener {
      */
     logger.setLevel(Level.CONFIG);
 
-    // create a Server object
-    Server theServer = new Server();
-    theServer.setSize(500, 200);
-    theServer.setVisible(true);
-
-    // get RTSP socket port from the command line
+    // get RTSP socket port and the options from the command line
     int RTSPport = Integer.parseInt(argv[0]);
-
-    // Initiate TCP connection with the client for the RTSP session
-    ServerSocket listenSocket = new ServerSocket(RTSPport);
-    theServer.RTSPsocket = listenSocket.accept();
-    listenSocket.close();
-
-    // Get Client IP address
-    theServer.ClientIPAddr = theServer.RTSPsocket.getInetAddress();
-
-    // Initiate RTSPstate
-    state = INIT;
-    stateLabel.setText("INIT");
-
-
-    // Set input and output stream filters:
-    RTSPBufferedReader =
-        new BufferedReader(new InputStreamReader(theServer.RTSPsocket.getInputStream()));
-    RTSPBufferedWriter =
-        new BufferedWriter(new OutputStreamWriter(theServer.RTSPsocket.getOutputStream()));
-
-
-    int request_type;
-
-    // loop to handle RTSP requests
-    while (true) {
-      // parse the request
-      request_type = theServer.parse_RTSP_request(); // blocking
-
-      switch (request_type) {
-        case SETUP:
-          // Wait for the SETUP message from the client
-          state = READY;
-          stateLabel.setText("READY");
-          logger.log(Level.INFO, "New RTSP state: READY");
-
-          if (theServer.videoMeta == null) {
-            theServer.videoMeta = Server.getVideoMetadata(VideoFileName);
-          }
-
-          // init Timer
-          theServer.timer = new Timer(1000 / theServer.videoMeta.getFramerate(), theServer);
-          theServer.timer.setInitialDelay(0);
-          theServer.timer.setCoalesce(false); // Coalesce can lead to buffer underflow in client
-
-          // Send response
-          theServer.send_RTSP_response(SETUP);
-
-          // init the VideoStream object:
-          theServer.video = new VideoReader(VideoFileName);
-          imagenb = 0;
-
-          break;
-
-        case PLAY:
-          if (state == READY) {
-            // send back response
-            theServer.send_RTSP_response(PLAY);
-            // start timer
-            theServer.timer.start();
-            // update state
-            state = PLAYING;
-            stateLabel.setText("PLAY");
-            logger.log(Level.INFO, "New RTSP state: PLAYING");
-          }
-          break;
-
-        case PAUSE:
-          if (state == PLAYING) {
-            // send back response
-            theServer.send_RTSP_response(PAUSE);
-            // stop timer
-            theServer.timer.stop();
-            // update state
-            state = READY;
-            stateLabel.setText("READY");
-            logger.log(Level.INFO, "New RTSP state: READY");
-          }
-          break;
-
-        case TEARDOWN:
-          state = INIT;
-          stateLabel.setText("INIT");
-          // send back response
-          theServer.send_RTSP_response(TEARDOWN);
-          // stop timer
-          theServer.timer.stop();
-          theServer.videoMeta = null;
-          // close sockets
-          //theServer.RTSPsocket.close();
-          // theServer.RTPsocket.close();
-          break;
-
-        case OPTIONS:
-          logger.log(Level.INFO, "Options request");
-          theServer.send_RTSP_response(OPTIONS);
-          break;
-
-        case DESCRIBE:
-          logger.log(Level.INFO, "DESCRIBE Request");
-          theServer.send_RTSP_response(DESCRIBE);
-          break;
-
-        default:
-          logger.log(Level.WARNING, "Wrong request");
-      }
-    }
-  }
-
-  /**
-   * Hander for timer
-   *
-   * @param e ActionEvent
-   */
-  public void actionPerformed(ActionEvent e) {
-    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
-    imagenb++; // image counter
-    byte[] packet_bits;
-
-    try {
-      byte[] frame = video.readNextImage(); // get next frame
-      if (frame != null) {
-        logger.log(Level.FINE, "Frame size: " + frame.length);
-
-        packet_bits = rtpHandler.jpegToRtpPacket(frame, videoMeta.getFramerate());
-
-        // send the packet as a DatagramPacket over the UDP socket
-        senddp = new DatagramPacket(packet_bits, packet_bits.length, ClientIPAddr, RTP_dest_port);
-
-        sendPacketWithError(senddp, false); // Send with packet loss
-
-        if (rtpHandler.isFecPacketAvailable()) {
-          logger.log(Level.FINE, "FEC-Encoder ready...");
-          byte[] fecPacket = rtpHandler.createFecPacket();
-          // send to the FEC dest_port
-          senddp = new DatagramPacket(fecPacket, fecPacket.length, ClientIPAddr, FEC_dest_port);
-          sendPacketWithError(senddp, true);
-        }
-
-        // update GUI
-        label.setText("Send frame #" + imagenb);
-      } else timer.stop();
-    } catch (Exception ex) {
-      logger.log(Level.SEVERE, "Exception caught: " + ex);
-      ex.printStackTrace();
-      System.exit(0);
+    Map<String, String> options = parseOptions(argv, 1);
+    long cacheBudget = FrameCache.DEFAULT_BUDGET;
+    if (options.containsKey("cache")) {
+      cacheBudget = Long.parseLong(options.get("cache")) * 1024 * 1024;
     }
-  }
 
-  /**
-   * @param senddp Datagram to send
-   * @throws Exception Throws all
-   */
-  private void sendPacketWithError(DatagramPacket senddp, boolean fec) throws Exception {
-    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
-    String label;
-    if (fec) label = " fec ";
-    else label = " media ";
-    // TASK correct the if-instruction to work properly
-    if (random.nextDouble() > lossRate) {
-      logger.log(Level.FINE, "Send frame: " + imagenb + label);
-      RTPsocket.send(senddp);
-    } else {
-      System.err.println("Dropped frame: " + imagenb + label);
-      if (!fec) dropCounter++;
+    // create and start the streaming engine
+    StreamingEngine engine = new StreamingEngine(RTSPport, startGroupSize, cacheBudget);
+    if (options.containsKey("mtu")) {
+      engine.setMtu(Integer.parseInt(options.get("mtu")));
     }
-    // System.out.println("Drop count media packets: " +  dropCounter);
-  }
-
-  /**
-   * Parse RTSP-Request
-   *
-   * @return RTSP-Request Type (SETUP, PLAY, etc.)
-   */
-  private int parse_RTSP_request() {
-    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
-    int request_type = -1;
-    try {
-      logger.log(Level.INFO, "*** wait for RTSP-Request ***");
-      // parse request line and extract the request_type:
-      String RequestLine = RTSPBufferedReader.readLine();
-      // System.out.println("RTSP Server - Received from Client:");
-      logger.log(Level.CONFIG, RequestLine);
-
-      StringTokenizer tokens = new StringTokenizer(RequestLine);
-      String request_type_string = tokens.nextToken();
-
-      // convert to request_type structure:
-      switch ((request_type_string)) {
-        case "SETUP":
-          request_type = SETUP;
-          break;
-        case "PLAY":
-          request_type = PLAY;
-          break;
-        case "PAUSE":
-          request_type = PAUSE;
+    if (options.containsKey("pacing")) {
+      // packets of a frame: back-to-back, spread over the frame interval or limited in kbit/s
+      String pacing = options.get("pacing");
+      switch (pacing) {
+        case "off":
+          engine.setPacketPacing(FramePacer.PacketPacing.OFF, 0);
           break;
-        case "TEARDOWN":
-          request_type = TEARDOWN;
+        case "spread":
+          engine.setPacketPacing(FramePacer.PacketPacing.SPREAD, 0);
           break;
-        case "OPTIONS":
-          request_type = OPTIONS;
-          break;
-        case "DESCRIBE":
-          request_type = DESCRIBE;
+        default:
+          engine.setPacketPacing(FramePacer.PacketPacing.BITRATE, Long.parseLong(pacing) * 1000);
           break;
       }
-
-      if (request_type == SETUP
-              || request_type == DESCRIBE) {
-        // extract VideoFileName from RequestLine
-        String dir = tokens.nextToken();
-        //String[] tok = dir.split(".+?/(?=[^/]+$)");
-        String[] tok = dir.split("/");
-        //VideoFileName = VideoDir + tok[1];
-        VideoFileName = VideoDir + tok[3];
-        logger.log(Level.CONFIG, "File: " + VideoFileName);
-      }
-
-      String line = "";
-      line = RTSPBufferedReader.readLine();
-      while (!line.equals("")) {
-        logger.log(Level.FINE, line);
-        if (line.contains("CSeq")) {
-          tokens = new StringTokenizer(line);
-          tokens.nextToken();
-          RTSPSeqNb = Integer.parseInt(tokens.nextToken());
-        } else if (line.contains("Transport")) {
-          sdpTransportLine = line;
-          RTP_dest_port = Integer.parseInt( line.split("=")[1].split("-")[0] );
-          FEC_dest_port = RTP_dest_port + 0;
-          logger.log(Level.FINE, "Client-Port: " + RTP_dest_port);
+    }
+    if (options.containsKey("channels")) {
+      // live channels, e.g. mystream=htw.mjpeg: one stream for all sessions requesting the name
+      for (String channel : options.get("channels").split(",")) {
+        String[] nameVideo = channel.split("=", 2);
+        if (!nameVideo[0].isEmpty()) {
+          engine.addChannel(nameVideo[0], nameVideo.length > 1 ? nameVideo[1] : nameVideo[0]);
         }
-        // else is any other field, not checking for now
-
-        line = RTSPBufferedReader.readLine();
       }
+    }
+    if (options.containsKey("fec-target")) {
+      // FEC group size from the RTCP feedback of the clients
+      String target = options.get("fec-target");
+      engine.setFecTargetFrameLoss(target.equals("auto")
+          ? FecController.DEFAULT_TARGET : Double.parseDouble(target) / 100);
+    }
+    if (options.containsKey("rs-repair")) {
+      // repair packets per group for clients requesting Reed-Solomon FEC
+      engine.setFecRepairPackets(Integer.parseInt(options.get("rs-repair")));
+    }
+    if (options.containsKey("ulp-length")) {
+      // payload bytes protected more strongly for clients requesting ULP, limited by the MTU
+      engine.setUlpProtectionLength(Integer.parseInt(options.get("ulp-length")));
+    }
+    engine.start();
 
-      logger.log(Level.INFO, "*** Request received ***\n");
-
-    } catch (Exception ex) {
-      ex.printStackTrace();
-      logger.log(Level.SEVERE, "Exception caught: " + ex);
-      System.exit(0);
+    // the window is optional, headless servers only run the engine
+    if (GraphicsEnvironment.isHeadless()) {
+      logger.log(Level.INFO, "Headless mode, no GUI");
+    } else {
+      SwingUtilities.invokeLater(() -> {
+        Server theServer = new Server(engine);
+        theServer.setSize(500, 200);
+        theServer.setVisible(true);
+      });
     }
-    return (request_type);
   }
 
   /**
-   * Send RTSP Response
+   * Parses the options of the command line.
    *
-   * @param method RTSP-Method
+   * @param argv arguments of the command line
+   * @param first index of the first option
+   * @return values by option name, in the form name=value on the command line
+   * @throws IllegalArgumentException if an option is unknown or has no value
    */
-  private void send_RTSP_response(int method) {
-    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
-    logger.log(Level.INFO, "*** send RTSP-Response ***");
-    try {
-      RTSPBufferedWriter.write("RTSP/1.0 200 OK" + CRLF);
-      RTSPBufferedWriter.write("CSeq: " + RTSPSeqNb + CRLF);
-
-      // 3th line depends on Request
-      switch (method) {
-        case OPTIONS:
-          RTSPBufferedWriter.write(options() );
-          break;
-        case DESCRIBE:
-          RTSPBufferedWriter.write(describe() );
-          break;
-        case SETUP:
-          RTSPBufferedWriter.write(sdpTransportLine + ";server_port=");
-          RTSPBufferedWriter.write(RTPsocket.getLocalPort() + "-");
-          RTSPBufferedWriter.write((RTPsocket.getLocalPort()+1) + "" + CRLF);
-          // RTSPBufferedWriter.write(";ssrc=0;mode=play" + CRLF);
-        default:
-          RTSPBufferedWriter.write("Session: " + RTSP_ID + ";timeout=30000" + CRLF);
-          break;
+  static Map<String, String> parseOptions(String[] argv, int first) {
+    Map<String, String> options = new HashMap<>();
+    for (int i = first; i < argv.length; i++) {
+      String[] nameValue = argv[i].split("=", 2);
+      if (nameValue.length < 2 || !Arrays.asList(OPTIONS).contains(nameValue[0])) {
+        throw new IllegalArgumentException(
+            "Invalid option: " + argv[i] + ", options are " + String.join("=, ", OPTIONS) + "=");
       }
-
-      // Send end of response
-      if (method != DESCRIBE) RTSPBufferedWriter.write(CRLF);
-      RTSPBufferedWriter.flush();
-      logger.log(Level.FINE, "*** RTSP-Server - Sent response to Client ***");
-
-    } catch (Exception ex) {
-      ex.printStackTrace();
-      logger.log(Level.SEVERE, "Exception caught: " + ex);
-      System.exit(0);
+      options.put(nameValue[0], nameValue[1]);
     }
-  }
-
-  /** Creates a OPTIONS response string
-   * @return  Options string, starting with: Public: ...
-   */
-  //TASK Complete the OPTIONS response
-  private String options() {
-    return "Public: DESCRIBE,SETUP,TEARDOWN,PLAY,PAUSE" + CRLF;
-  }
-
-
-  /** Creates a DESCRIBE response string in SDP format for current media */
-  //TASK Complete the DESCRIBE response
-  private String describe() {
-    StringWriter rtspHeader = new StringWriter();
-    StringWriter rtspBody = new StringWriter();
-    VideoMetadata meta = Server.getVideoMetadata(VideoFileName);
-
-    // Write the body first so we can get the size later
-    rtspBody.write("v=0" + CRLF);
-    rtspBody.write("o=Me 2808844564 2808844564 IN IP4 localhost"+ CRLF);
-    rtspBody.write("s=" + CRLF);
-    rtspBody.write("c=IN IP4 localhost" + CRLF);
-
-    rtspHeader.write("Content-Base: " + "rtsp://localhost:3333/htw.mjpeg"+ CRLF);
-    rtspHeader.write("Content-Type: " + "application/sdp" + CRLF);
-    rtspHeader.write("Content-Length: " + rtspBody.toString().getBytes().length + CRLF);
-    rtspHeader.write(CRLF);
-
-    return rtspHeader.toString() + rtspBody.toString();
+    return options;
   }
 
   private void initGuiEncryption(JPanel panel) {
@@ -584,39 +343,4 @@ public class Server extends JFrame implements ActionListener, ChangeListener {
     gbc.fill = GridBagConstraints.HORIZONTAL;
     panel.add(e_jpeg, gbc);
   }
-
-  /** Get the metadata from a video file.
-   *
-   *  If no metadata is available, all fields are zero-initialized with
-   *  exception of the framerate. Because the framerate is strongly required,
-   *  it is set to a default value.
-   *
-   *  @param filename Name of the video file
-   *  @return metadata structure containing the extracted information
-   */
-  private static VideoMetadata getVideoMetadata(String filename) {
-    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
-    VideoMetadata meta = null;
-
-    String splittedFilename[] = filename.split("\\.");
-    switch (splittedFilename[splittedFilename.length-1]) {
-      case "avi":
-        meta = AviMetadataParser.parse(filename);
-        break;
-      case "mov":
-        meta = QuickTimeMetadataParser.parse(filename);
-        break;
-      default:
-        logger.log(Level.WARNING, "File extension not recognized: " + filename);
-      case "mjpg":
-      case "mjpeg":
-        meta = new VideoMetadata(1000 / DEFAULT_FRAME_PERIOD);
-        break;
-    }
-
-    assert meta != null : "VideoMetadata of file " + filename + " was not initialized correctly";
-    return meta;
-  }
 }
-message.txt
-21 kB
\ No newline at end of file
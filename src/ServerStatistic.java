@@ -0,0 +1,32 @@
+/**
+ * Snapshot of the state of the streaming engine, e.g. for displaying.
+ *
+ * All values are taken at the time of {@link StreamingEngine#getStatistic()}.
+ */
+public class ServerStatistic {
+    public int sessions = 0;
+    public int initSessions = 0;
+    public int readySessions = 0;
+    public int playingSessions = 0;
+    public long sentFrames = 0;
+    public long droppedPackets = 0;
+    public double meanPacingErrorMicros = 0.0;
+    public double maxPacingErrorMicros = 0.0;
+    public double meanBurstPackets = 0.0;
+    public long maxBurstPackets = 0;
+    public long skippedFrames = 0;
+    public int reportingSessions = 0; // sessions with RTCP receiver reports
+    public double reportedLossPercent = 0.0; // mean fraction lost of the last reports
+    public double reportedJitterMillis = 0.0; // mean interarrival jitter
+    public boolean fecAuto = false; // FEC group size controlled by the feedback
+    public double meanFecGroupSize = 0.0;
+    public long fecChanges = 0; // changes of the group size by the control
+    public double maxPredictedFrameLossPercent = 0.0; // expected frame loss after FEC
+    public long nackRequests = 0; // packets requested by NACKs
+    public long retransmittedPackets = 0;
+    public long cacheHits = 0;
+    public long cacheMisses = 0;
+    public long cacheEvictions = 0;
+    public int cacheFrames = 0;
+    public long cacheBytes = 0;
+}
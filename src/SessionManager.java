@@ -0,0 +1,420 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Registry of all RTSP sessions of the server.
+ *
+ * Every accepted RTSP connection gets its own {@link RtspSession} which runs on
+ * a virtual thread. The manager also holds the settings which are changed at
+ * run time (channel errors, FEC group size, encryption) and passes them on
+ * to the sessions, and the {@link SharedStream}s: the multicast streams of
+ * the sessions which requested multicast delivery and the live channels.
+ */
+public class SessionManager {
+
+  /** Observer for session changes, e.g. the server GUI. */
+  public interface Listener {
+    /**
+     * Called after a session was opened, closed or changed its RTSP state.
+     *
+     * @param session the changed session
+     */
+    void sessionChanged(RtspSession session);
+  }
+
+  static final int SEND_BUFFERS = 64; // free send buffers kept in the pool
+  static final String MULTICAST_GROUP = "239.255.42.42"; // administratively scoped (RFC 2365)
+  static final int MULTICAST_BASE_PORT = 5004; // each video gets the next even port
+  static final int MULTICAST_TTL = 1; // local network only
+
+  private final Map<Integer, RtspSession> sessions = new ConcurrentHashMap<>();
+  private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+  private final FramePacer framePacer =
+      new FramePacer(Math.min(4, Runtime.getRuntime().availableProcessors()));
+  private final FrameCache frameCache;
+  // shared streams, guarded by sharedStreamLock
+  private final Object sharedStreamLock = new Object();
+  private final Map<String, MulticastStream> multicastStreams = new HashMap<>(); // by video file
+  private final Map<String, LiveChannel> liveChannels = new HashMap<>(); // by channel name
+  private int nextMulticastPort = MULTICAST_BASE_PORT;
+  private final Map<String, String> channelVideos = new ConcurrentHashMap<>(); // configured channels
+  // session IDs are unique, the random start makes them differ between server runs
+  private final AtomicInteger nextSessionId =
+      new AtomicInteger(ThreadLocalRandom.current().nextInt(100000, 1 << 30));
+
+  // settings for new and running sessions
+  private volatile double lossRate = 0.0;
+  private volatile int fecGroupSize;
+  private volatile double fecTargetFrameLoss = 0.0; // 0: group size only set by hand
+  private volatile int fecRepairPackets = 2; // m for the sessions with Reed-Solomon FEC
+  private volatile int ulpProtectionLength = UlpFecHandler.DEFAULT_PROTECTION_LENGTH;
+  private volatile int mtu = RtpHandler.DEFAULT_MTU;
+  private volatile BufferPool sendBufferPool = newSendBufferPool(RtpHandler.DEFAULT_MTU);
+  private volatile RtpHandler.EncryptionMode encryptionMode = RtpHandler.EncryptionMode.NONE;
+  private volatile FramePacer.PacketPacing packetPacing = FramePacer.PacketPacing.OFF;
+  private volatile long pacingBitrate = 0; // bit/s for PacketPacing.BITRATE
+
+  /**
+   * @param fecGroupSize initial FEC group size of new sessions
+   */
+  public SessionManager(int fecGroupSize) {
+    this(fecGroupSize, FrameCache.DEFAULT_BUDGET);
+  }
+
+  /**
+   * @param fecGroupSize initial FEC group size of new sessions
+   * @param cacheBudget memory budget of the shared frame cache in bytes
+   */
+  public SessionManager(int fecGroupSize, long cacheBudget) {
+    this.fecGroupSize = fecGroupSize;
+    this.frameCache = new FrameCache(cacheBudget);
+  }
+
+  /**
+   * Creates a session for an accepted RTSP connection and starts it on a virtual thread.
+   *
+   * @param connection RTSP connection of the client
+   * @return the started session
+   * @throws IOException if the RTP socket of the session can not be created
+   */
+  public RtspSession open(RtspConnection connection) throws IOException {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    RtspSession session = new RtspSession(this, nextSessionId.incrementAndGet(), connection);
+    sessions.put(session.getSessionId(), session);
+
+    logger.log(Level.INFO, "New RTSP session " + session.getSessionId()
+        + " from " + connection.getRemoteAddress() + " (" + sessions.size() + " active)");
+    Thread.ofVirtual().name("rtsp-session-" + session.getSessionId()).start(session);
+    fireSessionChanged(session);
+    return session;
+  }
+
+  /**
+   * Removes a finished session. Called by the session itself.
+   *
+   * @param session the closed session
+   */
+  void remove(RtspSession session) {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    if (sessions.remove(session.getSessionId(), session)) {
+      logger.log(Level.INFO, "RTSP session " + session.getSessionId()
+          + " closed (" + sessions.size() + " active)");
+      fireSessionChanged(session);
+    }
+  }
+
+  /** @return all active sessions */
+  public Collection<RtspSession> getSessions() {
+    return sessions.values();
+  }
+
+  /** @return the scheduler which sends the frames of all sessions */
+  public FramePacer getFramePacer() {
+    return framePacer;
+  }
+
+  /** @return the RFC 2435 payloads shared by all sessions */
+  public FrameCache getFrameCache() {
+    return frameCache;
+  }
+
+  /**
+   * Adds a session to the multicast stream of a video, the stream is created if necessary.
+   *
+   * @param videoFileName path of the video
+   * @param session the session after its SETUP
+   * @param localAddress server address of the RTSP connection, selects the interface
+   * @return the stream of the video
+   * @throws IOException if the video or the channel can not be opened
+   */
+  MulticastStream joinMulticast(String videoFileName, RtspSession session, InetAddress localAddress)
+      throws IOException {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    synchronized (sharedStreamLock) {
+      MulticastStream stream = multicastStreams.get(videoFileName);
+      if (stream == null) {
+        NetworkInterface networkInterface =
+            localAddress != null ? NetworkInterface.getByInetAddress(localAddress) : null;
+        InetSocketAddress group =
+            new InetSocketAddress(InetAddress.getByName(MULTICAST_GROUP), nextMulticastPort);
+        stream = new MulticastStream(this, videoFileName, group, networkInterface, MULTICAST_TTL);
+        nextMulticastPort += 2;
+        multicastStreams.put(videoFileName, stream);
+        logger.log(Level.INFO, "New multicast stream " + group + " for " + videoFileName);
+      }
+      stream.addMember(session);
+      return stream;
+    }
+  }
+
+  /**
+   * Adds a session to a live channel, the channel is started if necessary.
+   *
+   * @param name name of the channel
+   * @param videoFileName path of the video of the channel
+   * @param session the session after its SETUP
+   * @param viewer destination, sequence numbers and SSRC of the session
+   * @return the channel
+   * @throws IOException if the video can not be opened
+   */
+  LiveChannel joinChannel(String name, String videoFileName, RtspSession session,
+      RtpSender.Viewer viewer) throws IOException {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    synchronized (sharedStreamLock) {
+      LiveChannel channel = liveChannels.get(name);
+      if (channel == null) {
+        channel = new LiveChannel(this, name, videoFileName);
+        liveChannels.put(name, channel);
+        logger.log(Level.INFO, "New live channel " + name + " for " + videoFileName);
+      }
+      channel.addViewer(session, viewer);
+      return channel;
+    }
+  }
+
+  /**
+   * Removes a session from a shared stream, the stream is closed without sessions.
+   *
+   * @param stream the multicast stream or live channel
+   * @param session the session
+   */
+  void leave(SharedStream stream, RtspSession session) {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    synchronized (sharedStreamLock) {
+      if (stream.removeMember(session)) {
+        multicastStreams.values().remove(stream);
+        liveChannels.values().remove(stream);
+        stream.close();
+        logger.log(Level.INFO, stream + " closed");
+      }
+    }
+  }
+
+  /** @return the multicast streams and live channels */
+  public Collection<SharedStream> getSharedStreams() {
+    synchronized (sharedStreamLock) {
+      List<SharedStream> streams = new ArrayList<>(multicastStreams.values());
+      streams.addAll(liveChannels.values());
+      return streams;
+    }
+  }
+
+  /**
+   * Configures a live channel; sessions which request the name get the shared stream.
+   *
+   * @param name name of the channel in the RTSP URL, e.g. mystream
+   * @param videoFileName file name of the video in the video directory, repeated by the channel
+   */
+  public void addChannel(String name, String videoFileName) {
+    channelVideos.put(name, videoFileName);
+  }
+
+  /**
+   * @param name name in the RTSP URL
+   * @return file name of the video of the channel, null if there is no such channel
+   */
+  public String getChannelVideo(String name) {
+    return channelVideos.get(name);
+  }
+
+  /** @return number of active sessions */
+  public int getSessionCount() {
+    return sessions.size();
+  }
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  void fireSessionChanged(RtspSession session) {
+    for (Listener l : listeners) {
+      l.sessionChanged(session);
+    }
+  }
+
+  /** @return simulated packet loss rate of the channel (0..1) */
+  public double getLossRate() {
+    return lossRate;
+  }
+
+  /**
+   * Sets the simulated packet loss rate for all sessions.
+   *
+   * @param lossRate loss rate (0..1)
+   */
+  public void setLossRate(double lossRate) {
+    this.lossRate = lossRate;
+  }
+
+  /** @return MTU towards the clients, used at the next SETUP of a session */
+  public int getMtu() {
+    return mtu;
+  }
+
+  /**
+   * Sets the MTU towards the clients; frames are split into RTP packets of this size.
+   *
+   * @param mtu MTU in bytes, including IP and UDP header
+   */
+  public void setMtu(int mtu) {
+    if (mtu < RtpHandler.MIN_MTU || mtu > RtpHandler.MAX_MTU) {
+      throw new IllegalArgumentException("Invalid MTU: " + mtu);
+    }
+    if (mtu != this.mtu) {
+      sendBufferPool = newSendBufferPool(mtu); // running sessions keep the pool of their SETUP
+    }
+    this.mtu = mtu;
+  }
+
+  /** @return pool of send buffers for the current MTU, shared by all sessions */
+  public BufferPool getSendBufferPool() {
+    return sendBufferPool;
+  }
+
+  private static BufferPool newSendBufferPool(int mtu) {
+    return new BufferPool(mtu - RtpHandler.IP_UDP_HEADER_SIZE, SEND_BUFFERS);
+  }
+
+  /** @return pacing of the packets within a frame */
+  public FramePacer.PacketPacing getPacketPacing() {
+    return packetPacing;
+  }
+
+  /** @return send rate of each session in bit/s if the packets are limited to a bitrate */
+  public long getPacingBitrate() {
+    return pacingBitrate;
+  }
+
+  /**
+   * Sets the pacing of the packets within a frame for all sessions, used from the next frame on.
+   *
+   * @param pacing the pacing mode
+   * @param bitrate send rate of each session in bit/s, only used for {@code BITRATE}
+   */
+  public void setPacketPacing(FramePacer.PacketPacing pacing, long bitrate) {
+    if (pacing == FramePacer.PacketPacing.BITRATE && bitrate <= 0) {
+      throw new IllegalArgumentException("Invalid bitrate: " + bitrate);
+    }
+    pacingBitrate = bitrate;
+    packetPacing = pacing;
+  }
+
+  /** @return FEC group size for new sessions */
+  public int getFecGroupSize() {
+    return fecGroupSize;
+  }
+
+  /**
+   * Sets the FEC group size for new and all running sessions.
+   *
+   * @param k new group size
+   */
+  public void setFecGroupSize(int k) {
+    fecGroupSize = k;
+    for (RtspSession session : sessions.values()) {
+      session.setFecGroupSize(k);
+    }
+    for (SharedStream stream : getSharedStreams()) {
+      stream.setFecGroupSize(k);
+    }
+  }
+
+  /** @return target frame loss rate of the automatic FEC control, 0 if it is off */
+  public double getFecTargetFrameLoss() {
+    return fecTargetFrameLoss;
+  }
+
+  /**
+   * Switches the automatic control of the FEC group size of the unicast sessions.
+   * If it is switched off, all sessions get the group size set by hand again.
+   *
+   * @param targetFrameLoss highest acceptable frame loss rate, 0 to switch off
+   */
+  public void setFecTargetFrameLoss(double targetFrameLoss) {
+    if (targetFrameLoss < 0 || targetFrameLoss >= 1) {
+      throw new IllegalArgumentException("Invalid target frame loss: " + targetFrameLoss);
+    }
+    fecTargetFrameLoss = targetFrameLoss;
+    if (targetFrameLoss == 0) {
+      setFecGroupSize(fecGroupSize);
+    }
+  }
+
+  /** @return repair packets per group for the sessions with Reed-Solomon FEC */
+  public int getFecRepairPackets() {
+    return fecRepairPackets;
+  }
+
+  /**
+   * Sets the number of Reed-Solomon repair packets per group, used at the next SETUP.
+   *
+   * @param m repair packets per group
+   */
+  public void setFecRepairPackets(int m) {
+    if (m < 1 || m > RsFecHandler.MAX_REPAIR_PACKETS) {
+      throw new IllegalArgumentException("Invalid number of repair packets: " + m);
+    }
+    fecRepairPackets = m;
+  }
+
+  /** @return payload bytes protected by ULP level 0 for the sessions with ULP */
+  public int getUlpProtectionLength() {
+    return ulpProtectionLength;
+  }
+
+  /**
+   * Sets the payload bytes which are protected more strongly with ULP, used at the next SETUP.
+   * The length is limited by the payload of the current MTU, so set the MTU first.
+   *
+   * @param length protection length in bytes
+   */
+  public void setUlpProtectionLength(int length) {
+    int maxLength = mtu - RtpHandler.IP_UDP_HEADER_SIZE - RTPpacket.HEADER_SIZE
+        - FECpacket.ULP_OVERHEAD;
+    if (length < 1 || length > maxLength) {
+      throw new IllegalArgumentException("Invalid ULP protection length: " + length);
+    }
+    ulpProtectionLength = length;
+  }
+
+  /** @return encryption mode for new sessions */
+  public RtpHandler.EncryptionMode getEncryptionMode() {
+    return encryptionMode;
+  }
+
+  /**
+   * Sets the encryption mode for new sessions and for running sessions which
+   * have not sent any packets yet.
+   *
+   * @param mode the encryption mode
+   * @return true if the mode could be set
+   */
+  public boolean setEncryption(RtpHandler.EncryptionMode mode) {
+    // check the mode once, the result is the same for all sessions
+    if (!new RtpHandler(0).setEncryption(mode)) {
+      return false;
+    }
+    encryptionMode = mode;
+    for (RtspSession session : sessions.values()) {
+      session.setEncryption(mode);
+    }
+    return true;
+  }
+}
@@ -0,0 +1,198 @@
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * RTP stream of one video which is read, packetized and protected with FEC
+ * only once for many sessions.
+ *
+ * The stream is created by the {@link SessionManager} at the first SETUP of
+ * a session and runs as long as at least one of its sessions is playing. The
+ * video is repeated at its end; Range and Scale of the sessions are not
+ * applied because the stream is shared. Subclasses decide where the packets
+ * are sent to.
+ */
+public abstract class SharedStream {
+  protected final SessionManager manager;
+  protected final DatagramChannel channel;
+  protected final RtpHandler rtpHandler;
+  protected final RtpSender sender;
+  private final String name;
+  private final VideoReader video;
+  private final FrameCache.VideoKey videoKey;
+  private final Set<RtspSession> members = new HashSet<>(); // sessions after SETUP
+  private final Set<RtspSession> players = new HashSet<>(); // sessions in PLAYING
+  private FramePacer.PacedTask pacerTask = null; // sends the images at the video frame rate
+
+  // position of the stream, used by the pacer thread only
+  private int frameIndex = 0;
+  private int timestamp = 0;
+
+  /**
+   * Opens the video; the stream is started by {@link #play}.
+   *
+   * @param manager the session manager which owns the stream
+   * @param name name of the stream for logging
+   * @param videoFileName path of the video
+   * @param channel open channel for sending, closed with the stream
+   * @throws IOException if the video can not be opened
+   */
+  protected SharedStream(SessionManager manager, String name, String videoFileName,
+      DatagramChannel channel) throws IOException {
+    this.manager = manager;
+    this.name = name;
+    this.channel = channel;
+    try {
+      video = new VideoReader(videoFileName, () -> RtspSession.parseVideoMetadata(videoFileName));
+    } catch (IOException ex) {
+      channel.close();
+      throw ex;
+    }
+    videoKey = FrameCache.VideoKey.of(videoFileName);
+    rtpHandler = new RtpHandler(manager.getFecGroupSize());
+    rtpHandler.setEncryption(manager.getEncryptionMode());
+    sender = new RtpSender(manager, rtpHandler, channel);
+  }
+
+  /** @return local port of the sending channel */
+  public int getLocalPort() {
+    return channel.socket().getLocalPort();
+  }
+
+  /**
+   * Adds a session after its SETUP.
+   *
+   * @param session the session
+   */
+  synchronized void addMember(RtspSession session) {
+    members.add(session);
+  }
+
+  /**
+   * Removes a session, e.g. at TEARDOWN.
+   *
+   * @param session the session
+   * @return true if the session was the last one
+   */
+  synchronized boolean removeMember(RtspSession session) {
+    pause(session);
+    return members.remove(session) && members.isEmpty();
+  }
+
+  /**
+   * Starts sending if the session is the first one which plays.
+   *
+   * @param session the session which received PLAY
+   */
+  public synchronized void play(RtspSession session) {
+    if (players.add(session)) {
+      playerAdded(session);
+    }
+    if (pacerTask == null || pacerTask.isCancelled()) {
+      // on the thread of a cancelled task, which may still be sending
+      pacerTask = manager.getFramePacer()
+          .schedule(this::sendNextFrame, video.getMetadata().getFramerate(), pacerTask);
+    }
+  }
+
+  /**
+   * Stops sending if no other session plays.
+   *
+   * @param session the session which received PAUSE or TEARDOWN
+   */
+  public synchronized void pause(RtspSession session) {
+    if (players.remove(session)) {
+      playerRemoved(session);
+    }
+    if (players.isEmpty()) {
+      stopPacing();
+    }
+  }
+
+  /**
+   * Called when a session starts playing.
+   *
+   * @param session the session
+   */
+  protected void playerAdded(RtspSession session) {}
+
+  /**
+   * Called when a session stops playing.
+   *
+   * @param session the session
+   */
+  protected void playerRemoved(RtspSession session) {}
+
+  /**
+   * Sets the FEC group size of the stream.
+   *
+   * @param k group size
+   */
+  void setFecGroupSize(int k) {
+    rtpHandler.setFecGroupSize(k);
+  }
+
+  /** Stops the stream and releases the video and the channel. */
+  synchronized void close() {
+    for (RtspSession session : Set.copyOf(players)) {
+      pause(session);
+    }
+    stopPacing();
+    video.close();
+    try {
+      channel.close();
+    } catch (IOException ex) {
+      // nothing left to do
+    }
+  }
+
+  private void stopPacing() {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    if (pacerTask != null && !pacerTask.isCancelled()) {
+      pacerTask.cancel();
+      logger.log(Level.INFO, name + " " + pacerTask.getStatistic());
+    }
+  }
+
+  /**
+   * Sends the next frame, called by the {@link FramePacer}.
+   *
+   * @param task the pacer task of the stream
+   */
+  private void sendNextFrame(FramePacer.PacedTask task) {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    try {
+      if (task.isFrameRun()) {
+        boolean ready = sender.prepareFrame(task);
+        if (frameIndex >= video.getFrameCount()) {
+          frameIndex = 0; // repeat the video
+        }
+        byte[] payload = ready ? sender.readPayload(video, videoKey, frameIndex) : null;
+        if (payload != null) {
+          sender.startFrame(task, payload, timestamp);
+        } else if (ready) {
+          frameIndex = video.getFrameCount(); // end of a video without index
+        } else {
+          task.getStatistic().recordSkippedFrame();
+        }
+        frameIndex++;
+        timestamp += MjpegIndex.RTP_CLOCK_RATE / video.getMetadata().getFramerate();
+      }
+      sender.sendPackets(task);
+    } catch (ClosedChannelException ex) {
+      task.cancel(); // stream closed meanwhile
+    } catch (Exception ex) {
+      logger.log(Level.SEVERE, name + ": Exception caught: " + ex);
+      task.cancel();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
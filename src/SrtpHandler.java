@@ -1,3 +1,5 @@
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
@@ -185,7 +187,68 @@ public class SrtpHandler {
 
         rtp.payload = decryptPayload(index, ciphertext);
 
-        // update ROC and s_l
+        updateRoc(index, seq);
+
+        return rtp;
+    }
+
+    /**
+     * Transform a SRTP packet in place to get a RTP packet.
+     *
+     * Works like {@link #retrieveFromSrtp(byte[])}, but the payload is
+     * decrypted within the receive buffer. MKI and authentication tag are
+     * removed by lowering the limit of the buffer.
+     *
+     * @param packet Received packet from position 0 to limit.
+     * @return true if the packet was decrypted.
+     */
+    public boolean retrieveFromSrtp(ByteBuffer packet) {
+        if (!isInitialized() || packet.limit() < RTPpacket.HEADER_SIZE) {
+            return false;
+        }
+
+        int seq = packet.getShort(2) & 0xFFFF;
+        if (s_l == -1) {
+            s_l = (short)seq;
+        }
+
+        long index = indexFromSeq(seq);
+
+        if (key_derivation_rate != 0 && index % key_derivation_rate == 0) {
+            k_e = computeSessionKey(index, Label.ENCRYPTION, n_e);
+            k_s = computeSessionKey(index, Label.SALTING, n_s);
+        }
+
+        // length of MKI and authentication tag, see above
+        int suffixLength = 0;
+        switch (macId) {
+        case NONE:
+            break;
+        }
+        if (masterKeyIndicator) {
+            suffixLength += 4;
+        }
+        int payloadLength = packet.limit() - RTPpacket.HEADER_SIZE - suffixLength;
+        if (payloadLength < 0) {
+            return false;
+        }
+        packet.limit(RTPpacket.HEADER_SIZE + payloadLength);
+
+        if (!decryptPayload(index, packet.slice(RTPpacket.HEADER_SIZE, payloadLength))) {
+            return false;
+        }
+
+        updateRoc(index, seq);
+        return true;
+    }
+
+    /**
+     * Update ROC and s_l after a packet was processed (RFC 3711, 3.3.1).
+     *
+     * @param index packet index
+     * @param seq sequence number of the packet
+     */
+    private void updateRoc(long index, int seq) {
         long v = index - seq;
         if (v == roc-1) {
             // nothing to do
@@ -195,8 +258,6 @@ public class SrtpHandler {
             s_l = (short)seq;
             roc = v;
         }
-
-        return rtp;
     }
 
     /**
@@ -347,6 +408,50 @@ public class SrtpHandler {
     }
 
     private byte[] aesCrypt(boolean encryption, long index, byte[] payload) {
+        byte[] ciphertext = null;
+        try {
+            ciphertext = aesCipher(encryption, index).doFinal(payload);
+        } catch (GeneralSecurityException gsex) {
+            System.out.println(gsex);
+        }
+
+        return ciphertext;
+    }
+
+    /**
+     * Decrypt a payload in place.
+     *
+     * @param index packet index
+     * @param payload payload from position to limit, is overwritten
+     * @return true if successful
+     */
+    private boolean decryptPayload(long index, ByteBuffer payload) {
+        switch (cipherId) {
+        case AES_CTR:
+            try {
+                // CTR mode keeps the length, input and output may overlap
+                aesCipher(false, index).doFinal(payload.duplicate(), payload);
+                return true;
+            } catch (GeneralSecurityException gsex) {
+                System.out.println(gsex);
+                return false;
+            }
+        case NONE:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Create the AES cipher in counter mode for a packet (RFC 3711, 4.1.1).
+     *
+     * @param encryption true for encryption, false for decryption
+     * @param index packet index
+     * @return initialized cipher
+     * @throws GeneralSecurityException if AES/CTR is not available
+     */
+    private Cipher aesCipher(boolean encryption, long index) throws GeneralSecurityException {
         byte[] indexData = new byte[n_b];
         System.arraycopy(SrtpHandler.longToByteArray(index), 0, indexData, n_b - 10, 8);
         byte[] ivData = new byte[n_b];
@@ -360,34 +465,16 @@ public class SrtpHandler {
         // todo: RFC 3711, p. 22: ensure that each IV value is a nonce
         // -> ROC || SEQ and SSRC must be destinct form any key
 
-        byte[] ciphertext = null;
-        try {
-            Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
-            Key key = new SecretKeySpec(k_e, "AES");
-            IvParameterSpec iv = new IvParameterSpec(ivData);
-
-            if (encryption) {
-                cipher.init(Cipher.ENCRYPT_MODE, key, iv);
-            } else {
-                cipher.init(Cipher.DECRYPT_MODE, key, iv);
-            }
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        Key key = new SecretKeySpec(k_e, "AES");
+        IvParameterSpec iv = new IvParameterSpec(ivData);
 
-            ciphertext = cipher.doFinal(payload);
-        } catch (NoSuchAlgorithmException nsaex) {
-            System.out.println(nsaex);
-        } catch (NoSuchPaddingException nspex) {
-            System.out.println(nspex);
-        } catch (InvalidAlgorithmParameterException iapex) {
-            System.out.println(iapex);
-        } catch (InvalidKeyException ikex) {
-            System.out.println(ikex);
-        } catch (IllegalBlockSizeException ibsex) {
-            System.out.println(ibsex);
-        } catch (BadPaddingException bpex) {
-            System.out.println(bpex);
+        if (encryption) {
+            cipher.init(Cipher.ENCRYPT_MODE, key, iv);
+        } else {
+            cipher.init(Cipher.DECRYPT_MODE, key, iv);
         }
-
-        return ciphertext;
+        return cipher;
     }
 
     private byte[] encryptPayload(long index, byte[] payload) {
@@ -0,0 +1,231 @@
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Headless streaming server.
+ *
+ * Combines the RTSP front end, the sessions and the frame pacer without any
+ * dependency on AWT or Swing, so it runs with {@code java.awt.headless=true}.
+ * A GUI may observe the engine by polling {@link #getStatistic()} and change
+ * the settings at run time; it is never called from the streaming path.
+ */
+public class StreamingEngine {
+  private final int port;
+  private final SessionManager sessionManager;
+  private RtspServer rtspServer = null;
+
+  /**
+   * @param port RTSP port
+   * @param fecGroupSize initial FEC group size, 0 disables FEC
+   */
+  public StreamingEngine(int port, int fecGroupSize) {
+    this(port, fecGroupSize, FrameCache.DEFAULT_BUDGET);
+  }
+
+  /**
+   * @param port RTSP port
+   * @param fecGroupSize initial FEC group size, 0 disables FEC
+   * @param cacheBudget memory budget of the shared frame cache in bytes
+   */
+  public StreamingEngine(int port, int fecGroupSize, long cacheBudget) {
+    this.port = port;
+    sessionManager = new SessionManager(fecGroupSize, cacheBudget);
+  }
+
+  /**
+   * Opens the RTSP port and starts accepting clients.
+   *
+   * @throws IOException if the port can not be opened
+   */
+  public synchronized void start() throws IOException {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    if (rtspServer != null) {
+      return;
+    }
+    rtspServer = new RtspServer(port, sessionManager, RtspServer.DEFAULT_IO_THREADS);
+    rtspServer.start();
+    logger.log(Level.INFO, "Server listening on port " + rtspServer.getPort());
+  }
+
+  /** Closes the RTSP port and all sessions. */
+  public synchronized void stop() {
+    if (rtspServer != null) {
+      rtspServer.stop();
+      rtspServer = null;
+    }
+    for (RtspSession session : sessionManager.getSessions()) {
+      session.close();
+    }
+  }
+
+  /** @return the sessions of the engine */
+  public SessionManager getSessionManager() {
+    return sessionManager;
+  }
+
+  /**
+   * Sets the simulated packet loss rate of all sessions.
+   *
+   * @param lossRate loss rate (0..1)
+   */
+  public void setLossRate(double lossRate) {
+    sessionManager.setLossRate(lossRate);
+  }
+
+  /**
+   * Sets the FEC group size of all sessions.
+   *
+   * @param k group size
+   */
+  public void setFecGroupSize(int k) {
+    sessionManager.setFecGroupSize(k);
+  }
+
+  /**
+   * Sets the MTU towards the clients, used at the next SETUP.
+   *
+   * @param mtu MTU in bytes, including IP and UDP header
+   */
+  public void setMtu(int mtu) {
+    sessionManager.setMtu(mtu);
+  }
+
+  /**
+   * Sets the pacing of the packets within a frame for all sessions.
+   *
+   * @param pacing the pacing mode
+   * @param bitrate send rate of each session in bit/s, only used for {@code BITRATE}
+   */
+  public void setPacketPacing(FramePacer.PacketPacing pacing, long bitrate) {
+    sessionManager.setPacketPacing(pacing, bitrate);
+  }
+
+  /**
+   * Switches the automatic control of the FEC group size from the RTCP feedback.
+   *
+   * @param targetFrameLoss highest acceptable frame loss rate, e.g. 0.01, 0 to switch off
+   */
+  public void setFecTargetFrameLoss(double targetFrameLoss) {
+    sessionManager.setFecTargetFrameLoss(targetFrameLoss);
+  }
+
+  /**
+   * Sets the number of repair packets per group for the sessions with
+   * Reed-Solomon FEC, used at the next SETUP.
+   *
+   * @param m repair packets per group
+   */
+  public void setFecRepairPackets(int m) {
+    sessionManager.setFecRepairPackets(m);
+  }
+
+  /**
+   * Sets the payload bytes which are protected more strongly for the sessions
+   * with ULP, used at the next SETUP.
+   *
+   * @param length protection length in bytes
+   */
+  public void setUlpProtectionLength(int length) {
+    sessionManager.setUlpProtectionLength(length);
+  }
+
+  /**
+   * Configures a live channel which is shared by all sessions requesting its name.
+   *
+   * @param name name of the channel in the RTSP URL
+   * @param videoFileName file name of the video in the video directory
+   */
+  public void addChannel(String name, String videoFileName) {
+    sessionManager.addChannel(name, videoFileName);
+  }
+
+  /**
+   * Sets the encryption of new sessions.
+   *
+   * @param mode encryption mode
+   * @return true if the mode could be set
+   */
+  public boolean setEncryption(RtpHandler.EncryptionMode mode) {
+    return sessionManager.setEncryption(mode);
+  }
+
+  /**
+   * Collects the current state of all sessions.
+   *
+   * @return snapshot of the statistic values
+   */
+  public ServerStatistic getStatistic() {
+    ServerStatistic statistic = new ServerStatistic();
+    double pacingErrorSum = 0.0;
+    long packets = 0;
+    long bursts = 0;
+    double lossSum = 0.0;
+    double jitterSum = 0.0;
+    long groupSizeSum = 0;
+    for (RtspSession session : sessionManager.getSessions()) {
+      statistic.sessions++;
+      switch (session.getState()) {
+        case RtspSession.PLAYING:
+          statistic.playingSessions++;
+          break;
+        case RtspSession.READY:
+          statistic.readySessions++;
+          break;
+        default:
+          statistic.initSessions++;
+          break;
+      }
+      statistic.sentFrames += session.getImageNb();
+      statistic.droppedPackets += session.getDropCounter();
+
+      PacingStatistic pacing = session.getPacingStatistic();
+      pacingErrorSum += pacing.getMeanErrorMicros();
+      statistic.maxPacingErrorMicros =
+          Math.max(statistic.maxPacingErrorMicros, pacing.getMaxErrorMicros());
+      packets += pacing.getPackets();
+      bursts += pacing.getBursts();
+      statistic.maxBurstPackets = Math.max(statistic.maxBurstPackets, pacing.getMaxBurstLength());
+      statistic.skippedFrames += pacing.getSkippedFrames();
+
+      FecController fec = session.getFecController();
+      groupSizeSum += fec.getGroupSize();
+      statistic.fecChanges += fec.getChanges();
+      statistic.maxPredictedFrameLossPercent =
+          Math.max(statistic.maxPredictedFrameLossPercent, 100 * fec.getPredictedFrameLoss());
+
+      PacketHistory history = session.getPacketHistory();
+      if (history != null) {
+        statistic.nackRequests += history.getRequested();
+        statistic.retransmittedPackets += history.getRetransmitted();
+      }
+
+      RtcpFeedback feedback = session.getFeedback();
+      if (feedback.getReports() > 0) {
+        statistic.reportingSessions++;
+        lossSum += feedback.getFractionLost();
+        jitterSum += feedback.getJitterMillis();
+      }
+    }
+    statistic.fecAuto = sessionManager.getFecTargetFrameLoss() > 0;
+    if (statistic.sessions > 0) {
+      statistic.meanPacingErrorMicros = pacingErrorSum / statistic.sessions;
+      statistic.meanFecGroupSize = (double) groupSizeSum / statistic.sessions;
+    }
+    if (statistic.reportingSessions > 0) {
+      statistic.reportedLossPercent = 100.0 * lossSum / statistic.reportingSessions;
+      statistic.reportedJitterMillis = jitterSum / statistic.reportingSessions;
+    }
+    if (bursts > 0) {
+      statistic.meanBurstPackets = (double) packets / bursts;
+    }
+
+    FrameCache cache = sessionManager.getFrameCache();
+    statistic.cacheHits = cache.getHits();
+    statistic.cacheMisses = cache.getMisses();
+    statistic.cacheEvictions = cache.getEvictions();
+    statistic.cacheFrames = cache.getEntryCount();
+    statistic.cacheBytes = cache.getUsedBytes();
+    return statistic;
+  }
+}
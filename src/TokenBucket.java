@@ -0,0 +1,69 @@
+/**
+ * Token bucket for limiting the send rate of a session in bytes.
+ *
+ * The bucket is filled at the configured rate up to its depth; every sent
+ * packet takes its size from the bucket. A packet may be sent as long as the
+ * bucket is not empty, so the tokens may become negative by at most one
+ * packet. The depth limits the size of a burst. Without a rate the bucket
+ * does not limit anything.
+ */
+public class TokenBucket {
+  private double bytesPerNano = 0.0; // 0: unlimited
+  private double depth = 0.0;
+  private double tokens = 0.0;
+  private long lastNanos = 0;
+
+  /**
+   * Sets the rate; the tokens collected so far are kept up to the new depth.
+   *
+   * @param bytesPerSecond fill rate, 0 or less for no limit
+   * @param depth maximal number of tokens in bytes
+   * @param now current time of {@link System#nanoTime()}
+   */
+  public void setRate(double bytesPerSecond, double depth, long now) {
+    if (!isLimited()) {
+      tokens = depth; // start with a full bucket
+    } else {
+      refill(now);
+    }
+    bytesPerNano = Math.max(0.0, bytesPerSecond / 1e9);
+    this.depth = depth;
+    tokens = Math.min(tokens, depth);
+    lastNanos = now;
+  }
+
+  /** @return true if a rate is set */
+  public boolean isLimited() {
+    return bytesPerNano > 0.0;
+  }
+
+  /**
+   * @param now current time of {@link System#nanoTime()}
+   * @return time in ns until the next packet may be sent, 0 if it may be sent now
+   */
+  public long delay(long now) {
+    if (!isLimited()) {
+      return 0;
+    }
+    refill(now);
+    return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / bytesPerNano);
+  }
+
+  /**
+   * Takes the tokens for a sent packet.
+   *
+   * @param bytes size of the packet
+   * @param now current time of {@link System#nanoTime()}
+   */
+  public void consume(int bytes, long now) {
+    if (isLimited()) {
+      refill(now);
+      tokens -= bytes;
+    }
+  }
+
+  private void refill(long now) {
+    tokens = Math.min(depth, tokens + (now - lastNanos) * bytesPerNano);
+    lastNanos = now;
+  }
+}
@@ -0,0 +1,384 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+    Uneven level protection of a group of k media packets, RFC 5109
+
+                      first half           second half
+                   A      B    ...      C      D    ...
+    FEC a level 0  [0, PL)  [0, PL)                          strong: k/2 packets
+    FEC b level 0                       [0, PL)  [0, PL)     strong: k/2 packets
+    FEC a level 1  [PL, ..) [PL, ..)    [PL, ..) [PL, ..)    light: k packets
+
+   The FEC header recovery fields of a FEC packet are the XOR over its
+   level 0 packets, so every packet gets its header and prefix from one
+   level 0 and the rest of its payload from level 1.
+*/
+
+/**
+ * FEC with uneven level protection (ULP) of the payloads.
+ *
+ * The first bytes of a RFC 2435 payload carry the JPEG header and the
+ * quantization tables of a frame, without them the whole frame is lost. The
+ * prefix of each payload up to the protection length is protected by level 0
+ * in half groups, i.e. with twice the parity of the rest, which is protected
+ * by level 1 over the whole group of the group size k. Two losses in the two
+ * halves of a group recover both prefixes, a packet is completely recovered
+ * if it is the only loss of its group.
+ *
+ * A packet of which only the prefix is recovered is shorter than the lost
+ * one; it is not used to recover other packets.
+ */
+public class UlpFecHandler extends FecHandler {
+  // main header, Q table header and tables of RFC 2435 and the first scan bytes
+  static final int DEFAULT_PROTECTION_LENGTH = 200;
+
+  // Sender
+  private int protectionLength;
+  private int position = 0; // of the next packet in the group
+  private int firstHalf; // packets of the first half of the group
+  private final FECpacket[] groupFecs = new FECpacket[2]; // a and b
+  private final ArrayDeque<FECpacket> readyFecs = new ArrayDeque<>();
+  private int longestPayload = RtpHandler.DEFAULT_MTU; // of the last group, for the overhead
+  private int groupLongestPayload = 0;
+
+  // Receiver, by media Snr modulo WINDOW like the XOR parity
+  private Repair[] level0;
+  private int[] level0Nr;
+  private Repair[] level1;
+  private int[] level1Nr;
+  private RTPpacket[] partial; // packets of which only the prefix is recovered
+
+  /** Received FEC packet, parsed for the masks and decoded from a copy. */
+  private static class Repair {
+    final byte[] packet;
+    final FECpacket fec;
+
+    Repair(byte[] packet) {
+      this.packet = packet;
+      fec = new FECpacket(packet, packet.length);
+    }
+
+    FECpacket copy() {
+      return new FECpacket(packet, packet.length);
+    }
+  }
+
+  /**
+   * Constructor for the sender.
+   *
+   * @param size FEC group size k
+   * @param protectionLength bytes of each payload protected by level 0
+   */
+  public UlpFecHandler(int size, int protectionLength) {
+    super(size);
+    this.protectionLength = protectionLength;
+  }
+
+  /**
+   * Constructor for the receiver.
+   *
+   * @param useFec choose of using FEC
+   */
+  public UlpFecHandler(boolean useFec) {
+    super(useFec);
+    level0 = new Repair[WINDOW];
+    level0Nr = new int[WINDOW];
+    level1 = new Repair[WINDOW];
+    level1Nr = new int[WINDOW];
+    partial = new RTPpacket[WINDOW];
+    Arrays.fill(level0Nr, -1);
+    Arrays.fill(level1Nr, -1);
+  }
+
+  /**
+   * *** Sender *** Sets the protection length, used from the next group on.
+   *
+   * @param protectionLength bytes of each payload protected by level 0
+   */
+  public void setProtectionLength(int protectionLength) {
+    this.protectionLength = protectionLength;
+  }
+
+  /** @return bytes of each payload protected by level 0 */
+  public int getProtectionLength() {
+    return protectionLength;
+  }
+
+  /** @return 1, the whole packets of a group are protected by one level 1 */
+  @Override
+  public int getRepairPackets() {
+    return 1;
+  }
+
+  /** @return bytes of the FEC header and of the level headers of level 0 and level 1 */
+  @Override
+  public int getPacketOverhead() {
+    return FECpacket.ULP_OVERHEAD;
+  }
+
+  @Override
+  public double getOverhead() {
+    int size = fecGroupSize;
+    if (size <= 0) {
+      return 0.0;
+    }
+    // one packet of about the longest payload and one of the protection length
+    double prefix = Math.min(1.0, (double) protectionLength / Math.max(1, longestPayload));
+    return (1.0 + prefix) / Math.max(2, Math.min(size, maxGroupSize));
+  }
+
+  // *************** Sender ***********************************************************************
+
+  @Override
+  public void setRtp(RTPpacket rtp) {
+    setRtp(ByteBuffer.wrap(rtp.getpacket()));
+  }
+
+  /**
+   * *** Sender *** Adds a serialized RTP packet to the level 0 of its half of
+   * the group and to the level 1 of the group.
+   *
+   * @param packet RTP packet from position to limit, position and limit are not changed
+   */
+  @Override
+  public void setRtp(ByteBuffer packet) {
+    int start = packet.position();
+    int seqNr = packet.getShort(start + 2) & 0xFFFF;
+    int timestamp = packet.getInt(start + 4);
+    if (position == 0) {
+      // a new group size and protection length are used from the next group on
+      sendGroupSize = Math.max(2, Math.min(fecGroupSize, maxGroupSize));
+      firstHalf = (sendGroupSize + 1) / 2;
+      long all = -1L << (64 - sendGroupSize);
+      long first = -1L << (64 - firstHalf);
+      for (int half = 0; half < 2; half++) {
+        groupFecs[half] =
+            new FECpacket(FEC_PT, 0, timestamp, sendGroupSize, seqNr, takeAccumulator());
+        groupFecs[half].setUlpMask(half == 0 ? first : all & ~first);
+        groupFecs[half].setProtectionLength(protectionLength);
+      }
+      groupFecs[0].setUlpLevel1(all, takeAccumulator());
+      groupLongestPayload = 0;
+    }
+    int length = packet.remaining() - RTPpacket.HEADER_SIZE;
+    groupLongestPayload = Math.max(groupLongestPayload, length);
+
+    if (position < firstHalf) {
+      groupFecs[0].addRtp(packet);
+    } else {
+      groupFecs[1].addRtp(packet);
+      groupFecs[0].addRtpLevel1(packet);
+    }
+    groupFecs[0].TimeStamp = timestamp; // time stamp of the last packet
+    groupFecs[1].TimeStamp = timestamp;
+
+    position++;
+    if (position == sendGroupSize) {
+      readyFecs.add(groupFecs[0]);
+      readyFecs.add(groupFecs[1]);
+      groupFecs[0] = null;
+      groupFecs[1] = null;
+      longestPayload = groupLongestPayload;
+      position = 0;
+    }
+  }
+
+  /** @return True, if the FEC packets of a group are complete */
+  @Override
+  public boolean isReady() {
+    return !readyFecs.isEmpty();
+  }
+
+  /**
+   * *** Sender *** Builds the next FEC packet of a complete group.
+   *
+   * @return Bitstream of FEC-Packet including RTP-Header
+   */
+  @Override
+  public byte[] getPacket() {
+    FECpacket fec = readyFecs.poll();
+    fec.SequenceNumber = fecSeqNr++;
+    fec.printHeaders();
+    byte[] packet = fec.getpacket();
+    releaseAccumulators(fec);
+    return packet;
+  }
+
+  // *************** Receiver *********************************************************************
+
+  /**
+   * Stores a received FEC packet in the slots of its level 0 and level 1
+   * packets, Reed-Solomon packets are ignored.
+   *
+   * @param rtp the received FEC-RTP
+   * @param nrs array of {@link #GROUP_CAPACITY} for the Sequence Nrs. of the protected packets
+   * @return number of the protected media packets, 0 if the packet is ignored
+   */
+  @Override
+  public int rcvFecPacket(RTPpacket rtp, int[] nrs) {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    if (rtp.getpayloadtype() != FEC_PT) {
+      return 0;
+    }
+    Repair repair = new Repair(rtp.getpacket());
+    FECpacket fec = repair.fec;
+    if (logger.isLoggable(Level.FINER)) {
+      logger.log(Level.FINER, "ULP: FEC " + fec.getsequencenumber() + " level 0 "
+          + Long.toHexString(fec.getMask()) + " level 1 " + Long.toHexString(fec.getMask1()));
+    }
+    store(level0, level0Nr, repair, fec.getMask());
+    if (fec.hasLevel1()) {
+      store(level1, level1Nr, repair, fec.getMask1());
+    }
+    return protectedPackets(fec.getSnBase(), fec.getMask() | fec.getMask1(), nrs, 0);
+  }
+
+  /** Stores a FEC packet in the slots of the packets of a mask of it. */
+  private static void store(Repair[] level, int[] levelNr, Repair repair, long mask) {
+    int snBase = repair.fec.getSnBase();
+    for (int i = 0; mask != 0; i++, mask <<= 1) {
+      if (mask < 0) {
+        int nr = (snBase + i) & 0xFFFF;
+        level[nr & (WINDOW - 1)] = repair;
+        levelNr[nr & (WINDOW - 1)] = nr;
+      }
+    }
+  }
+
+  private Repair getRepair(Repair[] level, int[] levelNr, int nr) {
+    int slot = nr & (WINDOW - 1);
+    return levelNr[slot] == nr ? level[slot] : null;
+  }
+
+  /**
+   * @param nr Sequence Nr. of a media packet
+   * @param nrs array of {@link #GROUP_CAPACITY} for the Sequence Nrs. of its groups
+   * @return number of the media packets sharing a level with it
+   */
+  @Override
+  public int getGroup(int nr, int[] nrs) {
+    int count = 0;
+    Repair repair0 = getRepair(level0, level0Nr, nr);
+    if (repair0 != null) {
+      count = protectedPackets(repair0.fec.getSnBase(), repair0.fec.getMask(), nrs, count);
+    }
+    Repair repair1 = getRepair(level1, level1Nr, nr);
+    if (repair1 != null) {
+      long mask = repair1.fec.getMask() | repair1.fec.getMask1();
+      count = protectedPackets(repair1.fec.getSnBase(), mask, nrs, count);
+    }
+    return count;
+  }
+
+  /** @return true if the packet is received or completely recovered */
+  private boolean isComplete(int nr, HashMap<Integer, RTPpacket> mediaPackets) {
+    RTPpacket packet = mediaPackets.get(nr);
+    return packet != null && packet != partial[nr & (WINDOW - 1)];
+  }
+
+  private boolean othersComplete(int snBase, long mask, int nr,
+      HashMap<Integer, RTPpacket> mediaPackets) {
+    for (int i = 0; mask != 0; i++, mask <<= 1) {
+      int other = (snBase + i) & 0xFFFF;
+      if (mask < 0 && other != nr && !isComplete(other, mediaPackets)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Checks if at least the header and the prefix of a lost packet can be
+   * recovered: its level 0 FEC packet is received and the other packets of
+   * the half group are complete.
+   *
+   * @param nr Sequence Nr.
+   * @param mediaPackets received media packets
+   * @return true if possible
+   */
+  @Override
+  public boolean checkCorrection(int nr, HashMap<Integer, RTPpacket> mediaPackets) {
+    Repair repair0 = getRepair(level0, level0Nr, nr);
+    return repair0 != null
+        && othersComplete(repair0.fec.getSnBase(), repair0.fec.getMask(), nr, mediaPackets);
+  }
+
+  /**
+   * Recovers the header and the prefix of a lost packet from level 0 and the
+   * rest of the payload from level 1 if all other packets of the group are
+   * complete.
+   *
+   * @param nr Sequence Nr.
+   * @param mediaPackets received media packets
+   * @return RTP packet, shorter than the lost one if only the prefix is recovered
+   */
+  @Override
+  public RTPpacket correctRtp(int nr, HashMap<Integer, RTPpacket> mediaPackets) {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    if (!checkCorrection(nr, mediaPackets)) {
+      return null;
+    }
+    Repair repair0 = getRepair(level0, level0Nr, nr);
+    FECpacket fec0 = repair0.copy();
+    long mask0 = fec0.getMask();
+    long mask = mask0;
+    for (int i = 0; mask != 0; i++, mask <<= 1) {
+      int other = (fec0.getSnBase() + i) & 0xFFFF;
+      if (mask < 0 && other != nr) {
+        fec0.addRtp(mediaPackets.get(other)); // level 1 too if it is the same FEC packet
+      }
+    }
+
+    FECpacket fec1 = null;
+    Repair repair1 = getRepair(level1, level1Nr, nr);
+    if (fec0.lengthRecovery > fec0.getProtectionLength() && repair1 != null
+        && othersComplete(repair1.fec.getSnBase(), repair1.fec.getMask1(), nr, mediaPackets)) {
+      fec1 = repair1 == repair0 ? fec0 : repair1.copy();
+      int snBase = fec1.getSnBase();
+      mask = fec1.getMask1();
+      for (int i = 0; mask != 0; i++, mask <<= 1) {
+        int other = (snBase + i) & 0xFFFF;
+        boolean added = fec1 == fec0 && (mask0 << i) < 0; // same SN base
+        if (mask < 0 && other != nr && !added) {
+          fec1.addRtpLevel1(mediaPackets.get(other));
+        }
+      }
+    }
+
+    RTPpacket rtp = fec0.getLostRtp(nr, fec1);
+    if (rtp.getpayload_length() < fec0.lengthRecovery) {
+      partial[nr & (WINDOW - 1)] = rtp;
+      if (logger.isLoggable(Level.FINE)) {
+        logger.log(Level.FINE, "ULP: prefix of " + nr + " recovered");
+      }
+    }
+    return rtp;
+  }
+
+  /**
+   * Removes the FEC packets of a media packet from the window after its playout.
+   *
+   * @param nr Media Sequence Nr.
+   */
+  @Override
+  public void clearStack(int nr) {
+    super.clearStack(nr);
+    int slot = nr & (WINDOW - 1);
+    if (level0Nr[slot] == nr) {
+      level0[slot] = null;
+      level0Nr[slot] = -1;
+    }
+    if (level1Nr[slot] == nr) {
+      level1[slot] = null;
+      level1Nr[slot] = -1;
+    }
+    if (partial[slot] != null && partial[slot].getsequencenumber() == nr) {
+      partial[slot] = null;
+    }
+  }
+}
@@ -5,10 +5,16 @@
 public class VideoMetadata {
     private int framerate;
     private double duration; // in seconds
+    private int frameCount; // 0 if unknown
 
-    public VideoMetadata(int framerate, double duration) {
+    public VideoMetadata(int framerate, double duration, int frameCount) {
         this.framerate = framerate;
         this.duration = duration;
+        this.frameCount = frameCount;
+    }
+
+    public VideoMetadata(int framerate, double duration) {
+        this(framerate, duration, 0);
     }
 
     public VideoMetadata(int framerate) {
@@ -22,5 +28,8 @@ public class VideoMetadata {
     public double getDuration() {
         return this.duration;
     }
-}
 
+    public int getFrameCount() {
+        return this.frameCount;
+    }
+}
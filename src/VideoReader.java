@@ -1,68 +1,175 @@
-import static java.util.logging.Level.WARNING;
-
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.List;
+import java.util.function.Supplier;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.IntStream;
 
 /**
  * Klasse zum Einlesen eines MJPEG-Videos.
  *
+ * Die Datei wird mittels {@link FileChannel#map} in den Speicher abgebildet. Beim Öffnen
+ * werden die Positionen der SOI- und EOI-Marker gesucht (bei großen Dateien parallel in
+ * Abschnitten), danach liefert der Reader die Bilder ohne Kopie als {@link ByteBuffer}.
+ * Der Index wird neben dem Video gespeichert und beim nächsten Öffnen nur noch geladen.
+ *
  * @author Elisa Zschorlich (s70342)
  */
 public class VideoReader {
+  /** Größe eines abgebildeten Bereichs der Datei */
+  static final long REGION_SIZE = 1L << 30;
+  /** Überlappung der Bereiche, Bilder bis zu dieser Größe liegen immer in einem Bereich */
+  static final int REGION_OVERLAP = 1 << 24;
+  /** Minimale Größe eines Abschnitts bei der parallelen Suche */
+  static final int MIN_CHUNK_SIZE = 1 << 22;
 
-  private FileInputStream fileInputStream;
-  private boolean isClosed = true;
+  private static final long ONES = 0x0101010101010101L;
+  private static final long HIGH_BITS = 0x8080808080808080L;
 
-  int bufferSize;
-  byte[] buffer;
-  int bufferOffset;
+  private final String videoFilePath;
+  private final FileChannel channel;
+  private final long fileSize;
+  private final MappedByteBuffer[] regions;
+  private final MjpegIndex index;
+  private volatile boolean isClosed = true;
+  private int nextImageIndex = 0; // Index des nächsten Bildes, beginnend mit 0
 
   /**
-   * Initialisiert den Video-Reader inkl. File Input Stream.
+   * Initialisiert den Video-Reader, bildet die Datei ab und lädt oder erstellt den Index der
+   * Bilder.
    *
    * @param videoFilePath Pfad für das Video
+   * @param metadata liefert die Metadaten des Videos, nur benötigt, falls kein gültiger Index
+   *     gespeichert ist
    * @throws FileNotFoundException falls das Video nicht gefunden werden kann
+   * @throws IOException falls das Video nicht gelesen werden kann
    */
-  public VideoReader(final String videoFilePath) throws FileNotFoundException {
-    // Öffnet den Input-Stream
-    this.fileInputStream =
-        new FileInputStream(videoFilePath) {
-
-          /** Schließe den Input-Stream und setze das entsprechende Flag. */
-          @Override
-          public void close() throws IOException {
-            isClosed = true;
-            super.close();
-          }
+  public VideoReader(final String videoFilePath, Supplier<VideoMetadata> metadata)
+      throws IOException {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    this.videoFilePath = videoFilePath;
+    if (!new File(videoFilePath).isFile()) {
+      throw new FileNotFoundException(videoFilePath);
+    }
+    this.channel = FileChannel.open(new File(videoFilePath).toPath(), StandardOpenOption.READ);
+    try {
+      this.fileSize = channel.size();
+      this.regions = new MappedByteBuffer[(int) ((fileSize + REGION_SIZE - 1) / REGION_SIZE)];
+      for (int r = 0; r < regions.length; r++) {
+        long start = r * REGION_SIZE;
+        long length = Math.min(fileSize - start, REGION_SIZE + REGION_OVERLAP);
+        regions[r] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+      }
 
-          /** Prüft vor dem Lesen eines weiteren Bytes, ob der Input-Stream noch geöffnet ist. */
-          @Override
-          public int read(byte[] b, int off, int len) throws IOException {
-            return isClosed ? -1 : super.read(b, off, len);
-          }
-        };
+      long startTime = System.nanoTime();
+      MjpegIndex loaded = MjpegIndex.load(videoFilePath);
+      if (loaded == null) {
+        long modified = new File(videoFilePath).lastModified();
+        loaded = scan(modified, metadata.get().getFramerate());
+        loaded.save(videoFilePath);
+      }
+      this.index = loaded;
+      logger.log(Level.FINE, String.format("Index of %s: %d frames in %.1f ms",
+          videoFilePath, index.getFrameCount(), (System.nanoTime() - startTime) / 1e6));
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
     this.isClosed = false;
-
-    this.bufferSize = 65536;
-    this.buffer = new byte[this.bufferSize];
-    this.bufferOffset = 0;
   }
 
-  /** Schließt den Input-Stream, wenn dieser initialisiert und nicht geschlossen ist. */
+  /** Schließt die Datei, wenn diese nicht bereits geschlossen ist. */
   public void close() {
-    if (fileInputStream != null && !isClosed) {
+    if (!isClosed) {
+      isClosed = true;
       try {
-        fileInputStream.close();
+        channel.close();
       } catch (IOException e) {
         Logger.getGlobal()
-            .log(WARNING, "FileInputStream des VideoReader konnte nicht geschlossen werden.");
+            .log(Level.WARNING, "FileChannel des VideoReader konnte nicht geschlossen werden.");
+      }
+    }
+  }
+
+  /** @return Index der Bilder des Videos */
+  public MjpegIndex getIndex() {
+    return index;
+  }
+
+  /** @return Metadaten des Videos laut Index */
+  public VideoMetadata getMetadata() {
+    return index.getMetadata();
+  }
+
+  /** @return Anzahl der Bilder des Videos */
+  public int getFrameCount() {
+    return index.getFrameCount();
+  }
+
+  /** @return Index des Bildes, das von {@link #readNextImage()} geliefert wird */
+  public int getNextImageIndex() {
+    return nextImageIndex;
+  }
+
+  /**
+   * Positioniert den Reader vor dem Bild mit dem angegebenen Index.
+   *
+   * @param index Index des nächsten zu lesenden Bildes, beginnend mit 0
+   * @return false, falls die Datei weniger Bilder enthält
+   */
+  public boolean seek(int index) {
+    if (index < 0 || index > this.index.getFrameCount()) {
+      return false;
+    }
+    nextImageIndex = index;
+    return true;
+  }
+
+  /**
+   * Liefert ein JPEG-Bild ohne Kopie als Ausschnitt der abgebildeten Datei.
+   *
+   * Nur Bilder, die größer als {@link #REGION_OVERLAP} sind und über eine Bereichsgrenze
+   * reichen, werden in einen eigenen Puffer gelesen.
+   *
+   * @param frame Index des Bildes, beginnend mit 0
+   * @return das Bild als nur lesbarer ByteBuffer
+   * @throws IOException falls die Datei geschlossen ist oder nicht gelesen werden kann
+   */
+  public ByteBuffer getFrame(int frame) throws IOException {
+    if (isClosed) {
+      throw new IOException("VideoReader is closed: " + videoFilePath);
+    }
+    return slice(index.getOffset(frame), index.getLength(frame));
+  }
+
+  /**
+   * @param offset Position in der Datei
+   * @param length Länge in Bytes
+   * @return Ausschnitt der Datei
+   * @throws IOException falls die Datei nicht gelesen werden kann
+   */
+  private ByteBuffer slice(long offset, int length) throws IOException {
+    int r = (int) (offset / REGION_SIZE);
+    int position = (int) (offset - r * REGION_SIZE);
+    if (position + length <= regions[r].capacity()) {
+      return regions[r].slice(position, length);
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, offset + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of file: " + videoFilePath);
       }
     }
+    return buffer.flip().asReadOnlyBuffer();
   }
 
   /**
@@ -73,82 +180,137 @@ public class VideoReader {
    * @throws IOException IOException
    */
   public byte[] readNextImage() throws IOException {
-    byte[] image = new byte[0];
-    boolean jpegFound = false;
-
-    // Prüft das der Input-Stream initialisiert und nicht geschlossen ist.
-    if (fileInputStream != null && !isClosed) {
-      // Zähler für enthaltene SOI-Marker, für die noch kein EOI gelesen wurde.
-      int soiCount = 0;
-
-      // Lese solange Bytes, bis Bild gefunden oder Dateiende
-      while (!jpegFound) {
-        int soiPos = -1;
-        int eoiPos = -1;
-        int nbytes = fileInputStream.read(buffer, bufferOffset, buffer.length - bufferOffset);
-        if (nbytes == -1) {
-          break;
-        }
-        bufferOffset += nbytes;
-
-        // Durchsuche gelesene Daten
-        for (int i = 0; i < bufferOffset-1; i++) {
-          if (buffer[i] == JpegFrame.MARKER_TAG_START) {
-            if (buffer[i+1] == JpegFrame.SOI_MARKER[1]) {
-              if (soiCount == 0) {
-                soiPos = i;
-              }
-              soiCount++;
-            } else if (buffer[i+1] == JpegFrame.EOI_MARKER[1]) {
-              soiCount--;
-              if (soiCount == 0) {
-                eoiPos = i+2; // EOI Marker mit kopieren
-                jpegFound = true;
-                break;
-              }
-            }
-            // else: Andere Marker oder Daten
-          }
-        }
+    if (isClosed || nextImageIndex >= index.getFrameCount()) {
+      return null;
+    }
+    ByteBuffer frame = getFrame(nextImageIndex);
+    byte[] image = new byte[frame.remaining()];
+    frame.get(image);
+    nextImageIndex++;
+    return image;
+  }
 
-        int copyStart = 0;
-        int copyEnd = bufferOffset;
+  /**
+   * Sucht alle Bilder der Datei.
+   *
+   * Die Marker werden in Abschnitten parallel gesucht, danach werden die Abschnitte der
+   * Reihe nach zusammengefügt. Verschachtelte SOI-Marker (z.B. Vorschaubilder) werden
+   * wie beim sequentiellen Lesen gezählt.
+   *
+   * @param modified Änderungszeit der Datei in ms
+   * @param framerate Bildrate des Videos für die RTP-Zeitstempel
+   * @return Index aller vollständigen Bilder
+   * @throws IOException falls die Datei nicht gelesen werden kann
+   */
+  private MjpegIndex scan(long modified, int framerate) throws IOException {
+    // Abschnitte als Zweierpotenz, damit sie nie über eine Bereichsgrenze reichen
+    long chunkSize = MIN_CHUNK_SIZE;
+    long targetChunks = 4L * Runtime.getRuntime().availableProcessors();
+    while (chunkSize < REGION_SIZE && chunkSize * targetChunks < fileSize) {
+      chunkSize <<= 1;
+    }
+    final long size = chunkSize;
+    int chunks = (int) ((fileSize + size - 1) / size);
 
-        if (soiPos != -1) {
-          copyStart = soiPos;
-        }
-        if (eoiPos != -1) {
-          copyEnd = eoiPos;
+    IntStream range = IntStream.range(0, chunks);
+    if (chunks > 1) {
+      range = range.parallel();
+    }
+    List<MarkerList> markers = range.mapToObj(c -> scanChunk(c * size, size)).toList();
+
+    MjpegIndex.Builder builder = new MjpegIndex.Builder(fileSize, modified, framerate);
+    int soiCount = 0;
+    long soiPos = 0;
+    for (MarkerList list : markers) {
+      for (int i = 0; i < list.count; i++) {
+        long marker = list.markers[i];
+        long position = marker >>> 1;
+        if ((marker & 1) == 0) {
+          if (soiCount == 0) {
+            soiPos = position;
+          }
+          soiCount++;
+        } else if (soiCount > 0) {
+          soiCount--;
+          if (soiCount == 0) {
+            builder.add(soiPos, (int) (position + 2 - soiPos)); // EOI Marker mit einschließen
+          }
         }
-        if (soiCount == 0 && soiPos == -1 && eoiPos == -1) {
-          copyStart = -1;
-          copyEnd = -1;
+      }
+    }
+
+    builder.complete();
+    IntStream frames = IntStream.range(0, builder.getCount());
+    if (chunks > 1) {
+      frames = frames.parallel();
+    }
+    try {
+      frames.forEach(i -> {
+        try {
+          builder.setFingerprint(i,
+              MjpegIndex.fingerprint(slice(builder.getOffset(i), builder.getLength(i))));
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
         }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    return builder.build();
+  }
+
+  /**
+   * Sucht die SOI- und EOI-Marker eines Abschnitts.
+   *
+   * Bytes ungleich 0xFF werden dabei in Blöcken zu 8 Byte übersprungen.
+   *
+   * @param start Position des Abschnitts in der Datei
+   * @param length Länge des Abschnitts
+   * @return gefundene Marker
+   */
+  private MarkerList scanChunk(long start, long length) {
+    MarkerList list = new MarkerList();
+    int r = (int) (start / REGION_SIZE);
+    MappedByteBuffer region = regions[r];
+    long regionStart = r * REGION_SIZE;
+    int from = (int) (start - regionStart);
+    int to = (int) Math.min(from + length, fileSize - regionStart);
+    int limit = region.capacity();
 
-        if (copyStart != -1 && copyEnd != -1) {
-          int copyLength = copyEnd - copyStart;
-          byte[] tmpImage = new byte[image.length + (copyLength)];
-          System.arraycopy(image, 0, tmpImage, 0, image.length);
-          System.arraycopy(buffer, copyStart, tmpImage, image.length, copyLength);
-          image = tmpImage;
-
-          buffer = Arrays.copyOfRange(buffer, copyEnd, copyEnd + bufferSize);
-          bufferOffset = bufferSize - copyEnd;
-        } else {
-          bufferOffset = 0;
+    int i = from;
+    while (i < to) {
+      int n = Math.min(8, to - i);
+      if (n == 8) {
+        long inverted = ~region.getLong(i);
+        if (((inverted - ONES) & ~inverted & HIGH_BITS) == 0) {
+          i += 8; // kein 0xFF im Block
+          continue;
         }
       }
-
-      // Input-Stream wurde geschlossen oder es konnten keine Bytes gelesen werden.
-      if (this.isClosed || !jpegFound) {
-        return null;
+      for (int end = i + n; i < end; i++) {
+        if (region.get(i) == JpegFrame.MARKER_TAG_START && i + 1 < limit) {
+          byte marker = region.get(i + 1);
+          if (marker == JpegFrame.SOI_MARKER[1]) {
+            list.add((regionStart + i) << 1);
+          } else if (marker == JpegFrame.EOI_MARKER[1]) {
+            list.add(((regionStart + i) << 1) | 1);
+          }
+        }
       }
-
     }
-    if (image.length == 0) {
-      return null;
-    } else {
-      return image;
+    return list;
+  }
+
+  /** Positionen der Marker eines Abschnitts, Bit 0 kennzeichnet EOI. */
+  private static class MarkerList {
+    long[] markers = new long[64];
+    int count = 0;
+
+    void add(long marker) {
+      if (count == markers.length) {
+        markers = Arrays.copyOf(markers, count * 2);
+      }
+      markers[count++] = marker;
     }
   }
 }
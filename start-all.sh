@@ -8,12 +8,14 @@ port=8554
 video=htw.mjpeg
 src=src
 bin=out/production/RTSP-Streaming
+# mindestens Java 21 (virtuelle Threads), ältere javac lehnen --release 21 ab
+javac_opts="--release 21 -encoding UTF-8"
 
 
 # Kompilierung
 #echo "compile classes..."
-javac -cp $src ${src}/Server.java  -d $bin 
-javac -cp $src ${src}/Client.java  -d $bin 
+javac $javac_opts -cp $src ${src}/Server.java  -d $bin || exit 1
+javac $javac_opts -cp $src ${src}/Client.java  -d $bin || exit 1
 
 # Start
 echo "start classes..."
@@ -1,5 +1,8 @@
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
 import org.junit.jupiter.api.Test;
 
 class FECpacketTest {
@@ -15,4 +18,54 @@ class FECpacketTest {
 
   @Test
   void addRtp() {}
-}
\ No newline at end of file
+
+  /** XOR one byte per step as the reference. */
+  private static byte[] byteXor(byte[] dst, int dstOffset, byte[] src, int srcOffset, int length) {
+    byte[] result = dst.clone();
+    for (int i = 0; i < length; i++) {
+      result[dstOffset + i] ^= src[srcOffset + i];
+    }
+    return result;
+  }
+
+  @Test
+  void xorOfArrayMatchesByteWiseXor() {
+    Random random = new Random(1);
+    byte[] src = new byte[64];
+    byte[] dst = new byte[64];
+    random.nextBytes(src);
+    random.nextBytes(dst);
+    // lengths below, at and above a multiple of 8 at unaligned offsets
+    for (int length = 0; length <= 41; length++) {
+      for (int offset = 0; offset < 8; offset++) {
+        byte[] expected = byteXor(dst, offset, src, 7 - offset, length);
+        byte[] actual = dst.clone();
+        FECpacket.xor(actual, offset, src, 7 - offset, length);
+        assertArrayEquals(expected, actual, "length " + length + " offset " + offset);
+      }
+    }
+  }
+
+  @Test
+  void xorOfBufferMatchesByteWiseXor() {
+    Random random = new Random(2);
+    byte[] src = new byte[64];
+    byte[] dst = new byte[64];
+    random.nextBytes(src);
+    random.nextBytes(dst);
+    for (ByteOrder order : new ByteOrder[] {ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+      ByteBuffer heap = ByteBuffer.wrap(src).order(order);
+      ByteBuffer direct = ByteBuffer.allocateDirect(src.length).put(src).flip().order(order);
+      for (ByteBuffer buffer : new ByteBuffer[] {heap, direct}) {
+        for (int length = 0; length <= 41; length++) {
+          for (int offset = 0; offset < 8; offset++) {
+            byte[] expected = byteXor(dst, offset, src, 7 - offset, length);
+            byte[] actual = dst.clone();
+            FECpacket.xor(actual, offset, buffer, 7 - offset, length);
+            assertArrayEquals(expected, actual, order + " length " + length + " offset " + offset);
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,64 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class FecControllerTest {
+  private static final double TARGET = FecController.DEFAULT_TARGET;
+
+  @Test
+  void frameLossOfOneParityPacket() {
+    double p = 0.05;
+    int k = 10;
+    double n = 4.5;
+    double residual = p * (1 - Math.pow(1 - p, k));
+    assertEquals(1 - Math.pow(1 - residual, n), FecController.frameLoss(p, k, 1, n), 1e-12);
+    assertEquals(0.0, FecController.frameLoss(0.0, k, 1, n), 1e-12);
+  }
+
+  @Test
+  void frameLossGrowsWithGroupAndFallsWithRepairPackets() {
+    for (int m = 1; m <= 3; m++) {
+      double previous = 0.0;
+      for (int k = FecController.MIN_GROUP_SIZE; k <= FecController.MAX_GROUP_SIZE; k++) {
+        double f = FecController.frameLoss(0.02, k, m, 10);
+        assertTrue(f >= previous, "k=" + k + " m=" + m);
+        assertTrue(FecController.frameLoss(0.02, k, m + 1, 10) < f, "k=" + k + " m=" + m);
+        previous = f;
+      }
+    }
+  }
+
+  @Test
+  void chooseLargestGroupMeetingTarget() {
+    assertEquals(FecController.MAX_GROUP_SIZE, FecController.chooseGroupSize(0.0, 10, 1, TARGET));
+    assertEquals(FecController.MIN_GROUP_SIZE, FecController.chooseGroupSize(0.3, 10, 1, TARGET));
+
+    double p = 0.01;
+    int k = FecController.chooseGroupSize(p, 10, 1, TARGET);
+    assertTrue(k > FecController.MIN_GROUP_SIZE && k < FecController.MAX_GROUP_SIZE);
+    assertTrue(FecController.frameLoss(p, k, 1, 10) <= TARGET);
+    assertTrue(FecController.frameLoss(p, k + 1, 1, 10) > TARGET);
+    // more repair packets allow larger groups
+    assertTrue(FecController.chooseGroupSize(p, 10, 2, TARGET) > k);
+  }
+
+  @Test
+  void decreaseAtOnceAndIncreaseAfterReportsInRow() {
+    FecController controller = new FecController(FecController.MAX_GROUP_SIZE);
+    int small = controller.update(0.2, 10, 1, TARGET);
+    assertEquals(FecController.chooseGroupSize(0.2, 10, 1, TARGET), small);
+    assertEquals(1, controller.getChanges());
+
+    // without loss the smoothed estimate falls, a larger group needs reports in a row
+    controller.reset(FecController.MIN_GROUP_SIZE);
+    int reports = 0;
+    while (controller.getGroupSize() == FecController.MIN_GROUP_SIZE) {
+      controller.update(0.0, 10, 1, TARGET);
+      reports++;
+      assertTrue(reports < 50);
+    }
+    assertTrue(reports >= FecController.INCREASE_REPORTS);
+    assertEquals(2, controller.getChanges());
+    assertTrue(controller.getPredictedFrameLoss() <= TARGET);
+  }
+}
@@ -0,0 +1,96 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Media packets and the FEC packets of a sender for the tests of the FEC schemes.
+ *
+ * The payloads have random lengths and contents from a fixed seed. For every
+ * FEC packet the index of the media packet after which it was ready is kept.
+ */
+class FecTestStream {
+  final List<RTPpacket> media = new ArrayList<>();
+  final List<byte[]> fecs = new ArrayList<>();
+  final List<Integer> fecAfter = new ArrayList<>(); // index of the media packet before a FEC
+
+  private final Random random = new Random(1);
+  private final FecHandler sender;
+
+  FecTestStream(FecHandler sender) {
+    this.sender = sender;
+  }
+
+  /**
+   * Sends media packets through the FEC sender, the last one with the marker.
+   *
+   * @param snBase sequence number of the first packet, wraps around after 65535
+   * @param count number of media packets
+   * @param minLength minimal payload length
+   * @param maxLength maximal payload length
+   */
+  void send(int snBase, int count, int minLength, int maxLength) {
+    for (int j = 0; j < count; j++) {
+      byte[] payload = new byte[minLength + random.nextInt(maxLength - minLength + 1)];
+      random.nextBytes(payload);
+      int seqNr = (snBase + j) & 0xFFFF;
+      RTPpacket packet =
+          new RTPpacket(RtpHandler.RTP_PAYLOAD_JPEG, seqNr, seqNr * 3600, payload, payload.length);
+      packet.setMarker(j == count - 1 ? 1 : 0);
+      media.add(packet);
+      sender.setRtp(ByteBuffer.wrap(packet.getpacket()));
+      while (sender.isReady()) {
+        fecs.add(sender.getPacket());
+        fecAfter.add(media.size() - 1);
+      }
+    }
+  }
+
+  /**
+   * Passes the received media and FEC packets to a receiver.
+   *
+   * @param receiver FEC handler of the client
+   * @param lost lost media packets, followed by the lost FEC packets if longer
+   * @param mediaPackets gets the received media packets by sequence number
+   * @return the receiver
+   */
+  <T extends FecHandler> T receive(T receiver, boolean[] lost,
+      HashMap<Integer, RTPpacket> mediaPackets) {
+    int[] nrs = new int[FecHandler.GROUP_CAPACITY];
+    for (int j = 0; j < media.size(); j++) {
+      if (!lost[j]) {
+        mediaPackets.put(media.get(j).getsequencenumber(), media.get(j));
+      }
+    }
+    for (int i = 0; i < fecs.size(); i++) {
+      int index = media.size() + i;
+      if (index >= lost.length || !lost[index]) {
+        receiver.rcvFecPacket(new RTPpacket(fecs.get(i), fecs.get(i).length), nrs);
+      }
+    }
+    return receiver;
+  }
+
+  /**
+   * Asserts that a lost media packet is recovered with its header and payload.
+   *
+   * @param receiver FEC handler which received the FEC packets
+   * @param j index of the lost media packet
+   * @param mediaPackets received media packets
+   */
+  void assertRecovered(FecHandler receiver, int j, HashMap<Integer, RTPpacket> mediaPackets) {
+    RTPpacket original = media.get(j);
+    int seqNr = original.getsequencenumber();
+    assertTrue(receiver.checkCorrection(seqNr, mediaPackets), "packet " + j);
+    RTPpacket packet = receiver.correctRtp(seqNr, mediaPackets);
+    assertNotNull(packet, "packet " + j);
+    assertEquals(seqNr, packet.getsequencenumber());
+    assertEquals(original.gettimestamp(), packet.gettimestamp());
+    assertEquals(original.getpayloadtype(), packet.getpayloadtype());
+    assertEquals(original.getmarker(), packet.getmarker());
+    assertArrayEquals(original.getpayload(), packet.getpayload(), "packet " + j);
+  }
+}
@@ -0,0 +1,101 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import org.junit.jupiter.api.Test;
+
+class MatrixFecHandlerTest {
+  private static final int L = 5;
+
+  private final FecTestStream stream = new FecTestStream(new MatrixFecHandler(L));
+
+  @Test
+  void sendRowPacketsAfterRowsAndColumnPacketsOverLastRow() {
+    stream.send(1000, L * L, 1, 1400);
+    assertEquals(2 * L, stream.fecs.size());
+    int rowPackets = 0;
+    for (int i = 0; i < stream.fecs.size(); i++) {
+      byte[] packet = stream.fecs.get(i);
+      FECpacket fec = new FECpacket(packet, packet.length);
+      int first = fec.getSnBase() - 1000;
+      long mask = fec.getMask();
+      if ((mask & (mask << 1)) != 0) {
+        // row: after its last packet
+        assertEquals(first + L - 1, (int) stream.fecAfter.get(i), "row of " + first);
+        rowPackets++;
+      } else {
+        // column: after its packet in the last row
+        assertTrue(first < L);
+        assertEquals((L - 1) * L + first, (int) stream.fecAfter.get(i), "column " + first);
+      }
+    }
+    assertEquals(L, rowPackets);
+  }
+
+  @Test
+  void limitRowLengthForLargeGroups() {
+    int k = 12;
+    FecTestStream large = new FecTestStream(new MatrixFecHandler(k));
+    int size = MatrixFecHandler.MAX_COLUMNS;
+    large.send(0, 2 * size * size, 1, 1400);
+    assertEquals(4 * size, large.fecs.size()); // two complete matrices
+    byte[] packet = large.fecs.get(0);
+    assertEquals(size, Long.bitCount(new FECpacket(packet, packet.length).getMask()));
+    assertEquals(2.0 / size, new MatrixFecHandler(k).getOverhead(), 1e-9);
+  }
+
+  @Test
+  void recoverBurstFromLastRowIntoNextMatrix() {
+    stream.send(65530, 2 * L * L, 1, 1400); // over the wrap of the sequence numbers
+    boolean[] lost = new boolean[2 * L * L];
+    int first = (L - 1) * L + 2;
+    for (int j = first; j < first + L; j++) {
+      lost[j] = true; // at most one packet per column of each matrix
+    }
+    HashMap<Integer, RTPpacket> mediaPackets = new HashMap<>();
+    MatrixFecHandler receiver = stream.receive(new MatrixFecHandler(true), lost, mediaPackets);
+
+    for (int j = first; j < first + L; j++) {
+      stream.assertRecovered(receiver, j, mediaPackets);
+    }
+  }
+
+  @Test
+  void recoverOverRowsAndColumns() {
+    stream.send(0, L * L, 1, 1400);
+    boolean[] lost = new boolean[L * L];
+    // two in a row and two in a column: the third one after the others
+    lost[0] = true;
+    lost[1] = true;
+    lost[L] = true;
+    HashMap<Integer, RTPpacket> mediaPackets = new HashMap<>();
+    MatrixFecHandler receiver = stream.receive(new MatrixFecHandler(true), lost, mediaPackets);
+
+    stream.assertRecovered(receiver, 0, mediaPackets);
+  }
+
+  @Test
+  void noRecoveryOfSquareOfLosses() {
+    stream.send(0, L * L, 1, 1400);
+    boolean[] lost = new boolean[L * L];
+    lost[0] = true;
+    lost[1] = true;
+    lost[L] = true;
+    lost[L + 1] = true;
+    HashMap<Integer, RTPpacket> mediaPackets = new HashMap<>();
+    MatrixFecHandler receiver = stream.receive(new MatrixFecHandler(true), lost, mediaPackets);
+
+    assertFalse(receiver.checkCorrection(0, mediaPackets));
+    assertNull(receiver.correctRtp(0, mediaPackets));
+  }
+
+  @Test
+  void overheadFallsWithGroupSize() {
+    double previous = 1.0;
+    for (int k = 2; k <= FecHandler.maxGroupSize; k++) {
+      double overhead = new MatrixFecHandler(k).getOverhead();
+      assertTrue(overhead <= previous, "overhead of k=" + k);
+      assertTrue(overhead <= 1.0);
+      previous = overhead;
+    }
+  }
+}
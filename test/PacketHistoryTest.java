@@ -0,0 +1,74 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+class PacketHistoryTest {
+  private static final int LENGTH = 1000;
+  private static final long MILLIS = 1_000_000L;
+
+  private final PacketHistory history = new PacketHistory(1500);
+  private final ByteBuffer dst = ByteBuffer.allocate(1500);
+
+  /** @return RTP packet of LENGTH bytes with the sequence number in every byte of the payload */
+  private static ByteBuffer packet(int seqNr) {
+    ByteBuffer packet = ByteBuffer.allocate(LENGTH);
+    for (int i = RTPpacket.HEADER_SIZE; i < LENGTH; i++) {
+      packet.put(i, (byte) seqNr);
+    }
+    packet.putShort(2, (short) seqNr);
+    return packet;
+  }
+
+  @Test
+  void retransmitStoredPacket() {
+    for (int seqNr = 65530; seqNr < 65540; seqNr++) {
+      history.store(packet(seqNr & 0xFFFF), 0);
+    }
+    assertTrue(history.retransmit(2, -1, MILLIS, dst));
+    assertEquals(packet(2), dst);
+    assertEquals(1, history.getRetransmitted());
+  }
+
+  @Test
+  void refuseReplacedAndTooOldPackets() {
+    // a request before the first packet is refused at once
+    assertFalse(history.retransmit(7, -1, 0, dst));
+
+    for (int seqNr = 0; seqNr <= PacketHistory.SIZE; seqNr++) {
+      history.store(packet(seqNr), 0);
+    }
+    assertFalse(history.retransmit(0, -1, MILLIS, dst)); // replaced by SIZE
+    assertTrue(history.retransmit(1, -1, MILLIS, dst));
+
+    long maxAge = PacketHistory.MAX_AGE_MILLIS * MILLIS;
+    assertFalse(history.retransmit(2, -1, maxAge + 1, dst));
+    // half the round trip is added to the age
+    assertFalse(history.retransmit(3, 20.0, maxAge - 5 * MILLIS, dst));
+    assertTrue(history.retransmit(4, 5.0, maxAge - 5 * MILLIS, dst));
+    assertEquals(4, history.getTooLate());
+  }
+
+  @Test
+  void limitRetransmissionsToShareOfMediaRate() {
+    int count = 100;
+    for (int seqNr = 0; seqNr < count; seqNr++) {
+      history.store(packet(seqNr), seqNr * 100_000L); // one frame within 10 ms
+    }
+    // rate over at least one frame interval, burst of one interval at this rate
+    double bytesPerSecond = PacketHistory.RATE_SHARE * count * LENGTH * 1000.0
+        / PacketHistory.BURST_MILLIS;
+    int burst = (int) (bytesPerSecond * PacketHistory.BURST_MILLIS / 1000 / LENGTH);
+
+    long now = 20 * MILLIS;
+    for (int seqNr = 0; seqNr < count; seqNr++) {
+      history.retransmit(seqNr, -1, now, dst);
+    }
+    assertEquals(burst + 1, history.getRetransmitted()); // the last one empties the bucket
+    assertEquals(count - burst - 1, history.getRateLimited());
+
+    // refilled at the rate
+    long refill = (long) (2 * LENGTH * 1e9 / bytesPerSecond);
+    assertTrue(history.retransmit(0, -1, now + refill, dst));
+  }
+}
@@ -0,0 +1,68 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import org.junit.jupiter.api.Test;
+
+class RsFecHandlerTest {
+  private static final int K = 10;
+  private static final int M = 3;
+
+  private final FecTestStream stream = new FecTestStream(new RsFecHandler(K, M));
+
+  @Test
+  void encodeRepairPacketsOfGroup() {
+    stream.send(100, K, 1, 1400);
+    assertEquals(M, stream.fecs.size());
+    byte[] fec = stream.fecs.get(0);
+    RTPpacket repair = new RTPpacket(fec, fec.length);
+    assertEquals(RtpHandler.RTP_PAYLOAD_RS, repair.getpayloadtype());
+    int[] nrs = new int[FecHandler.GROUP_CAPACITY];
+    assertEquals(K, new RsFecHandler(true).rcvFecPacket(repair, nrs));
+    for (int j = 0; j < K; j++) {
+      assertEquals(100 + j, nrs[j]);
+    }
+  }
+
+  @Test
+  void recoverAsManyLossesAsRepairPackets() {
+    stream.send(65530, K, 1, 1400); // over the wrap of the sequence numbers
+    boolean[] lost = new boolean[K + M];
+    lost[0] = true;
+    lost[4] = true;
+    lost[K - 1] = true;
+    HashMap<Integer, RTPpacket> mediaPackets = new HashMap<>();
+    RsFecHandler receiver = stream.receive(new RsFecHandler(true), lost, mediaPackets);
+
+    for (int j : new int[] {0, 4, K - 1}) {
+      stream.assertRecovered(receiver, j, mediaPackets);
+    }
+  }
+
+  @Test
+  void recoverWithLostRepairPackets() {
+    stream.send(0, K, 1, 1400);
+    boolean[] lost = new boolean[K + M];
+    lost[2] = true;
+    lost[K] = true; // first repair packet
+    lost[K + 2] = true; // last repair packet
+    HashMap<Integer, RTPpacket> mediaPackets = new HashMap<>();
+    RsFecHandler receiver = stream.receive(new RsFecHandler(true), lost, mediaPackets);
+
+    stream.assertRecovered(receiver, 2, mediaPackets);
+  }
+
+  @Test
+  void noRecoveryOfMoreLossesThanRepairPackets() {
+    stream.send(0, K, 1, 1400);
+    boolean[] lost = new boolean[K + M];
+    lost[1] = true;
+    lost[3] = true;
+    lost[K + 1] = true; // two losses, one repair packet
+    lost[K + 2] = true;
+    HashMap<Integer, RTPpacket> mediaPackets = new HashMap<>();
+    RsFecHandler receiver = stream.receive(new RsFecHandler(true), lost, mediaPackets);
+
+    assertFalse(receiver.checkCorrection(1, mediaPackets));
+    assertNull(receiver.correctRtp(1, mediaPackets));
+  }
+}
@@ -0,0 +1,63 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class RtpHandlerTest {
+  static final int MTU = 300; // several fragments per frame
+  static final int FRAME_TICKS = 3600; // 25 Hz at 90 kHz
+
+  private final Random random = new Random(1);
+
+  /** @return the packets of the frames, as sent by the server */
+  private List<byte[]> send(int frames, int payloadLength) {
+    RtpHandler server = new RtpHandler(0);
+    server.setMtu(MTU);
+    server.setEncryption(RtpHandler.EncryptionMode.NONE);
+    List<byte[]> packets = new ArrayList<>();
+    ByteBuffer buffer = ByteBuffer.allocate(MTU);
+    for (int frame = 0; frame < frames; frame++) {
+      byte[] payload = new byte[payloadLength];
+      random.nextBytes(payload);
+      payload[1] = payload[2] = payload[3] = 0; // fragment offset
+      payload[4] = 1; // RFC 2435 type without restart markers
+      payload[5] = (byte) 255; // Q with in-band tables, as the client requires
+      payload[8] = payload[9] = payload[10] = 0; // MBZ, precision, length high byte
+      payload[11] = (byte) 128; // two tables
+      server.startFrame(payload, frame * FRAME_TICKS);
+      while (server.hasNextPacket()) {
+        buffer.clear();
+        server.writeNextPacket(buffer);
+        byte[] packet = new byte[buffer.remaining()];
+        buffer.get(packet);
+        packets.add(packet);
+      }
+    }
+    return packets;
+  }
+
+  @Test
+  void skipFrameWithLostFirstFragmentInOneTick() {
+    List<byte[]> packets = send(3, 2 * MTU);
+    int perFrame = packets.size() / 3;
+    assertTrue(perFrame >= 3);
+
+    RtpHandler client = new RtpHandler(false);
+    client.setEncryption(RtpHandler.EncryptionMode.NONE);
+    for (int i = 0; i < packets.size(); i++) {
+      if (i != perFrame) { // first fragment of the second frame
+        client.processRtpPacket(packets.get(i), packets.get(i).length);
+      }
+    }
+
+    assertNotNull(client.nextPlaybackImage());
+    assertNull(client.nextPlaybackImage()); // the whole second frame
+    assertNotNull(client.nextPlaybackImage()); // the third frame follows directly
+    ReceptionStatistic statistic = client.getReceptionStatistic();
+    assertEquals(1, statistic.framesLost);
+    assertEquals(statistic.latestSequenceNumber, statistic.playbackIndex & 0xFFFF);
+  }
+}
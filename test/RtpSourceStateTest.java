@@ -0,0 +1,105 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+class RtpSourceStateTest {
+  private static final int SSRC = 0x12345678;
+  private static final long FRAME_NANOS = 40_000_000L;
+  private static final int FRAME_TICKS = MjpegIndex.RTP_CLOCK_RATE / 25;
+
+  private final RtpSourceState state = new RtpSourceState();
+
+  private static ByteBuffer packet(int payloadType, int seq, int timestamp) {
+    ByteBuffer packet = ByteBuffer.allocate(RTPpacket.HEADER_SIZE + 10);
+    packet.put(0, (byte) 0x80);
+    packet.put(1, (byte) payloadType);
+    packet.putShort(2, (short) seq);
+    packet.putInt(4, timestamp);
+    packet.putInt(8, SSRC);
+    return packet;
+  }
+
+  /** Receives the packet of a frame, one frame every 40 ms plus a delay. */
+  private void receive(int seq, int frame, long delayNanos) {
+    state.update(packet(RtpHandler.RTP_PAYLOAD_JPEG, seq & 0xFFFF, frame * FRAME_TICKS),
+        frame * FRAME_NANOS + delayNanos);
+  }
+
+  @Test
+  void countLossOverWrapOfSequenceNumbers() {
+    assertNull(state.createReportBlock(0));
+    assertEquals(0, state.getSsrc());
+    int first = 65530;
+    for (int i = 0; i < 20; i++) {
+      if (i != 3 && i != 4 && i != 12) {
+        receive(first + i, i, 0);
+      }
+    }
+    state.update(packet(RtpHandler.RTP_PAYLOAD_FEC, 7, 0), 0); // not counted
+
+    RtcpPacket.ReportBlock block = state.createReportBlock(20 * FRAME_NANOS);
+    assertEquals(SSRC, block.ssrc());
+    assertEquals(SSRC, state.getSsrc());
+    assertEquals(3, block.cumulativeLost());
+    assertEquals(65536 + (first + 19 - 65536), block.extendedHighestSeq());
+    assertEquals(3 * 256 / 20, block.fractionLost());
+
+    for (int i = 20; i < 30; i++) {
+      receive(first + i, i, 0);
+    }
+    block = state.createReportBlock(30 * FRAME_NANOS);
+    assertEquals(0, block.fractionLost()); // since the last report
+    assertEquals(3, block.cumulativeLost());
+  }
+
+  @Test
+  void restartSequenceAfterTwoPacketsOfLargeJump() {
+    for (int i = 0; i < 5; i++) {
+      receive(100 + i, i, 0);
+    }
+    receive(30000, 5, 0);
+    assertEquals(104, state.createReportBlock(0).extendedHighestSeq());
+    receive(30001, 6, 0);
+    RtcpPacket.ReportBlock block = state.createReportBlock(0);
+    assertEquals(30001, block.extendedHighestSeq());
+    assertEquals(0, block.cumulativeLost());
+  }
+
+  @Test
+  void estimateJitterOfArrivalTimes() {
+    for (int i = 0; i < 20; i++) {
+      receive(i, i, 5_000_000L); // constant transit time
+    }
+    assertEquals(0.0, state.getJitterMillis(), 1e-3);
+
+    for (int i = 20; i < 300; i++) {
+      receive(i, i, i % 2 == 0 ? 0 : 10_000_000L); // transit changes by 10 ms
+    }
+    // J converges to |D| (RFC 3550, A.8)
+    assertEquals(10.0, state.getJitterMillis(), 0.1);
+    assertEquals(900, state.createReportBlock(0).jitter(), 10);
+  }
+
+  @Test
+  void requestLostPacketsUntilPlayout() {
+    int[] nacks = new int[16];
+    receive(65534, 0, 0);
+    receive(2, 1, 0); // 65535, 0 and 1 lost over the wrap
+    assertEquals(3, state.collectNacks(FRAME_NANOS, nacks));
+    assertArrayEquals(new int[] {65535, 0, 1}, Arrays.copyOf(nacks, 3));
+    // again after the retry interval only
+    assertEquals(0, state.collectNacks(FRAME_NANOS + 1, nacks));
+    assertEquals(3, state.collectNacks(FRAME_NANOS + RtpSourceState.NACK_RETRY_NANOS, nacks));
+
+    receive(0, 1, 0); // retransmission
+    assertEquals(1, state.getRecoveredPackets());
+    state.setPlayoutSeq(65535); // too late for 65535
+    assertEquals(1, state.collectNacks(FRAME_NANOS + 2 * RtpSourceState.NACK_RETRY_NANOS, nacks));
+    assertEquals(1, nacks[0]);
+    // at most MAX_NACKS requests
+    assertEquals(0, state.collectNacks(FRAME_NANOS + 3 * RtpSourceState.NACK_RETRY_NANOS, nacks));
+    assertEquals(2 * 3 + 1, state.getRequestedPackets());
+  }
+}
@@ -0,0 +1,104 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class RtspRequestParserTest {
+  private static final String SETUP = "SETUP rtsp://localhost/htw.mjpeg/trackID=0 RTSP/1.0\r\n"
+      + "CSeq: 2\r\n"
+      + "Transport: RTP/AVP;unicast;client_port=25000-25001\r\n\r\n";
+  private static final String PLAY = "PLAY rtsp://localhost/htw.mjpeg RTSP/1.0\r\n"
+      + "CSeq: 3\r\n"
+      + "Range: npt=10.5-\r\n\r\n";
+
+  private final RtspRequestParser parser = new RtspRequestParser();
+  private final List<RtspRequest> requests = new ArrayList<>();
+
+  private void parse(String text) throws ProtocolException {
+    parse(text.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private void parse(byte[] data) throws ProtocolException {
+    parser.parse(ByteBuffer.wrap(data), requests);
+  }
+
+  @Test
+  void parseRequestLineAndHeaders() throws ProtocolException {
+    parse(SETUP);
+    assertEquals(1, requests.size());
+    RtspRequest request = requests.get(0);
+    assertTrue(request.isValid());
+    assertEquals("SETUP", request.getMethod());
+    assertEquals("rtsp://localhost/htw.mjpeg/trackID=0", request.getUri());
+    assertEquals("RTSP/1.0", request.getVersion());
+    assertEquals(2, request.getCSeq());
+    // header names are case insensitive
+    assertEquals("RTP/AVP;unicast;client_port=25000-25001", request.getHeader("transport"));
+  }
+
+  @Test
+  void completeRequestSplitOverReads() throws ProtocolException {
+    for (int i = 0; i < SETUP.length(); i++) {
+      assertEquals(0, requests.size(), "after " + i + " bytes");
+      parse(SETUP.substring(i, i + 1));
+    }
+    assertEquals(1, requests.size());
+    assertEquals(2, requests.get(0).getCSeq());
+  }
+
+  @Test
+  void separatePipelinedRequests() throws ProtocolException {
+    parse(SETUP + PLAY + "PAUSE rtsp://localhost/htw.mjpeg RTSP/1.0\r\nCSeq: 4");
+    assertEquals(2, requests.size());
+    assertEquals("PLAY", requests.get(1).getMethod());
+    assertEquals("npt=10.5-", requests.get(1).getHeader("Range"));
+
+    parse("\r\n\r\n");
+    assertEquals(3, requests.size());
+    assertEquals(4, requests.get(2).getCSeq());
+  }
+
+  @Test
+  void skipInterleavedPacketsBetweenRequests() throws ProtocolException {
+    byte[] rtcp = new byte[4 + 300];
+    rtcp[0] = '$';
+    rtcp[1] = 1; // channel
+    rtcp[2] = 300 >> 8;
+    rtcp[3] = (byte) 300;
+    rtcp[4 + 10] = '\n'; // binary data is not scanned for the end of a header
+    parse(SETUP);
+    parse(rtcp);
+    parse(PLAY);
+    assertEquals(2, requests.size());
+    assertEquals("PLAY", requests.get(1).getMethod());
+  }
+
+  @Test
+  void readBodyOfContentLength() throws ProtocolException {
+    String body = "v=0\r\n\r\ns=x\r\n";
+    parse("SET_PARAMETER rtsp://localhost/htw.mjpeg RTSP/1.0\r\nCSeq: 5\r\n"
+        + "Content-Length: " + body.length() + "\r\n\r\n" + body.substring(0, 3));
+    assertEquals(0, requests.size());
+    parse(body.substring(3) + PLAY);
+    assertEquals(2, requests.size());
+    assertEquals(body, new String(requests.get(0).getBody(), StandardCharsets.UTF_8));
+    assertEquals(3, requests.get(1).getCSeq());
+  }
+
+  @Test
+  void rejectInvalidRequests() {
+    assertThrows(ProtocolException.class, () -> parse("PLAY rtsp://localhost/htw.mjpeg\r\n\r\n"));
+    assertThrows(ProtocolException.class, () -> new RtspRequestParser().parse(
+        ByteBuffer.wrap("PLAY x RTSP/1.0\r\nContent-Length: -1\r\n\r\n".getBytes(
+            StandardCharsets.UTF_8)), requests));
+    byte[] header = new byte[RtspRequestParser.MAX_REQUEST_SIZE + 1];
+    Arrays.fill(header, (byte) 'a');
+    assertThrows(ProtocolException.class, () -> new RtspRequestParser().parse(
+        ByteBuffer.wrap(header), requests));
+  }
+}
@@ -0,0 +1,61 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class RtspSessionTest {
+
+  @Test
+  void parseNptTimes() {
+    assertEquals(12.5, RtspSession.parseNptTime("12.5"), 1e-9);
+    assertEquals(12.0, RtspSession.parseNptTime("12."), 1e-9);
+    assertEquals(3723.25, RtspSession.parseNptTime("1:02:03.25"), 1e-9);
+    assertTrue(Double.isNaN(RtspSession.parseNptTime("now")));
+    assertTrue(Double.isNaN(RtspSession.parseNptTime("")));
+  }
+
+  @Test
+  void rejectInvalidNptTimes() {
+    for (String npt : new String[] {"-5", "+5", "1::2", "2:03", "1:02.5:03", "abc", "NaN",
+        "Infinity", "1e3", "10d", ".5"}) {
+      assertThrows(IllegalArgumentException.class, () -> RtspSession.parseNptTime(npt), npt);
+    }
+  }
+
+  @Test
+  void parseNptRanges() {
+    double[] range = RtspSession.parseNptRange("npt=10-20.5");
+    assertEquals(10.0, range[0], 1e-9);
+    assertEquals(20.5, range[1], 1e-9);
+
+    range = RtspSession.parseNptRange("NPT=0:01:00- ;time=19970123T153600Z");
+    assertEquals(60.0, range[0], 1e-9);
+    assertTrue(Double.isNaN(range[1])); // open end
+
+    range = RtspSession.parseNptRange("npt=-30");
+    assertTrue(Double.isNaN(range[0])); // from the current position
+    assertEquals(30.0, range[1], 1e-9);
+  }
+
+  @Test
+  void rejectOtherRangeUnits() {
+    assertThrows(IllegalArgumentException.class,
+        () -> RtspSession.parseNptRange("smpte=10:07:00-10:07:33:05.01"));
+    assertThrows(IllegalArgumentException.class, () -> RtspSession.parseNptRange("npt=10"));
+  }
+
+  @Test
+  void parseInterleavedChannels() {
+    assertEquals(0, RtspSession.parseInterleavedChannel("0-1"));
+    assertEquals(4, RtspSession.parseInterleavedChannel("4"));
+    assertEquals(254, RtspSession.parseInterleavedChannel("254-255"));
+  }
+
+  @Test
+  void rejectInvalidInterleavedChannels() {
+    // the RTCP channel of 255 would not fit in the framing byte
+    for (String channels : new String[] {"255", "255-256", "-1", "-1-0", "", "a-b", "1000"}) {
+      assertThrows(IllegalArgumentException.class,
+          () -> RtspSession.parseInterleavedChannel(channels), channels);
+    }
+  }
+}
@@ -0,0 +1,106 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class UlpFecHandlerTest {
+  private static final int PROTECTION_LENGTH = 100;
+
+  private final Random random = new Random(1);
+  private FecTestStream stream;
+
+  /** Encodes a group of k packets, longer than the protection length. */
+  private void encodeGroup(int k, int snBase) {
+    stream = new FecTestStream(new UlpFecHandler(k, PROTECTION_LENGTH));
+    stream.send(snBase, k, PROTECTION_LENGTH + 1, PROTECTION_LENGTH + 1300);
+  }
+
+  private UlpFecHandler receive(boolean[] lost, HashMap<Integer, RTPpacket> mediaPackets) {
+    return stream.receive(new UlpFecHandler(true), lost, mediaPackets);
+  }
+
+  @Test
+  void recoverSingleLossCompletely() {
+    for (int k : new int[] {8, FecHandler.maxGroupSize}) {
+      encodeGroup(k, 65530); // over the wrap of the sequence numbers
+      assertEquals(2, stream.fecs.size());
+      for (int j : new int[] {0, k / 2 - 1, k - 1}) {
+        boolean[] lost = new boolean[k];
+        lost[j] = true;
+        HashMap<Integer, RTPpacket> mediaPackets = new HashMap<>();
+        UlpFecHandler receiver = receive(lost, mediaPackets);
+
+        stream.assertRecovered(receiver, j, mediaPackets);
+      }
+    }
+  }
+
+  @Test
+  void recoverPrefixOfOneLossPerHalf() {
+    int k = 8;
+    encodeGroup(k, 0);
+    boolean[] lost = new boolean[k];
+    lost[1] = true;
+    lost[k - 2] = true;
+    HashMap<Integer, RTPpacket> mediaPackets = new HashMap<>();
+    UlpFecHandler receiver = receive(lost, mediaPackets);
+
+    for (int j : new int[] {1, k - 2}) {
+      RTPpacket original = stream.media.get(j);
+      int seqNr = original.getsequencenumber();
+      assertTrue(receiver.checkCorrection(seqNr, mediaPackets));
+      RTPpacket packet = receiver.correctRtp(seqNr, mediaPackets);
+      assertEquals(original.gettimestamp(), packet.gettimestamp());
+      assertEquals(PROTECTION_LENGTH, packet.getpayload_length());
+      byte[] prefix = new byte[PROTECTION_LENGTH];
+      System.arraycopy(original.getpayload(), 0, prefix, 0, PROTECTION_LENGTH);
+      assertArrayEquals(prefix, packet.getpayload());
+    }
+  }
+
+  @Test
+  void noRecoveryOfTwoLossesInOneHalf() {
+    int k = 8;
+    encodeGroup(k, 0);
+    boolean[] lost = new boolean[k];
+    lost[0] = true;
+    lost[1] = true;
+    HashMap<Integer, RTPpacket> mediaPackets = new HashMap<>();
+    UlpFecHandler receiver = receive(lost, mediaPackets);
+
+    assertFalse(receiver.checkCorrection(0, mediaPackets));
+    assertNull(receiver.correctRtp(0, mediaPackets));
+  }
+
+  @Test
+  void fecPacketFitsSendBufferAtMaximumGroupSize() {
+    BufferPool pool = new BufferPool(RtpHandler.DEFAULT_MTU - RtpHandler.IP_UDP_HEADER_SIZE, 2);
+    RtpHandler rtpHandler = new RtpHandler(FecHandler.maxGroupSize);
+    rtpHandler.setMtu(pool.getBufferSize() + RtpHandler.IP_UDP_HEADER_SIZE);
+    rtpHandler.setEncryption(RtpHandler.EncryptionMode.NONE);
+    rtpHandler.setFecScheme(RtpHandler.FecScheme.ULP, 1);
+
+    // a frame of full packets, longer than one group
+    byte[] payload = new byte[2 * FecHandler.maxGroupSize * RtpHandler.DEFAULT_MTU];
+    random.nextBytes(payload);
+    payload[4] = 1; // RFC 2435 type without restart markers
+    payload[5] = 50; // Q without in-band tables
+    rtpHandler.startFrame(payload, 0);
+    ByteBuffer buffer = pool.acquire();
+    int fecPackets = 0;
+    while (rtpHandler.hasNextPacket()) {
+      buffer.clear();
+      rtpHandler.writeNextPacket(buffer);
+      while (rtpHandler.isFecPacketAvailable()) {
+        byte[] fec = rtpHandler.createFecPacket();
+        assertTrue(fec.length <= pool.getBufferSize(), "FEC packet of " + fec.length + " bytes");
+        buffer.clear();
+        buffer.put(fec); // as the sender does
+        fecPackets++;
+      }
+    }
+    assertTrue(fecPackets >= 2);
+  }
+}